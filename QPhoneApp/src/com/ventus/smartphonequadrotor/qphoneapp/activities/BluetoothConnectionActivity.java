@@ -5,6 +5,7 @@ import java.util.Set;
 import com.ventus.smartphonequadrotor.qphoneapp.R;
 import com.ventus.smartphonequadrotor.qphoneapp.services.MainService;
 import com.ventus.smartphonequadrotor.qphoneapp.services.intents.IntentHandler;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.StatusBroadcasts;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
@@ -40,13 +41,11 @@ public class BluetoothConnectionActivity extends Activity {
 	private Button scanButton, nextButton;
 	
 	public static final int REQUEST_INTENT_BT = 1;
-	public static final String BLUETOOTH_CONNECTION_STATUS_UPDATE = "com.ventus."
-			+ "smartphonequadrotor.qphoneapp.activities.BluetoothConnectionActivity." 
-			+ "BLUETOOTH_CONNECTION_STATUS_UPDATE";
-	public static final String BLUETOOTH_CONNECTION_STATUS = "BLUETOOTH_CONNECTION_STATUS";
-	public static final int BLUETOOTH_STATUS_CONNECTED = 1;
-	public static final int BLUETOOTH_STATUS_DISCONNECTED = 0;
-	public static final int BLUETOOTH_STATUS_CONNECTION_FAILURE = -1;
+	public static final String BLUETOOTH_CONNECTION_STATUS_UPDATE = StatusBroadcasts.BLUETOOTH_CONNECTION_STATUS_UPDATE;
+	public static final String BLUETOOTH_CONNECTION_STATUS = StatusBroadcasts.BLUETOOTH_CONNECTION_STATUS;
+	public static final int BLUETOOTH_STATUS_CONNECTED = StatusBroadcasts.BLUETOOTH_STATUS_CONNECTED;
+	public static final int BLUETOOTH_STATUS_DISCONNECTED = StatusBroadcasts.BLUETOOTH_STATUS_DISCONNECTED;
+	public static final int BLUETOOTH_STATUS_CONNECTION_FAILURE = StatusBroadcasts.BLUETOOTH_STATUS_CONNECTION_FAILURE;
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
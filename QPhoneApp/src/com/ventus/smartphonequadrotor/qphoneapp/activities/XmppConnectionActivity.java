@@ -3,6 +3,7 @@ package com.ventus.smartphonequadrotor.qphoneapp.activities;
 import com.ventus.smartphonequadrotor.qphoneapp.R;
 import com.ventus.smartphonequadrotor.qphoneapp.services.intents.IntentHandler;
 import com.ventus.smartphonequadrotor.qphoneapp.util.net.NetworkCommunicationManager;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.StatusBroadcasts;
 import android.app.Activity;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -26,13 +27,11 @@ import android.widget.Toast;
  */
 public class XmppConnectionActivity extends Activity {
 	public static final String TAG = XmppConnectionActivity.class.getName();
-	public static final String NETWORK_CONNECTION_STATUS_UPDATE = "com.ventus."
-			+ "smartphonequadrotor.qphoneapp.activities.XmppConnectionActivity." 
-			+ "NETWORK_CONNECTION_STATUS_UPDATE";
-	public static final String NETWORK_CONNECTION_STATUS = "NETWORK_CONNECTION_STATUS";
-	public static final int NETWORK_STATUS_CONNECTED = 1;
-	public static final int NETWORK_STATUS_DISCONNECTED = 0;
-	public static final int NETWORK_STATUS_CONNECTION_FAILURE = -1;
+	public static final String NETWORK_CONNECTION_STATUS_UPDATE = StatusBroadcasts.NETWORK_CONNECTION_STATUS_UPDATE;
+	public static final String NETWORK_CONNECTION_STATUS = StatusBroadcasts.NETWORK_CONNECTION_STATUS;
+	public static final int NETWORK_STATUS_CONNECTED = StatusBroadcasts.NETWORK_STATUS_CONNECTED;
+	public static final int NETWORK_STATUS_DISCONNECTED = StatusBroadcasts.NETWORK_STATUS_DISCONNECTED;
+	public static final int NETWORK_STATUS_CONNECTION_FAILURE = StatusBroadcasts.NETWORK_STATUS_CONNECTION_FAILURE;
 	
 	private IntentFilter intentFilter;
 	private EditText serverAddress;
@@ -0,0 +1,264 @@
+package com.ventus.smartphonequadrotor.qphoneapp.services;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.BluetoothManager;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommands;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommunication;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.ControlLoop;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.MotorModel;
+import com.ventus.smartphonequadrotor.qphoneapp.util.json.SystemState;
+import com.ventus.smartphonequadrotor.qphoneapp.util.net.NetworkCommunicationManager;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.JvmPlatform;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Log;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Platform;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.TaskQueue;
+
+/**
+ * This does all the processing related to getting data from the sensors, communicating with
+ * the controller and the QCB and processing any and all data. On the phone it is owned by the
+ * {@link MainService}; with a {@link JvmPlatform} it runs in a plain Java process.
+ * @author abhin
+ *
+ */
+public class QuadrotorRuntime {
+	public static final String TAG = QuadrotorRuntime.class.getSimpleName();
+	private static final int MOTOR_SPEEDS_TASK = 1;	//the what of the coalesced motor speeds
+
+	private Platform platform;
+	private NetworkCommunicationManager networkCommunicationManager;
+	private BluetoothManager bluetoothManager;
+	private ControlLoop controlLoop;
+	private QcfpCommunication qcfpCommunication;
+	/**
+	 * All the writes to the QCB happen on this queue.
+	 */
+	private TaskQueue btCommunicationQueue;
+	private MotorSpeedsTask motorSpeedsTask = new MotorSpeedsTask();
+
+	public QuadrotorRuntime(Platform platform) {
+		this.platform = platform;
+		networkCommunicationManager = new NetworkCommunicationManager(this);
+		bluetoothManager = new BluetoothManager(this);
+		qcfpCommunication = new QcfpCommunication(bluetoothManager);
+		controlLoop = new ControlLoop(this);
+		btCommunicationQueue = platform.startTaskQueue("BluetoothCommunicationLooper");
+	}
+
+	/**
+	 * Starts the control loop.
+	 */
+	public void start() {
+		controlLoop.start();
+	}
+
+	/**
+	 * Stops the control loop and the communication with the QCB and the controller.
+	 */
+	public void stop() {
+		controlLoop.stopControlLoop();
+		bluetoothManager.bluetoothReader.stopBluetoothReader();
+		bluetoothManager.disconnect();
+		btCommunicationQueue.quit();
+		networkCommunicationManager.cleanup();
+	}
+
+	public Platform getPlatform() {
+		return this.platform;
+	}
+
+	public NetworkCommunicationManager getNetworkCommunicationManager() {
+		return this.networkCommunicationManager;
+	}
+
+	public BluetoothManager getBluetoothManager() {
+		return this.bluetoothManager;
+	}
+
+	public QcfpCommunication getQcfpCommunication() {
+		return this.qcfpCommunication;
+	}
+
+	public ControlLoop getControlLoop() {
+		return this.controlLoop;
+	}
+
+	/**
+	 * This uses the network communication manager to send a message to the
+	 * controller (using either xmpp or direct connections).
+	 * @param message
+	 */
+	public void sendNetworkMessage(String message) {
+		try {
+			this.networkCommunicationManager.sendNetworkMessage(message);
+		} catch (Exception e) {
+			Log.e(TAG, "Message Could not be sent: " + e.getMessage());
+			platform.showUserMessage("Message could not be sent");
+		}
+	}
+
+	/**
+	 * This method is to be called when a packet from the controller is received
+	 * that requires the quadrotor to be armed. This method posts a task that calls
+	 * the {@link QcfpCommunication#sendFlightMode(Boolean)} method.
+	 * @param flightMode true if the quadrotor has to be armed, false otherwise
+	 */
+	public void sendFlightModeToQcb(boolean flightMode) {
+		btCommunicationQueue.post(new Runnable(){
+			public void run() {
+				try {
+					qcfpCommunication.sendFlightMode(true);
+				} catch (Exception e) {
+					String errorStr = "Bluetooth failure: cannot send flight mode";
+					platform.showUserMessage(errorStr);
+					Log.e(TAG, errorStr, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * This method is to be called when a packet from the controller is received that
+	 * requires the quadrotor to start calibrating. This method posts a task that calls
+	 * the {@link QcfpCommunication#sendStartStopCalibration(Boolean)}
+	 */
+	public void sendCalibrateSignalToQcb(final boolean startStopCalibration) {
+		btCommunicationQueue.post(new Runnable(){
+			public void run() {
+				try {
+					qcfpCommunication.sendStartStopCalibration(startStopCalibration);
+				} catch (Exception e) {
+					String errorStr = "Bluetooth failure: cannot send calibration command";
+					platform.showUserMessage(errorStr);
+					Log.e(TAG, errorStr, e);
+				}
+			}
+		});
+	}
+
+	public void sendDesiredTHrpyToQcb(final int throttle, final int height, final float roll, final float pitch, final float yaw) {
+		btCommunicationQueue.post(new Runnable() {
+			public void run() {
+				try {
+					qcfpCommunication.sendDesiredTHrpy(throttle, (short)height, new float[] {roll, pitch, yaw});
+				} catch (Exception e) {
+					String errorStr = "Bluetooth failure: cannot send hrpy command";
+					platform.showUserMessage(errorStr);
+					Log.e(TAG, errorStr, e);
+				}
+			}
+		});
+	}
+
+	public void sendAltitudeHoldToQcb(final boolean enable) {
+		btCommunicationQueue.post(new Runnable() {
+			public void run() {
+				try {
+					qcfpCommunication.setAltitudeEnable(enable);
+				} catch (Exception e) {
+					String errorStr = "Bluetooth failure: cannot send hrpy command";
+					platform.showUserMessage(errorStr);
+					Log.e(TAG, errorStr, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * This is used by the control loop when it has computed the desired motor speeds. Once
+	 * they have been written, the time since the arrival of the data they were computed from
+	 * is recorded in the latency histogram of the control loop.
+	 * @param motorSpeeds 1-by-{@value MotorModel#NUMBER_OF_MOTORS} matrix of rps
+	 * @param sampleTime the System.nanoTime at which the kinematics data arrived, 0 if unknown
+	 */
+	public void sendMotorSpeedsToQcb(SimpleMatrix motorSpeeds, long sampleTime) {
+		motorSpeedsTask.set(motorSpeeds, sampleTime);
+		btCommunicationQueue.postCoalesced(MOTOR_SPEEDS_TASK, motorSpeedsTask);
+	}
+
+	/**
+	 * Sends the latest motor speeds given to {@link QuadrotorRuntime#sendMotorSpeedsToQcb}.
+	 * There is only one of these, which is posted coalesced: if the queue falls behind, the
+	 * speeds that were not sent yet are replaced rather than queued up, and nothing is
+	 * allocated per tick.
+	 */
+	private class MotorSpeedsTask implements Runnable {
+		//the following are guarded by this
+		private byte[] pendingSpeeds = new byte[MotorModel.NUMBER_OF_MOTORS];
+		private long pendingSampleTime;
+
+		private byte[] speeds = new byte[MotorModel.NUMBER_OF_MOTORS];	//only used by run
+
+		public synchronized void set(SimpleMatrix motorSpeeds, long sampleTime) {
+			MotorModel.motorRpsToQcfpValues(motorSpeeds, pendingSpeeds);
+			pendingSampleTime = sampleTime;
+		}
+
+		public void run() {
+			long sampleTime;
+			synchronized (this) {
+				System.arraycopy(pendingSpeeds, 0, speeds, 0, speeds.length);
+				sampleTime = pendingSampleTime;
+			}
+			try {
+				qcfpCommunication.sendRawMotorSpeeds(speeds);
+				if (sampleTime != 0)
+					controlLoop.getLatencyHistogram().record((System.nanoTime() - sampleTime) / 1000);
+			} catch (Exception e) {
+				String errorStr = "Bluetooth failure: cannot send motor speeds";
+				platform.showUserMessage(errorStr);
+				Log.e(TAG, errorStr, e);
+			}
+		}
+	}
+
+	/**
+	 * Sends the debug string to the QCB as a byte array. This assumes that the debug string is
+	 * a valid hex data and that it is not null.
+	 * @param debug
+	 */
+	public void sendDebugStringToQcb(final String debug) {
+		if (debug.length() % 2 != 0)
+			throw new IllegalArgumentException("Debug string should have even characters");
+
+		btCommunicationQueue.post(new Runnable() {
+			public void run() {
+				try {
+					qcfpCommunication.sendDebugInformation(debug);
+				} catch (Exception e) {
+					String errorStr = "Bluetooth failure: cannot send debug information";
+					platform.showUserMessage(errorStr);
+					Log.e(TAG, errorStr, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * When the quadrotor responds back with its current flight mode, this method is called.
+	 * If the flight mode is {@link QcfpCommands#QCFP_FLIGHT_MODE_PENDING}, then nothing is done.
+	 * Otherwise, the flight mode is reported back to the controller.
+	 * @param flightMode
+	 */
+	public void flightModeReceivedfromQcb(int flightMode) {
+		if (flightMode == QcfpCommands.QCFP_FLIGHT_MODE_ENABLE) {
+			networkCommunicationManager.sendSystemState(SystemState.ARMED);
+		} else if (flightMode == QcfpCommands.QCFP_FLIGHT_MODE_DISABLE) {
+			networkCommunicationManager.sendSystemState(SystemState.DISARMED);
+		}
+	}
+
+	/**
+	 * When the quadrotor responds back with its current calibration status, this method is called.
+	 * If the calibration status is {@link QcfpCommands#QCFP_CALIBRATE_QUADROTOR_CALIBRATING}, then nothing is done.
+	 * Otherwise, the calibration mode is reported back to the controller.
+	 * @param calibrationStatus
+	 */
+	public void calibrationStatusReceivedfromQcb(int calibrationStatus) {
+		if (calibrationStatus == QcfpCommands.QCFP_CALIBRATE_QUADROTOR_CALIBRATED) {
+			networkCommunicationManager.sendSystemState(SystemState.CALIBRATED);
+		} else if (calibrationStatus == QcfpCommands.QCFP_CALIBRATE_QUADROTOR_UNABLE_TO_CALIBRATE
+				|| calibrationStatus == QcfpCommands.QCFP_CALIBRATE_QUADROTOR_UNCALIBRATED) {
+			networkCommunicationManager.sendSystemState(SystemState.UNABLE_TO_CALIBRATE);
+		}
+	}
+}
@@ -57,10 +57,17 @@ public class IntentHandler extends BroadcastReceiver {
 //			Log.d(TAG, "received message for controller: " + intent.getStringExtra(ActionExtras.MESSAGE_FOR_CONTROLLER.extra));
 //			owner.sendMessage(intent.getStringExtra(ActionExtras.MESSAGE_FOR_CONTROLLER.extra));
 		} else if (action.equals(XMPP_CONNECT_ACTION)) {
-			owner.getNetworkCommunicationManager().setupXmppConnection(intent, owner);
+			owner.getRuntime().getNetworkCommunicationManager().setupXmppConnection(
+				intent.getStringExtra(ActionExtras.SERVER_ADDRESS.extra),
+				Integer.parseInt(intent.getStringExtra(ActionExtras.SERVER_PORT.extra)),
+				intent.getStringExtra(ActionExtras.XMPP_OWN_JID.extra),
+				intent.getStringExtra(ActionExtras.XMPP_OWN_PASSWORD.extra),
+				intent.getStringExtra(ActionExtras.XMPP_OWN_RESOURCE.extra),
+				intent.getStringExtra(ActionExtras.XMPP_TARGET_JID.extra)
+			);
 		} else if (action.equals(BLUETOOTH_CONNECT_ACTION)) {
 			String address = intent.getStringExtra(ActionExtras.BLUETOOTH_ADDRESS.extra);
-			owner.getBluetoothManager().connect(address);
+			owner.getRuntime().getBluetoothManager().connect(address);
 			//TODO establish a connection with the device using the bluetooth manager
 		}
 	}
@@ -0,0 +1,111 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util;
+
+/**
+ * A histogram of non-negative values with buckets of equal width. The last bucket also
+ * collects every value beyond the range of the others. Recording a value doesn't allocate,
+ * so this can be used from the control loop.
+ *
+ * The histogram doesn't know the unit of its values, the owner decides on it (usually
+ * microseconds).
+ * @author abhin
+ *
+ */
+public class Histogram {
+	private long bucketWidth;
+	private long[] counts;
+	//the following are guarded by this
+	private long count;
+	private long sum;
+	private long max;
+
+	/**
+	 * @param bucketWidth the range of values that each bucket covers
+	 * @param numberOfBuckets the last of which collects the values larger than
+	 * bucketWidth * (numberOfBuckets - 1)
+	 */
+	public Histogram(long bucketWidth, int numberOfBuckets) {
+		if (bucketWidth <= 0)
+			throw new IllegalArgumentException("The width of the buckets has to be positive");
+		if (numberOfBuckets <= 0)
+			throw new IllegalArgumentException("The histogram needs at least one bucket");
+		this.bucketWidth = bucketWidth;
+		this.counts = new long[numberOfBuckets];
+	}
+
+	/**
+	 * @param value negative values are counted as 0
+	 */
+	public synchronized void record(long value) {
+		if (value < 0)
+			value = 0;
+		long bucket = value / bucketWidth;
+		counts[(bucket < counts.length) ? (int) bucket : counts.length - 1]++;
+		count++;
+		sum += value;
+		if (value > max)
+			max = value;
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = 0;
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	public long getBucketWidth() {
+		return bucketWidth;
+	}
+
+	public int getNumberOfBuckets() {
+		return counts.length;
+	}
+
+	public synchronized long getCount(int bucket) {
+		return counts[bucket];
+	}
+
+	/**
+	 * @return the number of values recorded since the last reset
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized double getMean() {
+		return (count == 0) ? 0 : (double) sum / count;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * @param percentile in [0, 100]
+	 * @return the upper end of the bucket that holds the given percentile of the values
+	 * (or the largest value if that is in the last bucket). 0 if nothing was recorded.
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("The percentile has to be in [0, 100]");
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(percentile / 100 * count);
+		long seen = 0;
+		for (int i = 0; i < counts.length - 1; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0)
+				return Math.min((i + 1) * bucketWidth, max);
+		}
+		return max;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+			"n=%d mean=%.1f p50<=%d p99<=%d max=%d",
+			count, getMean(), getPercentile(50), getPercentile(99), max
+		);
+	}
+}
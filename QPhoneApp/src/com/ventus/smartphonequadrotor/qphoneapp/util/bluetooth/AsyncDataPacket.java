@@ -0,0 +1,195 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A view of a {@link QcfpCommands#QCFP_ASYNC_DATA} packet where it lies in a little endian
+ * {@link ByteBuffer}: the command, the data source, the 32-bit timestamp of the QCB in ms and
+ * the payload of the source. The views are flyweights: one of each kind is wrapped around
+ * every packet of its source in turn, and its getters read the fields straight from the
+ * buffer, so decoding a packet neither copies nor allocates anything.
+ *
+ * A view is only valid until the buffer under it is reused, and is not thread safe.
+ * @author abhin
+ *
+ */
+public abstract class AsyncDataPacket {
+	public static final int DATA_SOURCE_ACCEL = 0x01;
+	public static final int DATA_SOURCE_GYRO = 0x02;
+	public static final int DATA_SOURCE_MAG = 0x03;
+	public static final int DATA_SOURCE_KIN = 0x06;
+	public static final int DATA_SOURCE_HEIGHT = 0x07;
+
+	public static final int DATA_SOURCE_INDEX = 1;
+	public static final int TIMESTAMP_INDEX = 2;
+	public static final int PAYLOAD_INDEX = 6;
+	/**
+	 * The command, the data source and the timestamp.
+	 */
+	public static final int HEADER_LENGTH = PAYLOAD_INDEX;
+
+	protected ByteBuffer buffer;
+	protected int offset;
+
+	/**
+	 * @return the data source of the packet at the offset, -1 if the packet is too short to
+	 * have one
+	 */
+	public static int getDataSource(ByteBuffer buffer, int offset, int length) {
+		if (length <= DATA_SOURCE_INDEX)
+			return -1;
+		return buffer.get(offset + DATA_SOURCE_INDEX);
+	}
+
+	/**
+	 * Points the view at a packet.
+	 * @param buffer little endian
+	 * @param offset the index of the command byte of the packet
+	 * @param length
+	 * @return false if the packet is not of the data source and length of the view, in which
+	 * case the view is left as it was
+	 */
+	public boolean wrap(ByteBuffer buffer, int offset, int length) {
+		if (buffer.order() != ByteOrder.LITTLE_ENDIAN)
+			throw new IllegalArgumentException("The packets of the QCB are little endian");
+		if (length != getLength() || getDataSource(buffer, offset, length) != getDataSource())
+			return false;
+		this.buffer = buffer;
+		this.offset = offset;
+		return true;
+	}
+
+	public abstract int getDataSource();
+
+	/**
+	 * @return the length of the packets of the data source, header included
+	 */
+	public abstract int getLength();
+
+	/**
+	 * @return the timestamp of the QCB in ms, unsigned
+	 */
+	public long getTimestamp() {
+		return buffer.getInt(offset + TIMESTAMP_INDEX) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * The readings of a three axis sensor, as floats.
+	 */
+	public static abstract class TriAxis extends AsyncDataPacket {
+		public static final int LENGTH = HEADER_LENGTH + 3 * 4;
+		public static final int X_INDEX = PAYLOAD_INDEX;
+		public static final int Y_INDEX = PAYLOAD_INDEX + 4;
+		public static final int Z_INDEX = PAYLOAD_INDEX + 8;
+
+		@Override
+		public int getLength() {
+			return LENGTH;
+		}
+
+		public float getX() {
+			return buffer.getFloat(offset + X_INDEX);
+		}
+
+		public float getY() {
+			return buffer.getFloat(offset + Y_INDEX);
+		}
+
+		public float getZ() {
+			return buffer.getFloat(offset + Z_INDEX);
+		}
+	}
+
+	public static final class Accel extends TriAxis {
+		@Override
+		public int getDataSource() {
+			return DATA_SOURCE_ACCEL;
+		}
+	}
+
+	public static final class Gyro extends TriAxis {
+		@Override
+		public int getDataSource() {
+			return DATA_SOURCE_GYRO;
+		}
+	}
+
+	public static final class Mag extends TriAxis {
+		@Override
+		public int getDataSource() {
+			return DATA_SOURCE_MAG;
+		}
+	}
+
+	/**
+	 * The attitude estimated by the QCB, in radians. The roll, pitch and yaw are sent in
+	 * that order, in the places of the x, y and z of the sensors.
+	 */
+	public static final class Kinematics extends TriAxis {
+		@Override
+		public int getDataSource() {
+			return DATA_SOURCE_KIN;
+		}
+
+		public float getRoll() {
+			return getX();
+		}
+
+		public float getPitch() {
+			return getY();
+		}
+
+		public float getYaw() {
+			return getZ();
+		}
+	}
+
+	/**
+	 * The distance measured by the sonar.
+	 */
+	public static final class Height extends AsyncDataPacket {
+		public static final int LENGTH = HEADER_LENGTH + 2;
+		public static final int HEIGHT_INDEX = PAYLOAD_INDEX;
+
+		@Override
+		public int getDataSource() {
+			return DATA_SOURCE_HEIGHT;
+		}
+
+		@Override
+		public int getLength() {
+			return LENGTH;
+		}
+
+		/**
+		 * @return the height in cm, unsigned. It isn't reliable below about 20cm.
+		 */
+		public int getHeight() {
+			return buffer.getShort(offset + HEIGHT_INDEX) & 0xFFFF;
+		}
+	}
+
+	/**
+	 * Keeps the little endian buffers that wrap the arrays the packets arrive in. The
+	 * {@link QcfpParser} hands out packets in the array of the reads and, for the packets
+	 * that were split across reads, in its own array, so the buffers of the last two arrays
+	 * are kept and wrapping a packet doesn't allocate once both exist.
+	 */
+	public static final class Buffers {
+		private ByteBuffer last;
+		private ByteBuffer previous;
+
+		public ByteBuffer wrap(byte[] array) {
+			if (last == null || last.array() != array) {
+				ByteBuffer swap = previous;
+				previous = last;
+				if (swap != null && swap.array() == array)
+					last = swap;
+				else
+					last = ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			return last;
+		}
+	}
+}
@@ -3,43 +3,36 @@ package com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.nio.ByteBuffer;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-import android.content.Intent;
-import android.os.Message;
-import android.util.Log;
-
-import com.ventus.smartphonequadrotor.qphoneapp.activities.BluetoothConnectionActivity;
-import com.ventus.smartphonequadrotor.qphoneapp.services.MainService;
+import com.ventus.smartphonequadrotor.qphoneapp.services.QuadrotorRuntime;
 import com.ventus.smartphonequadrotor.qphoneapp.util.control.ControlLoop;
 import com.ventus.smartphonequadrotor.qphoneapp.util.control.DataAggregator;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Log;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.QcbTransport;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.StatusBroadcasts;
 
 /**
  * Manager bluetooth connection and data transfer.
+ * The connection itself is made by the {@link QcbTransport} of the platform.
  * @author abhin
  *
  */
 public class BluetoothManager {
 	private static final String TAG = BluetoothManager.class.getName();
-	private static final UUID bluetoothConnectionUuid = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-	private BluetoothAdapter adapter;
-	private BluetoothDevice device;
-	private BluetoothSocket socket;
+	private QcbTransport transport;
 	private InputStream inputStream;
 	private OutputStream outputStream;
-	private Object socketLock = new Object();
+	private Object transportLock = new Object();
 	private Object inputStreamLock = new Object();
 	private Object outputStreamLock = new Object();
-	private MainService owner;
+	private QuadrotorRuntime owner;
 	private QcfpHandlers packetHandlers;
 	private QcfpParser bluetoothDataParser;
 	
-	public BluetoothManager(MainService owner) {
+	public BluetoothManager(QuadrotorRuntime owner) {
 		this.owner = owner;
-		adapter = BluetoothAdapter.getDefaultAdapter();
+		transport = owner.getPlatform().createQcbTransport();
 		this.packetHandlers = new QcfpHandlers();
 		bluetoothDataParser =  new QcfpParser(QcfpParser.QCFP_MAX_PACKET_SIZE, packetHandlers);
 		packetHandlers.registerHandler(QcfpCommands.QCFP_ASYNC_DATA, asyncDataCallback);
@@ -47,6 +40,15 @@ public class BluetoothManager {
 		packetHandlers.registerHandler(QcfpCommands.QCFP_CALIBRATE_QUADROTOR, calibrationStatusCallback);
 	}
 	
+	/**
+	 * The handlers of the packets from the QCB, for more subscribers to the commands (a
+	 * recorder, say) and for their dispatch counts.
+	 * @return
+	 */
+	public QcfpHandlers getPacketHandlers() {
+		return this.packetHandlers;
+	}
+	
 	/**
 	 * This getter is for {@link DataAggregator} so that it can read from the bluetooth
 	 * input stream.
@@ -60,60 +62,60 @@ public class BluetoothManager {
 	 * This method obviously connects the bluetooth device to the 
 	 * phone.
 	 * @param macAddress
-	 * @throws Exception 
 	 */
-	public void connect(String macAddress) {
-		device = adapter.getRemoteDevice(macAddress);
-		
-		try {
-			synchronized(socketLock) {
-				socket = device.createRfcommSocketToServiceRecord(bluetoothConnectionUuid);
-			}
-			
-			new Thread(new Runnable(){
-				public void run() {
-					InputStream tempIn = null;
-					OutputStream tempOut = null;
-					try {
-						synchronized (socketLock) {
-							socket.connect();						
-						}
-						tempIn = socket.getInputStream();
-						tempOut = socket.getOutputStream();
-						
-						synchronized(inputStreamLock) {
-							inputStream = tempIn;
-						}
-						synchronized(outputStreamLock) {
-							outputStream = tempOut;
-						}
-						sendConnectionSuccess();
-					} catch (IOException ex) {
-						sendConnectionFailure();
+	public void connect(final String macAddress) {
+		new Thread(new Runnable(){
+			public void run() {
+				InputStream tempIn = null;
+				OutputStream tempOut = null;
+				try {
+					synchronized (transportLock) {
+						transport.connect(macAddress);
+						tempIn = transport.getInputStream();
+						tempOut = transport.getOutputStream();
 					}
+					
+					synchronized(inputStreamLock) {
+						inputStream = tempIn;
+					}
+					synchronized(outputStreamLock) {
+						outputStream = tempOut;
+					}
+					sendConnectionSuccess();
+				} catch (IOException ex) {
+					Log.e(TAG, "Could not connect to " + macAddress, ex);
+					sendConnectionFailure();
 				}
-			}, "BluetoothConnectionThread").start();
-		} catch (Exception ex) {
-			sendConnectionFailure();
-		}
+			}
+		}, "BluetoothConnectionThread").start();
 	} 
 	
+	/**
+	 * Closes the connection to the QCB. This doesn't take the transport lock so that it can
+	 * also abort a connection attempt.
+	 */
+	public void disconnect() {
+		try {
+			transport.close();
+		} catch (IOException ex) {
+			Log.w(TAG, "Could not close the connection to the QCB", ex);
+		}
+	}
+	
 	private void sendConnectionFailure() {
-		Intent intent = new Intent(BluetoothConnectionActivity.BLUETOOTH_CONNECTION_STATUS_UPDATE);
-		intent.putExtra(
-			BluetoothConnectionActivity.BLUETOOTH_CONNECTION_STATUS, 
-			BluetoothConnectionActivity.BLUETOOTH_STATUS_CONNECTION_FAILURE
+		owner.getPlatform().sendStatusBroadcast(
+			StatusBroadcasts.BLUETOOTH_CONNECTION_STATUS_UPDATE,
+			StatusBroadcasts.BLUETOOTH_CONNECTION_STATUS, 
+			StatusBroadcasts.BLUETOOTH_STATUS_CONNECTION_FAILURE
 		);
-		owner.sendBroadcast(intent);
 	}
 	
 	private void sendConnectionSuccess() {
-		Intent intent = new Intent(BluetoothConnectionActivity.BLUETOOTH_CONNECTION_STATUS_UPDATE);
-		intent.putExtra(
-			BluetoothConnectionActivity.BLUETOOTH_CONNECTION_STATUS, 
-			BluetoothConnectionActivity.BLUETOOTH_STATUS_CONNECTED
+		owner.getPlatform().sendStatusBroadcast(
+			StatusBroadcasts.BLUETOOTH_CONNECTION_STATUS_UPDATE,
+			StatusBroadcasts.BLUETOOTH_CONNECTION_STATUS, 
+			StatusBroadcasts.BLUETOOTH_STATUS_CONNECTED
 		);
-		owner.sendBroadcast(intent);
 		bluetoothReader.start();
 	}
 	
@@ -124,9 +126,20 @@ public class BluetoothManager {
 	 * @throws IOException
 	 */
 	public void write(byte[] message) throws IOException {
+		write(message, 0, message.length);
+	}
+	
+	/**
+	 * Like {@link #write(byte[])}, for a part of an array.
+	 * @param message
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void write(byte[] message, int offset, int length) throws IOException {
 		synchronized(outputStreamLock){
 			if (outputStream != null)
-				outputStream.write(message);
+				outputStream.write(message, offset, length);
 		}
 	}
 	
@@ -164,9 +177,12 @@ public class BluetoothManager {
 					}
 					//the following is a blocking call.
 					int length = owner.getBluetoothManager().getInputStream().read(buffer);
-					bluetoothDataParser.addData(buffer, length);
+					if (length > 0)
+						bluetoothDataParser.addData(buffer, length);
 				} catch (IOException e) {
-					Log.e(TAG, "Could not read from QCB", e);
+					//the stream is closed when the reader is stopped
+					if (shouldRun)
+						Log.e(TAG, "Could not read from QCB", e);
 				}
 			}
 		}
@@ -184,9 +200,14 @@ public class BluetoothManager {
 		
 		@Override
 		public void run(byte[] packet, int length) {
+			run(packet, 0, length);
+		}
+		
+		@Override
+		public void run(byte[] packet, int offset, int length) {
 			//check if the length of the command is appropriate. 
 			if (length == 2) {
-				int flightMode = packet[CMD41_ENABLE_INDEX];
+				int flightMode = packet[offset + CMD41_ENABLE_INDEX];
 				owner.flightModeReceivedfromQcb(flightMode);
 			}
 		}
@@ -204,9 +225,14 @@ public class BluetoothManager {
 		
 		@Override
 		public void run(byte[] packet, int length) {
+			run(packet, 0, length);
+		}
+		
+		@Override
+		public void run(byte[] packet, int offset, int length) {
 			//check if the length of the command is appropriate. 
 			if (length == 2) {
-				int calibrationStatus = packet[CMD40_ENABLE_INDEX];
+				int calibrationStatus = packet[offset + CMD40_ENABLE_INDEX];
 				owner.calibrationStatusReceivedfromQcb(calibrationStatus);
 			}
 		}
@@ -216,109 +242,74 @@ public class BluetoothManager {
 	 * This callback receives data from the bluetooth. The data is in the form of a 
 	 * byte array and needs to be parsed according to the QCFB protocol guide in the
 	 * project documents folder on google docs.
+	 * The packets are read through the {@link AsyncDataPacket} views, where they are.
 	 */
 	private QcfpCallback asyncDataCallback = new QcfpCallback() {
-		private static final int CMD10_DATA_SOURCE_INDEX = 1;
-		private static final int DATA_SOURCE_ACCEL = 0x01;
-		private static final int DATA_SOURCE_GYRO = 0x02;
-		private static final int DATA_SOURCE_MAG = 0x03;
-		private static final int DATA_SOURCE_KIN = 0x06;
-		private static final int DATA_SOURCE_HEIGHT = 0x07;
-		
-		private static final int ACCEL_PAYLOAD_LENGTH = 18;
-		private static final int GYRO_PAYLOAD_LENGTH = 18;
-		private static final int MAG_PAYLOAD_LENGTH = 18;
-		private static final int KIN_PAYLOAD_LENGTH = 18;
-		private static final int HEIGHT_PAYLOAD_LENGTH = 8;
-		
-		private static final int TIMESTAMP_START_INDEX = 2;
-		
-		private static final int HEIGHT_INDEX_LSB = 6;
-		private static final int HEIGHT_INDEX_MSB = 7;
-		
-		private static final int X_START_INDEX = 6;
-		private static final int Y_START_INDEX = 10;
-		private static final int Z_START_INDEX = 14;
+		private AsyncDataPacket.Buffers buffers = new AsyncDataPacket.Buffers();
+		private AsyncDataPacket.Accel accel = new AsyncDataPacket.Accel();
+		private AsyncDataPacket.Gyro gyro = new AsyncDataPacket.Gyro();
+		private AsyncDataPacket.Mag mag = new AsyncDataPacket.Mag();
+		private AsyncDataPacket.Kinematics kinematics = new AsyncDataPacket.Kinematics();
+		private AsyncDataPacket.Height height = new AsyncDataPacket.Height();
 		
 		@Override
 		public void run(byte[] packet, int length) {
+			run(packet, 0, length);
+		}
+		
+		@Override
+		public void run(byte[] packet, int offset, int length) {
 			// Require command id, data source, 4 timestamp, and at least 1 payload
-			if(length >= 7)
+			if (length <= AsyncDataPacket.HEADER_LENGTH)
+				return;
+			ByteBuffer buffer = buffers.wrap(packet);
+			DataAggregator dataAggregator = owner.getControlLoop().getDataAggregator();
+			
+			switch(AsyncDataPacket.getDataSource(buffer, offset, length))
 			{
-				// values from tri axis sensors
-				float x, y, z;
-				
-				// Timestamp is unsigned
-				long timestamp =
-						((packet[TIMESTAMP_START_INDEX]   <<  0) & 0x00000000FF) |
-						((packet[TIMESTAMP_START_INDEX+1] <<  8) & 0x000000FF00) |
-						((packet[TIMESTAMP_START_INDEX+2] << 16) & 0x0000FF0000) |
-						((packet[TIMESTAMP_START_INDEX+3] << 24) & 0x00FF000000);
-				
-				// sensor data is signed
-				switch(packet[CMD10_DATA_SOURCE_INDEX])
+			case AsyncDataPacket.DATA_SOURCE_ACCEL:
+				if (accel.wrap(buffer, offset, length))
 				{
-				case DATA_SOURCE_ACCEL:
-					if(length == ACCEL_PAYLOAD_LENGTH)
-					{
-						x = QcfpCommunication.decodeFloat(packet, X_START_INDEX);
-						y = QcfpCommunication.decodeFloat(packet, Y_START_INDEX);
-						z = QcfpCommunication.decodeFloat(packet, Z_START_INDEX);
-						//Log.d(TAG, String.format("Accelerometer: X: %f Y: %f Z: %f", x, y, z));
-						//owner.getNetworkCommunicationManager().sendAccelerometerData(timestamp, x, y, z);
-					}
-					break;
-				case DATA_SOURCE_GYRO:
-					if(length == GYRO_PAYLOAD_LENGTH)
-					{
-						x = QcfpCommunication.decodeFloat(packet, X_START_INDEX);
-						y = QcfpCommunication.decodeFloat(packet, Y_START_INDEX);
-						z = QcfpCommunication.decodeFloat(packet, Z_START_INDEX);
-						//Log.d(TAG, String.format("Gyroscope: X: %f Y: %f Z: %f", x, y, z));
-						//owner.getNetworkCommunicationManager().sendGyroscopeData(timestamp, x, y, z);
-					}
-					break;
-				case DATA_SOURCE_MAG:
-					if(length == MAG_PAYLOAD_LENGTH)
-					{
-						x = QcfpCommunication.decodeFloat(packet, X_START_INDEX);
-						y = QcfpCommunication.decodeFloat(packet, Y_START_INDEX);
-						z = QcfpCommunication.decodeFloat(packet, Z_START_INDEX);
-						//Log.d(TAG, String.format("Magnetometer: X: %f Y: %f Z: %f", x, y, z));
-						//owner.getNetworkCommunicationManager().sendMagnetometerData(timestamp, x, y, z);
-					}
-					break;
-				case DATA_SOURCE_KIN:
-					if(length == KIN_PAYLOAD_LENGTH)
-					{
-						Float yaw, pitch, roll;
-						// Assuming roll, pitch, yaw corresponds to x, y, z and that that is
-						// the order the values are sent in.
-						// Kinematics angles are in radians.
-						roll = QcfpCommunication.decodeFloat(packet, X_START_INDEX);
-						pitch = QcfpCommunication.decodeFloat(packet, Y_START_INDEX);
-						yaw = QcfpCommunication.decodeFloat(packet, Z_START_INDEX);
-						
-						if (!Float.isNaN(roll) && !Float.isNaN(pitch) && !Float.isNaN(yaw)) {
-							owner.getControlLoop().getDataAggregator().processNewKinematicsData(timestamp, roll, pitch, yaw);
-							owner.getNetworkCommunicationManager().sendKinematicsData(timestamp, roll, pitch, yaw);
-						} else {
-							Log.e(TAG, "Orientation values are NaN");
-						}						
-					}
-					break;
-				case DATA_SOURCE_HEIGHT:
-					if(length == HEIGHT_PAYLOAD_LENGTH)
-					{
-						int height = (packet[HEIGHT_INDEX_LSB] & 0x00FF) + ((packet[HEIGHT_INDEX_MSB] & 0x00FF) << 8);
-						// Do something with the height. Height is in cm.
-						// The value isn't reliable when the height is approximately less than 20cm.
-						owner.getControlLoop().getDataAggregator().processNewHeightData(timestamp, height);
+					dataAggregator.processNewAccelData(accel.getTimestamp(), accel.getX(), accel.getY(), accel.getZ());
+				}
+				break;
+			case AsyncDataPacket.DATA_SOURCE_GYRO:
+				if (gyro.wrap(buffer, offset, length))
+				{
+					dataAggregator.processNewGyroData(gyro.getTimestamp(), gyro.getX(), gyro.getY(), gyro.getZ());
+				}
+				break;
+			case AsyncDataPacket.DATA_SOURCE_MAG:
+				if (mag.wrap(buffer, offset, length))
+				{
+					dataAggregator.processNewMagData(mag.getTimestamp(), mag.getX(), mag.getY(), mag.getZ());
+				}
+				break;
+			case AsyncDataPacket.DATA_SOURCE_KIN:
+				if (kinematics.wrap(buffer, offset, length))
+				{
+					long timestamp = kinematics.getTimestamp();
+					float roll = kinematics.getRoll();
+					float pitch = kinematics.getPitch();
+					float yaw = kinematics.getYaw();
+					
+					if (!Float.isNaN(roll) && !Float.isNaN(pitch) && !Float.isNaN(yaw)) {
+						dataAggregator.processNewKinematicsData(timestamp, roll, pitch, yaw);
+						owner.getNetworkCommunicationManager().sendKinematicsData(timestamp, roll, pitch, yaw);
+					} else {
+						Log.e(TAG, "Orientation values are NaN");
 					}
-					break;
-				default:
-					break;
 				}
+				break;
+			case AsyncDataPacket.DATA_SOURCE_HEIGHT:
+				if (height.wrap(buffer, offset, length))
+				{
+					// The value isn't reliable when the height is approximately less than 20cm.
+					dataAggregator.processNewHeightData(height.getTimestamp(), height.getHeight());
+				}
+				break;
+			default:
+				break;
 			}
 		}
 	};
@@ -1,6 +1,27 @@
 package com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth;
 
 public abstract class QcfpCallback {
+	private byte[] packetCopy;	//for callbacks that only take packets at the start of an array
 	
 	public abstract void run(byte[] packet, int length);
+	
+	/**
+	 * Handles a packet that starts at an offset into an array, which is how the
+	 * {@link QcfpParser} hands out the packets it decoded in place. By default the packet is
+	 * copied to the start of an array that belongs to the callback; callbacks that read the
+	 * packet where it is override this.
+	 * @param packet
+	 * @param offset the index of the command byte of the packet
+	 * @param length
+	 */
+	public void run(byte[] packet, int offset, int length) {
+		if (offset == 0) {
+			run(packet, length);
+			return;
+		}
+		if (packetCopy == null || packetCopy.length < length)
+			packetCopy = new byte[Math.max(length, QcfpParser.QCFP_MAX_PACKET_SIZE)];
+		System.arraycopy(packet, offset, packetCopy, 0, length);
+		run(packetCopy, length);
+	}
 }
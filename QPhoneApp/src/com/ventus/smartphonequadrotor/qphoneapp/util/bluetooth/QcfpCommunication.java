@@ -2,12 +2,13 @@ package com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
-import android.util.Log;
 import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommands;
 import com.ventus.smartphonequadrotor.qphoneapp.util.control.MotorModel;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Log;
 
 public class QcfpCommunication {
 	
@@ -21,9 +22,18 @@ public class QcfpCommunication {
 	private static final int QCFP_MAX_ENCODED_PACKET_SIZE = QcfpParser.QCFP_MAX_PACKET_SIZE + 3;
 	
 	private BluetoothManager bluetoothManager;
+	/**
+	 * The commands are built in place in the payload and encoded into the frame, which are
+	 * reused by every command so that sending doesn't allocate. The send methods are
+	 * synchronized because of them.
+	 */
+	private ByteBuffer payload;
+	private ByteBuffer frame;
 	
 	public QcfpCommunication(BluetoothManager bluetoothManager) {
 		this.bluetoothManager = bluetoothManager;
+		this.payload = ByteBuffer.allocate(QcfpParser.QCFP_MAX_PACKET_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		this.frame = ByteBuffer.allocate(QCFP_MAX_ENCODED_PACKET_SIZE);
 	}
 	
 	public static float decodeFloat(byte[] buffer, int index)
@@ -46,15 +56,13 @@ public class QcfpCommunication {
 	 * (PWM_BASE + value)/PWM_PERIOD*100% where PWM_BASE is currently 110 and PWM_PERIOD is 200.
 	 * @throws Exception Throws an exception if the command cannot be sent (Bluetooth manager couldn't write).
 	 */
-	public void sendRawMotorSpeeds(byte[] motorSpeeds) throws Exception
+	public synchronized void sendRawMotorSpeeds(byte[] motorSpeeds) throws Exception
 	{
 		if (motorSpeeds == null || motorSpeeds.length != MotorModel.NUMBER_OF_MOTORS)
 			throw new IllegalArgumentException("Motor speeds array is incorrect");
 		
-		byte[] buffer = new byte[5];
-		buffer[0] = QcfpCommands.QCFP_RAW_MOTOR_CONTROL;
-		System.arraycopy(motorSpeeds, 0, buffer, 1, motorSpeeds.length);
-		sendBluetoothMessage(QcfpCommunication.encodeData(buffer, buffer.length));
+		beginCommand(QcfpCommands.QCFP_RAW_MOTOR_CONTROL).put(motorSpeeds);
+		sendCommand();
 	}
 	
 	/**
@@ -68,74 +76,51 @@ public class QcfpCommunication {
 	 * @param enabled true to enable flight mode, false to disable flight mode
 	 * @throws Exception Throws an exception if the command cannot be sent (Bluetooth manager couldn't write).
 	 */
-	public void sendFlightMode(Boolean enabled) throws Exception
+	public synchronized void sendFlightMode(Boolean enabled) throws Exception
 	{
-		byte[] buffer = new byte[2];
-		buffer[0] = QcfpCommands.QCFP_FLIGHT_MODE;
-		if(enabled == true)
-		{
-			buffer[1] = QcfpCommands.QCFP_FLIGHT_MODE_ENABLE;
-		}
-		else
-		{
-			buffer[1] = QcfpCommands.QCFP_FLIGHT_MODE_DISABLE;
-		}
-		sendBluetoothMessage(QcfpCommunication.encodeData(buffer, buffer.length));
+		beginCommand(QcfpCommands.QCFP_FLIGHT_MODE).put(
+			(enabled == true) ? QcfpCommands.QCFP_FLIGHT_MODE_ENABLE : QcfpCommands.QCFP_FLIGHT_MODE_DISABLE
+		);
+		sendCommand();
 	}
 
-	public void setDesiredThrottle(int throttle) throws Exception
+	/**
+	 * @param throttle sent as an unsigned 16-bit value
+	 */
+	public synchronized void setDesiredThrottle(int throttle) throws Exception
 	{
-		byte[] buffer = new byte[2];
-		buffer[0] = QcfpCommands.QCFP_SET_THROTTLE;
-		buffer[1] = (byte) (throttle & 0x00FF);
-		buffer[2] = (byte) ((throttle & 0xFF00) >> 8);
-		sendBluetoothMessage(QcfpCommunication.encodeData(buffer, buffer.length));
+		beginCommand(QcfpCommands.QCFP_SET_THROTTLE).putShort((short) (throttle & 0xFFFF));
+		sendCommand();
 	}
 	
-	public void sendDesiredTHrpy(int throttle, short height, float[] rpy) throws Exception {
+	public synchronized void sendDesiredTHrpy(int throttle, short height, float[] rpy) throws Exception {
 		if (rpy == null || rpy.length != 3) 
 			throw new IllegalArgumentException("Roll, pitch, yaw array is illegal");
 		
-		ByteBuffer rpyBuffer = ByteBuffer.allocate(13).order(ByteOrder.LITTLE_ENDIAN);
-		ByteBuffer heightBuffer = ByteBuffer.allocate(3).order(ByteOrder.LITTLE_ENDIAN);
-		
-		rpyBuffer.put(QcfpCommands.QCFP_SET_DESIRED_ANGLES);
-		heightBuffer.put(QcfpCommands.QCFP_SET_DESIRED_HEIGHT);
-		
+		setDesiredThrottle(throttle);
+		ByteBuffer angles = beginCommand(QcfpCommands.QCFP_SET_DESIRED_ANGLES);
 		for (float angle : rpy) {
-			rpyBuffer.putFloat(angle);
+			angles.putFloat(angle);
 		}
-		heightBuffer.putShort(height);
-		
-		setDesiredThrottle(throttle);
-		sendBluetoothMessage(QcfpCommunication.encodeData(rpyBuffer.array(), rpyBuffer.array().length));
-		sendBluetoothMessage(QcfpCommunication.encodeData(heightBuffer.array(), heightBuffer.array().length));
+		sendCommand();
+		beginCommand(QcfpCommands.QCFP_SET_DESIRED_HEIGHT).putShort(height);
+		sendCommand();
 	}
 	
-	public void setAltitudeEnable(Boolean enabled) throws Exception
+	public synchronized void setAltitudeEnable(Boolean enabled) throws Exception
 	{
-		byte[] buffer = new byte[2];
-		buffer[0] = QcfpCommands.QCFP_ALTITUDE_HOLD_EN;
-		if(enabled == true)
-		{
-			buffer[1] = 1;
-		}
-		else
-		{
-			buffer[1] = 0;
-		}
-		sendBluetoothMessage(QcfpCommunication.encodeData(buffer, buffer.length));
+		beginCommand(QcfpCommands.QCFP_ALTITUDE_HOLD_EN).put((byte) ((enabled == true) ? 1 : 0));
+		sendCommand();
 	}
 	
 	/**
 	 * Queries the current flight mode.
 	 * @throws Exception
 	 */
-	public void queryFlightMode() throws Exception
+	public synchronized void queryFlightMode() throws Exception
 	{
-		byte[] buffer = new byte[1];
-		buffer[0] = QcfpCommands.QCFP_FLIGHT_MODE;
-		sendBluetoothMessage(QcfpCommunication.encodeData(buffer, buffer.length));
+		beginCommand(QcfpCommands.QCFP_FLIGHT_MODE);
+		sendCommand();
 	}
 	
 	/**
@@ -143,35 +128,67 @@ public class QcfpCommunication {
 	 * @param start Starts a calibration if true, stop a calibration if false.
 	 * @throws Exception Throws an exception if the command cannot be sent (Bluetooth manager couldn't write).
 	 */
-	public void sendStartStopCalibration(Boolean start) throws Exception
+	public synchronized void sendStartStopCalibration(Boolean start) throws Exception
 	{
-		byte[] buffer = new byte[2];
-		buffer[0] = QcfpCommands.QCFP_CALIBRATE_QUADROTOR;
-		if(start == true)
-		{
-			buffer[1] = QcfpCommands.QCFP_CALIBRATE_QUADROTOR_START;
-		}
-		else
-		{
-			buffer[1] = QcfpCommands.QCFP_CALIBRATE_QUADROTOR_STOP;
-		}
-		sendBluetoothMessage(QcfpCommunication.encodeData(buffer, buffer.length));
+		beginCommand(QcfpCommands.QCFP_CALIBRATE_QUADROTOR).put(
+			(start == true) ? QcfpCommands.QCFP_CALIBRATE_QUADROTOR_START : QcfpCommands.QCFP_CALIBRATE_QUADROTOR_STOP
+		);
+		sendCommand();
 	}
 	
-	public void sendDebugInformation(String debugStr) throws Exception {
-		byte[] buffer = hexString2Byte(debugStr);
-		sendBluetoothMessage(QcfpCommunication.encodeData(buffer, buffer.length));
+	/**
+	 * @param debugStr the bytes to send, as pairs of hex digits
+	 */
+	public synchronized void sendDebugInformation(String debugStr) throws Exception {
+		int length = debugStr.length() / 2;
+		if (length > QcfpParser.QCFP_MAX_PACKET_SIZE)
+			throw new IllegalArgumentException("Length of buffer is too large to be encoded.");
+		payload.clear();
+		for (int i = 0; i < length; i++) {
+			int high = Character.digit(debugStr.charAt(2 * i), 16);
+			int low = Character.digit(debugStr.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0)
+				throw new NumberFormatException("Not a hex string: " + debugStr);
+			payload.put((byte) ((high << 4) | low));
+		}
+		sendCommand();
 	}
 	
 	/**
 	 * Queries the calibration state.
 	 * @throws Exception
 	 */
-	public void queryCalibration() throws Exception
+	public synchronized void queryCalibration() throws Exception
 	{
-		byte[] buffer = new byte[1];
-		buffer[0] = QcfpCommands.QCFP_CALIBRATE_QUADROTOR;
-		sendBluetoothMessage(QcfpCommunication.encodeData(buffer, buffer.length));
+		beginCommand(QcfpCommands.QCFP_CALIBRATE_QUADROTOR);
+		sendCommand();
+	}
+	
+	/**
+	 * Encodes and sends a payload that the caller has built, from its position to its limit.
+	 * The position of the payload is moved to its limit.
+	 */
+	public synchronized void sendPayload(ByteBuffer payload) {
+		frame.clear();
+		encode(payload, frame);
+		sendBluetoothMessage(frame.array(), frame.arrayOffset(), frame.position());
+	}
+	
+	/**
+	 * Starts a new command in the payload.
+	 * @return the payload, to put the arguments of the command into
+	 */
+	private ByteBuffer beginCommand(byte command) {
+		payload.clear();
+		return payload.put(command);
+	}
+	
+	/**
+	 * Encodes and sends the command in the payload.
+	 */
+	private void sendCommand() {
+		payload.flip();
+		sendPayload(payload);
 	}
 	
 	/**
@@ -180,16 +197,104 @@ public class QcfpCommunication {
 	 * @param message
 	 */
 	public void sendBluetoothMessage(byte[] message) {
+		sendBluetoothMessage(message, 0, message.length);
+	}
+	
+	/**
+	 * This uses the {@link BluetoothManager} to send a part of an array to the QCB
+	 * over bluetooth.
+	 * @param message
+	 * @param offset
+	 * @param length
+	 */
+	public void sendBluetoothMessage(byte[] message, int offset, int length) {
 		try {
-			this.bluetoothManager.write(message);
+			this.bluetoothManager.write(message, offset, length);
 		} catch (IOException ioEx) {
 			Log.e(TAG, "Could not send message", ioEx);
 		}
 	}
 
+	/**
+	 * Encodes a payload into a COBS frame, like {@link #encodeData(byte[], int)} but without
+	 * allocating anything: the frame is written straight into the given buffer.
+	 * 
+	 * @param payload The bytes from its position to its limit are encoded. Its position is
+	 * moved to its limit.
+	 * @param frame The frame, including the leading and the trailing COBS_TERM_BYTE, is
+	 * written from its position on. Its position is moved past the frame.
+	 * @throws IllegalArgumentException if the payload is empty or too large to be encoded
+	 * @throws BufferOverflowException if the frame doesn't fit into the buffer, which can't
+	 * happen with a buffer of QCFP_MAX_PACKET_SIZE + 3 bytes
+	 */
+	public static void encode(ByteBuffer payload, ByteBuffer frame) {
+		int length = payload.remaining();
+		if (length == 0 || length > QcfpParser.QCFP_MAX_PACKET_SIZE) {
+			throw new IllegalArgumentException(
+					"Length of buffer is empty or too large to be encoded.");
+		}
+		if (frame.remaining() < length + 3)
+			throw new BufferOverflowException();
+		if (payload.hasArray() && frame.hasArray() && !frame.isReadOnly()) {
+			int end = encode(payload.array(), payload.arrayOffset() + payload.position(), length,
+					frame.array(), frame.arrayOffset() + frame.position());
+			payload.position(payload.limit());
+			frame.position(end - frame.arrayOffset());
+			return;
+		}
+
+		// First byte is always COBS_TERM_BYTE
+		frame.put(QcfpParser.COBS_TERM_BYTE);
+		// Each chunk starts with the count of its bytes up to the next zero, which is
+		// filled in once the chunk ends
+		int chunkIndex = frame.position();
+		frame.put(QcfpParser.COBS_TERM_BYTE);
+		byte byteCount = 1;
+		for (int i = 0; i < length; i++) {
+			byte value = payload.get();
+			if (value == QcfpParser.COBS_TERM_BYTE) {
+				frame.put(chunkIndex, byteCount);
+				chunkIndex = frame.position();
+				frame.put(QcfpParser.COBS_TERM_BYTE);
+				byteCount = 1;
+			} else {
+				frame.put(value);
+				byteCount++;
+			}
+		}
+		frame.put(chunkIndex, byteCount);
+		frame.put(QcfpParser.COBS_TERM_BYTE);
+	}
+
+	/**
+	 * {@link #encode(ByteBuffer, ByteBuffer)} on the arrays behind heap buffers, which saves
+	 * the checks of every get and put.
+	 * @return the index in the frame after the trailing COBS_TERM_BYTE
+	 */
+	private static int encode(byte[] payload, int offset, int length, byte[] frame, int index) {
+		frame[index++] = QcfpParser.COBS_TERM_BYTE;
+		int chunkIndex = index++;
+		byte byteCount = 1;
+		for (int end = offset + length; offset < end; offset++) {
+			byte value = payload[offset];
+			if (value == QcfpParser.COBS_TERM_BYTE) {
+				frame[chunkIndex] = byteCount;
+				chunkIndex = index++;
+				byteCount = 1;
+			} else {
+				frame[index++] = value;
+				byteCount++;
+			}
+		}
+		frame[chunkIndex] = byteCount;
+		frame[index++] = QcfpParser.COBS_TERM_BYTE;
+		return index;
+	}
+
 	/**
 	 * This method is equivalent in function to the function qcfp_send_data in
-	 * the firmware.
+	 * the firmware. It allocates the encoded array; the send methods use
+	 * {@link #encode(ByteBuffer, ByteBuffer)} instead.
 	 * 
 	 * @param buffer The buffer to send.
 	 * @param length The length of the buffer.
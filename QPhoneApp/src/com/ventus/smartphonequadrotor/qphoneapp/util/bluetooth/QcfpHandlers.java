@@ -1,25 +1,124 @@
 package com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth;
 
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCallback;
 
+/**
+ * Dispatches the packets decoded by the {@link QcfpParser} to the callbacks registered for
+ * their command byte. The callbacks are kept in a table with a slot for each of the 256
+ * commands, so a dispatch is an array lookup. A command can have several callbacks (the
+ * control path and a recorder, say), which run in the order they were registered.
+ *
+ * Registering is rare and copies the table, which is then published as a whole; a dispatch
+ * works on the table as it was when the dispatch started and doesn't allocate. Every packet
+ * is counted by its command, with or without callbacks, for instrumentation.
+ * @author abhin
+ *
+ */
 public class QcfpHandlers {
+	private static final int COMMANDS = 256;
+	private static final QcfpCallback[] NO_CALLBACKS = new QcfpCallback[0];
 
-	private TreeMap<Integer, QcfpCallback> callbackMap;
+	/**
+	 * The callbacks of each command, indexed by the command as an unsigned byte. Neither
+	 * the table nor the arrays in it are modified once published.
+	 */
+	private volatile QcfpCallback[][] callbackTable;
+	private AtomicLongArray dispatchCounts;
 
 	public QcfpHandlers() {
-		callbackMap = new TreeMap<Integer, QcfpCallback>();
+		callbackTable = new QcfpCallback[COMMANDS][];
+		for (int i = 0; i < COMMANDS; i++)
+			callbackTable[i] = NO_CALLBACKS;
+		dispatchCounts = new AtomicLongArray(COMMANDS);
 	}
 
 	public void dispatch(byte[] incomingPacket, int packetSize) {
-		QcfpCallback callback = callbackMap.get(new Integer(incomingPacket[0]));
-		if (callback != null) {
-			callback.run(incomingPacket, packetSize);
+		dispatch(incomingPacket, 0, packetSize);
+	}
+
+	/**
+	 * Dispatches a packet that starts at an offset into an array.
+	 */
+	public void dispatch(byte[] incomingPacket, int offset, int packetSize) {
+		int command = incomingPacket[offset] & 0xFF;
+		dispatchCounts.incrementAndGet(command);
+		QcfpCallback[] callbacks = callbackTable[command];
+		for (int i = 0; i < callbacks.length; i++) {
+			callbacks[i].run(incomingPacket, offset, packetSize);
+		}
+	}
+
+	/**
+	 * Adds a callback for a command. The callbacks registered before for the command stay.
+	 * @param command the command byte, signed or unsigned (so that both (byte) 0xF0 and
+	 * 0xF0 work)
+	 */
+	public synchronized void registerHandler(int command, QcfpCallback qcfpCallback) {
+		if (qcfpCallback == null)
+			throw new IllegalArgumentException("The callback is null");
+		int index = toIndex(command);
+		QcfpCallback[] callbacks = callbackTable[index];
+		QcfpCallback[] newCallbacks = new QcfpCallback[callbacks.length + 1];
+		System.arraycopy(callbacks, 0, newCallbacks, 0, callbacks.length);
+		newCallbacks[callbacks.length] = qcfpCallback;
+		publish(index, newCallbacks);
+	}
+
+	/**
+	 * Removes a callback from a command.
+	 * @return false if it wasn't registered for the command
+	 */
+	public synchronized boolean unregisterHandler(int command, QcfpCallback qcfpCallback) {
+		int index = toIndex(command);
+		QcfpCallback[] callbacks = callbackTable[index];
+		for (int i = 0; i < callbacks.length; i++) {
+			if (callbacks[i] == qcfpCallback) {
+				QcfpCallback[] newCallbacks = NO_CALLBACKS;
+				if (callbacks.length > 1) {
+					newCallbacks = new QcfpCallback[callbacks.length - 1];
+					System.arraycopy(callbacks, 0, newCallbacks, 0, i);
+					System.arraycopy(callbacks, i + 1, newCallbacks, i, callbacks.length - i - 1);
+				}
+				publish(index, newCallbacks);
+				return true;
+			}
 		}
+		return false;
+	}
+
+	private void publish(int index, QcfpCallback[] callbacks) {
+		QcfpCallback[][] newTable = new QcfpCallback[COMMANDS][];
+		System.arraycopy(callbackTable, 0, newTable, 0, COMMANDS);
+		newTable[index] = callbacks;
+		callbackTable = newTable;
+	}
+
+	/**
+	 * @return the number of callbacks registered for the command
+	 */
+	public int getHandlerCount(int command) {
+		return callbackTable[toIndex(command)].length;
+	}
+
+	/**
+	 * @return the number of packets of the command that were dispatched, including the ones
+	 * that had no callback
+	 */
+	public long getDispatchCount(int command) {
+		return dispatchCounts.get(toIndex(command));
+	}
+
+	public void resetDispatchCounts() {
+		for (int i = 0; i < COMMANDS; i++)
+			dispatchCounts.set(i, 0);
 	}
 
-	public void registerHandler(int command, QcfpCallback qcfpCallback) {
-		callbackMap.put(command, qcfpCallback);
+	private static int toIndex(int command) {
+		if (command < Byte.MIN_VALUE || command >= COMMANDS)
+			throw new IllegalArgumentException("Not a command byte: " + command);
+		return command & 0xFF;
 	}
 
 }
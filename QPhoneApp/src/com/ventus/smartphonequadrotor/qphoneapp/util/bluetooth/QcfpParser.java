@@ -1,27 +1,44 @@
 package com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth;
 
+/**
+ * Decodes the COBS frames that arrive from the QCB and dispatches the packets in them.
+ *
+ * Instead of going through the data a byte at a time, the parser looks for the terminators
+ * of the frames in bulk and then follows the code bytes of the chunks of a frame. As every
+ * code byte but the first stands where the decoded packet has a zero, a frame is decoded in
+ * place by zeroing those code bytes: the packet is then the frame without its first byte.
+ * So a frame that lies completely inside the data given to {@link #addData(byte[], int)} is
+ * handed to the handlers as a slice of that data, without being copied (the data is
+ * modified in the process). Only a frame that is split across calls is copied, with
+ * System.arraycopy, until its terminator arrives.
+ *
+ * A frame that is too large, or whose chunks don't end exactly at its terminator, is
+ * dropped. Data before the first COBS_TERM_BYTE is ignored.
+ * @author abhin
+ *
+ */
 public class QcfpParser {
 
-	private enum cobsState {
-		COBS_DECODE, 
-		COBS_COPY, 
-		COBS_SYNC,
-	}
-
 	public static final int QCFP_MAX_PACKET_SIZE = 32;
 	public static byte COBS_TERM_BYTE = 0;
 
 	private int maxPacketSize;
-	private cobsState decodeState;
-	private byte incomingPacket[]; // Extra space in case of overflow
-	private int packetSize; // Counts packet size
-	private int byteCount; // Counts number of encoded bytes
 	private QcfpHandlers packetHandlers;
+	/**
+	 * False until a COBS_TERM_BYTE is seen, and again after a frame got too large.
+	 */
+	private boolean synced;
+	/**
+	 * The encoded bytes of a frame that was split across calls, without its terminators.
+	 * The code bytes make an encoded frame a byte longer than its packet.
+	 */
+	private byte incomingFrame[];
+	private int frameSize;
 
 	/**
 	 * Creates a parser object that will not allow a decoded packet greater than
 	 * size maxPacketSize.
-	 * 
+	 *
 	 * @param maxPacketSize
 	 *            Maximum allowable packet size.
 	 * @param packetHandlers
@@ -29,78 +46,96 @@ public class QcfpParser {
 	 */
 	public QcfpParser(int maxPacketSize, QcfpHandlers packetHandlers) {
 		this.maxPacketSize = maxPacketSize;
-		this.byteCount = 0;
-		this.packetSize = 0;
-		this.decodeState = cobsState.COBS_SYNC;
-		this.incomingPacket = new byte[this.maxPacketSize + 2];
 		this.packetHandlers = packetHandlers;
+		this.synced = false;
+		this.incomingFrame = new byte[this.maxPacketSize + 1];
+		this.frameSize = 0;
 	}
 
 	/**
 	 * Adds the data in buffer of length to any previously processed data. This
 	 * method is equivalent in function to the function qcfp_data_received in
-	 * the firmware.
-	 * 
+	 * the firmware. The frames that lie completely inside the buffer are decoded
+	 * in place.
+	 *
 	 * @param buffer
 	 *            Data to be processed.
 	 * @param length
 	 *            Number of bytes to process.
 	 */
 	public void addData(byte[] buffer, int length) {
-
-		// Decode data from buffer
-		for (int i = 0; i < length; i++) {
-			if (this.packetSize > this.maxPacketSize) {
-				this.decodeState = cobsState.COBS_SYNC;
-			}
-
-			switch (this.decodeState) {
-			case COBS_DECODE:
-				if (buffer[i] == COBS_TERM_BYTE) {
-					if ((this.packetSize > 0) && (this.byteCount == 0)) {
-						// Handle packet
-						if (this.incomingPacket[this.packetSize] == COBS_TERM_BYTE) {
-							this.packetSize--;
-						}
-						this.packetHandlers.dispatch(this.incomingPacket, this.packetSize);
-					}
-					this.packetSize = 0;
-					this.byteCount = 0;
-				} else {
-					this.byteCount = buffer[i];
-					this.decodeState = cobsState.COBS_COPY;
-				}
-				break;
-			case COBS_COPY:
-				if (this.byteCount == 1) {
-					this.incomingPacket[this.packetSize++] = 0;
-					i--; 	// i points to the next data chunk byte currently,
-							// which is what the decode state needs
-					this.byteCount--;
-					this.decodeState = cobsState.COBS_DECODE;
-				} else {
-					if (buffer[i] == COBS_TERM_BYTE) {
-						// Got a zero when expecting data, re-sync
-						this.byteCount = 0;
-						this.packetSize = 0;
-						this.decodeState = cobsState.COBS_DECODE;
-					} else {
-						if (byteCount > 1) {
-							this.incomingPacket[this.packetSize++] = buffer[i];
-							this.byteCount--;
-						}
-					}
+		int i = 0;
+		while (i < length) {
+			int terminator = indexOfTerminator(buffer, i, length);
+			if (!synced) {
+				if (terminator == length)
+					return;
+				synced = true;
+				frameSize = 0;
+			} else if (frameSize > 0) {
+				//the rest of a frame that started in an earlier call
+				if (!appendToFrame(buffer, i, terminator - i))
+					continue;	//wait for the terminator again
+				if (terminator < length) {
+					decodeAndDispatch(incomingFrame, 0, frameSize);
+					frameSize = 0;
 				}
-				break;
-			case COBS_SYNC:
-			default:
-				this.packetSize = 0;
-				this.byteCount = 0;
-				if (buffer[i] == COBS_TERM_BYTE) {
-					this.decodeState = cobsState.COBS_DECODE;
-				}
-				break;
+			} else if (terminator < length) {
+				decodeAndDispatch(buffer, i, terminator - i);
+			} else {
+				//the frame ends in a later call
+				appendToFrame(buffer, i, length - i);
 			}
+			i = terminator + 1;
+		}
+	}
+
+	/**
+	 * @return the index of the first COBS_TERM_BYTE at or after from, length if there is none
+	 */
+	private static int indexOfTerminator(byte[] buffer, int from, int length) {
+		while (from < length && buffer[from] != COBS_TERM_BYTE)
+			from++;
+		return from;
+	}
+
+	/**
+	 * Adds a part of a frame to incomingFrame. If the frame gets too large, it is dropped and
+	 * the parser waits for the next terminator.
+	 * @return false if the frame got too large
+	 */
+	private boolean appendToFrame(byte[] buffer, int offset, int length) {
+		if (frameSize + length > incomingFrame.length) {
+			synced = false;
+			frameSize = 0;
+			return false;
+		}
+		System.arraycopy(buffer, offset, incomingFrame, frameSize, length);
+		frameSize += length;
+		return true;
+	}
+
+	/**
+	 * Decodes the frame in place and dispatches its packet, if the frame is valid.
+	 * @param offset the index of the first code byte of the frame
+	 * @param length the length of the frame without its terminators
+	 */
+	private void decodeAndDispatch(byte[] frame, int offset, int length) {
+		//an empty packet has no command to dispatch on
+		if (length < 2 || length - 1 > maxPacketSize)
+			return;
+		//the chunks have to end exactly at the terminator
+		int end = offset + length;
+		int chunk = offset;
+		while (chunk < end)
+			chunk += frame[chunk] & 0xFF;
+		if (chunk != end)
+			return;
+		for (chunk = offset + (frame[offset] & 0xFF); chunk < end; ) {
+			int next = chunk + (frame[chunk] & 0xFF);
+			frame[chunk] = 0;
+			chunk = next;
 		}
+		packetHandlers.dispatch(frame, offset + 1, length - 1);
 	}
 }
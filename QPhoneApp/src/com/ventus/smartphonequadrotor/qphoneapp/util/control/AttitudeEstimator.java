@@ -0,0 +1,36 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+/**
+ * Estimates the roll, pitch and yaw of the quadrotor from the raw outputs of the
+ * accelerometer, gyroscope and magnetometer on the QCB.
+ * 
+ * The timestamps are in nanoseconds on the QCB clock (see {@link TimeBase}); the gyroscope
+ * values are in radians per second, the units of the accelerometer and the magnetometer
+ * don't matter because only their directions are used. The angles are in radians, in
+ * [-pi, pi]. The samples of all three sensors are registered by one thread.
+ * @author abhin
+ *
+ */
+public interface AttitudeEstimator {
+	public void registerAccelValues(float x, float y, float z, long timestamp);
+	
+	public void registerGyroValues(float x, float y, float z, long timestamp);
+	
+	public void registerMagValues(float x, float y, float z, long timestamp);
+	
+	/**
+	 * @return true once there is an estimate, i.e. after the first accelerometer values
+	 */
+	public boolean isInitialized();
+	
+	public double getRoll();
+	
+	public double getPitch();
+	
+	public double getYaw();
+	
+	/**
+	 * Forgets the estimate, e.g. when the QCB has been reconnected.
+	 */
+	public void reset();
+}
@@ -0,0 +1,71 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+/**
+ * This evaluates the spline f(x) = x^2 - 2*x^3 + x^4 that {@link CmacLayer} uses as the
+ * activation function of a single dimension (x being the normalized position of the input
+ * in its cell: 0 at the edges and 1 at the center).
+ *
+ * {@link #evaluate(double)} computes the polynomial exactly in its factored form
+ * (x*(1-x))^2, which takes three multiplications instead of three calls to Math.pow.
+ * An instance of this class is a table of the spline sampled at a given resolution that is
+ * linearly interpolated by {@link #lookup(double)}. Its error is at most
+ * {@link #getMaxError()}.
+ * @author abhin
+ *
+ */
+public class CmacActivationTable {
+	private int resolution;
+	private double[] table;
+
+	/**
+	 * @param resolution the number of intervals that [0, 1] is divided into
+	 */
+	public CmacActivationTable(int resolution) {
+		if (resolution < 1)
+			throw new IllegalArgumentException("The resolution has to be at least 1");
+		this.resolution = resolution;
+		table = new double[resolution + 2];	//the last entry is only there so that lookup(1) can interpolate
+		for (int i = 0; i <= resolution; i++) {
+			table[i] = evaluate((double) i / resolution);
+		}
+		table[resolution + 1] = table[resolution];
+	}
+
+	/**
+	 * @param x
+	 * @return x^2 - 2*x^3 + x^4
+	 */
+	public static double evaluate(double x) {
+		double t = x * (1 - x);
+		return t * t;
+	}
+
+	/**
+	 * @param x the normalized position. This is clamped to [0, 1].
+	 * @return the spline at x, interpolated from the table
+	 */
+	public double lookup(double x) {
+		if (x <= 0)
+			return table[0];
+		if (x >= 1)
+			return table[resolution];
+		double position = x * resolution;
+		int index = (int) position;
+		double fraction = position - index;
+		return table[index] + fraction * (table[index + 1] - table[index]);
+	}
+
+	public int getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * The error of linear interpolation with a step h is at most h^2/8 times the maximum of
+	 * |f''(x)| = |2 - 12x + 12x^2|, which is 2 on [0, 1].
+	 * @return the largest absolute difference between {@link #lookup(double)} and
+	 * {@link #evaluate(double)}
+	 */
+	public double getMaxError() {
+		return 1.0 / (4.0 * resolution * resolution);
+	}
+}
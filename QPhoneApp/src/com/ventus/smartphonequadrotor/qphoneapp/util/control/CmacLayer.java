@@ -2,7 +2,6 @@ package com.ventus.smartphonequadrotor.qphoneapp.util.control;
 
 import java.util.HashMap;
 
-import com.ventus.smartphonequadrotor.qphoneapp.util.KeyValuePair;
 import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
 
 
@@ -40,13 +39,21 @@ import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
 public class CmacLayer {
 	public static final String TAG = CmacLayer.class.getSimpleName();
 	public static final int DEFAULT_QUANTIZATION_NUMBER = 100;
-	private HashMap<SimpleMatrix, SimpleMatrix> controlWeights, alternateWeights;
 	/**
 	 * By profiling the application, we noticed that the operations on the {@link HashMap} class
-	 * aren't as cheap as we hoped them to be. So these caches make sure that repeated searches don't get
-	 * executed.
+	 * (hashing a SimpleMatrix key rounds all its elements through a DecimalFormat) aren't as cheap
+	 * as we hoped them to be. So both the control and alternate weights are kept in a primitive
+	 * table keyed by the integer cell coordinates of the input.
 	 */
-	private KeyValuePair<SimpleMatrix, SimpleMatrix> controlWeightsCache, alternateWeightsCache;
+	private CmacWeightStore weightStore;
+	private CmacQuantizer quantizer;				//maps the inputs to the integer coordinates of their cells
+	private int[] cellIndices;						//scratch space for the cell coordinates of an input
+	private CmacActivationTable activationTable;	//null to evaluate the activation function exactly
+	//the cell found by the last call to query(double[], ...), see applyDeltasToQueriedCell
+	private long queriedKeyHigh;
+	private long queriedKeyLow;
+	private int queriedSlot = -1;
+	private int queriedStoreSize = -1;				//the size of the store when the cell was found
 	private SimpleMatrix offset;					//the inputs will be added by this before evaluation
 	private int quantizationNumber;					//this is the number of cells in the defined range
 	private SimpleMatrix lowerBound;				//the lower bound for the state space
@@ -54,7 +61,15 @@ public class CmacLayer {
 	private SimpleMatrix stateInterval;				//the interval between multiple quanta of the state space
 													//in the various dimensions
 	
-	public CmacLayer(int quantizationNumber, SimpleMatrix lowerBound, SimpleMatrix upperBound, SimpleMatrix offset) {
+	/**
+	 * @param quantizationNumber
+	 * @param lowerBound
+	 * @param upperBound
+	 * @param offset
+	 * @param weightStore the (empty) table that the weights will be stored in. Use 
+	 * {@link CmacWeightStore#createHashed(int)} to limit the memory used by the layer.
+	 */
+	public CmacLayer(int quantizationNumber, SimpleMatrix lowerBound, SimpleMatrix upperBound, SimpleMatrix offset, CmacWeightStore weightStore) {
 		this.quantizationNumber = quantizationNumber;
 		this.lowerBound = lowerBound;
 		this.upperBound = upperBound;
@@ -69,11 +84,14 @@ public class CmacLayer {
 			}
 		}
 		
-		//init the hash maps
-		controlWeights = new HashMap<SimpleMatrix, SimpleMatrix>();
-		alternateWeights = new HashMap<SimpleMatrix, SimpleMatrix>();
-		controlWeightsCache = new KeyValuePair<SimpleMatrix, SimpleMatrix>(null, null);
-		alternateWeightsCache = new KeyValuePair<SimpleMatrix, SimpleMatrix>(null, null);
+		//init the weight table
+		quantizer = new CmacQuantizer(lowerBound, stateInterval, offset);
+		this.weightStore = weightStore;
+		cellIndices = new int[stateInterval.getNumElements()];
+	}
+	
+	public CmacLayer(int quantizationNumber, SimpleMatrix lowerBound, SimpleMatrix upperBound, SimpleMatrix offset) {
+		this(quantizationNumber, lowerBound, upperBound, offset, new CmacWeightStore());
 	}
 	
 	public CmacLayer(SimpleMatrix offset) {
@@ -98,41 +116,98 @@ public class CmacLayer {
 		double activationFunction = calculateActivationFunction(input, roundedOffsettedInput);
 		
 		//query the layer and compute the return values
-		SimpleMatrix control, alternate;
-		
-		if (controlWeightsCache.key != null && controlWeightsCache.key.equals(roundedOffsettedInput)) {
-			control = controlWeightsCache.value;
-		} else {
-			control = controlWeights.get(roundedOffsettedInput);
-			if (control != null) {
-				controlWeightsCache.key = roundedOffsettedInput;
-				controlWeightsCache.value = control;
+		SimpleMatrix control = new SimpleMatrix(1, CmacOutput.NUMBER_OF_WEIGHTS);
+		SimpleMatrix alternate = new SimpleMatrix(1, CmacOutput.NUMBER_OF_WEIGHTS);
+		quantizer.quantize(input, cellIndices);
+		int slot = weightStore.find(CmacWeightStore.packHigh(cellIndices), CmacWeightStore.packLow(cellIndices));
+		if (slot != -1) {
+			double[] weights = weightStore.getWeights();
+			int base = slot * CmacWeightStore.WEIGHTS_PER_CELL;
+			for (int i = 0; i < CmacOutput.NUMBER_OF_WEIGHTS; i++) {
+				control.set(i, weights[base + CmacWeightStore.CONTROL_WEIGHTS_OFFSET + i]);
+				alternate.set(i, weights[base + CmacWeightStore.ALTERNATE_WEIGHTS_OFFSET + i]);
 			}
 		}
-		if (control == null) {
-			control = new SimpleMatrix(1, CmacOutput.NUMBER_OF_WEIGHTS);
-			controlWeightsCache.key = roundedOffsettedInput;
-			controlWeightsCache.value = control;
-		}
 		
-		if (alternateWeightsCache.key != null && alternateWeightsCache.key.equals(roundedOffsettedInput)) {
-			alternate = alternateWeightsCache.value;
+		return new CmacOutput(control, alternate, activationFunction);
+	}
+	
+	/**
+	 * This is the allocation free version of {@link #query(SimpleMatrix)}. It is meant to be
+	 * used by the control loop on every iteration.
+	 * @param input array with {@value CmacInputParam#count} elements
+	 * @param controlWeights receives the {@value CmacOutput#NUMBER_OF_WEIGHTS} control weights 
+	 * starting at outputOffset
+	 * @param alternateWeights receives the {@value CmacOutput#NUMBER_OF_WEIGHTS} alternate weights 
+	 * starting at outputOffset
+	 * @param outputOffset
+	 * @return the activation function of the input
+	 */
+	public double query(double[] input, double[] controlWeights, double[] alternateWeights, int outputOffset) {
+		quantizer.quantize(input, cellIndices);
+		double activationFunction = calculateActivationFunction(input, cellIndices);
+		
+		queriedKeyHigh = CmacWeightStore.packHigh(cellIndices);
+		queriedKeyLow = CmacWeightStore.packLow(cellIndices);
+		int slot = weightStore.find(queriedKeyHigh, queriedKeyLow);
+		queriedSlot = slot;
+		queriedStoreSize = weightStore.size();
+		if (slot != -1) {
+			double[] weights = weightStore.getWeights();
+			int base = slot * CmacWeightStore.WEIGHTS_PER_CELL;
+			System.arraycopy(weights, base + CmacWeightStore.CONTROL_WEIGHTS_OFFSET, 
+					controlWeights, outputOffset, CmacOutput.NUMBER_OF_WEIGHTS);
+			System.arraycopy(weights, base + CmacWeightStore.ALTERNATE_WEIGHTS_OFFSET, 
+					alternateWeights, outputOffset, CmacOutput.NUMBER_OF_WEIGHTS);
 		} else {
-			alternate = alternateWeights.get(roundedOffsettedInput);
-			alternateWeightsCache = new KeyValuePair<SimpleMatrix, SimpleMatrix>(roundedOffsettedInput, alternate);
+			for (int i = outputOffset; i < outputOffset + CmacOutput.NUMBER_OF_WEIGHTS; i++) {
+				controlWeights[i] = 0;
+				alternateWeights[i] = 0;
+			}
 		}
-		if (alternate == null) {
-			alternate = new SimpleMatrix(1, CmacOutput.NUMBER_OF_WEIGHTS);
-			alternateWeightsCache.key = roundedOffsettedInput;
-			alternateWeightsCache.value = alternate;
+		return activationFunction;
+	}
+	
+	/**
+	 * This is the allocation free version of {@link #calculateActivationFunction(SimpleMatrix, SimpleMatrix)}.
+	 * The spline is evaluated by {@link CmacActivationTable#evaluate(double)}, or interpolated from
+	 * the activation table if the layer has one.
+	 * @param input array with {@value CmacInputParam#count} elements
+	 * @param cells the cell coordinates of the input as computed by {@link CmacQuantizer}
+	 * @return
+	 */
+	public double calculateActivationFunction(double[] input, int[] cells) {
+		double activationFunction = 1;
+		if (activationTable == null) {
+			for (int i = 0; i < cells.length; i++) {
+				//1 at the center of the cell and 0 at its edges
+				double normalizedPos = 1 - Math.abs(2*quantizer.getPositionInCell(i, cells[i], input[i]) - 1);
+				activationFunction *= CmacActivationTable.evaluate(normalizedPos);
+			}
+		} else {
+			for (int i = 0; i < cells.length; i++) {
+				double normalizedPos = 1 - Math.abs(2*quantizer.getPositionInCell(i, cells[i], input[i]) - 1);
+				activationFunction *= activationTable.lookup(normalizedPos);
+			}
 		}
-		
-		return new CmacOutput(control, alternate, activationFunction);
+		return activationFunction;
+	}
+	
+	/**
+	 * @param activationTable the table that the array based methods interpolate the activation
+	 * function from. If this is null (the default), the spline is evaluated exactly.
+	 */
+	public void setActivationTable(CmacActivationTable activationTable) {
+		this.activationTable = activationTable;
+	}
+	
+	public CmacActivationTable getActivationTable() {
+		return activationTable;
 	}
 	
 	/**
 	 * This method calculates the position of the input in the state space cell. Then it uses a 
-	 * spline polynomial f(x) = x^2 + 2*x^3 + x^4 to compute the activation function of the input
+	 * spline polynomial f(x) = x^2 - 2*x^3 + x^4 to compute the activation function of the input
 	 * in each of the dimensions of the state space. It then returns the product of those activation
 	 * functions. 
 	 * This works because the product of the activation function in each of the dimensions is
@@ -148,13 +223,19 @@ public class CmacLayer {
 		
 		if (roundedOffsettedInput == null)
 			roundedOffsettedInput = roundAndOffsetInput(input);
+		//the cells saturate, so the position has to be taken from the saturated input
+		SimpleMatrix saturatedInput = new SimpleMatrix(input.numRows(), input.numCols());
+		for (int i = 0; i < input.getNumElements(); i++) {
+			saturatedInput.set(i, quantizer.saturate(i, input.get(i)));
+		}
+		input = saturatedInput;
 
 		SimpleMatrix halfStateInterval = stateInterval.divide(2);
 		SimpleMatrix normalizedPos = SimpleMatrix.ones(input.numRows(), input.numCols());
 		normalizedPos = normalizedPos.minus(
 			input.minus(offset).minus(roundedOffsettedInput).minus(halfStateInterval).elementWiseAbs().elementwiseDivision(halfStateInterval)
 		);
-		//calculate the activation function using the spline polynomial f(x) = x^2 + 2*x^3 + x^4
+		//calculate the activation function using the spline polynomial f(x) = x^2 - 2*x^3 + x^4
 		for (int i = 0; i < normalizedPos.getNumElements(); i++) {
 			activationFunction *= (
 				Math.pow(normalizedPos.get(i), 2) 
@@ -184,70 +265,151 @@ public class CmacLayer {
 			throw new IllegalArgumentException("Size of the alternate control weights is illegal");
 		
 		//scale the deltas according to the timeInterval
-		deltaControlWeights = deltaControlWeights.mult(timeInterval/1000.0);
-		deltaAlternateWeights = deltaAlternateWeights.mult(timeInterval/1000.0);
+		double scale = timeInterval/1000.0;
 		
 		//update the weights
-		//note: we check the caches first because there is a noticeable penalty for 
-		//accessing the hash table un-necessarily.
-		SimpleMatrix correctedInput = roundAndOffsetInput(input);
-		SimpleMatrix controlSignal, alternateSignal;
-		if (controlWeightsCache.key != null && controlWeightsCache.key.equals(correctedInput)) {
-			controlSignal = controlWeightsCache.value;
-		} else {
-			controlSignal = controlWeights.get(correctedInput);
-			if (controlSignal != null) {
-				controlWeightsCache.key = correctedInput;
-				controlWeightsCache.value = controlSignal;
-			}
-		}
-		if (controlSignal != null)
-			controlSignal.inPlacePlus(deltaControlWeights);
-		else {
-			controlWeights.put(correctedInput, deltaControlWeights);
-			controlWeightsCache.key = correctedInput;
-			controlWeightsCache.value = deltaControlWeights;
+		quantizer.quantize(input, cellIndices);
+		int slot = weightStore.findOrInsert(CmacWeightStore.packHigh(cellIndices), CmacWeightStore.packLow(cellIndices));
+		double[] weights = weightStore.getWeights();
+		int base = slot * CmacWeightStore.WEIGHTS_PER_CELL;
+		for (int i = 0; i < CmacOutput.NUMBER_OF_WEIGHTS; i++) {
+			weights[base + CmacWeightStore.CONTROL_WEIGHTS_OFFSET + i] += deltaControlWeights.get(i) * scale;
+			weights[base + CmacWeightStore.ALTERNATE_WEIGHTS_OFFSET + i] += deltaAlternateWeights.get(i) * scale;
 		}
-		
-		if (alternateWeightsCache.key != null && alternateWeightsCache.key.equals(correctedInput)) {
-			alternateSignal = alternateWeightsCache.value;
-		} else {
-			alternateSignal = alternateWeights.get(correctedInput);
-			if (alternateSignal != null) {
-				alternateWeightsCache.key = correctedInput;
-				alternateWeightsCache.value = alternateSignal;
-			}
-		}
-		if (alternateSignal != null)
-			alternateSignal.inPlacePlus(deltaAlternateWeights);
-		else {
-			alternateWeights.put(correctedInput, deltaAlternateWeights);
-			alternateWeightsCache.key = correctedInput;
-			alternateWeightsCache.value = deltaAlternateWeights;
+	}
+	
+	/**
+	 * This is the allocation free version of {@link #applyDeltas(SimpleMatrix, SimpleMatrix, SimpleMatrix, long)}.
+	 * @param input array with {@value CmacInputParam#count} elements
+	 * @param deltaControlWeights contains the {@value CmacOutput#NUMBER_OF_WEIGHTS} control weight
+	 * deltas starting at deltaOffset
+	 * @param deltaAlternateWeights contains the {@value CmacOutput#NUMBER_OF_WEIGHTS} alternate weight
+	 * deltas starting at deltaOffset
+	 * @param deltaOffset
+	 * @param timeInterval The time (milliseconds) that have passed since the last update
+	 */
+	public void applyDeltas(double[] input, double[] deltaControlWeights, double[] deltaAlternateWeights, int deltaOffset, long timeInterval) {
+		quantizer.quantize(input, cellIndices);
+		int slot = weightStore.findOrInsert(CmacWeightStore.packHigh(cellIndices), CmacWeightStore.packLow(cellIndices));
+		addDeltas(slot, deltaControlWeights, deltaAlternateWeights, deltaOffset, timeInterval);
+	}
+	
+	/**
+	 * This does the same as {@link #applyDeltas(double[], double[], double[], int, long)} for the
+	 * input of the last call to {@link #query(double[], double[], double[], int)}, but it reuses the
+	 * cell found by the query instead of quantizing the input and looking it up again. So a control
+	 * loop iteration only needs one lookup per layer.
+	 * 
+	 * Note: the layer must not have been updated with another input since the query.
+	 * @param deltaControlWeights contains the {@value CmacOutput#NUMBER_OF_WEIGHTS} control weight
+	 * deltas starting at deltaOffset
+	 * @param deltaAlternateWeights contains the {@value CmacOutput#NUMBER_OF_WEIGHTS} alternate weight
+	 * deltas starting at deltaOffset
+	 * @param deltaOffset
+	 * @param timeInterval The time (milliseconds) that have passed since the last update
+	 */
+	public void applyDeltasToQueriedCell(double[] deltaControlWeights, double[] deltaAlternateWeights, int deltaOffset, long timeInterval) {
+		if (queriedStoreSize == -1)
+			throw new IllegalStateException("The layer hasn't been queried");
+		int slot = queriedSlot;
+		//the cell has to be created if it is new. The hashed mode needs to know about every write
+		//and if cells were added since the query, then the table may have been re-arranged.
+		if (slot == -1 || weightStore.isHashed() || weightStore.size() != queriedStoreSize)
+			slot = weightStore.findOrInsert(queriedKeyHigh, queriedKeyLow);
+		addDeltas(slot, deltaControlWeights, deltaAlternateWeights, deltaOffset, timeInterval);
+		queriedSlot = slot;
+		queriedStoreSize = weightStore.size();
+	}
+	
+	private void addDeltas(int slot, double[] deltaControlWeights, double[] deltaAlternateWeights, int deltaOffset, long timeInterval) {
+		double scale = timeInterval/1000.0;
+		double[] weights = weightStore.getWeights();
+		int base = slot * CmacWeightStore.WEIGHTS_PER_CELL;
+		for (int i = 0; i < CmacOutput.NUMBER_OF_WEIGHTS; i++) {
+			weights[base + CmacWeightStore.CONTROL_WEIGHTS_OFFSET + i] += deltaControlWeights[deltaOffset + i] * scale;
+			weights[base + CmacWeightStore.ALTERNATE_WEIGHTS_OFFSET + i] += deltaAlternateWeights[deltaOffset + i] * scale;
 		}
 	}
 	
+	/**
+	 * This rounds the input DOWN to the lower corner of its cell using the quantizationNumber,
+	 * lower bound and upper bound. The layer offset is taken into account when choosing the cell.
+	 * Note: the lookups themselves use the integer cell coordinates from {@link CmacQuantizer}.
+	 * @param input 1-by-13 matrix
+	 * @return 1-by-13 matrix
+	 */
 	public SimpleMatrix roundAndOffsetInput(SimpleMatrix input) {
-		//first round the input DOWN using the quantizationNumber, 
-		//lower bound and upper bound. The rounded version of the input
-		//will be used for looking up in the hash map
-		SimpleMatrix roundedOffsettedInput = input.minus(offset).minus(lowerBound);
-		//do a term-wise division and round of the matrix with stateInterval
-		for (int i = 0; i < input.getNumElements(); i++) {
-			roundedOffsettedInput.set(
-				i,
-				(int)(roundedOffsettedInput.get(i) / stateInterval.get(i))
-			);
+		int[] cells = new int[quantizer.getDimensions()];
+		quantizer.quantize(input, cells);
+		SimpleMatrix roundedOffsettedInput = new SimpleMatrix(input.numRows(), input.numCols());
+		for (int i = 0; i < cells.length; i++) {
+			roundedOffsettedInput.set(i, quantizer.getCellLowerEdge(i, cells[i]));
 		}
-		roundedOffsettedInput = roundedOffsettedInput.elementMult(stateInterval).plus(lowerBound);
 		return roundedOffsettedInput.round();
 	}
 	
+	public CmacQuantizer getQuantizer() {
+		return this.quantizer;
+	}
+	
+	public int getQuantizationNumber() {
+		return quantizationNumber;
+	}
+	
+	public SimpleMatrix getLowerBound() {
+		return lowerBound;
+	}
+	
+	public SimpleMatrix getUpperBound() {
+		return upperBound;
+	}
+	
+	public SimpleMatrix getOffset() {
+		return offset;
+	}
+	
+	public CmacWeightStore getWeightStore() {
+		return this.weightStore;
+	}
+	
+	/**
+	 * This creates a snapshot of the control weights that is keyed the same way as the
+	 * output of {@link #roundAndOffsetInput(SimpleMatrix)}. This is expensive and is only
+	 * meant for debugging and testing.
+	 * @return
+	 */
 	public HashMap<SimpleMatrix, SimpleMatrix> getRawControlWeights () {
-		return this.controlWeights;
+		return getRawWeights(CmacWeightStore.CONTROL_WEIGHTS_OFFSET);
 	}
 	
+	/**
+	 * This creates a snapshot of the alternate weights that is keyed the same way as the
+	 * output of {@link #roundAndOffsetInput(SimpleMatrix)}. This is expensive and is only
+	 * meant for debugging and testing.
+	 * @return
+	 */
 	public HashMap<SimpleMatrix, SimpleMatrix> getRawAlternateWeights () {
-		return this.alternateWeights;
+		return getRawWeights(CmacWeightStore.ALTERNATE_WEIGHTS_OFFSET);
+	}
+	
+	private HashMap<SimpleMatrix, SimpleMatrix> getRawWeights(int weightsOffset) {
+		HashMap<SimpleMatrix, SimpleMatrix> rawWeights = new HashMap<SimpleMatrix, SimpleMatrix>();
+		int[] cells = new int[cellIndices.length];
+		double[] weights = weightStore.getWeights();
+		for (int slot = 0; slot < weightStore.capacity(); slot++) {
+			if (!weightStore.isOccupied(slot))
+				continue;
+			CmacWeightStore.unpack(weightStore.getKeyHigh(slot), weightStore.getKeyLow(slot), cells);
+			SimpleMatrix key = new SimpleMatrix(1, cells.length);
+			for (int i = 0; i < cells.length; i++) {
+				key.set(i, quantizer.getCellLowerEdge(i, cells[i]));
+			}
+			SimpleMatrix value = new SimpleMatrix(1, CmacOutput.NUMBER_OF_WEIGHTS);
+			for (int i = 0; i < CmacOutput.NUMBER_OF_WEIGHTS; i++) {
+				value.set(i, weights[slot * CmacWeightStore.WEIGHTS_PER_CELL + weightsOffset + i]);
+			}
+			rawWeights.put(key.round(), value);
+		}
+		return rawWeights;
 	}
 }
@@ -0,0 +1,172 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
+
+/**
+ * This converts an input of a {@link CmacLayer} directly into the integer coordinates of
+ * the cell that it falls in. The cell coordinate of dimension i is
+ * <pre>
+ * 	(int)((input[i] - offset[i] - lowerBound[i]) / stateInterval[i])
+ * </pre>
+ * which is what {@link CmacLayer#roundAndOffsetInput(SimpleMatrix)} used to compute through
+ * three intermediate matrices before scaling the result back into the state space.
+ *
+ * The offset and lower bound are folded into a single base and the division is replaced
+ * by a multiplication with the pre-computed reciprocal of the state interval. Both of
+ * these change the rounding of the intermediate result, which only matters when the
+ * quotient is almost exactly an integer (the input is on a cell boundary). In that case
+ * the original expression is evaluated instead so that the cells are always the same as
+ * before.
+ *
+ * The cell coordinates saturate at [{@value CmacWeightStore#MIN_CELL_COORDINATE},
+ * {@value CmacWeightStore#MAX_CELL_COORDINATE}], the range that {@link CmacWeightStore} can
+ * key. An input beyond the outermost cells is treated as lying on the outer edge of the
+ * outermost cell, both for its key and for its position in the cell (and so its activation).
+ * @author abhin
+ *
+ */
+public class CmacQuantizer {
+	/**
+	 * If the quotient is closer than this (relative to its magnitude) to an integer, then
+	 * the exact expression is used. The error of the fast path is a few ulps, so this is
+	 * very conservative.
+	 */
+	private static final double BOUNDARY_GUARD = 1e-9;
+
+	private final int dimensions;
+	private final double[] base;				//offset + lowerBound
+	private final double[] reciprocalInterval;	//1 / stateInterval
+	//the original operands, used for inputs that lie on a cell boundary
+	private final double[] offset;
+	private final double[] lowerBound;
+	private final double[] stateInterval;
+	//the outer edges of the outermost cells, see saturate
+	private final double[] minValue;
+	private final double[] maxValue;
+
+	/**
+	 * @param lowerBound the lower bound for the state space
+	 * @param stateInterval the size of a cell in each of the dimensions
+	 * @param offset the offset of the layer
+	 */
+	public CmacQuantizer(SimpleMatrix lowerBound, SimpleMatrix stateInterval, SimpleMatrix offset) {
+		if (lowerBound.getNumElements() != stateInterval.getNumElements()
+				|| offset.getNumElements() != stateInterval.getNumElements())
+			throw new IllegalArgumentException("The bounds, intervals and offsets must have the same size");
+
+		dimensions = stateInterval.getNumElements();
+		base = new double[dimensions];
+		reciprocalInterval = new double[dimensions];
+		this.offset = new double[dimensions];
+		this.lowerBound = new double[dimensions];
+		this.stateInterval = new double[dimensions];
+		minValue = new double[dimensions];
+		maxValue = new double[dimensions];
+		for (int i = 0; i < dimensions; i++) {
+			this.offset[i] = offset.get(i);
+			this.lowerBound[i] = lowerBound.get(i);
+			this.stateInterval[i] = stateInterval.get(i);
+			base[i] = this.offset[i] + this.lowerBound[i];
+			reciprocalInterval[i] = 1.0 / this.stateInterval[i];
+			//the cast truncates towards 0, so a negative cell spans (cell - 1, cell]
+			minValue[i] = base[i] + (CmacWeightStore.MIN_CELL_COORDINATE - 1) * this.stateInterval[i];
+			maxValue[i] = base[i] + (CmacWeightStore.MAX_CELL_COORDINATE + 1) * this.stateInterval[i];
+		}
+	}
+
+	/**
+	 * @return The number of dimensions of the inputs that this quantizer accepts.
+	 */
+	public int getDimensions() {
+		return dimensions;
+	}
+
+	/**
+	 * Computes the cell coordinate of a single dimension.
+	 * @param dimension
+	 * @param value the input value in that dimension
+	 * @return the cell coordinate, saturated to the range that {@link CmacWeightStore} can key
+	 */
+	public int quantize(int dimension, double value) {
+		double quotient = (value - base[dimension]) * reciprocalInterval[dimension];
+		double distance = quotient - Math.rint(quotient);
+		if (distance < 0)
+			distance = -distance;
+		int cell;
+		if (distance <= BOUNDARY_GUARD * (1 + (quotient < 0 ? -quotient : quotient))) {
+			cell = (int)((value - offset[dimension] - lowerBound[dimension]) / stateInterval[dimension]);
+		} else {
+			cell = (int) quotient;
+		}
+		if (cell < CmacWeightStore.MIN_CELL_COORDINATE)
+			return CmacWeightStore.MIN_CELL_COORDINATE;
+		if (cell > CmacWeightStore.MAX_CELL_COORDINATE)
+			return CmacWeightStore.MAX_CELL_COORDINATE;
+		return cell;
+	}
+
+	/**
+	 * @param dimension
+	 * @param value the input value in that dimension
+	 * @return The value limited to the outer edges of the outermost cells, which is where
+	 * {@link #quantize(int, double)} saturates.
+	 */
+	public double saturate(int dimension, double value) {
+		if (value < minValue[dimension])
+			return minValue[dimension];
+		if (value > maxValue[dimension])
+			return maxValue[dimension];
+		return value;
+	}
+
+	/**
+	 * Computes the cell coordinates of the given input.
+	 * @param input an array with {@link #getDimensions()} elements
+	 * @param cells the array that receives the cell coordinates
+	 */
+	public void quantize(double[] input, int[] cells) {
+		for (int i = 0; i < dimensions; i++) {
+			cells[i] = quantize(i, input[i]);
+		}
+	}
+
+	/**
+	 * Computes the cell coordinates of the given input.
+	 * @param input a matrix with {@link #getDimensions()} elements
+	 * @param cells the array that receives the cell coordinates
+	 */
+	public void quantize(SimpleMatrix input, int[] cells) {
+		for (int i = 0; i < dimensions; i++) {
+			cells[i] = quantize(i, input.get(i));
+		}
+	}
+
+	/**
+	 * @param dimension
+	 * @param cell
+	 * @return The lower edge of the given cell in the given dimension. Note that the
+	 * layer offset isn't included.
+	 */
+	public double getCellLowerEdge(int dimension, int cell) {
+		return cell * stateInterval[dimension] + lowerBound[dimension];
+	}
+
+	/**
+	 * @param dimension
+	 * @param cell the cell of the value as returned by {@link #quantize(int, double)}
+	 * @param value the input value in that dimension
+	 * @return The position of the value inside the cell, 0 being the lower edge of the cell 
+	 * and 1 being the upper edge. The cells with negative coordinates span [-1, 0] instead.
+	 * The position of a value beyond the outermost cells is that of the outer edge of the
+	 * cell it saturated to.
+	 */
+	public double getPositionInCell(int dimension, int cell, double value) {
+		double position = (value - base[dimension]) * reciprocalInterval[dimension] - cell;
+		//only a saturated cell can be further away than this
+		if (position < -1)
+			return -1;
+		if (position > 1)
+			return 1;
+		return position;
+	}
+}
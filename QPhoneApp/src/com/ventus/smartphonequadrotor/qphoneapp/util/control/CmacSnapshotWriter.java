@@ -0,0 +1,146 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Log;
+
+/**
+ * This thread periodically saves the weights of the {@link CmacLayer}s of the control loop
+ * to a {@link CmacWeightSnapshot}.
+ *
+ * Writing a snapshot takes far longer than a control loop iteration, so the control loop only
+ * copies its weight tables (a few array copies) between two iterations and this thread does
+ * the rest. The copies are reused, so taking a snapshot doesn't allocate unless the tables
+ * grew in the meantime. The cells that are still only in a loaded snapshot are paged into
+ * separate tables of this thread, so that the copies keep the capacity of the tables of the
+ * control loop.
+ * @author abhin
+ *
+ */
+public class CmacSnapshotWriter extends Thread {
+	public static final String TAG = CmacSnapshotWriter.class.getSimpleName();
+	public static final long DEFAULT_SAVE_PERIOD = 10000;	//milliseconds between two snapshots
+
+	private File file;
+	private CmacLayer[] layers;
+	private CmacWeightStore[] copies;	//taken by the control loop thread
+	private CmacWeightStore[] scratches;	//the copies with the snapshot paged in, only used by this thread
+	private long savePeriod;	//nanoseconds
+	private long lastCopyTimestamp;	//System.nanoTime
+
+	//the following are guarded by this
+	private boolean copyPending = false;	//true from the time a copy is taken until it has been written
+	private boolean shouldRun = true;
+	private long writtenSnapshots = 0;
+
+	public CmacSnapshotWriter(File file, CmacLayer[] layers, long savePeriod) {
+		super("CMAC Snapshot Writer");
+		if (savePeriod <= 0)
+			throw new IllegalArgumentException("The save period has to be positive");
+		this.file = file;
+		this.layers = layers;
+		this.savePeriod = savePeriod * 1000000;
+		this.copies = new CmacWeightStore[layers.length];
+		this.scratches = new CmacWeightStore[layers.length];
+		for (int i = 0; i < layers.length; i++) {
+			copies[i] = new CmacWeightStore(layers[i].getWeightStore().capacity());
+			scratches[i] = new CmacWeightStore(layers[i].getWeightStore().capacity());
+		}
+		lastCopyTimestamp = System.nanoTime();
+	}
+
+	public CmacSnapshotWriter(File file, CmacLayer[] layers) {
+		this(file, layers, DEFAULT_SAVE_PERIOD);
+	}
+
+	/**
+	 * This has to be called by the control loop thread between two iterations. It takes a copy
+	 * of the weights if the save period has elapsed and the previous copy has been written.
+	 * @param currentTimestamp the monotonic time in nanoseconds, as given by {@link TimeBase#now()}
+	 */
+	public void onControlTick(long currentTimestamp) {
+		if (currentTimestamp - lastCopyTimestamp < savePeriod)
+			return;
+		synchronized (this) {
+			if (copyPending)
+				return;
+			takeCopy();
+		}
+		lastCopyTimestamp = currentTimestamp;
+	}
+
+	/**
+	 * Waits until the last copy has been written and then takes a new one. This has to be called
+	 * by the control loop thread when it stops, so that nothing that was learnt is lost.
+	 */
+	public synchronized void flush() {
+		while (copyPending) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Log.w(TAG, "Interrupted while waiting for the last snapshot to be written");
+				return;
+			}
+		}
+		takeCopy();
+	}
+
+	private void takeCopy() {
+		for (int i = 0; i < layers.length; i++) {
+			copies[i].copyFrom(layers[i].getWeightStore());
+		}
+		copyPending = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return the number of snapshots that have been written, successfully or not
+	 */
+	public synchronized long getWrittenSnapshots() {
+		return writtenSnapshots;
+	}
+
+	/**
+	 * Stops the thread once the copy that is pending (if any) has been written.
+	 */
+	public synchronized void stopWriter() {
+		shouldRun = false;
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				while (!copyPending && shouldRun) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Log.w(TAG, "Interrupted while waiting for a snapshot");
+					}
+				}
+				if (!copyPending)
+					break;
+			}
+			try {
+				//the cells that haven't been touched since the last snapshot was loaded are
+				//only in that snapshot, so they have to be written again. Paging them into the
+				//copies would make those larger than the tables they are copied from.
+				for (int i = 0; i < copies.length; i++) {
+					scratches[i].copyCellsFrom(copies[i]);
+					scratches[i].pageInSnapshot();
+				}
+				CmacWeightSnapshot.write(file, layers, scratches);
+				Log.d(TAG, "Saved the cmac weights to " + file);
+			} catch (IOException e) {
+				Log.e(TAG, "Could not save the cmac weights", e);
+			}
+			synchronized (this) {
+				copyPending = false;
+				writtenSnapshots++;
+				notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+/**
+ * This computes the output of the CMAC and the weight updates (equations 13 and 14 of
+ * main-paper) for one iteration of the control loop. It does exactly what
+ * {@link ControlLoop#triggerCmacUpdate(com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix)}
+ * used to do with SimpleMatrix operations, but all the intermediate results are kept in
+ * arrays that are allocated once in the constructor. Thus an update doesn't allocate
+ * anything and doesn't produce garbage for the collector to pause the control loop with.
+ *
+ * The weights of layer i are stored in elements [i*{@value CmacOutput#NUMBER_OF_WEIGHTS},
+ * (i+1)*{@value CmacOutput#NUMBER_OF_WEIGHTS}) of the weight arrays (i.e. the rows of the
+ * old weight matrices laid out one after the other).
+ *
+ * Every layer is looked up once per update: the deltas are applied to the cells found by the
+ * queries.
+ *
+ * Note: this class is not thread safe. It is meant to be used by the control loop thread only.
+ * @author abhin
+ *
+ */
+public class CmacUpdateKernel {
+	private static final int W = CmacOutput.NUMBER_OF_WEIGHTS;
+
+	private CmacLayer[] cmacLayers;
+	private int numberOfLayers;
+
+	private double[] activationFunctions;
+	private double[] controlWeights;
+	private double[] alternateWeights;
+	private double[] aggregatedControlWeights = new double[W];
+	private double[] weightDiff = new double[W];
+	private double[] meanAlternateWeights = new double[W];
+	private double[] stateErrors = new double[W];
+	private double[] deltaControlWeights;
+	private double[] deltaAlternateWeights;
+
+	public CmacUpdateKernel(CmacLayer[] cmacLayers) {
+		if (cmacLayers == null || cmacLayers.length == 0)
+			throw new IllegalArgumentException("At least one cmac layer is needed");
+		this.cmacLayers = cmacLayers;
+		this.numberOfLayers = cmacLayers.length;
+		activationFunctions = new double[numberOfLayers];
+		controlWeights = new double[numberOfLayers * W];
+		alternateWeights = new double[numberOfLayers * W];
+		deltaControlWeights = new double[numberOfLayers * W];
+		deltaAlternateWeights = new double[numberOfLayers * W];
+	}
+
+	/**
+	 * Queries all the layers with the given input, updates their weights and writes the
+	 * aggregated control weights to the output.
+	 * @param input array with {@value CmacInputParam#count} elements
+	 * @param timeInterval The time (milliseconds) that have passed since the last update
+	 * @param output array that receives the {@value CmacOutput#NUMBER_OF_WEIGHTS} aggregated
+	 * control weights
+	 */
+	public void update(double[] input, long timeInterval, double[] output) {
+		if (input.length != CmacInputParam.count)
+			throw new IllegalArgumentException(String.format("The input must have %d elements", CmacInputParam.count));
+		if (output.length != W)
+			throw new IllegalArgumentException(String.format("The output must have %d elements", W));
+
+		double activationFunctionSum = 0;
+		for (int i = 0; i < numberOfLayers; i++) {
+			activationFunctions[i] = cmacLayers[i].query(input, controlWeights, alternateWeights, i * W);
+			activationFunctionSum += activationFunctions[i];
+		}
+		//normalize the activation functions in place
+		if (activationFunctionSum != 0) {
+			for (int i = 0; i < numberOfLayers; i++)
+				activationFunctions[i] /= activationFunctionSum;
+		}
+
+		//get the weight difference that will later be used to computer the weight corrections
+		//(refer to equation 13 in main-paper) and the column-wise means of the alternate weights
+		//(refer to equation 14 in main-paper)
+		double weightDiffNorm = 0;
+		for (int j = 0; j < W; j++) {
+			double aggregatedControl = 0, aggregatedAlternate = 0, alternateSum = 0;
+			for (int i = 0; i < numberOfLayers; i++) {
+				aggregatedControl += activationFunctions[i] * controlWeights[i*W + j];
+				aggregatedAlternate += activationFunctions[i] * alternateWeights[i*W + j];
+				alternateSum += alternateWeights[i*W + j];
+			}
+			aggregatedControlWeights[j] = aggregatedControl;
+			weightDiff[j] = aggregatedControl - aggregatedAlternate;
+			meanAlternateWeights[j] = alternateSum / numberOfLayers;
+			weightDiffNorm += weightDiff[j] * weightDiff[j];
+		}
+		weightDiffNorm = Math.sqrt(weightDiffNorm);
+
+		for (int j = 0; j < W; j++) {
+			stateErrors[j] = (input[j] * ControlLoop.CURRENT_STATE_ERROR_GAIN) + input[j + W];
+		}
+
+		//update alternate and control weights
+		boolean outsideDeadzone = weightDiffNorm > ControlLoop.DEADZONE;
+		double guideWeightsGain = outsideDeadzone
+				? ControlLoop.GUIDE_WEIGHTS_GAIN : ControlLoop.GUIDE_WEIGHTS_GAIN_DEADZONE;
+		for (int i = 0; i < numberOfLayers; i++) {
+			double activation = activationFunctions[i];
+			for (int j = 0; j < W; j++) {
+				int k = i*W + j;
+				double alternate = alternateWeights[k];
+				double deltaAlternate = (meanAlternateWeights[j] - alternate) * ControlLoop.ALTERNATE_WEIGHT_DEVIATION_GAIN
+						- alternate * ControlLoop.LEAKAGE_TERM_GAIN;
+				double deltaControl = -(activation * stateErrors[j]);	//TODO talk to Macnab whether this is allright.
+				if (outsideDeadzone) {
+					double lyapunovBoundednessTerm = activation * weightDiff[j] * ControlLoop.LEARNING_ERROR_GAIN;
+					deltaAlternate += lyapunovBoundednessTerm;
+					deltaControl -= lyapunovBoundednessTerm;
+				}
+				deltaControl += (alternate - controlWeights[k]) * guideWeightsGain;
+				deltaAlternateWeights[k] = deltaAlternate * ControlLoop.ALTERNATE_WEIGHTS_LEARNING_GAIN;
+				deltaControlWeights[k] = deltaControl * ControlLoop.CONTROL_WEIGHTS_LEARNING_GAIN;
+			}
+		}
+
+		for (int i = 0; i < numberOfLayers; i++) {
+			cmacLayers[i].applyDeltasToQueriedCell(deltaControlWeights, deltaAlternateWeights, i * W, timeInterval);
+		}
+
+		System.arraycopy(aggregatedControlWeights, 0, output, 0, W);
+	}
+
+	/**
+	 * @return The normalized activation functions of the layers computed by the last update.
+	 */
+	public double[] getActivationFunctions() {
+		return activationFunctions;
+	}
+
+	/**
+	 * @return The weight changes (before scaling with the time interval) computed by the last
+	 * update. The array must not be modified.
+	 */
+	public double[] getDeltaControlWeights() {
+		return deltaControlWeights;
+	}
+
+	/**
+	 * @return The weight changes (before scaling with the time interval) computed by the last
+	 * update. The array must not be modified.
+	 */
+	public double[] getDeltaAlternateWeights() {
+		return deltaAlternateWeights;
+	}
+}
@@ -0,0 +1,300 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
+
+/**
+ * This is the on-disk format of the weights learnt by the {@link CmacLayer}s of the control
+ * loop. Loading a snapshot lets the quadrotor start a flight with what it learnt in the
+ * previous ones instead of relearning everything from zero.
+ *
+ * The file starts with a header that describes the configuration of the layers that the
+ * weights were learnt with:
+ * <pre>
+ * 	int		MAGIC
+ * 	int		VERSION
+ * 	int		number of layers
+ * 	int		number of dimensions (d)
+ * 	int		quantization number
+ * 	int		bits per dimension of the cell keys
+ * 	int		weights per cell
+ * 	int		1 if the tables are in the hashed mode, otherwise 0
+ * 	double[d]	lower bound
+ * 	double[d]	upper bound
+ * 	for each layer:
+ * 		double[d]	offset
+ * 		int		capacity of the table
+ * 		int		number of cells
+ * 		int		position of the table in the file
+ * </pre>
+ * Each table is a dump of the {@link CmacWeightStore} of the layer: one record per slot
+ * containing the two key words followed by the weights. Empty slots have the key
+ * {@link #EMPTY_KEY}. Since the records are in the same slots that the store puts them in,
+ * the file can be memory mapped and searched in place with the same hash function. Nothing
+ * is parsed when a snapshot is loaded; the pages of the file are read by the OS as the cells
+ * are touched by the control loop.
+ *
+ * A snapshot that was learnt with a different configuration (e.g. different bounds) is
+ * rejected because its cells would mean something else. Tables in the hashed mode (see
+ * {@link CmacWeightStore#createHashed(int)}) can only be loaded into tables of the same
+ * capacity, since there the slot of a cell depends on the capacity.
+ *
+ * All values are big-endian.
+ * @author abhin
+ *
+ */
+public class CmacWeightSnapshot {
+	public static final String TAG = CmacWeightSnapshot.class.getSimpleName();
+
+	public static final int MAGIC = 0x434D4143;	//"CMAC"
+	public static final int VERSION = 2;	//version 2 added the hashed mode
+	/**
+	 * The packed keys are never negative, so this can't collide with a real key.
+	 */
+	public static final long EMPTY_KEY = -1;
+	/**
+	 * The size of a record in bytes.
+	 */
+	public static final int RECORD_SIZE = 2 * 8 + CmacWeightStore.WEIGHTS_PER_CELL * 8;
+
+	private CmacWeightSnapshot() {
+		//only static methods
+	}
+
+	/**
+	 * A table of a snapshot. This is a read-only view of the memory mapped file.
+	 */
+	public static class Table {
+		private ByteBuffer buffer;
+		private int position;
+		private int capacity;
+		private int mask;
+		private int size;
+
+		Table(ByteBuffer buffer, int position, int capacity, int size) {
+			this.buffer = buffer;
+			this.position = position;
+			this.capacity = capacity;
+			this.mask = capacity - 1;
+			this.size = size;
+		}
+
+		/**
+		 * @param keyHigh
+		 * @param keyLow
+		 * @return The record of the cell with the given key, or -1 if the table doesn't have it.
+		 */
+		public int find(long keyHigh, long keyLow) {
+			int record = CmacWeightStore.hash(keyHigh, keyLow) & mask;
+			//a valid table always has empty slots, the limit only protects against corrupt files
+			for (int probes = 0; probes < capacity; probes++) {
+				int recordPosition = position + record * RECORD_SIZE;
+				long storedKeyHigh = buffer.getLong(recordPosition);
+				if (storedKeyHigh == EMPTY_KEY)
+					return -1;
+				if (storedKeyHigh == keyHigh && buffer.getLong(recordPosition + 8) == keyLow)
+					return record;
+				record = (record + 1) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * Copies the {@value CmacWeightStore#WEIGHTS_PER_CELL} weights of the given record.
+		 * @param record
+		 * @param weights
+		 * @param offset the index in weights where the first weight is copied to
+		 */
+		public void readWeights(int record, double[] weights, int offset) {
+			int weightsPosition = position + record * RECORD_SIZE + 16;
+			for (int i = 0; i < CmacWeightStore.WEIGHTS_PER_CELL; i++) {
+				weights[offset + i] = buffer.getDouble(weightsPosition + i * 8);
+			}
+		}
+
+		public boolean isOccupied(int record) {
+			return getKeyHigh(record) != EMPTY_KEY;
+		}
+
+		public long getKeyHigh(int record) {
+			return buffer.getLong(position + record * RECORD_SIZE);
+		}
+
+		public long getKeyLow(int record) {
+			return buffer.getLong(position + record * RECORD_SIZE + 8);
+		}
+
+		public int capacity() {
+			return capacity;
+		}
+
+		/**
+		 * @return The number of cells in the table.
+		 */
+		public int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * Writes the given weight tables to the file. The file is first written under a temporary
+	 * name and then renamed, so a crash while saving never leaves a half written snapshot behind.
+	 * @param file
+	 * @param layers the layers that the tables belong to (only their configuration is used)
+	 * @param stores the tables to save. These are written exactly as they are, so cells that
+	 * are still in the snapshot that backs a store have to be paged in first using
+	 * {@link CmacWeightStore#pageInSnapshot()}.
+	 * @throws IOException
+	 */
+	public static void write(File file, CmacLayer[] layers, CmacWeightStore[] stores) throws IOException {
+		if (layers.length != stores.length)
+			throw new IllegalArgumentException("There has to be one table per layer");
+		for (CmacWeightStore store : stores) {
+			if (store.isHashed() != stores[0].isHashed())
+				throw new IllegalArgumentException("All the tables have to be in the same mode");
+		}
+		int dimensions = layers[0].getQuantizer().getDimensions();
+
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(layers.length);
+			out.writeInt(dimensions);
+			out.writeInt(layers[0].getQuantizationNumber());
+			out.writeInt(CmacWeightStore.BITS_PER_DIMENSION);
+			out.writeInt(CmacWeightStore.WEIGHTS_PER_CELL);
+			out.writeInt(stores[0].isHashed() ? 1 : 0);
+			writeMatrix(out, layers[0].getLowerBound());
+			writeMatrix(out, layers[0].getUpperBound());
+			int tablePosition = getHeaderSize(layers.length, dimensions);
+			for (int i = 0; i < layers.length; i++) {
+				writeMatrix(out, layers[i].getOffset());
+				out.writeInt(stores[i].capacity());
+				out.writeInt(stores[i].size());
+				out.writeInt(tablePosition);
+				tablePosition += stores[i].capacity() * RECORD_SIZE;
+			}
+			for (CmacWeightStore store : stores) {
+				double[] weights = store.getWeights();
+				for (int slot = 0; slot < store.capacity(); slot++) {
+					if (store.isOccupied(slot)) {
+						out.writeLong(store.getKeyHigh(slot));
+						out.writeLong(store.getKeyLow(slot));
+					} else {
+						out.writeLong(EMPTY_KEY);
+						out.writeLong(EMPTY_KEY);
+					}
+					for (int i = 0; i < CmacWeightStore.WEIGHTS_PER_CELL; i++) {
+						out.writeDouble(weights[slot * CmacWeightStore.WEIGHTS_PER_CELL + i]);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (!temporaryFile.renameTo(file)) {
+			temporaryFile.delete();
+			throw new IOException("Could not rename " + temporaryFile + " to " + file);
+		}
+	}
+
+	/**
+	 * Memory maps the snapshot and makes it the backing snapshot of the weight stores of the
+	 * given layers. The layers must have the configuration that the snapshot was written with.
+	 * @param file
+	 * @param layers
+	 * @throws IOException if the file can't be read, isn't a snapshot or doesn't match the
+	 * configuration of the layers. The layers are not modified in that case.
+	 */
+	public static void load(File file, CmacLayer[] layers) throws IOException {
+		MappedByteBuffer buffer;
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			//the mapping stays valid after the file is closed
+			randomAccessFile.close();
+		}
+
+		Table[] tables = readTables(buffer, layers);
+		for (int i = 0; i < layers.length; i++) {
+			layers[i].getWeightStore().setSnapshot(tables[i]);
+		}
+	}
+
+	/**
+	 * Validates the header and creates the views of the tables.
+	 */
+	private static Table[] readTables(ByteBuffer buffer, CmacLayer[] layers) throws IOException {
+		int dimensions = layers[0].getQuantizer().getDimensions();
+		if (buffer.capacity() < getHeaderSize(layers.length, dimensions))
+			throw new IOException("The snapshot is too short");
+		if (buffer.getInt() != MAGIC)
+			throw new IOException("Not a CMAC weight snapshot");
+		int version = buffer.getInt();
+		if (version != VERSION)
+			throw new IOException(String.format("Unsupported snapshot version %d", version));
+		checkHeaderValue("number of layers", buffer.getInt(), layers.length);
+		checkHeaderValue("number of dimensions", buffer.getInt(), dimensions);
+		checkHeaderValue("quantization number", buffer.getInt(), layers[0].getQuantizationNumber());
+		checkHeaderValue("bits per dimension", buffer.getInt(), CmacWeightStore.BITS_PER_DIMENSION);
+		checkHeaderValue("weights per cell", buffer.getInt(), CmacWeightStore.WEIGHTS_PER_CELL);
+		boolean hashed = buffer.getInt() != 0;
+		checkMatrix("lower bound", buffer, layers[0].getLowerBound());
+		checkMatrix("upper bound", buffer, layers[0].getUpperBound());
+
+		Table[] tables = new Table[layers.length];
+		for (int i = 0; i < layers.length; i++) {
+			checkMatrix("offset of layer " + i, buffer, layers[i].getOffset());
+			int capacity = buffer.getInt();
+			int size = buffer.getInt();
+			int tablePosition = buffer.getInt();
+			if (capacity <= 0 || Integer.bitCount(capacity) != 1 || size > capacity)
+				throw new IOException("Corrupt table header for layer " + i);
+			CmacWeightStore store = layers[i].getWeightStore();
+			if (hashed != store.isHashed())
+				throw new IOException(String.format("Layer %d and the snapshot aren't both in the hashed mode", i));
+			if (hashed)
+				checkHeaderValue("capacity of hashed layer " + i, capacity, store.capacity());
+			if (tablePosition < 0 || (long) tablePosition + (long) capacity * RECORD_SIZE > buffer.capacity())
+				throw new IOException("The snapshot is truncated");
+			tables[i] = new Table(buffer, tablePosition, capacity, size);
+		}
+		return tables;
+	}
+
+	private static int getHeaderSize(int numberOfLayers, int dimensions) {
+		return 8 * 4 + 2 * dimensions * 8 + numberOfLayers * (dimensions * 8 + 3 * 4);
+	}
+
+	private static void writeMatrix(DataOutputStream out, SimpleMatrix matrix) throws IOException {
+		for (int i = 0; i < matrix.getNumElements(); i++) {
+			out.writeDouble(matrix.get(i));
+		}
+	}
+
+	private static void checkHeaderValue(String name, int actual, int expected) throws IOException {
+		if (actual != expected)
+			throw new IOException(String.format("The snapshot has %d as the %s instead of %d", actual, name, expected));
+	}
+
+	private static void checkMatrix(String name, ByteBuffer buffer, SimpleMatrix expected) throws IOException {
+		for (int i = 0; i < expected.getNumElements(); i++) {
+			double actual = buffer.getDouble();
+			if (Double.doubleToLongBits(actual) != Double.doubleToLongBits(expected.get(i)))
+				throw new IOException(String.format("Element %d of the %s of the snapshot is %f instead of %f", i, name, actual, expected.get(i)));
+		}
+	}
+}
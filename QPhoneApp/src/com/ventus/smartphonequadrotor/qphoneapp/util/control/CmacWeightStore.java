@@ -0,0 +1,459 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+/**
+ * This is the weight storage used by the {@link CmacLayer}. It replaces the two
+ * HashMap&lt;SimpleMatrix, SimpleMatrix&gt; tables that used to hold the control and
+ * alternate weights.
+ *
+ * Every cell of the state space is identified by its integer cell coordinates (one
+ * per dimension of the CMAC input). These coordinates are packed into a pair of longs
+ * using {@value #BITS_PER_DIMENSION} bits per dimension and used as the key of an
+ * open-addressing (linear probing) hash table. The weights of a cell are kept in one
+ * flat double array: the {@value CmacOutput#NUMBER_OF_WEIGHTS} control weights followed
+ * by the {@value CmacOutput#NUMBER_OF_WEIGHTS} alternate weights. Thus a lookup is a single
+ * probe sequence over primitive arrays and doesn't allocate anything.
+ *
+ * A store can be backed by a table of a {@link CmacWeightSnapshot}. Cells that aren't in
+ * the store yet are then looked up in the snapshot and copied into the store the first
+ * time they are touched.
+ *
+ * Note: the table only allocates when it grows past {@link #MAX_LOAD_FACTOR}.
+ *
+ * A store can also be created in the hashed mode of Albus' CMAC (reference 3 of
+ * {@link CmacLayer}) using {@link #createHashed(int)}. Then the table has a fixed number
+ * of slots and every cell simply uses the slot that its key hashes to, without checking
+ * whether another cell uses it as well. This puts a hard limit on the memory used by a
+ * layer however long the quadrotor flies, at the cost of cells that collide sharing their
+ * weights. {@link #getCollisionRate()} and {@link #getOccupancy()} tell how much of that
+ * is going on.
+ * @author abhin
+ *
+ */
+public class CmacWeightStore {
+	/**
+	 * The number of doubles stored for each cell.
+	 */
+	public static final int WEIGHTS_PER_CELL = 2 * CmacOutput.NUMBER_OF_WEIGHTS;
+	/**
+	 * The offset of the control weights within the weights of a cell.
+	 */
+	public static final int CONTROL_WEIGHTS_OFFSET = 0;
+	/**
+	 * The offset of the alternate weights within the weights of a cell.
+	 */
+	public static final int ALTERNATE_WEIGHTS_OFFSET = CmacOutput.NUMBER_OF_WEIGHTS;
+	/**
+	 * The number of bits used to store the cell coordinate of one dimension. Coordinates
+	 * are stored relative to {@link #MIN_CELL_COORDINATE} so that inputs that lie a little
+	 * below the lower bound of the state space still get their own cells.
+	 */
+	public static final int BITS_PER_DIMENSION = 9;
+	public static final int MIN_CELL_COORDINATE = -(1 << (BITS_PER_DIMENSION - 1));
+	public static final int MAX_CELL_COORDINATE = (1 << (BITS_PER_DIMENSION - 1)) - 1;
+	/**
+	 * The number of dimensions that fit in one of the two key words.
+	 */
+	public static final int DIMENSIONS_PER_WORD = 63 / BITS_PER_DIMENSION;
+	public static final int MAX_DIMENSIONS = 2 * DIMENSIONS_PER_WORD;
+
+	public static final int DEFAULT_INITIAL_CAPACITY = 1024;
+	public static final float MAX_LOAD_FACTOR = 0.5f;
+
+	private static final long DIMENSION_MASK = (1L << BITS_PER_DIMENSION) - 1;
+
+	private long[] keysHigh;
+	private long[] keysLow;
+	private boolean[] occupied;
+	private double[] weights;
+	private int size;
+	private int mask;
+	private int resizeThreshold;
+	private CmacWeightSnapshot.Table snapshot;	//the cells learnt in a previous session, can be null
+	private boolean hashed;						//true if the cells share the slots that they hash to
+	//statistics of the hashed mode
+	private long lookups;
+	private long collisions;
+
+	public CmacWeightStore(int initialCapacity) {
+		if (initialCapacity <= 0)
+			throw new IllegalArgumentException("Capacity has to be positive");
+		int capacity = Integer.highestOneBit(initialCapacity);
+		if (capacity < initialCapacity)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+
+	public CmacWeightStore() {
+		this(DEFAULT_INITIAL_CAPACITY);
+	}
+	
+	/**
+	 * Creates a store in the hashed mode.
+	 * @param capacity the number of slots of the table. This has to be a power of two and
+	 * never changes.
+	 * @return
+	 */
+	public static CmacWeightStore createHashed(int capacity) {
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("The capacity of a hashed table has to be a power of two");
+		CmacWeightStore store = new CmacWeightStore(capacity);
+		store.hashed = true;
+		return store;
+	}
+
+	private void allocate(int capacity) {
+		keysHigh = new long[capacity];
+		keysLow = new long[capacity];
+		occupied = new boolean[capacity];
+		weights = new double[capacity * WEIGHTS_PER_CELL];
+		mask = capacity - 1;
+		resizeThreshold = (int) (capacity * MAX_LOAD_FACTOR);
+		size = 0;
+	}
+
+	/**
+	 * Packs the first {@value #DIMENSIONS_PER_WORD} cell coordinates into a key word.
+	 * The coordinates have to be in [{@value #MIN_CELL_COORDINATE}, {@value #MAX_CELL_COORDINATE}],
+	 * {@link CmacQuantizer} saturates them to that range.
+	 * @param cells the cell coordinates of all the dimensions
+	 * @return
+	 */
+	public static long packHigh(int[] cells) {
+		return pack(cells, 0, Math.min(cells.length, DIMENSIONS_PER_WORD));
+	}
+
+	/**
+	 * Packs the cell coordinates after the first {@value #DIMENSIONS_PER_WORD} into a key word.
+	 * @param cells the cell coordinates of all the dimensions
+	 * @return
+	 */
+	public static long packLow(int[] cells) {
+		if (cells.length > MAX_DIMENSIONS)
+			throw new IllegalArgumentException("Too many dimensions to pack");
+		return pack(cells, DIMENSIONS_PER_WORD, cells.length);
+	}
+
+	private static long pack(int[] cells, int from, int to) {
+		long key = 0;
+		for (int i = from; i < to; i++) {
+			int cell = cells[i];
+			if (cell < MIN_CELL_COORDINATE || cell > MAX_CELL_COORDINATE)
+				throw new IllegalArgumentException("Cell coordinate " + cell + " can't be packed");
+			key |= ((long) (cell - MIN_CELL_COORDINATE)) << ((i - from) * BITS_PER_DIMENSION);
+		}
+		return key;
+	}
+
+	/**
+	 * This is the inverse of {@link #packHigh(int[])} and {@link #packLow(int[])}.
+	 * @param keyHigh
+	 * @param keyLow
+	 * @param cells The array that will receive the cell coordinates. Its length decides
+	 * the number of dimensions that are unpacked.
+	 */
+	public static void unpack(long keyHigh, long keyLow, int[] cells) {
+		for (int i = 0; i < cells.length; i++) {
+			long word = (i < DIMENSIONS_PER_WORD) ? keyHigh : keyLow;
+			int shift = (i % DIMENSIONS_PER_WORD) * BITS_PER_DIMENSION;
+			cells[i] = (int) ((word >>> shift) & DIMENSION_MASK) + MIN_CELL_COORDINATE;
+		}
+	}
+
+	static int hash(long keyHigh, long keyLow) {
+		long h = keyHigh * 0x9E3779B97F4A7C15L + keyLow * 0xC2B2AE3D27D4EB4FL;
+		h ^= (h >>> 32);
+		h ^= (h >>> 16);
+		return (int) h;
+	}
+
+	/**
+	 * Looks up the slot of the cell with the given key.
+	 * @param keyHigh
+	 * @param keyLow
+	 * @return The slot of the cell, or -1 if no weights have been stored for the cell yet.
+	 * The weights of the slot start at slot*{@value #WEIGHTS_PER_CELL} in {@link #getWeights()}.
+	 */
+	public int find(long keyHigh, long keyLow) {
+		if (hashed)
+			return findHashed(keyHigh, keyLow, false);
+		int slot = hash(keyHigh, keyLow) & mask;
+		while (occupied[slot]) {
+			if (keysHigh[slot] == keyHigh && keysLow[slot] == keyLow)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		if (snapshot != null)
+			return pageIn(keyHigh, keyLow);
+		return -1;
+	}
+	
+	/**
+	 * Copies the weights of the given cell from the snapshot into the table.
+	 * @return The slot of the cell in the table, or -1 if the snapshot doesn't have the cell.
+	 */
+	private int pageIn(long keyHigh, long keyLow) {
+		int record = snapshot.find(keyHigh, keyLow);
+		if (record == -1)
+			return -1;
+		int slot = insert(keyHigh, keyLow);
+		snapshot.readWeights(record, weights, slot * WEIGHTS_PER_CELL);
+		return slot;
+	}
+
+	/**
+	 * Looks up the slot of the cell with the given key and creates it (with all weights
+	 * set to zero) if it doesn't exist yet.
+	 * @param keyHigh
+	 * @param keyLow
+	 * @return The slot of the cell.
+	 */
+	public int findOrInsert(long keyHigh, long keyLow) {
+		if (hashed)
+			return findHashed(keyHigh, keyLow, true);
+		int slot = find(keyHigh, keyLow);
+		if (slot != -1)
+			return slot;
+		return insert(keyHigh, keyLow);
+	}
+	
+	/**
+	 * In the hashed mode, the slot of a cell is just its hash. The key of the cell that last
+	 * wrote to the slot is kept, so that collisions can be counted.
+	 * @param write whether the weights of the slot are going to be changed
+	 * @return the slot
+	 */
+	private int findHashed(long keyHigh, long keyLow, boolean write) {
+		int slot = hash(keyHigh, keyLow) & mask;
+		if (!occupied[slot] && snapshot != null && snapshot.isOccupied(slot)) {
+			//a hashed snapshot has the same slots as the table
+			occupied[slot] = true;
+			keysHigh[slot] = snapshot.getKeyHigh(slot);
+			keysLow[slot] = snapshot.getKeyLow(slot);
+			snapshot.readWeights(slot, weights, slot * WEIGHTS_PER_CELL);
+			size++;
+		}
+		lookups++;
+		if (occupied[slot]) {
+			if (keysHigh[slot] != keyHigh || keysLow[slot] != keyLow) {
+				collisions++;
+				if (write) {
+					keysHigh[slot] = keyHigh;
+					keysLow[slot] = keyLow;
+				}
+			}
+		} else if (write) {
+			occupied[slot] = true;
+			keysHigh[slot] = keyHigh;
+			keysLow[slot] = keyLow;
+			size++;
+		}
+		return slot;
+	}
+	
+	/**
+	 * Inserts a cell that isn't in the table yet.
+	 */
+	private int insert(long keyHigh, long keyLow) {
+		if (size >= resizeThreshold)
+			grow();
+		int slot = hash(keyHigh, keyLow) & mask;
+		while (occupied[slot]) {
+			slot = (slot + 1) & mask;
+		}
+		occupied[slot] = true;
+		keysHigh[slot] = keyHigh;
+		keysLow[slot] = keyLow;
+		size++;
+		return slot;
+	}
+
+	/**
+	 * Doubles the capacity of the table and re-inserts all the cells.
+	 */
+	private void grow() {
+		long[] oldKeysHigh = keysHigh;
+		long[] oldKeysLow = keysLow;
+		boolean[] oldOccupied = occupied;
+		double[] oldWeights = weights;
+		allocate(2 * oldOccupied.length);
+		for (int oldSlot = 0; oldSlot < oldOccupied.length; oldSlot++) {
+			if (oldOccupied[oldSlot]) {
+				int slot = insert(oldKeysHigh[oldSlot], oldKeysLow[oldSlot]);
+				System.arraycopy(
+					oldWeights, oldSlot * WEIGHTS_PER_CELL,
+					weights, slot * WEIGHTS_PER_CELL,
+					WEIGHTS_PER_CELL
+				);
+			}
+		}
+	}
+
+	/**
+	 * Removes all the cells from the table and detaches the snapshot. The capacity is retained.
+	 */
+	public void clear() {
+		for (int i = 0; i < occupied.length; i++)
+			occupied[i] = false;
+		for (int i = 0; i < weights.length; i++)
+			weights[i] = 0;
+		size = 0;
+		snapshot = null;
+		resetStatistics();
+	}
+	
+	/**
+	 * Makes this table an exact copy of the given one (including the snapshot that backs it).
+	 * The arrays of this table are only re-allocated if the capacities differ, so this can
+	 * be used to periodically take copies of a table that is in use.
+	 * @param source
+	 */
+	public void copyFrom(CmacWeightStore source) {
+		if (occupied.length != source.occupied.length) {
+			keysHigh = new long[source.keysHigh.length];
+			keysLow = new long[source.keysLow.length];
+			occupied = new boolean[source.occupied.length];
+			weights = new double[source.weights.length];
+		}
+		System.arraycopy(source.keysHigh, 0, keysHigh, 0, keysHigh.length);
+		System.arraycopy(source.keysLow, 0, keysLow, 0, keysLow.length);
+		System.arraycopy(source.occupied, 0, occupied, 0, occupied.length);
+		System.arraycopy(source.weights, 0, weights, 0, weights.length);
+		mask = source.mask;
+		resizeThreshold = source.resizeThreshold;
+		size = source.size;
+		snapshot = source.snapshot;
+		hashed = source.hashed;
+		lookups = source.lookups;
+		collisions = source.collisions;
+	}
+	
+	/**
+	 * Makes this table hold the same cells as the given one (including the snapshot that
+	 * backs it), but unlike {@link #copyFrom(CmacWeightStore)} keeps its own capacity and only
+	 * grows if the cells don't fit. So a table that the snapshot gets paged into, and that is
+	 * larger than the source because of that, can be refilled without allocating.
+	 * @param source
+	 */
+	public void copyCellsFrom(CmacWeightStore source) {
+		if (source.hashed) {
+			//the slots of a hashed table depend on its capacity, which never changes
+			copyFrom(source);
+			return;
+		}
+		clear();
+		hashed = false;
+		for (int sourceSlot = 0; sourceSlot < source.occupied.length; sourceSlot++) {
+			if (source.occupied[sourceSlot]) {
+				int slot = insert(source.keysHigh[sourceSlot], source.keysLow[sourceSlot]);
+				System.arraycopy(
+					source.weights, sourceSlot * WEIGHTS_PER_CELL,
+					weights, slot * WEIGHTS_PER_CELL,
+					WEIGHTS_PER_CELL
+				);
+			}
+		}
+		snapshot = source.snapshot;
+		lookups = source.lookups;
+		collisions = source.collisions;
+	}
+	
+	/**
+	 * Sets the snapshot that the cells which aren't in the table are looked up in.
+	 * @param snapshot can be null
+	 */
+	public void setSnapshot(CmacWeightSnapshot.Table snapshot) {
+		this.snapshot = snapshot;
+	}
+	
+	public CmacWeightSnapshot.Table getSnapshot() {
+		return snapshot;
+	}
+	
+	/**
+	 * Copies all the cells of the snapshot that haven't been touched yet into the table
+	 * and detaches the snapshot. After this the table contains everything that has been
+	 * learnt so far and can be written to a new snapshot.
+	 */
+	public void pageInSnapshot() {
+		if (snapshot == null)
+			return;
+		CmacWeightSnapshot.Table table = snapshot;
+		for (int record = 0; record < table.capacity(); record++) {
+			if (table.isOccupied(record))
+				find(table.getKeyHigh(record), table.getKeyLow(record));
+		}
+		snapshot = null;
+	}
+
+	/**
+	 * @return The raw weights of all the slots. This array is replaced when the table grows,
+	 * so it must not be held on to across calls to {@link #find(long, long)} (which pages in
+	 * cells from the snapshot) or {@link #findOrInsert(long, long)}.
+	 */
+	public double[] getWeights() {
+		return weights;
+	}
+
+	/**
+	 * @return The number of cells stored in the table.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The number of slots in the table. Slots can be iterated using
+	 * {@link #isOccupied(int)}, {@link #getKeyHigh(int)} and {@link #getKeyLow(int)}.
+	 */
+	public int capacity() {
+		return occupied.length;
+	}
+
+	/**
+	 * @return true if this store is in the hashed mode (see {@link #createHashed(int)}).
+	 */
+	public boolean isHashed() {
+		return hashed;
+	}
+	
+	/**
+	 * @return The fraction of the slots that are used by at least one cell.
+	 */
+	public double getOccupancy() {
+		return (double) size / occupied.length;
+	}
+	
+	/**
+	 * @return The fraction of the lookups since the last {@link #resetStatistics()} that
+	 * found a slot that was last written by another cell. This is always 0 if the store
+	 * isn't in the hashed mode.
+	 */
+	public double getCollisionRate() {
+		return (lookups == 0) ? 0 : (double) collisions / lookups;
+	}
+	
+	public long getLookupCount() {
+		return lookups;
+	}
+	
+	public long getCollisionCount() {
+		return collisions;
+	}
+	
+	public void resetStatistics() {
+		lookups = 0;
+		collisions = 0;
+	}
+	
+	public boolean isOccupied(int slot) {
+		return occupied[slot];
+	}
+
+	public long getKeyHigh(int slot) {
+		return keysHigh[slot];
+	}
+
+	public long getKeyLow(int slot) {
+		return keysLow[slot];
+	}
+}
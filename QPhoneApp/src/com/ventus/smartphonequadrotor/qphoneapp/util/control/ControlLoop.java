@@ -1,16 +1,13 @@
 package com.ventus.smartphonequadrotor.qphoneapp.util.control;
 
-import java.util.Date;
+import java.io.File;
+import java.io.IOException;
 
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
-import android.util.Log;
-
-import com.ventus.smartphonequadrotor.qphoneapp.services.MainService;
-import com.ventus.smartphonequadrotor.qphoneapp.services.MainService.BluetoothCommunicationLooper;
+import com.ventus.smartphonequadrotor.qphoneapp.services.QuadrotorRuntime;
+import com.ventus.smartphonequadrotor.qphoneapp.util.Histogram;
 import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
 import com.ventus.smartphonequadrotor.qphoneapp.util.json.MoveCommand;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Log;
 
 /**
  * This is a looper thread that handles incoming messages from the data aggregator,
@@ -38,26 +35,105 @@ public class ControlLoop extends Thread {
 	public static final float GUIDE_WEIGHTS_GAIN_DEADZONE = 0.00001f;	//eta-2 in equation 14 of main-paper
 	public static final float DEADZONE = 10;							//lower-case delta in equations 14 and 15 of main-paper
 	public static final double CURRENT_STATE_ERROR_GAIN = 4;			//defined after equation 3 as upper-case lambda in main-paper
-	//the following matrix is used to convert the cmac output to motor speeds
+	/**
+	 * If this is 0, then every cell the quadrotor visits gets its own weights and the memory
+	 * used by the cmac layers grows for as long as it flies. Otherwise the layers use hashed
+	 * tables with this many slots (a power of two), see {@link CmacWeightStore#createHashed(int)}.
+	 */
+	public static final int HASHED_CMAC_CAPACITY = 0;
+	/**
+	 * If this is 0, then the activation functions of the cmac layers are evaluated exactly.
+	 * Otherwise they are interpolated from a {@link CmacActivationTable} with this resolution.
+	 */
+	public static final int ACTIVATION_TABLE_RESOLUTION = 0;
+	//the following matrix is used to convert the cmac output to motor speeds, row major
+	private static final double[] CMAC_OUTPUT_TO_MOTOR_SPEED = {
+		0.25,	0,		-0.5,	0.25,
+		0.25,	-0.5, 	0, 		-0.25,
+		0.25,	0,		0.5,	0.25,
+		0.25,	0.5,	0,		-0.25
+	};
 	private static final SimpleMatrix CMAC_OUTPUT_TO_MOTOR_SPEED_MATRIX = new SimpleMatrix(
 		CmacOutput.NUMBER_OF_WEIGHTS,
 		CmacOutput.NUMBER_OF_WEIGHTS,
 		true,
-		new double[] {
-			0.25,	0,		-0.5,	0.25,
-			0.25,	-0.5, 	0, 		-0.25,
-			0.25,	0,		0.5,	0.25,
-			0.25,	0.5,	0,		-0.25
-		}
+		CMAC_OUTPUT_TO_MOTOR_SPEED
 	);
-	private static final long SLEEP_TIME = 50;	//length of time in milliseconds that the control loop sleeps for
+	/**
+	 * The rate in Hz that the control loop runs at, unless it is changed through
+	 * {@link ControlLoop#getScheduler()}.
+	 */
+	public static final double CONTROL_RATE = 20;
+	/**
+	 * If this is false, then the control loop runs at {@link #CONTROL_RATE}. Otherwise it runs
+	 * a step as soon as new kinematics data has arrived, but no more often than
+	 * {@link #MAX_DATA_TRIGGERED_RATE}.
+	 */
+	public static final boolean DATA_TRIGGERED = false;
+	public static final double MAX_DATA_TRIGGERED_RATE = 200;	//Hz
+	/**
+	 * In the data triggered mode, the control loop checks whether it has to stop at least
+	 * this often while no data arrives.
+	 */
+	private static final long SAMPLE_TIMEOUT = 100000000;	//nanoseconds
+	/**
+	 * If this is true, then the attitude is estimated on the phone from the raw sensor data
+	 * of the QCB instead of being taken from the kinematics data of the QCB.
+	 */
+	public static final boolean ESTIMATE_ATTITUDE = false;
+	/**
+	 * If this is true, then the attitude is estimated with a quaternion filter
+	 * ({@link MahonyAttitudeEstimator}) instead of the euler angles of the
+	 * {@link KinematicsEstimator}.
+	 */
+	public static final boolean QUATERNION_ATTITUDE = false;
+	/**
+	 * If this is true, then the height is estimated on the phone from the sonar and the
+	 * accelerometer ({@link HeightEstimator}) instead of being taken from the sonar alone.
+	 */
+	public static final boolean ESTIMATE_HEIGHT = false;
+	/**
+	 * If this is true, then the magnetometer is calibrated against hard and soft iron while
+	 * flying ({@link MagnetometerCalibrator}) before its readings go to the attitude estimator.
+	 */
+	public static final boolean CALIBRATE_MAGNETOMETER = false;
+	/**
+	 * If this is true, then the biases of the gyroscope and the accelerometer are learnt while
+	 * the quadrotor stands still ({@link SensorBiasEstimator}) and subtracted from their
+	 * readings. The biases are kept from one start to the next in {@link #SENSOR_BIAS_FILE_NAME}
+	 * and sent to the controller every {@link #TELEMETRY_PERIOD}.
+	 */
+	public static final boolean ESTIMATE_SENSOR_BIASES = false;
+	public static final String WEIGHT_SNAPSHOT_FILE_NAME = "cmac_weights.bin";	//in the files directory of the app
+	public static final String SENSOR_BIAS_FILE_NAME = "sensor_biases.bin";	//in the files directory of the app
+	public static final long TELEMETRY_PERIOD = 1000000000;	//nanoseconds
 	
 	private CmacLayer[] cmacLayers;
+	private CmacUpdateKernel cmacUpdateKernel;
+	private CmacSnapshotWriter snapshotWriter;	//null if there is nowhere to save the weights
+	private File sensorBiasFile;	//null if the biases aren't estimated or there is nowhere to save them
+	private long lastTelemetryTime;	//System.nanoTime
+	private ControlScheduler scheduler;
+	private boolean dataTriggered;
+	/**
+	 * The time in microseconds from the arrival of the kinematics data that a step used until
+	 * the motor speeds of that step were written to the QCB.
+	 */
+	private Histogram latencyHistogram;
+	//buffers that are reused by every call to triggerCmacUpdate
+	private double[] cmacInput = new double[CmacInputParam.count];
+	private double[] cmacOutput = new double[CmacOutput.NUMBER_OF_WEIGHTS];
+	//buffers that are reused by every step
+	private double[] errors = new double[CmacInputParam.count];
+	private double[] stepCmacOutput = new double[CmacOutput.NUMBER_OF_WEIGHTS];
+	private SimpleMatrix motorSpeeds = new SimpleMatrix(1, CmacOutput.NUMBER_OF_WEIGHTS);
 	private DataAggregator dataAggregator;
+	private TimeBase timeBase;
 	
-	private long lastUpdateTimestamp = -1;
+	private boolean cmacUpdated = false;
+	private long lastUpdateTimestamp;	//nanoseconds
 	
-	private MainService owner;
+	private QuadrotorRuntime owner;
 	
 	/**
 	 * If this variable is set to false, then the control loop stops running
@@ -67,11 +143,21 @@ public class ControlLoop extends Thread {
 	/**
 	 * Constructor
 	 */
-	public ControlLoop(MainService owner) {
+	public ControlLoop(QuadrotorRuntime owner) {
 		super("Control Loop");	//set the thread name for debugging
 		shouldControlLoopRun = true;
 		cmacLayers = new CmacLayer[NUMBER_OF_CMAC_LAYERS];
-		this.dataAggregator = new DataAggregator();
+		this.timeBase = new TimeBase();
+		this.dataAggregator = new DataAggregator(timeBase);
+		if (QUATERNION_ATTITUDE)
+			dataAggregator.setAttitudeEstimator(new MahonyAttitudeEstimator());
+		dataAggregator.setAttitudeEstimated(ESTIMATE_ATTITUDE);
+		dataAggregator.setHeightEstimated(ESTIMATE_HEIGHT);
+		dataAggregator.setMagnetometerCalibrated(CALIBRATE_MAGNETOMETER);
+		dataAggregator.setSensorBiasesCorrected(ESTIMATE_SENSOR_BIASES);
+		this.scheduler = new ControlScheduler(CONTROL_RATE);
+		this.latencyHistogram = new Histogram(ControlScheduler.HISTOGRAM_BUCKET_WIDTH, 2 * ControlScheduler.HISTOGRAM_BUCKETS);
+		setDataTriggered(DATA_TRIGGERED);
 		this.owner = owner;
 		// compute the offset increments
 		SimpleMatrix offsetIncrement = CmacInputParam.getDefaultMaxBound()
@@ -83,39 +169,139 @@ public class ControlLoop extends Thread {
 				QUANTIZATION_NUMBER, 
 				CmacInputParam.getDefaultMinBound(), 
 				CmacInputParam.getDefaultMaxBound(),
-				currentOffset
+				currentOffset,
+				(HASHED_CMAC_CAPACITY == 0) ? new CmacWeightStore() : CmacWeightStore.createHashed(HASHED_CMAC_CAPACITY)
 			);
 			currentOffset = currentOffset.plus(offsetIncrement);
 		}
+		if (ACTIVATION_TABLE_RESOLUTION != 0) {
+			CmacActivationTable activationTable = new CmacActivationTable(ACTIVATION_TABLE_RESOLUTION);
+			for (CmacLayer layer : cmacLayers)
+				layer.setActivationTable(activationTable);
+		}
+		cmacUpdateKernel = new CmacUpdateKernel(cmacLayers);
+		
+		//start with the weights learnt in the previous flights
+		if (owner != null) {
+			File snapshotFile = new File(owner.getPlatform().getFilesDir(), WEIGHT_SNAPSHOT_FILE_NAME);
+			if (snapshotFile.exists()) {
+				try {
+					CmacWeightSnapshot.load(snapshotFile, cmacLayers);
+					Log.i(TAG, "Loaded the cmac weights from " + snapshotFile);
+				} catch (IOException e) {
+					Log.w(TAG, "Ignoring the saved cmac weights: " + e.getMessage());
+				}
+			}
+			snapshotWriter = new CmacSnapshotWriter(snapshotFile, cmacLayers);
+			
+			//and with the sensor biases learnt in the previous ones
+			if (ESTIMATE_SENSOR_BIASES) {
+				sensorBiasFile = new File(owner.getPlatform().getFilesDir(), SENSOR_BIAS_FILE_NAME);
+				if (sensorBiasFile.exists()) {
+					try {
+						dataAggregator.getSensorBiasEstimator().load(sensorBiasFile);
+						Log.i(TAG, "Loaded the sensor biases: " + dataAggregator.getSensorBiasEstimator());
+					} catch (IOException e) {
+						Log.w(TAG, "Ignoring the saved sensor biases: " + e.getMessage());
+					}
+				}
+			}
+		}
 	}
 	
 	public DataAggregator getDataAggregator() {
 		return this.dataAggregator;
 	}
 	
+	public TimeBase getTimeBase() {
+		return this.timeBase;
+	}
+	
+	public ControlScheduler getScheduler() {
+		return this.scheduler;
+	}
+	
+	public Histogram getLatencyHistogram() {
+		return this.latencyHistogram;
+	}
+	
+	/**
+	 * Switches between the fixed rate and the data triggered mode, see {@link #DATA_TRIGGERED}.
+	 * This also sets the rate of the scheduler and has to be called before the loop is started.
+	 */
+	public void setDataTriggered(boolean dataTriggered) {
+		this.dataTriggered = dataTriggered;
+		scheduler.setRate(dataTriggered ? MAX_DATA_TRIGGERED_RATE : CONTROL_RATE);
+	}
+	
 	public void run() {
+		if (snapshotWriter != null)
+			snapshotWriter.start();
+		SampleSignal kinematicsSignal = dataAggregator.getKinematicsSignal();
+		long seenSample = kinematicsSignal.getSequence();
 		while (shouldControlLoopRun == true) {
-			//calculate the error matrix
-			SimpleMatrix errors = dataAggregator.calculateErrors();
-			if (errors != null) {
-				//update the previous errors matrix in the data aggregator for the correctness
-				//of future updates
-				dataAggregator.updatePreviousHrpyErrors(errors);
-				SimpleMatrix cmacOutput = triggerCmacUpdate(errors);
-				SimpleMatrix motorSpeeds = cmacOutput2MotorSpeeds(cmacOutput);
-				double netPreviousRotorSpeed = motorSpeeds.elementSum();
-				netPreviousRotorSpeed = (Double.isNaN(netPreviousRotorSpeed)) ? 0 : netPreviousRotorSpeed;
-				dataAggregator.setNetPreviousRotorSpeed(netPreviousRotorSpeed);
-				Message outputMsg = owner.getBtCommunicationLooper().handler
-						.obtainMessage(BluetoothCommunicationLooper.MOTOR_SPEEDS_MESSAGE);
-				outputMsg.obj = motorSpeeds;
-				owner.getBtCommunicationLooper().handler.sendMessage(outputMsg);
-			}
+			boolean stepDue = true;
 			try {
-				sleep(SLEEP_TIME);
+				if (dataTriggered) {
+					long sample = kinematicsSignal.await(seenSample, SAMPLE_TIMEOUT);
+					stepDue = (sample != seenSample);
+					seenSample = sample;
+					if (stepDue)
+						scheduler.awaitEarliestTick();
+				} else {
+					scheduler.awaitNextTick();
+				}
 			} catch (InterruptedException e) {
 				Log.w(TAG, "Sleep interrupted in control loop");
+				continue;
 			}
+			if (stepDue)
+				step(kinematicsSignal.getLastSampleTime());
+			if (snapshotWriter != null)
+				snapshotWriter.onControlTick(timeBase.now());
+			if (sensorBiasFile != null)
+				sendSensorBiasTelemetry();
+		}
+		Log.i(TAG, "Control loop stopped: " + scheduler);
+		Log.i(TAG, "Sensor to motor latency (us): " + latencyHistogram);
+		if (sensorBiasFile != null) {
+			try {
+				dataAggregator.getSensorBiasEstimator().save(sensorBiasFile);
+			} catch (IOException e) {
+				Log.w(TAG, "Could not save the sensor biases: " + e.getMessage());
+			}
+		}
+		if (snapshotWriter != null) {
+			snapshotWriter.flush();
+			snapshotWriter.stopWriter();
+		}
+	}
+	
+	/**
+	 * Sends the sensor biases to the controller if a {@link #TELEMETRY_PERIOD} has passed
+	 * since the last time.
+	 */
+	private void sendSensorBiasTelemetry() {
+		long now = System.nanoTime();
+		if (now - lastTelemetryTime < TELEMETRY_PERIOD)
+			return;
+		lastTelemetryTime = now;
+		owner.getNetworkCommunicationManager().sendDebugData("Sensor biases: " + dataAggregator.getSensorBiasEstimator());
+	}
+	
+	/**
+	 * Computes the motor speeds from the latest data and sends them to the QCB.
+	 * @param sampleTime the System.nanoTime at which the latest kinematics data arrived
+	 */
+	private void step(long sampleTime) {
+		//calculate the errors, into the buffers so that a step doesn't allocate
+		if (dataAggregator.calculateErrors(errors)) {
+			triggerCmacUpdate(errors, dataAggregator.getErrorTimestamp(), stepCmacOutput);
+			cmacOutput2MotorSpeeds(stepCmacOutput, motorSpeeds);
+			double netPreviousRotorSpeed = motorSpeeds.elementSum();
+			netPreviousRotorSpeed = (Double.isNaN(netPreviousRotorSpeed)) ? 0 : netPreviousRotorSpeed;
+			dataAggregator.setNetPreviousRotorSpeed(netPreviousRotorSpeed);
+			owner.sendMotorSpeedsToQcb(motorSpeeds, sampleTime);
 		}
 	}
 	
@@ -130,89 +316,55 @@ public class ControlLoop extends Thread {
 	 * 
 	 * Note: The output is only composed of the control weights because that is 
 	 * all that is needed to update the motor speeds.
+	 * 
+	 * The learning is scaled by the time since the previous update, taken from the
+	 * monotonic clock of the {@link TimeBase}.
 	 * @param input 1-by-13 matrix
 	 * @return 1-by-{@value CmacOutput#NUMBER_OF_WEIGHTS} matrix
 	 */
 	public SimpleMatrix triggerCmacUpdate(SimpleMatrix input) {
-		SimpleMatrix controlWeights = new SimpleMatrix(NUMBER_OF_CMAC_LAYERS, CmacOutput.NUMBER_OF_WEIGHTS);
-		SimpleMatrix alternateWeights = new SimpleMatrix(NUMBER_OF_CMAC_LAYERS, CmacOutput.NUMBER_OF_WEIGHTS);
-		SimpleMatrix activationFunctions = new SimpleMatrix(1, NUMBER_OF_CMAC_LAYERS);
-		CmacOutput output;
-		for (int i = 0; i < NUMBER_OF_CMAC_LAYERS; i++) {
-			output = cmacLayers[i].query(input);
-			controlWeights.insertIntoThis(i, 0, output.getControlWeights());
-			alternateWeights.insertIntoThis(i, 0, output.getAlternateWeights());
-			activationFunctions.set(i, output.getActivationFunction());
-		}
-		Log.d(TAG, "ControlWeights:\n" + controlWeights);
-		Log.d(TAG, "AlternateWeights:\n" + alternateWeights);
-		double activationFunctionSum = activationFunctions.elementSum();
-		SimpleMatrix normalizedActivationFunctions;
-		if (activationFunctionSum != 0)
-			normalizedActivationFunctions = activationFunctions.divide(activationFunctions.elementSum());
-		else
-			normalizedActivationFunctions = activationFunctions;
-		
-		//get the weight difference that will later be used to computer the weight corrections
-		//(refer to equation 13 in main-paper)
-		SimpleMatrix aggregatedControlWeights = normalizedActivationFunctions.mult(controlWeights);
-		SimpleMatrix aggregatedAlternateWeights = normalizedActivationFunctions.mult(alternateWeights);
-		SimpleMatrix weightDiff = aggregatedControlWeights.minus(aggregatedAlternateWeights);
-		
-		//get column-wise means of the alternate weights (refer to equation 14 in main-paper)
-		SimpleMatrix meanAlternateWeights = SimpleMatrix.ones(1, NUMBER_OF_CMAC_LAYERS)
-														.mult(alternateWeights)
-														.divide(NUMBER_OF_CMAC_LAYERS);
-		
-		//update alternate and control weights
-		double weightDiffNorm = weightDiff.normF();
-		SimpleMatrix deltaControlWeights, deltaAlternateWeights;
-		deltaAlternateWeights = meanAlternateWeights
-								.repmat(NUMBER_OF_CMAC_LAYERS, 1)
-								.minus(alternateWeights)
-								.mult(ALTERNATE_WEIGHT_DEVIATION_GAIN);
-		deltaAlternateWeights = deltaAlternateWeights.minus(
-									alternateWeights.mult(LEAKAGE_TERM_GAIN)
-								);
-		deltaControlWeights = 	normalizedActivationFunctions.transpose().mult(
-									CmacInputParam.getStateErrors(input, CURRENT_STATE_ERROR_GAIN)
-								).mult(-1.0);	//TODO talk to Macnab whether this is allright.
-		SimpleMatrix lyapunovBoundednessTerm = 	normalizedActivationFunctions	//helps guaranteed bounded signals
-												.transpose()
-												.mult(weightDiff)
-												.mult(LEARNING_ERROR_GAIN);
-		if (weightDiffNorm > DEADZONE) {
-			deltaAlternateWeights = deltaAlternateWeights.plus(lyapunovBoundednessTerm);
-			deltaControlWeights = 	deltaControlWeights.minus(lyapunovBoundednessTerm);
-			deltaControlWeights = 	deltaControlWeights.plus(
-										alternateWeights.minus(controlWeights).mult(GUIDE_WEIGHTS_GAIN)
-									);
-		} else {
-			deltaControlWeights =	deltaControlWeights.plus(
-										alternateWeights.minus(controlWeights).mult(GUIDE_WEIGHTS_GAIN_DEADZONE)
-									);
+		return triggerCmacUpdate(input, timeBase.now());
+	}
+	
+	/**
+	 * The same as {@link #triggerCmacUpdate(SimpleMatrix)}, but the learning is scaled by
+	 * the time between the data that this and the previous input were computed from.
+	 * All the timestamps passed in have to be on the same clock.
+	 * @param input 1-by-13 matrix
+	 * @param timestamp nanoseconds
+	 * @return 1-by-{@value CmacOutput#NUMBER_OF_WEIGHTS} matrix
+	 */
+	public SimpleMatrix triggerCmacUpdate(SimpleMatrix input, long timestamp) {
+		if (input.getNumElements() != CmacInputParam.count)
+			throw new IllegalArgumentException(String.format("The input matrix must have %d elements", CmacInputParam.count));
+		for (int i = 0; i < CmacInputParam.count; i++) {
+			cmacInput[i] = input.get(i);
 		}
-		deltaAlternateWeights = deltaAlternateWeights.mult(ALTERNATE_WEIGHTS_LEARNING_GAIN);
-		deltaControlWeights = deltaControlWeights.mult(CONTROL_WEIGHTS_LEARNING_GAIN);
-
-		long timeInterval = 0;
-		long currentTimestamp = (new Date()).getTime();
-		if (lastUpdateTimestamp != -1) {
-			timeInterval = currentTimestamp - lastUpdateTimestamp;
+		triggerCmacUpdate(cmacInput, timestamp, cmacOutput);
+		SimpleMatrix aggregatedControlWeights = new SimpleMatrix(1, CmacOutput.NUMBER_OF_WEIGHTS);
+		for (int i = 0; i < CmacOutput.NUMBER_OF_WEIGHTS; i++) {
+			aggregatedControlWeights.set(i, cmacOutput[i]);
 		}
-		lastUpdateTimestamp = currentTimestamp;
-		Log.d(TAG, "Delta CW:\n" + deltaControlWeights);
-		Log.d(TAG, "Delta AW:\n" + alternateWeights);
-		for (int i = 0; i < NUMBER_OF_CMAC_LAYERS; i++) {
-			cmacLayers[i].applyDeltas(
-				input,
-				deltaControlWeights.extractMatrix(i, i+1, 0, deltaControlWeights.numCols()),
-				deltaAlternateWeights.extractMatrix(i, i+1, 0, deltaAlternateWeights.numCols()),
-				timeInterval
-			);
+		return aggregatedControlWeights;
+	}
+	
+	/**
+	 * This is the allocation free version of {@link #triggerCmacUpdate(SimpleMatrix, long)}.
+	 * @param input array with {@value CmacInputParam#count} elements
+	 * @param timestamp nanoseconds
+	 * @param output receives the {@value CmacOutput#NUMBER_OF_WEIGHTS} aggregated control weights
+	 */
+	public void triggerCmacUpdate(double[] input, long timestamp, double[] output) {
+		if (input.length != CmacInputParam.count)
+			throw new IllegalArgumentException(String.format("The input array must have %d elements", CmacInputParam.count));
+		long timeInterval = 0;	//milliseconds
+		if (cmacUpdated) {
+			timeInterval = Math.max(0, TimeBase.toMillis(timestamp - lastUpdateTimestamp));
 		}
+		cmacUpdated = true;
+		lastUpdateTimestamp = timestamp;
 		
-		return aggregatedControlWeights;
+		cmacUpdateKernel.update(input, timeInterval, output);
 	}
 	
 	/**
@@ -233,7 +385,23 @@ public class ControlLoop extends Thread {
 		return motorSpeeds;
 	}
 	
+	/**
+	 * This is the allocation free version of {@link #cmacOutput2MotorSpeeds(SimpleMatrix)}.
+	 * @param cmacOutput array with {@value CmacOutput#NUMBER_OF_WEIGHTS} elements
+	 * @param motorSpeeds 1-by-{@value CmacOutput#NUMBER_OF_WEIGHTS} matrix that receives the
+	 * motor speeds
+	 */
+	public void cmacOutput2MotorSpeeds(double[] cmacOutput, SimpleMatrix motorSpeeds) {
+		for (int row = 0; row < CmacOutput.NUMBER_OF_WEIGHTS; row++) {
+			double motorSpeed = 0;
+			for (int col = 0; col < CmacOutput.NUMBER_OF_WEIGHTS; col++)
+				motorSpeed += CMAC_OUTPUT_TO_MOTOR_SPEED[row * CmacOutput.NUMBER_OF_WEIGHTS + col] * cmacOutput[col];
+			motorSpeeds.set(row, Math.sqrt(motorSpeed));
+		}
+	}
+	
 	public void stopControlLoop() {
 		this.shouldControlLoopRun = false;
+		dataAggregator.getKinematicsSignal().wakeUp();
 	}
 }
@@ -0,0 +1,174 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.Histogram;
+
+/**
+ * Paces the {@link ControlLoop} at a fixed rate. The ticks are due at absolute deadlines
+ * (start + n * period, measured with System.nanoTime), so the time that an iteration takes
+ * is not added to the period and the rate doesn't drift.
+ *
+ * If an iteration takes longer than a period, the next tick starts right away. If it takes
+ * longer than two, the ticks that were missed are skipped instead of being run back to back,
+ * and the deadlines are counted from the late tick.
+ *
+ * Two histograms (in microseconds) show how well the rate is kept:
+ * <ul>
+ * 	<li>jitter: how late every tick started compared to its deadline</li>
+ * 	<li>overrun: by how much the iterations that didn't finish before the next deadline were late</li>
+ * </ul>
+ * @author abhin
+ *
+ */
+public class ControlScheduler {
+	public static final String TAG = ControlScheduler.class.getSimpleName();
+	public static final long HISTOGRAM_BUCKET_WIDTH = 100;	//microseconds
+	public static final int HISTOGRAM_BUCKETS = 500;		//up to 50ms
+
+	private long periodNanos;	//guarded by this
+	private long nextDeadline;	//nanoseconds, -1 before the first tick
+	//the following are only written by the control loop thread
+	private volatile long ticks;
+	private volatile long overruns;
+	private volatile long skippedTicks;
+	private volatile long rateLimitedTicks;
+	private Histogram jitterHistogram;
+	private Histogram overrunHistogram;
+
+	/**
+	 * @param rate the target rate in Hz
+	 */
+	public ControlScheduler(double rate) {
+		setRate(rate);
+		nextDeadline = -1;
+		jitterHistogram = new Histogram(HISTOGRAM_BUCKET_WIDTH, HISTOGRAM_BUCKETS);
+		overrunHistogram = new Histogram(HISTOGRAM_BUCKET_WIDTH, HISTOGRAM_BUCKETS);
+	}
+
+	/**
+	 * Changes the target rate. This can be called from any thread and takes effect from
+	 * the next deadline on.
+	 * @param rate in Hz
+	 */
+	public synchronized void setRate(double rate) {
+		if (!(rate > 0) || Double.isInfinite(rate))
+			throw new IllegalArgumentException("The rate has to be positive");
+		periodNanos = Math.round(1e9 / rate);
+	}
+
+	public synchronized double getRate() {
+		return 1e9 / periodNanos;
+	}
+
+	public synchronized long getPeriodNanos() {
+		return periodNanos;
+	}
+
+	/**
+	 * Blocks until the next tick is due. This has to be called by the control loop thread
+	 * before every iteration; the first call returns right away.
+	 * @return the deadline of the tick that starts, in System.nanoTime
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public long awaitNextTick() throws InterruptedException {
+		long period = getPeriodNanos();
+		long now = System.nanoTime();
+		if (nextDeadline == -1) {
+			nextDeadline = now;
+		} else {
+			nextDeadline += period;
+			long lateness = now - nextDeadline;
+			if (lateness > 0) {
+				//the previous iteration ran past this tick's deadline
+				overruns++;
+				overrunHistogram.record(lateness / 1000);
+				if (lateness >= period) {
+					skippedTicks += lateness / period;
+					nextDeadline = now;
+				}
+			}
+		}
+
+		long remaining = nextDeadline - now;
+		while (remaining > 0) {
+			Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+			now = System.nanoTime();
+			remaining = nextDeadline - now;
+		}
+		jitterHistogram.record(-remaining / 1000);
+		ticks++;
+		return nextDeadline;
+	}
+
+	/**
+	 * Blocks until at least a period has passed since the start of the previous tick. This
+	 * is used instead of {@link #awaitNextTick()} when the ticks are triggered by the data
+	 * rather than by the clock, so that the period becomes the minimum interval and the loop
+	 * doesn't run faster than the rate. Ticks that had to wait are counted as rate limited.
+	 * @return the start of the tick, in System.nanoTime
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public long awaitEarliestTick() throws InterruptedException {
+		long now = System.nanoTime();
+		if (nextDeadline != -1) {
+			nextDeadline += getPeriodNanos();
+			long remaining = nextDeadline - now;
+			if (remaining > 0)
+				rateLimitedTicks++;
+			while (remaining > 0) {
+				Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+				now = System.nanoTime();
+				remaining = nextDeadline - now;
+			}
+		}
+		//the next tick may come a period after this one at the earliest
+		nextDeadline = now;
+		ticks++;
+		return now;
+	}
+
+	/**
+	 * Forgets the deadlines and the statistics, e.g. after the control loop has been paused.
+	 * This has to be called by the control loop thread.
+	 */
+	public void reset() {
+		nextDeadline = -1;
+		ticks = 0;
+		overruns = 0;
+		skippedTicks = 0;
+		rateLimitedTicks = 0;
+		jitterHistogram.reset();
+		overrunHistogram.reset();
+	}
+
+	public long getTicks() {
+		return ticks;
+	}
+
+	public long getOverruns() {
+		return overruns;
+	}
+
+	public long getSkippedTicks() {
+		return skippedTicks;
+	}
+
+	public long getRateLimitedTicks() {
+		return rateLimitedTicks;
+	}
+
+	public Histogram getJitterHistogram() {
+		return jitterHistogram;
+	}
+
+	public Histogram getOverrunHistogram() {
+		return overrunHistogram;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+			"%.1f Hz, %d ticks, %d overruns, %d skipped, %d rate limited; jitter (us): %s; overrun (us): %s",
+			getRate(), ticks, overruns, skippedTicks, rateLimitedTicks, jitterHistogram, overrunHistogram
+		);
+	}
+}
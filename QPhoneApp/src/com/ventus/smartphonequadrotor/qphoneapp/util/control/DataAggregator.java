@@ -1,18 +1,37 @@
 package com.ventus.smartphonequadrotor.qphoneapp.util.control;
 
-import java.util.Calendar;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-import android.util.Log;
-
-import com.ventus.smartphonequadrotor.qphoneapp.util.KeyValuePair;
 import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
 import com.ventus.smartphonequadrotor.qphoneapp.util.json.MoveCommand;
 import com.ventus.smartphonequadrotor.qphoneapp.util.net.NetworkCommunicationManager;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Log;
 
 /**
  * This is the class that gets all the data from the controller and the
  * QCB and aggregates it so that it could be used by the control systems.
  * This class will mostly be operated by the controlLoop thread.
+ * 
+ * The acquired values are written by the bluetooth reader into a {@link SeqLockedState}
+ * that the control loop reads without locks. The move commands from the network communication
+ * are queued without locks as well, and the control loop plans them into a
+ * {@link SetpointTrajectory} that it samples every iteration for the desired values and their
+ * derivatives. Everything else is only touched by the control loop thread.
+ * 
+ * The control loop keeps a {@link SensorHistory} of the acquired height and of the acquired
+ * rpy, to which every new sample that it reads is added. The depth of the histories can be
+ * configured, so they can be used for derivatives over longer windows or to look up the
+ * values at a given time.
+ * 
+ * The derivatives of the errors that go into the CMAC input are taken by
+ * {@link DerivativeFilterBank}s over the last {@value #DERIVATIVE_WINDOW} sensor samples,
+ * those of the desired roll and pitch come from the trajectory.
+ * 
+ * The raw accelerometer, gyroscope and magnetometer values go into an {@link AttitudeEstimator}
+ * ({@link KinematicsEstimator} unless another one is set).
+ * If the attitude is estimated on the phone (see {@link #setAttitudeEstimated(boolean)}), then
+ * its estimate is stored as the acquired rpy after every gyroscope sample, and the
+ * kinematics data of the QCB is ignored.
  * @author abhin
  */
 public class DataAggregator {
@@ -23,34 +42,123 @@ public class DataAggregator {
 	 */
 	
 	/**
-	 * A row matrix containing the current known height, roll, pitch and yaw values
-	 * along with their respective timestamps
+	 * The current known height, roll, pitch and yaw values along with the timestamps
+	 * of the height and of the rpy (on the QCB clock, {@link #NO_DATA} if nothing
+	 * has been acquired yet), and the vertical velocity if the height is estimated (NaN if it
+	 * isn't). The layout is given by the ACQUIRED_* constants.
+	 */
+	private SeqLockedState acquiredHrpy;
+	/**
+	 * The batches of move commands that have arrived since the last iteration.
 	 */
-	private KeyValuePair<Long, Double>[] acquiredHrpyHistory;
+	private ConcurrentLinkedQueue<CommandBatch> pendingCommands;
 	/**
-	 * This is the set of errors for height, roll, pitch and yaw from the last calculation of errors.
+	 * The desired height, roll, pitch and yaw over time (on the monotonic clock of the phone).
 	 */
-	private KeyValuePair<Long, Double[]> previousHrpyErrors;
+	private SetpointTrajectory desiredTrajectory;
+	private long desiredTime;
+	private double[] plannedTarget;
 	/**
-	 * A 2-D matrix containing the current and last 2 recorded desired height, desired roll, desired pitch 
-	 * and desired yaw values along with their respective timestamps
-	 * This is supposed to be a 3-row and 4-column matrix.
+	 * The acquired samples that the control loop has read, on the QCB clock.
 	 */
-	private KeyValuePair<Long, Double[]>[] desiredHrpyHistory;
+	private SensorHistory heightHistory;
+	private SensorHistory rpyHistory;
+	//the snapshots that the control loop reads the state into
+	private long[] acquiredSnapshot;
+	/**
+	 * The errors of every new sample go into these, in the order of HRPY.
+	 */
+	private DerivativeFilterBank heightErrorFilter;
+	private DerivativeFilterBank rpyErrorFilter;
+	/**
+	 * The times of the height and the rpy data that the last call to calculateErrors used.
+	 */
+	private long currentHeightErrorTimestamp;
+	private long currentRpyErrorTimestamp;
 	/**
 	 * The sum of the absolute motor speeds from the previous update.
 	 * Index 0 contains the timestamp from the last update and index 1 contains the timestamp from 
 	 * the update before that.
 	 */
 	private double netPreviousRotorSpeed;
+	/**
+	 * Only used by the bluetooth reader.
+	 */
+	private AttitudeEstimator attitudeEstimator;
+	private volatile boolean attitudeEstimated;
+	/**
+	 * Only used by the bluetooth reader, like the roll and pitch that were published last,
+	 * which the height estimator needs.
+	 */
+	private HeightEstimator heightEstimator;
+	private volatile boolean heightEstimated;
+	private double publishedRoll;
+	private double publishedPitch;
+	/**
+	 * Only used by the bluetooth reader, like the buffer of the corrected readings.
+	 */
+	private MagnetometerCalibrator magnetometerCalibrator;
+	private volatile boolean magnetometerCalibrated;
+	private float[] correctedMag;
+	/**
+	 * Only used by the bluetooth reader, like the buffer of the corrected readings. The
+	 * biases can be read from any thread.
+	 */
+	private SensorBiasEstimator sensorBiasEstimator;
+	private volatile boolean sensorBiasesCorrected;
+	private float[] correctedSensor;
+	/**
+	 * Signalled every time new kinematics data has been registered.
+	 */
+	private SampleSignal kinematicsSignal;
+	/**
+	 * The timestamps of the acquired values are on the QCB clock and those of the desired
+	 * values are on the phone's, both in nanoseconds.
+	 */
+	private TimeBase timeBase;
 	
-	private static final int DESIRED_DATA_HISTORY_LENGTH = 3;
-	private static final int ACQUIRED_DATA_HISTORY_LENGTH = 2;
-	private static final int LAST_UPDATE_INDEX = 0;
+	/**
+	 * The number of sensor samples that the derivatives of the errors are taken over.
+	 */
+	public static final int DERIVATIVE_WINDOW = 5;
 	private static final int HEIGHT_INDEX = 0;
 	private static final int ROLL_INDEX = 1;
 	private static final int PITCH_INDEX = 2;
 	private static final int YAW_INDEX = 3;
+	private static final int HRPY_COUNT = 4;
+	
+	public static final long NO_DATA = Long.MIN_VALUE;
+	/**
+	 * The default number of samples in the histories.
+	 */
+	public static final int HISTORY_DEPTH = 32;
+	/**
+	 * The channels of the height history and of the rpy history.
+	 */
+	public static final int HEIGHT_CHANNEL = 0;
+	public static final int ROLL_CHANNEL = 0;
+	public static final int PITCH_CHANNEL = 1;
+	public static final int YAW_CHANNEL = 2;
+	private static final int ACQUIRED_HEIGHT_TIMESTAMP = 0;
+	private static final int ACQUIRED_RPY_TIMESTAMP = 1;
+	private static final int ACQUIRED_VALUES = 2;	//followed by the HRPY_COUNT values
+	private static final int ACQUIRED_HEIGHT_VELOCITY = ACQUIRED_VALUES + HRPY_COUNT;
+	private static final int ACQUIRED_SIZE = ACQUIRED_HEIGHT_VELOCITY + 1;
+	/**
+	 * The limits of the jerk of the desired height (per second cubed) and of the desired
+	 * angles (radians per second cubed).
+	 */
+	public static final double MAX_HEIGHT_JERK = 50;
+	public static final double MAX_TILT_JERK = 20;
+	/**
+	 * The number of move commands that are executed one after the other, the rest of a
+	 * longer batch is dropped.
+	 */
+	public static final int MAX_PLANNED_COMMANDS = 32;
+	/**
+	 * The durations of the move commands are in milliseconds.
+	 */
+	private static final long DURATION_UNIT = 1000000;
 
 	private static final int MAX_SPEED = 100;
 	private static final double MAX_TILT = Math.PI / 4;
@@ -66,27 +174,88 @@ public class DataAggregator {
 	private static final double HEIGHT_GAIN = 1;
 	
 	public DataAggregator() {
-		this.acquiredHrpyHistory = new KeyValuePair[4];
-		this.previousHrpyErrors = new KeyValuePair<Long, Double[]>(0L, new Double[]{0d, 0d, 0d, 0d});
-		this.desiredHrpyHistory = new KeyValuePair[DESIRED_DATA_HISTORY_LENGTH];
+		this(new TimeBase());
+	}
+	
+	public DataAggregator(TimeBase timeBase) {
+		this(timeBase, HISTORY_DEPTH);
+	}
+	
+	/**
+	 * @param historyDepth the number of samples that the histories keep
+	 */
+	public DataAggregator(TimeBase timeBase, int historyDepth) {
+		this.timeBase = timeBase;
+		this.acquiredHrpy = new SeqLockedState(ACQUIRED_SIZE);
+		this.pendingCommands = new ConcurrentLinkedQueue<CommandBatch>();
+		//one more segment for levelling out after the commands
+		this.desiredTrajectory = new SetpointTrajectory(
+			new double[] {MAX_HEIGHT_JERK, MAX_TILT_JERK, MAX_TILT_JERK, MAX_TILT_JERK}, 
+			MAX_PLANNED_COMMANDS + 1, 
+			new double[HRPY_COUNT]
+		);
+		this.desiredTime = Long.MIN_VALUE;
+		this.plannedTarget = new double[HRPY_COUNT];
+		this.heightHistory = new SensorHistory(1, historyDepth);
+		this.rpyHistory = new SensorHistory(3, historyDepth);
+		this.acquiredSnapshot = new long[ACQUIRED_SIZE];
+		this.heightErrorFilter = new DerivativeFilterBank(1, DERIVATIVE_WINDOW);
+		this.rpyErrorFilter = new DerivativeFilterBank(3, DERIVATIVE_WINDOW);
 		this.netPreviousRotorSpeed = 0;
+		this.kinematicsSignal = new SampleSignal();
+		this.attitudeEstimator = new KinematicsEstimator();
+		this.attitudeEstimated = false;
+		this.heightEstimator = new HeightEstimator();
+		this.heightEstimated = false;
+		this.publishedRoll = 0;
+		this.publishedPitch = 0;
+		this.magnetometerCalibrator = new MagnetometerCalibrator();
+		this.magnetometerCalibrated = false;
+		this.correctedMag = new float[3];
+		this.sensorBiasEstimator = new SensorBiasEstimator();
+		this.sensorBiasesCorrected = false;
+		this.correctedSensor = new float[3];
 		
-		//now we initialize the timestamps of the desired values to something large
-		//enough that it doesn't cause errors (from being zero) but small enough that 
-		//its impact on the math is insignificant
-		for (int i = 0; i < DESIRED_DATA_HISTORY_LENGTH; i++) {
-			this.desiredHrpyHistory[i] = new KeyValuePair<Long, Double[]>(
-				(long) (DESIRED_DATA_HISTORY_LENGTH - i),
-				new Double[]{0d, 0d, 0d, 0d}
-			);
-		}
-		
-		for (int i = 0; i < 4; i++) {
-			this.acquiredHrpyHistory[i] = new KeyValuePair<Long, Double>(0L, 0D);
-		}
+		acquiredHrpy.beginWrite();
+		acquiredHrpy.putLong(ACQUIRED_HEIGHT_TIMESTAMP, NO_DATA);
+		acquiredHrpy.putLong(ACQUIRED_RPY_TIMESTAMP, NO_DATA);
+		acquiredHrpy.putDouble(ACQUIRED_HEIGHT_VELOCITY, Double.NaN);
+		acquiredHrpy.endWrite();
 	}
 	
-	public synchronized void setNetPreviousRotorSpeed(double netPreviousRotorSpeed) {
+	public SampleSignal getKinematicsSignal() {
+		return this.kinematicsSignal;
+	}
+	
+	public TimeBase getTimeBase() {
+		return this.timeBase;
+	}
+	
+	/**
+	 * @return the time (on the QCB clock, in nanoseconds) of the rpy data that the last call
+	 * to {@link #calculateErrors()} used
+	 */
+	public long getErrorTimestamp() {
+		return currentRpyErrorTimestamp;
+	}
+	
+	/**
+	 * @return the acquired heights that the control loop has read. This may only be used by
+	 * the control loop thread.
+	 */
+	public SensorHistory getHeightHistory() {
+		return heightHistory;
+	}
+	
+	/**
+	 * @return the acquired roll, pitch and yaw that the control loop has read. This may only
+	 * be used by the control loop thread.
+	 */
+	public SensorHistory getRpyHistory() {
+		return rpyHistory;
+	}
+	
+	public void setNetPreviousRotorSpeed(double netPreviousRotorSpeed) {
 		this.netPreviousRotorSpeed = netPreviousRotorSpeed;
 	}
 	
@@ -98,8 +267,11 @@ public class DataAggregator {
 	 * Note:
 	 * <ol> 
 	 * 	<li>
-	 * 		This method will some day be able to process paths. But currently it just takes the 
-	 * 		first move command it receives and uses it to decide the desired roll, pitch and height.
+	 * 		The move commands are executed one after the other, every one of them for its duration
+	 * 		(in milliseconds). A new batch of commands replaces the commands that haven't been
+	 * 		executed yet. A command with a duration of 0 is held until the next batch; after the
+	 * 		last command of a batch with a duration, the quadrotor levels out at the height of
+	 * 		that command.
 	 * 	</li>
 	 * 	<li>
 	 * 		The move command consists of an <x,y,z> vector, speed and duration. The <x,y> vector is
@@ -113,165 +285,418 @@ public class DataAggregator {
 	 * 
 	 * 		The z component of the move command will be used to set the desired height for the given duration.
 	 * 	</li>
+	 * 	<li>
+	 * 		The desired values move from one command to the next smoothly, see {@link SetpointTrajectory}.
+	 * 	</li>
+	 * 	<li>
+	 * 		A command with a duration of 0 is held until the next batch arrives, which makes it
+	 * 		the last command of its batch: the commands after it are dropped.
+	 * 	</li>
 	 * </ol>
 	 * @param MoveCommands[]
 	 */
-	public synchronized void processMoveCommand(MoveCommand[] moveCommands) {
+	public void processMoveCommand(MoveCommand[] moveCommands) {
 		if (moveCommands != null && moveCommands.length != 0) {
-			//use the first move command and ignore the rest for now
-			MoveCommand cmd = moveCommands[0].normalizeDirection();
-			int speed = Math.min(Math.abs(cmd.getSpeed()), MAX_SPEED);
-			double desiredPitch = TILT_GAIN * cmd.getXVector() * speed;
-			double desiredRoll = TILT_GAIN * cmd.getYVector() * speed;
-			//ensure that the desired roll and pitch are in the range of [-MAX_TILT, MAX_TILT]
-			desiredPitch = Math.max(-MAX_TILT, Math.min(MAX_TILT, desiredPitch));
-			desiredRoll = Math.max(-MAX_TILT, Math.min(MAX_TILT, desiredRoll));
-			double desiredHeight = HEIGHT_GAIN * speed * moveCommands[0].getZVector();
-			registerDesiredVariables(desiredHeight, desiredRoll, desiredPitch, 0);
-			
+			int count = moveCommands.length;
+			if (count > MAX_PLANNED_COMMANDS) {
+				Log.w(TAG, String.format("Only the first %d of %d move commands are executed", MAX_PLANNED_COMMANDS, count));
+				count = MAX_PLANNED_COMMANDS;
+			}
+			//a command of duration 0 is held until the next batch, so none can come after it
+			for (int i = 0; i < count - 1; i++) {
+				if (moveCommands[i].getDuration() <= 0) {
+					Log.w(TAG, String.format("The move commands after the held command %d are ignored", i));
+					count = i + 1;
+					break;
+				}
+			}
+			CommandBatch batch = new CommandBatch(timeBase.now(), count);
+			for (int i = 0; i < count; i++) {
+				MoveCommand cmd = moveCommands[i].normalizeDirection();
+				int speed = Math.min(Math.abs(cmd.getSpeed()), MAX_SPEED);
+				double desiredPitch = TILT_GAIN * cmd.getXVector() * speed;
+				double desiredRoll = TILT_GAIN * cmd.getYVector() * speed;
+				//ensure that the desired roll and pitch are in the range of [-MAX_TILT, MAX_TILT]
+				desiredPitch = Math.max(-MAX_TILT, Math.min(MAX_TILT, desiredPitch));
+				desiredRoll = Math.max(-MAX_TILT, Math.min(MAX_TILT, desiredRoll));
+				double desiredHeight = HEIGHT_GAIN * speed * moveCommands[i].getZVector();
+				batch.targets[i * HRPY_COUNT + HEIGHT_INDEX] = desiredHeight;
+				batch.targets[i * HRPY_COUNT + ROLL_INDEX] = desiredRoll;
+				batch.targets[i * HRPY_COUNT + PITCH_INDEX] = desiredPitch;
+				batch.targets[i * HRPY_COUNT + YAW_INDEX] = 0;
+				batch.durations[i] = Math.max(0, cmd.getDuration()) * DURATION_UNIT;
+			}
+			pendingCommands.offer(batch);
 		}
 	}
 	
 	/**
 	 * This method stores the newly acquired kinematics values so that they may be used by the control
 	 * loop in its next iteration.
+	 * @param timestamp the 32-bit timestamp of the QCB
+	 */
+	public void processNewKinematicsData(long timestamp, float roll, float pitch, float yaw) {
+		if (attitudeEstimated)
+			return;
+		publishRpyData(timeBase.fromQcbTimestamp(timestamp), roll, pitch, yaw);
+	}
+	
+	/**
+	 * This method passes the accelerometer values to the attitude estimator and to the
+	 * height estimator and, if the height is estimated on the phone, stores the propagated
+	 * height for the control loop. If the sensor biases are corrected, the values are
+	 * corrected by the offset of the sensor bias estimator first.
+	 * @param timestamp the 32-bit timestamp of the QCB
+	 */
+	public void processNewAccelData(long timestamp, float x, float y, float z) {
+		long time = timeBase.fromQcbTimestamp(timestamp);
+		if (sensorBiasesCorrected) {
+			sensorBiasEstimator.registerAccelValues(x, y, z, time);
+			sensorBiasEstimator.correctAccelValues(x, y, z, correctedSensor);
+			x = correctedSensor[0];
+			y = correctedSensor[1];
+			z = correctedSensor[2];
+		}
+		attitudeEstimator.registerAccelValues(x, y, z, time);
+		heightEstimator.registerAccelValues(x, y, z, time, publishedRoll, publishedPitch);
+		if (heightEstimated && heightEstimator.isInitialized())
+			publishHeightData(heightEstimator.getTimestamp(), heightEstimator.getHeight(), heightEstimator.getVelocity());
+	}
+	
+	/**
+	 * This method passes the gyroscope values to the attitude estimator and, if the attitude
+	 * is estimated on the phone, stores the new estimate for the control loop. If the sensor
+	 * biases are corrected, the bias of the sensor bias estimator is subtracted first.
+	 * @param timestamp the 32-bit timestamp of the QCB
+	 */
+	public void processNewGyroData(long timestamp, float x, float y, float z) {
+		long time = timeBase.fromQcbTimestamp(timestamp);
+		if (sensorBiasesCorrected) {
+			sensorBiasEstimator.registerGyroValues(x, y, z, time);
+			sensorBiasEstimator.correctGyroValues(x, y, z, correctedSensor);
+			x = correctedSensor[0];
+			y = correctedSensor[1];
+			z = correctedSensor[2];
+		}
+		attitudeEstimator.registerGyroValues(x, y, z, time);
+		if (attitudeEstimated && attitudeEstimator.isInitialized()) {
+			publishRpyData(time, attitudeEstimator.getRoll(), attitudeEstimator.getPitch(), attitudeEstimator.getYaw());
+		}
+	}
+	
+	/**
+	 * This method passes the magnetometer values to the attitude estimator, corrected by the
+	 * magnetometer calibrator if the magnetometer is calibrated.
+	 * @param timestamp the 32-bit timestamp of the QCB
 	 */
-	public synchronized void processNewKinematicsData(long timestamp, float roll, float pitch, float yaw) {
-		registerCurrentRpyData(timestamp, roll, pitch, yaw);
+	public void processNewMagData(long timestamp, float x, float y, float z) {
+		long time = timeBase.fromQcbTimestamp(timestamp);
+		if (magnetometerCalibrated) {
+			magnetometerCalibrator.add(x, y, z);
+			magnetometerCalibrator.correct(x, y, z, correctedMag);
+			attitudeEstimator.registerMagValues(correctedMag[0], correctedMag[1], correctedMag[2], time);
+		} else {
+			attitudeEstimator.registerMagValues(x, y, z, time);
+		}
+	}
+	
+	/**
+	 * Chooses where the acquired rpy comes from: the attitude estimator if true, the
+	 * kinematics data of the QCB if false.
+	 */
+	public void setAttitudeEstimated(boolean attitudeEstimated) {
+		this.attitudeEstimated = attitudeEstimated;
+	}
+	
+	public boolean isAttitudeEstimated() {
+		return attitudeEstimated;
+	}
+	
+	public AttitudeEstimator getAttitudeEstimator() {
+		return attitudeEstimator;
+	}
+	
+	/**
+	 * Chooses where the acquired height comes from: the height estimator if true (once the
+	 * sonar has given a reliable reading), the raw sonar readings if false.
+	 */
+	public void setHeightEstimated(boolean heightEstimated) {
+		this.heightEstimated = heightEstimated;
+	}
+	
+	public boolean isHeightEstimated() {
+		return heightEstimated;
+	}
+	
+	public HeightEstimator getHeightEstimator() {
+		return heightEstimator;
+	}
+	
+	/**
+	 * Chooses whether the magnetometer readings are calibrated online against hard and soft
+	 * iron before they go to the attitude estimator.
+	 */
+	public void setMagnetometerCalibrated(boolean magnetometerCalibrated) {
+		this.magnetometerCalibrated = magnetometerCalibrated;
+	}
+	
+	public boolean isMagnetometerCalibrated() {
+		return magnetometerCalibrated;
+	}
+	
+	public MagnetometerCalibrator getMagnetometerCalibrator() {
+		return magnetometerCalibrator;
+	}
+	
+	/**
+	 * Chooses whether the biases of the gyroscope and the accelerometer are learnt and
+	 * subtracted before their values go to the estimators.
+	 */
+	public void setSensorBiasesCorrected(boolean sensorBiasesCorrected) {
+		this.sensorBiasesCorrected = sensorBiasesCorrected;
+	}
+	
+	public boolean isSensorBiasesCorrected() {
+		return sensorBiasesCorrected;
+	}
+	
+	public SensorBiasEstimator getSensorBiasEstimator() {
+		return sensorBiasEstimator;
+	}
+	
+	/**
+	 * Replaces the attitude estimator. This has to be called before the sensor data
+	 * starts arriving.
+	 */
+	public void setAttitudeEstimator(AttitudeEstimator attitudeEstimator) {
+		if (attitudeEstimator == null)
+			throw new IllegalArgumentException("The attitude estimator is null");
+		this.attitudeEstimator = attitudeEstimator;
+	}
+	
+	/**
+	 * Stores the rpy for the control loop and signals it.
+	 * @param time on the QCB clock
+	 */
+	private void publishRpyData(long time, double roll, double pitch, double yaw) {
+		publishedRoll = roll;
+		publishedPitch = pitch;
+		acquiredHrpy.beginWrite();
+		try {
+			registerCurrentRpyData(time, roll, pitch, yaw);
+		} finally {
+			acquiredHrpy.endWrite();
+		}
+		kinematicsSignal.signal(System.nanoTime());
 	}
 	
 	/**
 	 * This method stores the newly acquired height data so that they may be used by the control loop in
-	 * its next iteration.
-	 * @param timestamp
-	 * @param height
+	 * its next iteration. If the height is estimated, the reading corrects the estimate and the
+	 * estimate is stored instead.
+	 * @param timestamp the 32-bit timestamp of the QCB
+	 * @param height cm
 	 */
-	public synchronized void processNewHeightData(long timestamp, int height) {
-		registerCurrentHeightDatum(timestamp, height);
+	public void processNewHeightData(long timestamp, int height) {
+		long time = timeBase.fromQcbTimestamp(timestamp);
+		heightEstimator.registerSonarHeight(height, time, publishedRoll, publishedPitch);
+		if (heightEstimated && heightEstimator.isInitialized())
+			publishHeightData(heightEstimator.getTimestamp(), heightEstimator.getHeight(), heightEstimator.getVelocity());
+		else
+			publishHeightData(time, height, Double.NaN);
 	}
 	
 	/**
-	 * This method sets the previousHrpyErrors in the data aggregator using the current errors
-	 * in the given matrix
-	 * @param currentErrors The simpleMatrix instance returned by {@link DataAggregator#calculateErrors()}.
+	 * Stores the height for the control loop.
+	 * @param time on the QCB clock
+	 * @param velocity NaN if unknown
 	 */
-	public synchronized void updatePreviousHrpyErrors(SimpleMatrix currentErrors) {
-		if (currentErrors == null)
-			throw new IllegalArgumentException("error matrix is null");
-		if (currentErrors.getNumElements() != CmacInputParam.count)
-			throw new IllegalArgumentException("error matrix has incorrect size");
-		
-		previousHrpyErrors.value[HEIGHT_INDEX] = currentErrors.get(CmacInputParam.HEIGHT_ERROR.index);
-		previousHrpyErrors.value[ROLL_INDEX] = currentErrors.get(CmacInputParam.ROLL_ERROR.index);
-		previousHrpyErrors.value[PITCH_INDEX] = currentErrors.get(CmacInputParam.PITCH_ERROR.index);
-		previousHrpyErrors.value[YAW_INDEX] = currentErrors.get(CmacInputParam.YAW_ERROR.index);
+	private void publishHeightData(long time, double height, double velocity) {
+		acquiredHrpy.beginWrite();
+		try {
+			registerCurrentHeightDatum(time, height, velocity);
+		} finally {
+			acquiredHrpy.endWrite();
+		}
 	}
 	
 	/**
 	 * This method must be called by the {@link ControlLoop} periodically to calculate the motor speeds.
+	 * @return 1-by-{@value CmacInputParam#count} matrix, null if there isn't enough data yet
+	 */
+	public SimpleMatrix calculateErrors() {
+		double[] errors = new double[CmacInputParam.count];
+		if (!calculateErrors(errors))
+			return null;
+		return new SimpleMatrix(1, CmacInputParam.count, true, errors);
+	}
+	
+	/**
+	 * This is the allocation free version of {@link #calculateErrors()}, which the
+	 * {@link ControlLoop} uses on every tick. Unlike the matrix, the array isn't rounded.
+	 * @param errors receives the {@value CmacInputParam#count} errors
+	 * @return false if there isn't enough data yet, in which case errors is left undefined
 	 */
-	public synchronized SimpleMatrix calculateErrors() {
-		SimpleMatrix errorMatrix = null;
+	public boolean calculateErrors(double[] errors) {
+		if (errors.length != CmacInputParam.count)
+			throw new IllegalArgumentException("error array has incorrect size");
 		try {
+			acquiredHrpy.read(acquiredSnapshot);
+			updateDesiredTrajectory();
 			if (enoughAcquiredHrpyHistoryExists()) {
 				//if this is not the first reading then,
-				double[] errors = new double[CmacInputParam.count];
+				currentHeightErrorTimestamp = acquiredSnapshot[ACQUIRED_HEIGHT_TIMESTAMP];
+				currentRpyErrorTimestamp = acquiredSnapshot[ACQUIRED_RPY_TIMESTAMP];
 				updateHrpyErrors(errors);
+				updateHistories(errors);
 				updateHrpyErrorDerivatives(errors);
 				updateDesiredDerivatives(errors);
 				
 				errors[CmacInputParam.NET_PREVIOUS_ROTOR_SPEED.index] = netPreviousRotorSpeed;
-				errorMatrix = new SimpleMatrix(1, CmacInputParam.count, true, errors);
+				return true;
 			}
 		} catch (Exception ex) {
 			Log.e(TAG, "Error in calculating errors", ex);
 		}
-		return errorMatrix;
+		return false;
+	}
+	
+	/**
+	 * Plans the latest batch of move commands, if one has arrived, and samples the desired
+	 * trajectory at the current time.
+	 */
+	private void updateDesiredTrajectory() {
+		CommandBatch batch = null;
+		CommandBatch next;
+		while ((next = pendingCommands.poll()) != null)
+			batch = next;	//a batch replaces the ones before it
+		//read after the batches, so that none of them arrived after now
+		long now = Math.max(timeBase.now(), desiredTime);
+		if (batch != null) {
+			desiredTrajectory.plan(Math.min(Math.max(batch.time, desiredTime), now));
+			double[] target = plannedTarget;
+			int count = batch.durations.length;
+			for (int i = 0; i < count; i++) {
+				System.arraycopy(batch.targets, i * HRPY_COUNT, target, 0, HRPY_COUNT);
+				desiredTrajectory.append(target, batch.durations[i]);
+			}
+			if (batch.durations[count - 1] != 0) {
+				//level out at the last height
+				target[ROLL_INDEX] = target[PITCH_INDEX] = target[YAW_INDEX] = 0;
+				desiredTrajectory.append(target, 0);
+			}
+		}
+		desiredTrajectory.sample(now);
+		desiredTime = now;
 	}
 	
 	/**
 	 * Checks if more data needs to be acquired before the Cmac computations can take place.
-	 * @return True if all the timestamps in acquiredHrpyHistory are not zero and false otherwise.
+	 * @return True if both height and rpy data have been acquired and false otherwise.
 	 */
 	private boolean enoughAcquiredHrpyHistoryExists() {
-		for (int j = 0; j <= YAW_INDEX; j++) {
-			if (acquiredHrpyHistory[j].key == 0)
+		return acquiredSnapshot[ACQUIRED_HEIGHT_TIMESTAMP] != NO_DATA
+				&& acquiredSnapshot[ACQUIRED_RPY_TIMESTAMP] != NO_DATA;
+	}
+	
+	/**
+	 * Adds the samples of the last snapshot to the histories, and their errors to the error
+	 * filters, if they are new.
+	 * @param errors the current errors
+	 */
+	private void updateHistories(double[] errors) {
+		if (addSample(heightHistory, currentHeightErrorTimestamp)) {
+			heightHistory.set(HEIGHT_CHANNEL, acquired(HEIGHT_INDEX));
+			if (heightHistory.size() == 1)
+				heightErrorFilter.clear();
+			heightErrorFilter.add(currentHeightErrorTimestamp);
+			heightErrorFilter.set(HEIGHT_CHANNEL, errors[CmacInputParam.HEIGHT_ERROR.index]);
+		}
+		if (addSample(rpyHistory, currentRpyErrorTimestamp)) {
+			rpyHistory.set(ROLL_CHANNEL, acquired(ROLL_INDEX));
+			rpyHistory.set(PITCH_CHANNEL, acquired(PITCH_INDEX));
+			rpyHistory.set(YAW_CHANNEL, acquired(YAW_INDEX));
+			if (rpyHistory.size() == 1)
+				rpyErrorFilter.clear();
+			rpyErrorFilter.add(currentRpyErrorTimestamp);
+			rpyErrorFilter.set(ROLL_CHANNEL, errors[CmacInputParam.ROLL_ERROR.index]);
+			rpyErrorFilter.set(PITCH_CHANNEL, errors[CmacInputParam.PITCH_ERROR.index]);
+			rpyErrorFilter.set(YAW_CHANNEL, errors[CmacInputParam.YAW_ERROR.index]);
+		}
+	}
+	
+	/**
+	 * @return true if a sample with the timestamp was added, false if it is already the latest
+	 */
+	private static boolean addSample(SensorHistory history, long timestamp) {
+		if (!history.isEmpty()) {
+			long latest = history.getTimestamp(0);
+			if (timestamp == latest)
 				return false;
+			if (timestamp < latest)
+				history.clear();	//the QCB clock has been reset
 		}
-		
+		history.add(timestamp);
 		return true;
 	}
 	
+	/**
+	 * @return the acquired value with the given index from the last snapshot
+	 */
+	private double acquired(int index) {
+		return SeqLockedState.toDouble(acquiredSnapshot[ACQUIRED_VALUES + index]);
+	}
+	
+	/**
+	 * @return the desired value with the given index at the current time
+	 */
+	private double desired(int index) {
+		return desiredTrajectory.getPosition(index);
+	}
+	
 	/**
 	 * This method computes the current HRPY errors.
 	 * @param errors
 	 */
 	private void updateHrpyErrors(double[] errors) {
-		errors[CmacInputParam.HEIGHT_ERROR.index] = acquiredHrpyHistory[HEIGHT_INDEX].value 
-				- desiredHrpyHistory[LAST_UPDATE_INDEX].value[HEIGHT_INDEX];
-		errors[CmacInputParam.ROLL_ERROR.index] = acquiredHrpyHistory[ROLL_INDEX].value
-				- desiredHrpyHistory[LAST_UPDATE_INDEX].value[ROLL_INDEX];
-		errors[CmacInputParam.PITCH_ERROR.index] = acquiredHrpyHistory[PITCH_INDEX].value
-				- desiredHrpyHistory[LAST_UPDATE_INDEX].value[PITCH_INDEX];
-		errors[CmacInputParam.YAW_ERROR.index] = acquiredHrpyHistory[YAW_INDEX].value
-				- desiredHrpyHistory[LAST_UPDATE_INDEX].value[YAW_INDEX];
+		errors[CmacInputParam.HEIGHT_ERROR.index] = acquired(HEIGHT_INDEX) 
+				- desired(HEIGHT_INDEX);
+		errors[CmacInputParam.ROLL_ERROR.index] = acquired(ROLL_INDEX)
+				- desired(ROLL_INDEX);
+		errors[CmacInputParam.PITCH_ERROR.index] = acquired(PITCH_INDEX)
+				- desired(PITCH_INDEX);
+		errors[CmacInputParam.YAW_ERROR.index] = acquired(YAW_INDEX)
+				- desired(YAW_INDEX);
 	}
 	
 	/**
-	 * This method uses the currently calculated HRPY errors along with the HRPY errors computed in the 
-	 * last iteration to compute the error derivatives for HRPY.
+	 * This method computes the error derivatives for HRPY from the errors of the last sensor
+	 * samples. If no new data has arrived since the last iteration, then the derivatives are the
+	 * same as last time. The derivative of the height error comes from the estimated velocity
+	 * instead if the height is estimated.
 	 * @param errors
 	 */
 	private void updateHrpyErrorDerivatives(double[] errors) {
-		Calendar cal = Calendar.getInstance();
-		long deltaT = cal.getTimeInMillis();
-		errors[CmacInputParam.HEIGHT_ERROR_DERIVATIVE.index] = (errors[CmacInputParam.HEIGHT_ERROR.index] 
-				- previousHrpyErrors.value[HEIGHT_INDEX]) / deltaT;
-		errors[CmacInputParam.ROLL_ERROR_DERIVATIVE.index] = (errors[CmacInputParam.ROLL_ERROR.index] 
-				- previousHrpyErrors.value[ROLL_INDEX]) / deltaT;
-		errors[CmacInputParam.PITCH_ERROR_DERIVATIVE.index] = (errors[CmacInputParam.PITCH_ERROR.index] 
-				- previousHrpyErrors.value[PITCH_INDEX]) / deltaT;
-		errors[CmacInputParam.YAW_ERROR_DERIVATIVE.index] = (errors[CmacInputParam.YAW_ERROR.index] 
-				- previousHrpyErrors.value[YAW_INDEX]) / deltaT;
+		double velocity = SeqLockedState.toDouble(acquiredSnapshot[ACQUIRED_HEIGHT_VELOCITY]);
+		if (Double.isNaN(velocity))
+			errors[CmacInputParam.HEIGHT_ERROR_DERIVATIVE.index] = heightErrorFilter.getDerivative(HEIGHT_CHANNEL);
+		else
+			errors[CmacInputParam.HEIGHT_ERROR_DERIVATIVE.index] = velocity - desiredTrajectory.getVelocity(HEIGHT_INDEX);
+		errors[CmacInputParam.ROLL_ERROR_DERIVATIVE.index] = rpyErrorFilter.getDerivative(ROLL_CHANNEL);
+		errors[CmacInputParam.PITCH_ERROR_DERIVATIVE.index] = rpyErrorFilter.getDerivative(PITCH_CHANNEL);
+		errors[CmacInputParam.YAW_ERROR_DERIVATIVE.index] = rpyErrorFilter.getDerivative(YAW_CHANNEL);
 	}
 	
 	/**
-	 * This method computes the first and second order derivatives of the desired variables. 
+	 * This method computes the first and second order derivatives of the desired variables,
+	 * which the trajectory has exactly.
 	 * @param errors
 	 */
 	private void updateDesiredDerivatives(double[] errors) {
-		errors[CmacInputParam.DESIRED_ROLL_DERIVATIVE.index] = (desiredHrpyHistory[LAST_UPDATE_INDEX].value[ROLL_INDEX] 
-				- desiredHrpyHistory[LAST_UPDATE_INDEX+1].value[ROLL_INDEX]) 
-				/ (desiredHrpyHistory[LAST_UPDATE_INDEX].key 
-				- desiredHrpyHistory[LAST_UPDATE_INDEX+1].key);
-		errors[CmacInputParam.DESIRED_PITCH_DERIVATIVE.index] = (desiredHrpyHistory[LAST_UPDATE_INDEX].value[PITCH_INDEX] 
-				- desiredHrpyHistory[LAST_UPDATE_INDEX+1].value[PITCH_INDEX]) 
-				/ (desiredHrpyHistory[LAST_UPDATE_INDEX].key 
-				- desiredHrpyHistory[LAST_UPDATE_INDEX+1].key);
-		/*
-		 * For the three time, value pairs (y0, t0), (y1, t1), (y2, t2), the correct second order derivative is:
-		 * 
-		 *  2[(y0-y1)(t1-t2) - (y1-y2)(t0-t1)]
-		 * ------------------------------------
-		 *        (t0-t1)(t1-t2)(t0-t2)
-		 * 
-		 * But this is too computationally intensive and we approximate it using (t1-t2)==(t0-t1)==(t0-t2)/2
-		 * to get the approximation
-		 * 
-		 *  y0 - 2*y1 + y2
-		 * ----------------
-		 *  (t0-t1)(t1-t2)
-		 *  
-		 * which is much more computationally efficient and a good enough approximation.
-		 */
-		errors[CmacInputParam.DESIRED_ROLL_SECOND_DERIVATIVE.index] = (desiredHrpyHistory[LAST_UPDATE_INDEX].value[ROLL_INDEX]
-				- (2*desiredHrpyHistory[LAST_UPDATE_INDEX+1].value[ROLL_INDEX]) + desiredHrpyHistory[LAST_UPDATE_INDEX+2].value[ROLL_INDEX]) 
-				/ ((desiredHrpyHistory[LAST_UPDATE_INDEX].key - desiredHrpyHistory[LAST_UPDATE_INDEX+1].key) 
-				* (desiredHrpyHistory[LAST_UPDATE_INDEX+1].key - desiredHrpyHistory[LAST_UPDATE_INDEX+2].key));
-		errors[CmacInputParam.DESIRED_PITCH_SECOND_DERIVATIVE.index] = (desiredHrpyHistory[LAST_UPDATE_INDEX].value[PITCH_INDEX]
-				- (2*desiredHrpyHistory[LAST_UPDATE_INDEX+1].value[PITCH_INDEX]) + desiredHrpyHistory[LAST_UPDATE_INDEX+2].value[PITCH_INDEX]) 
-				/ ((desiredHrpyHistory[LAST_UPDATE_INDEX].key - desiredHrpyHistory[LAST_UPDATE_INDEX+1].key) 
-				* (desiredHrpyHistory[LAST_UPDATE_INDEX+1].key - desiredHrpyHistory[LAST_UPDATE_INDEX+2].key));
+		errors[CmacInputParam.DESIRED_ROLL_DERIVATIVE.index] = desiredTrajectory.getVelocity(ROLL_INDEX);
+		errors[CmacInputParam.DESIRED_PITCH_DERIVATIVE.index] = desiredTrajectory.getVelocity(PITCH_INDEX);
+		errors[CmacInputParam.DESIRED_ROLL_SECOND_DERIVATIVE.index] = desiredTrajectory.getAcceleration(ROLL_INDEX);
+		errors[CmacInputParam.DESIRED_PITCH_SECOND_DERIVATIVE.index] = desiredTrajectory.getAcceleration(PITCH_INDEX);
 	}
 	
 	/**
@@ -282,41 +707,37 @@ public class DataAggregator {
 	 * @param yaw
 	 */
 	private void registerCurrentRpyData(long timestamp, double roll, double pitch, double yaw) {
-		acquiredHrpyHistory[ROLL_INDEX].key = 
-				acquiredHrpyHistory[PITCH_INDEX].key = 
-				acquiredHrpyHistory[YAW_INDEX].key = timestamp;
-		
-		acquiredHrpyHistory[ROLL_INDEX].value = roll;
-		acquiredHrpyHistory[PITCH_INDEX].value = pitch;
-		acquiredHrpyHistory[YAW_INDEX].value = yaw;
+		acquiredHrpy.putLong(ACQUIRED_RPY_TIMESTAMP, timestamp);
+		acquiredHrpy.putDouble(ACQUIRED_VALUES + ROLL_INDEX, roll);
+		acquiredHrpy.putDouble(ACQUIRED_VALUES + PITCH_INDEX, pitch);
+		acquiredHrpy.putDouble(ACQUIRED_VALUES + YAW_INDEX, yaw);
 	}
 	
 	/**
 	 * This method registers the currently recorded height value.
 	 * @param timestamp
 	 * @param height
+	 * @param velocity NaN if unknown
 	 */
-	private void registerCurrentHeightDatum(long timestamp, int height) {
-		acquiredHrpyHistory[HEIGHT_INDEX].key = timestamp;
-		acquiredHrpyHistory[HEIGHT_INDEX].value = (double) height;
+	private void registerCurrentHeightDatum(long timestamp, double height, double velocity) {
+		acquiredHrpy.putLong(ACQUIRED_HEIGHT_TIMESTAMP, timestamp);
+		acquiredHrpy.putDouble(ACQUIRED_VALUES + HEIGHT_INDEX, height);
+		acquiredHrpy.putDouble(ACQUIRED_HEIGHT_VELOCITY, velocity);
 	}
 	
 	/**
-	 * This method moves the values in the desired variables from the LAST_UPDATE_INDEX
-	 * position to the PREVIOUS_TO_LAST_UPDATE_INDEX position and updates the values at the
-	 * LAST_UPDATE_INDEX.
-	 * @param height
-	 * @param roll
-	 * @param pitch
-	 * @param yaw
+	 * The desired values and durations of a batch of move commands, as they are handed from
+	 * the network communication to the control loop.
 	 */
-	private void registerDesiredVariables(double height, double roll, double pitch, double yaw) {
-		long timestamp = Calendar.getInstance().getTimeInMillis();
-		for (int i = DESIRED_DATA_HISTORY_LENGTH; i > 1; i--) {
-			desiredHrpyHistory[i-1].key = desiredHrpyHistory[i-2].key;
-			desiredHrpyHistory[i-1].value = desiredHrpyHistory[i-2].value;
+	private static class CommandBatch {
+		public long time;			//of arrival, on the clock of the phone
+		public double[] targets;	//HRPY_COUNT values per command
+		public long[] durations;	//nanoseconds
+		
+		public CommandBatch(long time, int count) {
+			this.time = time;
+			this.targets = new double[count * HRPY_COUNT];
+			this.durations = new long[count];
 		}
-		desiredHrpyHistory[LAST_UPDATE_INDEX].key = timestamp;
-		desiredHrpyHistory[LAST_UPDATE_INDEX].value = new Double[] {height, roll, pitch, yaw};
 	}
 }
@@ -0,0 +1,190 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+/**
+ * Estimates the first and second derivatives of a few channels that are sampled together,
+ * at the latest sample, by fitting a quadratic to the last samples with least squares. This
+ * is a causal Savitzky-Golay filter for samples that don't have to be evenly spaced.
+ *
+ * The fit only needs the sums of tau^k (k = 0..4) and of y * tau^k (k = 0..2) over the
+ * window, where tau is the time of a sample relative to the latest one. They are kept as
+ * running sums: when a sample arrives they are moved to the new reference time with the
+ * binomial theorem and the sample that falls out of the window is subtracted, so an update
+ * takes the same few operations whatever the size of the window. To keep the rounding errors
+ * of the running sums from adding up, they are recomputed from the window every time it
+ * has been filled again, or after a gap in the samples. Nothing allocates after construction.
+ *
+ * Samples are added like those of a {@link SensorHistory}: {@link #add(long)} and then
+ * {@link #set(int, double)} for every channel. With two samples the derivative is the slope
+ * between them and the second derivative is 0. This class is not thread safe.
+ * @author abhin
+ *
+ */
+public class DerivativeFilterBank {
+	private static final double SINGULARITY_TOLERANCE = 1e-12;
+
+	private SensorHistory window;
+	//sums of tau^k in seconds relative to the latest sample
+	private double s0, s1, s2, s3, s4;
+	//sums of y * tau^k for every channel
+	private double[] t0, t1, t2;
+	private int samplesSinceRecompute;
+
+	/**
+	 * @param channels the number of values per sample
+	 * @param windowSize the number of samples the fit is over, at least 2
+	 */
+	public DerivativeFilterBank(int channels, int windowSize) {
+		if (windowSize < 2)
+			throw new IllegalArgumentException("The window needs at least two samples");
+		this.window = new SensorHistory(channels, windowSize);
+		this.t0 = new double[channels];
+		this.t1 = new double[channels];
+		this.t2 = new double[channels];
+		clear();
+	}
+
+	public void clear() {
+		window.clear();
+		s0 = s1 = s2 = s3 = s4 = 0;
+		for (int i = 0; i < t0.length; i++)
+			t0[i] = t1[i] = t2[i] = 0;
+		samplesSinceRecompute = 0;
+	}
+
+	public int size() {
+		return window.size();
+	}
+
+	/**
+	 * Adds a sample with the given timestamp. Its values are 0 until they are set with
+	 * {@link #set(int, double)}.
+	 * @param timestamp nanoseconds, not before the latest sample
+	 */
+	public void add(long timestamp) {
+		if (window.isEmpty()) {
+			window.add(timestamp);
+			s0 = 1;
+			samplesSinceRecompute = 1;
+			return;
+		}
+		double shift = TimeBase.toSeconds(timestamp - window.getTimestamp(0));
+		//after a gap that is longer than the window, the old samples would make the sums
+		//large and lose the precision of the new ones
+		boolean gap = timestamp - window.getTimestamp(0) > window.getTimestamp(0) - window.getTimestamp(window.size() - 1);
+		if (window.size() == window.getDepth()) {
+			//the oldest sample is overwritten by add, subtract it first
+			int oldest = window.size() - 1;
+			double tau = TimeBase.toSeconds(window.getTimestamp(oldest) - window.getTimestamp(0));
+			double tau2 = tau * tau;
+			s0 -= 1;
+			s1 -= tau;
+			s2 -= tau2;
+			s3 -= tau2 * tau;
+			s4 -= tau2 * tau2;
+			for (int i = 0; i < t0.length; i++) {
+				double y = window.getValue(i, oldest);
+				t0[i] -= y;
+				t1[i] -= y * tau;
+				t2[i] -= y * tau2;
+			}
+		}
+		window.add(timestamp);
+		samplesSinceRecompute++;
+		if (gap || samplesSinceRecompute >= window.getDepth()) {
+			recompute();	//the values of the new sample are still 0
+			return;
+		}
+		//sum (tau - d)^k = sum over j of binomial(k, j) (-d)^(k-j) sum tau^j
+		double d = -shift;
+		double d2 = d * d;
+		double d3 = d2 * d;
+		s4 = s4 + 4 * d * s3 + 6 * d2 * s2 + 4 * d3 * s1 + d2 * d2 * s0;
+		s3 = s3 + 3 * d * s2 + 3 * d2 * s1 + d3 * s0;
+		s2 = s2 + 2 * d * s1 + d2 * s0;
+		s1 = s1 + d * s0;
+		for (int i = 0; i < t0.length; i++) {
+			t2[i] = t2[i] + 2 * d * t1[i] + d2 * t0[i];
+			t1[i] = t1[i] + d * t0[i];
+		}
+		//the new sample is at tau = 0, so it only adds to the zeroth sums
+		s0 += 1;
+	}
+
+	/**
+	 * Sets a value of the latest sample.
+	 */
+	public void set(int channel, double value) {
+		//the latest sample is at tau = 0
+		t0[channel] += value - window.getValue(channel, 0);
+		window.set(channel, value);
+	}
+
+	private void recompute() {
+		s0 = s1 = s2 = s3 = s4 = 0;
+		for (int i = 0; i < t0.length; i++)
+			t0[i] = t1[i] = t2[i] = 0;
+		long reference = window.getTimestamp(0);
+		for (int age = 0; age < window.size(); age++) {
+			double tau = TimeBase.toSeconds(window.getTimestamp(age) - reference);
+			double tau2 = tau * tau;
+			s0 += 1;
+			s1 += tau;
+			s2 += tau2;
+			s3 += tau2 * tau;
+			s4 += tau2 * tau2;
+			for (int i = 0; i < t0.length; i++) {
+				double y = window.getValue(i, age);
+				t0[i] += y;
+				t1[i] += y * tau;
+				t2[i] += y * tau2;
+			}
+		}
+		samplesSinceRecompute = 0;
+	}
+
+	/**
+	 * @return the first derivative per second at the latest sample, 0 with less than two
+	 * samples at different times
+	 */
+	public double getDerivative(int channel) {
+		double determinant = quadraticDeterminant();
+		if (determinant != 0) {
+			//Cramer's rule for the coefficient of tau
+			return (s0 * (t1[channel] * s4 - s3 * t2[channel])
+					- t0[channel] * (s1 * s4 - s3 * s2)
+					+ s2 * (s1 * t2[channel] - t1[channel] * s2)) / determinant;
+		}
+		double linearDeterminant = s0 * s2 - s1 * s1;
+		if (!(linearDeterminant > SINGULARITY_TOLERANCE * s0 * s2))
+			return 0;
+		return (s0 * t1[channel] - s1 * t0[channel]) / linearDeterminant;
+	}
+
+	/**
+	 * @return the second derivative per second squared at the latest sample, 0 with less
+	 * than three samples at different times
+	 */
+	public double getSecondDerivative(int channel) {
+		double determinant = quadraticDeterminant();
+		if (determinant == 0)
+			return 0;
+		//Cramer's rule for the coefficient of tau^2, which is half the second derivative
+		double c = (s0 * (s2 * t2[channel] - t1[channel] * s3)
+				- s1 * (s1 * t2[channel] - t1[channel] * s2)
+				+ t0[channel] * (s1 * s3 - s2 * s2)) / determinant;
+		return 2 * c;
+	}
+
+	/**
+	 * @return the determinant of the normal equations of the quadratic fit, 0 if they are
+	 * (nearly) singular
+	 */
+	private double quadraticDeterminant() {
+		if (window.size() < 3)
+			return 0;
+		double determinant = s0 * (s2 * s4 - s3 * s3)
+				- s1 * (s1 * s4 - s3 * s2)
+				+ s2 * (s1 * s3 - s2 * s2);
+		return (determinant > SINGULARITY_TOLERANCE * s0 * s2 * s4) ? determinant : 0;
+	}
+}
@@ -0,0 +1,231 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+/**
+ * Estimates the height and the vertical velocity of the quadrotor with a Kalman filter that
+ * fuses the sonar with the accelerometer. The state is the height (cm), the vertical velocity
+ * (cm/s) and the bias of the vertical acceleration (cm/s^2).
+ * 
+ * Every accelerometer sample propagates the state: the reading is rotated into the vertical
+ * with the roll and pitch, scaled by the magnitude of gravity (which is learnt from the
+ * readings, so the units of the accelerometer don't matter) and integrated. The sonar is
+ * slow, so in between its samples the estimate is carried on by the accelerometer. Every
+ * sonar sample corrects the estimate, after the distance along the tilted body axis has been
+ * turned into a height. The sonar readings below {@value #MIN_SONAR_HEIGHT}cm are unreliable
+ * and dropped, and so are the readings that are further from the estimate than the filter
+ * expects ({@value #OUTLIER_THRESHOLD} standard deviations). If too many readings in a row
+ * are dropped as outliers, the estimate is assumed to be wrong and starts over from the sonar.
+ * 
+ * The only nonlinearity is the rotation by the attitude, which is an input rather than part of
+ * the state, so the filter is linear in its state and no jacobians are needed. The covariance
+ * is kept in six primitive fields and nothing allocates.
+ * 
+ * The timestamps are in nanoseconds on the QCB clock (see {@link TimeBase}). This class is not
+ * thread safe.
+ * @author abhin
+ *
+ */
+public class HeightEstimator {
+	public static final double MIN_SONAR_HEIGHT = 20;		//cm
+	public static final double SONAR_NOISE = 2;				//cm, standard deviation
+	public static final double ACCEL_NOISE = 50;			//cm/s^2, standard deviation
+	public static final double ACCEL_BIAS_DRIFT = 1;		//cm/s^2 per square root of a second
+	public static final double OUTLIER_THRESHOLD = 3;		//standard deviations
+	public static final int MAX_CONSECUTIVE_OUTLIERS = 10;
+	private static final double GRAVITY = 981;				//cm/s^2
+	/**
+	 * The time constant of the average of the magnitude of the accelerometer readings, which
+	 * is taken as 1g.
+	 */
+	private static final double GRAVITY_TIME_CONSTANT = 10;	//seconds
+	/**
+	 * Intervals longer than this are not propagated (the QCB has probably been reset).
+	 */
+	private static final long MAX_INTERVAL = 500000000;		//nanoseconds
+	private static final double INITIAL_VELOCITY_VARIANCE = 100 * 100;
+	private static final double INITIAL_BIAS_VARIANCE = 50 * 50;
+
+	//the state
+	private double height, velocity, bias;
+	//the covariance of the state, symmetric
+	private double p00, p01, p02, p11, p12, p22;
+	private long timestamp;
+	private boolean initialized;
+	//the latest vertical acceleration without gravity, cm/s^2
+	private double verticalAcceleration;
+	private double gravityMagnitude;	//in the units of the accelerometer, 0 before the first reading
+	private long accelTimestamp;
+	private int consecutiveOutliers;
+	private long rejectedSamples;
+
+	public HeightEstimator() {
+		reset();
+	}
+
+	public void reset() {
+		height = velocity = bias = 0;
+		p00 = p01 = p02 = p11 = p12 = p22 = 0;
+		initialized = false;
+		verticalAcceleration = 0;
+		gravityMagnitude = 0;
+		consecutiveOutliers = 0;
+		rejectedSamples = 0;
+	}
+
+	/**
+	 * Propagates the estimate to the time of the accelerometer reading with the previous
+	 * acceleration and takes this one for the next interval.
+	 * @param roll radians
+	 * @param pitch radians
+	 */
+	public void registerAccelValues(float x, float y, float z, long timestamp, double roll, double pitch) {
+		double magnitude = Math.sqrt(x * x + y * y + z * z);
+		if (magnitude == 0)
+			return;
+		if (initialized)
+			propagate(timestamp);
+		if (gravityMagnitude == 0) {
+			gravityMagnitude = magnitude;
+		} else {
+			double interval = TimeBase.toSeconds(Math.max(0, timestamp - accelTimestamp));
+			gravityMagnitude += Math.min(1, interval / GRAVITY_TIME_CONSTANT) * (magnitude - gravityMagnitude);
+		}
+		accelTimestamp = timestamp;
+		//the specific force along the vertical of the earth frame
+		double cosPitch = Math.cos(pitch);
+		double up = -x * Math.sin(pitch) + y * Math.sin(roll) * cosPitch + z * Math.cos(roll) * cosPitch;
+		verticalAcceleration = (up / gravityMagnitude - 1) * GRAVITY;
+	}
+
+	/**
+	 * Corrects the estimate with a reading of the sonar.
+	 * @param distance cm, along the z axis of the quadrotor
+	 * @param roll radians
+	 * @param pitch radians
+	 * @return false if the reading was dropped
+	 */
+	public boolean registerSonarHeight(double distance, long timestamp, double roll, double pitch) {
+		double measurement = distance * Math.cos(roll) * Math.cos(pitch);
+		if (!(distance >= MIN_SONAR_HEIGHT) || Double.isInfinite(distance)) {
+			rejectedSamples++;
+			return false;
+		}
+		if (!initialized) {
+			start(measurement, timestamp);
+			return true;
+		}
+		propagate(timestamp);
+		double innovation = measurement - height;
+		double innovationVariance = p00 + SONAR_NOISE * SONAR_NOISE;
+		if (innovation * innovation > OUTLIER_THRESHOLD * OUTLIER_THRESHOLD * innovationVariance) {
+			rejectedSamples++;
+			if (++consecutiveOutliers >= MAX_CONSECUTIVE_OUTLIERS)
+				start(measurement, timestamp);
+			return false;
+		}
+		consecutiveOutliers = 0;
+		double k0 = p00 / innovationVariance;
+		double k1 = p01 / innovationVariance;
+		double k2 = p02 / innovationVariance;
+		height += k0 * innovation;
+		velocity += k1 * innovation;
+		bias += k2 * innovation;
+		//P = (I - K H) P, with H = [1 0 0]
+		double q00 = p00, q01 = p01, q02 = p02;
+		p00 -= k0 * q00;
+		p01 -= k0 * q01;
+		p02 -= k0 * q02;
+		p11 -= k1 * q01;
+		p12 -= k1 * q02;
+		p22 -= k2 * q02;
+		return true;
+	}
+
+	private void start(double measurement, long timestamp) {
+		height = measurement;
+		velocity = 0;
+		bias = 0;
+		p00 = SONAR_NOISE * SONAR_NOISE;
+		p11 = INITIAL_VELOCITY_VARIANCE;
+		p22 = INITIAL_BIAS_VARIANCE;
+		p01 = p02 = p12 = 0;
+		this.timestamp = timestamp;
+		initialized = true;
+		consecutiveOutliers = 0;
+	}
+
+	/**
+	 * Integrates the state up to the given time with the latest vertical acceleration.
+	 */
+	private void propagate(long time) {
+		long interval = time - timestamp;
+		if (interval <= 0)
+			return;	//late samples are applied to the current estimate
+		timestamp = time;
+		if (interval > MAX_INTERVAL)
+			return;
+		double dt = TimeBase.toSeconds(interval);
+		double dt2 = dt * dt;
+		double acceleration = verticalAcceleration - bias;
+		height += velocity * dt + 0.5 * acceleration * dt2;
+		velocity += acceleration * dt;
+
+		//P = F P F' + Q with F = [1 dt -dt^2/2; 0 1 -dt; 0 0 1]
+		double halfDt2 = 0.5 * dt2;
+		double a00 = p00 + dt * p01 - halfDt2 * p02;
+		double a01 = p01 + dt * p11 - halfDt2 * p12;
+		double a02 = p02 + dt * p12 - halfDt2 * p22;
+		double a11 = p11 - dt * p12;
+		double a12 = p12 - dt * p22;
+		double n00 = a00 + dt * a01 - halfDt2 * a02;
+		double n01 = a01 - dt * a02;
+		double n11 = a11 - dt * a12;
+		//the noise of the acceleration enters through G = [dt^2/2 dt 0]'
+		double accelVariance = ACCEL_NOISE * ACCEL_NOISE;
+		p00 = n00 + halfDt2 * halfDt2 * accelVariance;
+		p01 = n01 + halfDt2 * dt * accelVariance;
+		p02 = a02;
+		p11 = n11 + dt2 * accelVariance;
+		p12 = a12;
+		p22 = p22 + ACCEL_BIAS_DRIFT * ACCEL_BIAS_DRIFT * dt;
+	}
+
+	/**
+	 * @return true once the sonar has given a reliable reading
+	 */
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	public double getHeight() {
+		return height;
+	}
+
+	public double getVelocity() {
+		return velocity;
+	}
+
+	public double getAccelBias() {
+		return bias;
+	}
+
+	/**
+	 * @return the standard deviation of the height
+	 */
+	public double getHeightDeviation() {
+		return Math.sqrt(p00);
+	}
+
+	/**
+	 * @return the time that the estimate is for
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the number of sonar readings that have been dropped
+	 */
+	public long getRejectedSamples() {
+		return rejectedSamples;
+	}
+}
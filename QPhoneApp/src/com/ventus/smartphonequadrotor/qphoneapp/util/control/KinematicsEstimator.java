@@ -1,65 +1,156 @@
 package com.ventus.smartphonequadrotor.qphoneapp.util.control;
 
-import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
-
 /**
  * This class receives the raw outputs from the accelerometer, magnetometer and
  * gyroscope onboard the quadrotor. It then uses these raw values to get better
- * estimates of the tilt and displacement of the quadrotor.
+ * estimates of the tilt of the quadrotor.
+ * 
+ * For estimating the tilt from the three sensors, it uses a simple complementary filter
+ * like the one described by equations 17-19 of the main-paper: the angles are integrated from
+ * the gyroscope, and pulled towards the roll and pitch of the accelerometer and the yaw of the
+ * magnetometer at the rate {@link #DRIFT_CORRECTION_GAIN} to correct the drift of the
+ * integration. The gyroscope is trusted for the quick changes and the other two sensors for
+ * the slow ones.
  * 
- * For estimating the tilt from the three sensors, it uses a simple filter described
- * by equations 17-19 of the main-paper.
+ * The accelerometer measures +1g along z when the quadrotor is level, x points forward and
+ * y to the right. The yaw from the magnetometer is tilt compensated with the estimated roll
+ * and pitch.
  * 
- * For estimating the translational motion (displacement) of the quadrotor, it uses simple
- * double-integration of the accelerometer values projected onto the earth-frame using the 
- * angles computed by the tilt filter.
+ * Everything is kept in primitive fields; registering a sample doesn't allocate.
+ * 
+ * Only the attitude is estimated. The accelerometer is taken to measure gravity alone, so
+ * while the quadrotor accelerates its roll and pitch are pulled off by the acceleration.
  * @author abhin
- * @deprecated The kinematics estimator is not required because the phone receives pre-filtered values
  */
-public class KinematicsEstimator {
+public class KinematicsEstimator implements AttitudeEstimator {
 	/**
-	 * This enum contains the indexes for the various matrices that will contain
-	 * euler angles.
-	 * @author abhin
-	 *
+	 * The rate (per second) at which the estimate is pulled towards the angles from the
+	 * accelerometer and the magnetometer. Its inverse is the time constant of the filter.
 	 */
-	public enum AngleIndex {
-		ROLL(0), PITCH(1), YAW(2);
-		public int index;
-		AngleIndex(int index) {
-			this.index = index;
-		}
-	}
-	
 	private static final float DRIFT_CORRECTION_GAIN = 0.5f;
+	/**
+	 * Gyroscope samples that are further apart than this are not integrated (the QCB has
+	 * probably been reset).
+	 */
+	private static final long MAX_GYRO_INTERVAL = 500000000;	//nanoseconds
+	private static final double MIN_COS_PITCH = 1e-3;
 	
-	private SimpleMatrix driftCorrectionAngles;
-	private SimpleMatrix previousEstimate;
-	private SimpleMatrix currentEstimate;
-	
+	//the estimate
+	private double roll, pitch, yaw;
+	private boolean initialized;
+	//the angles that correct the drift
+	private double accelRoll, accelPitch;
+	private double magX, magY, magZ;
+	private boolean hasMag;
 	private long previousGyroTimestamp;
+	private boolean hasGyro;
 
 	public KinematicsEstimator() {
-		driftCorrectionAngles = SimpleMatrix.zeros(3, 1);
-		previousEstimate = SimpleMatrix.zeros(3, 1);
-		currentEstimate = SimpleMatrix.zeros(3, 1);
-		previousGyroTimestamp = 0L;
+		reset();
+	}
+	
+	public void reset() {
+		roll = pitch = yaw = 0;
+		initialized = false;
+		hasMag = false;
+		hasGyro = false;
 	}
 	
-	public void registerAccelValues(int x, int y, int z, long timestamp) {
+	public void registerAccelValues(float x, float y, float z, long timestamp) {
+		if (x == 0 && y == 0 && z == 0)
+			return;
 		//figure out the roll and pitch
-		driftCorrectionAngles.set(AngleIndex.ROLL.index, Math.atan2(z, y));
-		driftCorrectionAngles.set(AngleIndex.PITCH.index, Math.atan2(x, z));
-		
-		//TODO : translation motion
+		accelRoll = Math.atan2(y, z);
+		accelPitch = Math.atan2(-x, Math.sqrt(y * y + z * z));
+		if (!initialized) {
+			roll = accelRoll;
+			pitch = accelPitch;
+			if (hasMag)
+				yaw = magneticYaw();
+			initialized = true;
+		}
 	}
 	
-	public void registerGyroValues(int x, int y, int z, long timestamp) {
+	public void registerGyroValues(float x, float y, float z, long timestamp) {
+		long interval = timestamp - previousGyroTimestamp;
+		previousGyroTimestamp = timestamp;
+		if (!hasGyro || interval <= 0 || interval > MAX_GYRO_INTERVAL) {
+			hasGyro = true;
+			return;
+		}
+		double dt = TimeBase.toSeconds(interval);
 		
+		//the rates of the euler angles from the body rates
+		double sinRoll = Math.sin(roll);
+		double cosRoll = Math.cos(roll);
+		double cosPitch = Math.cos(pitch);
+		if (Math.abs(cosPitch) < MIN_COS_PITCH)
+			cosPitch = (cosPitch < 0) ? -MIN_COS_PITCH : MIN_COS_PITCH;
+		double yawComponent = y * sinRoll + z * cosRoll;
+		roll += (x + yawComponent * Math.sin(pitch) / cosPitch) * dt;
+		pitch += (y * cosRoll - z * sinRoll) * dt;
+		yaw += yawComponent / cosPitch * dt;
+		
+		if (initialized) {
+			double gain = Math.min(1, DRIFT_CORRECTION_GAIN * dt);
+			roll += gain * wrap(accelRoll - roll);
+			pitch += gain * (accelPitch - pitch);
+			if (hasMag)
+				yaw += gain * wrap(magneticYaw() - yaw);
+		}
+		roll = wrap(roll);
+		pitch = wrap(pitch);
+		yaw = wrap(yaw);
+	}
+	
+	public void registerMagValues(float x, float y, float z, long timestamp) {
+		if (x == 0 && y == 0 && z == 0)
+			return;
+		magX = x;
+		magY = y;
+		magZ = z;
+		if (!hasMag && initialized)
+			yaw = magneticYaw();
+		hasMag = true;
+	}
+	
+	/**
+	 * @return the yaw of the last magnetometer values, tilt compensated with the estimated
+	 * roll and pitch
+	 */
+	private double magneticYaw() {
+		double sinRoll = Math.sin(roll);
+		double cosRoll = Math.cos(roll);
+		double sinPitch = Math.sin(pitch);
+		double cosPitch = Math.cos(pitch);
+		return Math.atan2(
+			magZ * sinRoll - magY * cosRoll,
+			magX * cosPitch + magY * sinPitch * sinRoll + magZ * sinPitch * cosRoll
+		);
+	}
+	
+	/**
+	 * @return the angle in [-pi, pi]
+	 */
+	static double wrap(double angle) {
+		if (angle > Math.PI || angle < -Math.PI)
+			angle -= 2 * Math.PI * Math.floor((angle + Math.PI) / (2 * Math.PI));
+		return angle;
+	}
+	
+	public boolean isInitialized() {
+		return initialized;
+	}
+	
+	public double getRoll() {
+		return roll;
+	}
+	
+	public double getPitch() {
+		return pitch;
 	}
 	
-	public void registerMagValues(int x, int y, int z, long timestamp) {
-		//figure out the yaw
-		driftCorrectionAngles.set(AngleIndex.YAW.index, Math.atan2(y, x));
+	public double getYaw() {
+		return yaw;
 	}
 }
@@ -0,0 +1,289 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+/**
+ * Calibrates the magnetometer online against the hard iron (a constant offset from the
+ * magnetized parts near it) and the soft iron (the distortion by the metal around it, which
+ * turns the sphere of the readings into an ellipsoid).
+ *
+ * Every sample adds to the {@link NormalEquations} of a linear least squares fit of the
+ * quadric
+ * <pre>
+ * a x^2 + b y^2 + c z^2 + 2d xy + 2e xz + 2f yz + 2g x + 2h y + 2i z = 1
+ * </pre>
+ * to the readings (9x9), which costs a constant 54 multiply-adds. Every
+ * {@value #SOLVE_INTERVAL} samples, the normal equations are solved and the ellipsoid is
+ * turned into an offset and a symmetric matrix that maps it back onto a sphere, with the
+ * radius of the geometric mean of its axes so that the readings keep their units. Correcting
+ * a reading is then a subtraction and a 3x3 multiplication.
+ *
+ * A fit of the whole ellipsoid needs readings from all around it: as long as the readings
+ * don't span enough of every axis (the quadrotor has to be turned around by hand once), or if
+ * the fit is not an ellipsoid that could come from a real sensor, the previous calibration is
+ * kept (none at first, which leaves the readings as they are).
+ *
+ * Nothing allocates after the constructor. This class is not thread safe.
+ * @author abhin
+ *
+ */
+public class MagnetometerCalibrator {
+	public static final int SOLVE_INTERVAL = 250;	//samples
+	public static final int MIN_SAMPLES = 500;
+	/**
+	 * The readings have to span this much of every axis, as a fraction of the magnitude of
+	 * the first reading (the whole sphere spans 2).
+	 */
+	public static final double MIN_COVERAGE = 1;
+	/**
+	 * The ratio of the longest to the shortest axis of the ellipsoid, beyond which the fit is
+	 * assumed to be wrong.
+	 */
+	public static final double MAX_AXIS_RATIO = 3;
+	private static final int TERMS = 9;
+	private static final double MIN_DETERMINANT = 1e-12;
+	private static final int JACOBI_SWEEPS = 10;
+
+	//of the readings divided by scale
+	private NormalEquations fit;
+	private double scale;	//0 before the first reading
+	private double[] minimum;
+	private double[] maximum;
+	private int samplesSinceSolve;
+
+	//the calibration
+	private boolean calibrated;
+	private double offsetX, offsetY, offsetZ;
+	private double[] softIron;	//3x3, row major
+
+	//work arrays of the solve
+	private double[] terms;
+	private double[] solution;
+	private double[] matrix;	//3x3
+	private double[] eigenvalues;
+	private double[] eigenvectors;	//3x3, the vectors in the columns
+
+	public MagnetometerCalibrator() {
+		fit = new NormalEquations(TERMS);
+		minimum = new double[3];
+		maximum = new double[3];
+		softIron = new double[9];
+		terms = new double[TERMS];
+		solution = new double[TERMS];
+		matrix = new double[9];
+		eigenvalues = new double[3];
+		eigenvectors = new double[9];
+		reset();
+	}
+
+	/**
+	 * Forgets the readings and the calibration.
+	 */
+	public void reset() {
+		fit.clear();
+		scale = 0;
+		samplesSinceSolve = 0;
+		calibrated = false;
+		offsetX = offsetY = offsetZ = 0;
+		clear(softIron);
+		softIron[0] = softIron[4] = softIron[8] = 1;
+	}
+
+	private static void clear(double[] array) {
+		for (int i = 0; i < array.length; i++)
+			array[i] = 0;
+	}
+
+	/**
+	 * Adds a raw reading to the fit, and solves the fit if it is due.
+	 */
+	public void add(float x, float y, float z) {
+		if (scale == 0) {
+			scale = Math.sqrt(x * x + y * y + z * z);
+			if (scale == 0)
+				return;
+			minimum[0] = maximum[0] = x / scale;
+			minimum[1] = maximum[1] = y / scale;
+			minimum[2] = maximum[2] = z / scale;
+		}
+		double u = x / scale, v = y / scale, w = z / scale;
+		terms[0] = u * u;
+		terms[1] = v * v;
+		terms[2] = w * w;
+		terms[3] = 2 * u * v;
+		terms[4] = 2 * u * w;
+		terms[5] = 2 * v * w;
+		terms[6] = 2 * u;
+		terms[7] = 2 * v;
+		terms[8] = 2 * w;
+		fit.add(terms, 1);
+		updateRange(0, u);
+		updateRange(1, v);
+		updateRange(2, w);
+		if (++samplesSinceSolve >= SOLVE_INTERVAL) {
+			samplesSinceSolve = 0;
+			solve();
+		}
+	}
+
+	private void updateRange(int axis, double value) {
+		if (value < minimum[axis])
+			minimum[axis] = value;
+		if (value > maximum[axis])
+			maximum[axis] = value;
+	}
+
+	/**
+	 * Fits the ellipsoid to the readings so far. This is done every {@value #SOLVE_INTERVAL}
+	 * samples by {@link #add(float, float, float)}.
+	 * @return true if the calibration was updated
+	 */
+	public boolean solve() {
+		if (fit.getSamples() < MIN_SAMPLES)
+			return false;
+		for (int axis = 0; axis < 3; axis++) {
+			if (maximum[axis] - minimum[axis] < MIN_COVERAGE)
+				return false;
+		}
+		if (!fit.solve(solution))
+			return false;
+
+		//the quadric is x'Ax + 2b'x = 1 with the center c = -inv(A) b, so that
+		//(x - c)'A(x - c) = 1 + c'Ac
+		double[] a = matrix;
+		a[0] = solution[0];
+		a[4] = solution[1];
+		a[8] = solution[2];
+		a[1] = a[3] = solution[3];
+		a[2] = a[6] = solution[4];
+		a[5] = a[7] = solution[5];
+		double cofactor00 = a[4] * a[8] - a[5] * a[7];
+		double cofactor01 = a[5] * a[6] - a[3] * a[8];
+		double cofactor02 = a[3] * a[7] - a[4] * a[6];
+		double determinant = a[0] * cofactor00 + a[1] * cofactor01 + a[2] * cofactor02;
+		if (!(Math.abs(determinant) > MIN_DETERMINANT))
+			return false;
+		double cofactor11 = a[0] * a[8] - a[2] * a[6];
+		double cofactor12 = a[2] * a[3] - a[0] * a[5];
+		double cofactor22 = a[0] * a[4] - a[1] * a[3];
+		//inv(A) is the symmetric matrix of the cofactors over the determinant
+		double g = solution[6], h = solution[7], i = solution[8];
+		double centerX = -(cofactor00 * g + cofactor01 * h + cofactor02 * i) / determinant;
+		double centerY = -(cofactor01 * g + cofactor11 * h + cofactor12 * i) / determinant;
+		double centerZ = -(cofactor02 * g + cofactor12 * h + cofactor22 * i) / determinant;
+		double k = 1 - (g * centerX + h * centerY + i * centerZ);	//1 + c'Ac, as Ac = -b
+		if (!(k > 0))
+			return false;
+		for (int j = 0; j < 9; j++)
+			a[j] /= k;
+
+		//the axes of the ellipsoid are 1 / sqrt of the eigenvalues
+		jacobi(a, eigenvalues, eigenvectors);
+		double smallest = Math.min(eigenvalues[0], Math.min(eigenvalues[1], eigenvalues[2]));
+		double largest = Math.max(eigenvalues[0], Math.max(eigenvalues[1], eigenvalues[2]));
+		if (!(smallest > 0) || largest / smallest > MAX_AXIS_RATIO * MAX_AXIS_RATIO)
+			return false;
+		//sqrt(A) maps the ellipsoid onto the unit sphere, the radius brings it back to the units
+		double radius = Math.pow(eigenvalues[0] * eigenvalues[1] * eigenvalues[2], -1.0 / 6);
+		for (int row = 0; row < 3; row++) {
+			for (int column = 0; column < 3; column++) {
+				double sum = 0;
+				for (int j = 0; j < 3; j++)
+					sum += eigenvectors[row * 3 + j] * Math.sqrt(eigenvalues[j]) * eigenvectors[column * 3 + j];
+				softIron[row * 3 + column] = radius * sum;
+			}
+		}
+		offsetX = centerX * scale;
+		offsetY = centerY * scale;
+		offsetZ = centerZ * scale;
+		calibrated = true;
+		return true;
+	}
+
+	/**
+	 * Diagonalizes a symmetric 3x3 matrix with Jacobi rotations. The matrix is destroyed.
+	 * @param eigenvectors the vectors go into the columns
+	 */
+	private static void jacobi(double[] matrix, double[] eigenvalues, double[] eigenvectors) {
+		clear(eigenvectors);
+		eigenvectors[0] = eigenvectors[4] = eigenvectors[8] = 1;
+		for (int sweep = 0; sweep < JACOBI_SWEEPS; sweep++) {
+			double offDiagonal = Math.abs(matrix[1]) + Math.abs(matrix[2]) + Math.abs(matrix[5]);
+			if (offDiagonal == 0)
+				break;
+			for (int p = 0; p < 2; p++) {
+				for (int q = p + 1; q < 3; q++) {
+					double apq = matrix[p * 3 + q];
+					if (apq == 0)
+						continue;
+					double app = matrix[p * 3 + p];
+					double aqq = matrix[q * 3 + q];
+					double theta = (aqq - app) / (2 * apq);
+					double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+					if (theta == 0)
+						t = 1;
+					double c = 1 / Math.sqrt(t * t + 1);
+					double s = t * c;
+					//A = J'AJ, with the rotation J in the plane of p and q
+					for (int r = 0; r < 3; r++) {
+						double arp = matrix[r * 3 + p];
+						double arq = matrix[r * 3 + q];
+						matrix[r * 3 + p] = c * arp - s * arq;
+						matrix[r * 3 + q] = s * arp + c * arq;
+					}
+					for (int r = 0; r < 3; r++) {
+						double apr = matrix[p * 3 + r];
+						double aqr = matrix[q * 3 + r];
+						matrix[p * 3 + r] = c * apr - s * aqr;
+						matrix[q * 3 + r] = s * apr + c * aqr;
+					}
+					for (int r = 0; r < 3; r++) {
+						double vrp = eigenvectors[r * 3 + p];
+						double vrq = eigenvectors[r * 3 + q];
+						eigenvectors[r * 3 + p] = c * vrp - s * vrq;
+						eigenvectors[r * 3 + q] = s * vrp + c * vrq;
+					}
+				}
+			}
+		}
+		for (int i = 0; i < 3; i++)
+			eigenvalues[i] = matrix[i * 3 + i];
+	}
+
+	/**
+	 * Corrects a raw reading with the current calibration.
+	 * @param corrected the x, y and z of the corrected reading go into its first three elements
+	 */
+	public void correct(float x, float y, float z, float[] corrected) {
+		double u = x - offsetX, v = y - offsetY, w = z - offsetZ;
+		double[] m = softIron;
+		corrected[0] = (float) (m[0] * u + m[1] * v + m[2] * w);
+		corrected[1] = (float) (m[3] * u + m[4] * v + m[5] * w);
+		corrected[2] = (float) (m[6] * u + m[7] * v + m[8] * w);
+	}
+
+	/**
+	 * @return true once a fit has succeeded
+	 */
+	public boolean isCalibrated() {
+		return calibrated;
+	}
+
+	public long getSamples() {
+		return fit.getSamples();
+	}
+
+	/**
+	 * @param offset the hard iron offset goes into its first three elements
+	 */
+	public void getOffset(double[] offset) {
+		offset[0] = offsetX;
+		offset[1] = offsetY;
+		offset[2] = offsetZ;
+	}
+
+	/**
+	 * @param matrix the soft iron correction goes into its first nine elements, row major
+	 */
+	public void getSoftIron(double[] matrix) {
+		System.arraycopy(softIron, 0, matrix, 0, 9);
+	}
+}
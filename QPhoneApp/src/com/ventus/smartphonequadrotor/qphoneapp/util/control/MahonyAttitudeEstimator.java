@@ -0,0 +1,196 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+/**
+ * An attitude estimator that keeps the attitude as a unit quaternion, so unlike the euler
+ * angles of the {@link KinematicsEstimator} it has no singularity at a pitch of +-pi/2. It is
+ * the nonlinear complementary filter of Mahony et al.: the error between the directions of
+ * gravity and of the magnetic field that the quaternion predicts and the ones that the
+ * accelerometer and the magnetometer measure is fed back into the gyroscope rates, through a
+ * proportional gain and an integral gain (which learns the gyroscope bias). The horizontal
+ * direction of the magnetic field is taken from the measurement itself, so the inclination of
+ * the field doesn't have to be known.
+ * 
+ * The filter runs on every gyroscope sample with the latest accelerometer and magnetometer
+ * values; everything is kept in primitive fields and a sample doesn't allocate. The euler
+ * angles are only computed when they are asked for.
+ * @author abhin
+ *
+ */
+public class MahonyAttitudeEstimator implements AttitudeEstimator {
+	/**
+	 * The proportional gain of the feedback, per second.
+	 */
+	public static final double PROPORTIONAL_GAIN = 1.0;
+	/**
+	 * The integral gain of the feedback, per second squared.
+	 */
+	public static final double INTEGRAL_GAIN = 0.05;
+	/**
+	 * Gyroscope samples that are further apart than this are not integrated (the QCB has
+	 * probably been reset).
+	 */
+	private static final long MAX_GYRO_INTERVAL = 500000000;	//nanoseconds
+	
+	//the attitude, the rotation from the body frame to the earth frame
+	private double q0, q1, q2, q3;
+	private boolean initialized;
+	//the integral of the error, the estimated gyroscope bias (with the opposite sign)
+	private double integralX, integralY, integralZ;
+	//the latest normalized measurements
+	private double accelX, accelY, accelZ;
+	private double magX, magY, magZ;
+	private boolean hasMag;
+	private long previousGyroTimestamp;
+	private boolean hasGyro;
+	
+	public MahonyAttitudeEstimator() {
+		reset();
+	}
+	
+	public void reset() {
+		q0 = 1;
+		q1 = q2 = q3 = 0;
+		integralX = integralY = integralZ = 0;
+		initialized = false;
+		hasMag = false;
+		hasGyro = false;
+	}
+	
+	public void registerAccelValues(float x, float y, float z, long timestamp) {
+		double norm = Math.sqrt(x * x + y * y + z * z);
+		if (norm == 0)
+			return;
+		accelX = x / norm;
+		accelY = y / norm;
+		accelZ = z / norm;
+		if (!initialized) {
+			initializeAttitude();
+			initialized = true;
+		}
+	}
+	
+	public void registerMagValues(float x, float y, float z, long timestamp) {
+		double norm = Math.sqrt(x * x + y * y + z * z);
+		if (norm == 0)
+			return;
+		magX = x / norm;
+		magY = y / norm;
+		magZ = z / norm;
+		boolean first = !hasMag;
+		hasMag = true;
+		if (first && initialized)
+			initializeAttitude();
+	}
+	
+	/**
+	 * Sets the attitude from the accelerometer and the magnetometer alone, so that the filter
+	 * doesn't have to converge from level.
+	 */
+	private void initializeAttitude() {
+		double roll = Math.atan2(accelY, accelZ);
+		double pitch = Math.atan2(-accelX, Math.sqrt(accelY * accelY + accelZ * accelZ));
+		double yaw = 0;
+		if (hasMag) {
+			double sinRoll = Math.sin(roll);
+			double cosRoll = Math.cos(roll);
+			double sinPitch = Math.sin(pitch);
+			double cosPitch = Math.cos(pitch);
+			yaw = Math.atan2(
+				magZ * sinRoll - magY * cosRoll,
+				magX * cosPitch + magY * sinPitch * sinRoll + magZ * sinPitch * cosRoll
+			);
+		}
+		//q = qz(yaw) qy(pitch) qx(roll)
+		double cr = Math.cos(roll / 2), sr = Math.sin(roll / 2);
+		double cp = Math.cos(pitch / 2), sp = Math.sin(pitch / 2);
+		double cy = Math.cos(yaw / 2), sy = Math.sin(yaw / 2);
+		q0 = cy * cp * cr + sy * sp * sr;
+		q1 = cy * cp * sr - sy * sp * cr;
+		q2 = cy * sp * cr + sy * cp * sr;
+		q3 = sy * cp * cr - cy * sp * sr;
+	}
+	
+	public void registerGyroValues(float x, float y, float z, long timestamp) {
+		long interval = timestamp - previousGyroTimestamp;
+		previousGyroTimestamp = timestamp;
+		if (!hasGyro || interval <= 0 || interval > MAX_GYRO_INTERVAL) {
+			hasGyro = true;
+			return;
+		}
+		double dt = TimeBase.toSeconds(interval);
+		double gx = x, gy = y, gz = z;
+		
+		if (initialized) {
+			//half the direction of gravity that the quaternion predicts in the body frame
+			double halfVx = q1 * q3 - q0 * q2;
+			double halfVy = q0 * q1 + q2 * q3;
+			double halfVz = q0 * q0 - 0.5 + q3 * q3;
+			//the error is the cross product of the measured and the predicted directions
+			double halfEx = accelY * halfVz - accelZ * halfVy;
+			double halfEy = accelZ * halfVx - accelX * halfVz;
+			double halfEz = accelX * halfVy - accelY * halfVx;
+			if (hasMag) {
+				//the field in the earth frame, rotated into the vertical plane of north
+				double hx = 2 * (magX * (0.5 - q2 * q2 - q3 * q3) + magY * (q1 * q2 - q0 * q3) + magZ * (q1 * q3 + q0 * q2));
+				double hy = 2 * (magX * (q1 * q2 + q0 * q3) + magY * (0.5 - q1 * q1 - q3 * q3) + magZ * (q2 * q3 - q0 * q1));
+				double bx = Math.sqrt(hx * hx + hy * hy);
+				double bz = 2 * (magX * (q1 * q3 - q0 * q2) + magY * (q2 * q3 + q0 * q1) + magZ * (0.5 - q1 * q1 - q2 * q2));
+				//half the direction of the field that the quaternion predicts in the body frame
+				double halfWx = bx * (0.5 - q2 * q2 - q3 * q3) + bz * (q1 * q3 - q0 * q2);
+				double halfWy = bx * (q1 * q2 - q0 * q3) + bz * (q0 * q1 + q2 * q3);
+				double halfWz = bx * (q0 * q2 + q1 * q3) + bz * (0.5 - q1 * q1 - q2 * q2);
+				halfEx += magY * halfWz - magZ * halfWy;
+				halfEy += magZ * halfWx - magX * halfWz;
+				halfEz += magX * halfWy - magY * halfWx;
+			}
+			integralX += 2 * INTEGRAL_GAIN * halfEx * dt;
+			integralY += 2 * INTEGRAL_GAIN * halfEy * dt;
+			integralZ += 2 * INTEGRAL_GAIN * halfEz * dt;
+			gx += integralX + 2 * PROPORTIONAL_GAIN * halfEx;
+			gy += integralY + 2 * PROPORTIONAL_GAIN * halfEy;
+			gz += integralZ + 2 * PROPORTIONAL_GAIN * halfEz;
+		}
+		
+		//integrate the rate of change of the quaternion, q' = q * (0, g) / 2
+		gx *= 0.5 * dt;
+		gy *= 0.5 * dt;
+		gz *= 0.5 * dt;
+		double a = q0, b = q1, c = q2;
+		q0 += -b * gx - c * gy - q3 * gz;
+		q1 += a * gx + c * gz - q3 * gy;
+		q2 += a * gy - b * gz + q3 * gx;
+		q3 += a * gz + b * gy - c * gx;
+		double norm = Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+		q0 /= norm;
+		q1 /= norm;
+		q2 /= norm;
+		q3 /= norm;
+	}
+	
+	public boolean isInitialized() {
+		return initialized;
+	}
+	
+	public double getRoll() {
+		return Math.atan2(2 * (q0 * q1 + q2 * q3), 1 - 2 * (q1 * q1 + q2 * q2));
+	}
+	
+	public double getPitch() {
+		double sinPitch = 2 * (q0 * q2 - q3 * q1);
+		return Math.asin(Math.max(-1, Math.min(1, sinPitch)));
+	}
+	
+	public double getYaw() {
+		return Math.atan2(2 * (q0 * q3 + q1 * q2), 1 - 2 * (q2 * q2 + q3 * q3));
+	}
+	
+	/**
+	 * Copies the attitude quaternion (w, x, y, z) into the array.
+	 */
+	public void getQuaternion(double[] quaternion) {
+		quaternion[0] = q0;
+		quaternion[1] = q1;
+		quaternion[2] = q2;
+		quaternion[3] = q3;
+	}
+}
@@ -77,11 +77,20 @@ public class MotorModel {
 	 * @return
 	 */
 	public static byte[] motorRpsToQcfpValues(SimpleMatrix rps) {
+		byte[] qcfpValues = new byte[NUMBER_OF_MOTORS];
+		motorRpsToQcfpValues(rps, qcfpValues);
+		return qcfpValues;
+	}
+	
+	/**
+	 * Like {@link #motorRpsToQcfpValues(SimpleMatrix)}, into an array of the caller.
+	 * @param rps
+	 * @param qcfpValues the values go into its first {@value #NUMBER_OF_MOTORS} elements
+	 */
+	public static void motorRpsToQcfpValues(SimpleMatrix rps, byte[] qcfpValues) {
 		if (rps.getNumElements() != NUMBER_OF_MOTORS)
 			throw new IllegalArgumentException("The number of motors is not correct");
 		
-		byte[] qcfpValues = new byte[NUMBER_OF_MOTORS];
-		
 		for (int i = 0; i < NUMBER_OF_MOTORS; i++) {
 			if (i < 3) {
 				qcfpValues[i] = getQcfpByteFromDutyCycle(motor123RpsToDutyCycle(rps.get(i)));
@@ -95,7 +104,5 @@ public class MotorModel {
 			if (qcfpValues[i] > MAX_QCFP_MOTOR_SPEED)
 				qcfpValues[i] = MAX_QCFP_MOTOR_SPEED;
 		}
-		
-		return qcfpValues;
 	}
 }
@@ -0,0 +1,113 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+/**
+ * The normal equations of a linear least squares fit that grows one sample at a time: every
+ * sample adds its terms to the upper triangle of the sums of their products and to the sums
+ * of the terms times the right hand side, so an update costs the same no matter how many
+ * samples came before. The fit is solved by gaussian elimination with partial pivoting.
+ *
+ * Nothing allocates after the constructor. This class is not thread safe.
+ * @author abhin
+ *
+ */
+class NormalEquations {
+	private static final double MIN_PIVOT = 1e-12;	//relative to the largest diagonal element
+
+	private int size;
+	private double[] products;	//the upper triangle, row by row
+	private double[] sums;
+	private long samples;
+	private double[] system;	//size x (size + 1), row major
+
+	/**
+	 * @param size the number of terms (and of unknowns)
+	 */
+	public NormalEquations(int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("The fit needs at least one term");
+		this.size = size;
+		this.products = new double[size * (size + 1) / 2];
+		this.sums = new double[size];
+		this.system = new double[size * (size + 1)];
+	}
+
+	public void clear() {
+		for (int i = 0; i < products.length; i++)
+			products[i] = 0;
+		for (int i = 0; i < size; i++)
+			sums[i] = 0;
+		samples = 0;
+	}
+
+	/**
+	 * Adds a sample: the fit tries to make the dot product of the terms and the solution
+	 * equal to the right hand side.
+	 * @param terms of at least the size of the fit
+	 */
+	public void add(double[] terms, double rightHandSide) {
+		int k = 0;
+		for (int i = 0; i < size; i++) {
+			double term = terms[i];
+			sums[i] += term * rightHandSide;
+			for (int j = i; j < size; j++)
+				products[k++] += term * terms[j];
+		}
+		samples++;
+	}
+
+	public long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @param solution of at least the size of the fit
+	 * @return false if the equations are singular, in which case the solution is undefined
+	 */
+	public boolean solve(double[] solution) {
+		int width = size + 1;
+		int k = 0;
+		for (int i = 0; i < size; i++) {
+			for (int j = i; j < size; j++) {
+				system[i * width + j] = products[k];
+				system[j * width + i] = products[k];
+				k++;
+			}
+			system[i * width + size] = sums[i];
+		}
+		double tolerance = 0;
+		for (int i = 0; i < size; i++)
+			tolerance = Math.max(tolerance, Math.abs(system[i * width + i]));
+		tolerance *= MIN_PIVOT;
+
+		for (int column = 0; column < size; column++) {
+			int pivot = column;
+			for (int row = column + 1; row < size; row++) {
+				if (Math.abs(system[row * width + column]) > Math.abs(system[pivot * width + column]))
+					pivot = row;
+			}
+			if (!(Math.abs(system[pivot * width + column]) > tolerance))
+				return false;
+			if (pivot != column) {
+				for (int j = column; j < width; j++) {
+					double swap = system[column * width + j];
+					system[column * width + j] = system[pivot * width + j];
+					system[pivot * width + j] = swap;
+				}
+			}
+			for (int row = column + 1; row < size; row++) {
+				double factor = system[row * width + column] / system[column * width + column];
+				if (factor == 0)
+					continue;
+				for (int j = column; j < width; j++)
+					system[row * width + j] -= factor * system[column * width + j];
+			}
+		}
+		for (int row = size - 1; row >= 0; row--) {
+			double sum = system[row * width + size];
+			for (int j = row + 1; j < size; j++)
+				sum -= system[row * width + j] * solution[j];
+			solution[row] = sum / system[row * width + row];
+		}
+		return true;
+	}
+}
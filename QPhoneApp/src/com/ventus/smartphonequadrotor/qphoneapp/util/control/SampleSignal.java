@@ -0,0 +1,80 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tells one waiting thread (the {@link ControlLoop}) that a new sample has arrived. The
+ * thread that registers the samples only bumps a counter and unparks the waiter, it never
+ * blocks and never takes a lock for this. Samples that arrive while the waiter is busy are
+ * not queued: the waiter sees that the counter moved and reads the latest data.
+ * @author abhin
+ *
+ */
+public class SampleSignal {
+	//the following are only written by the thread that registers the samples
+	private volatile long sequence = 0;
+	private volatile long lastSampleTime = 0;
+	private volatile Thread waiter;
+
+	/**
+	 * Has to be called after a sample has been stored, by one thread at a time.
+	 * @param sampleTime the System.nanoTime at which the sample arrived
+	 */
+	public void signal(long sampleTime) {
+		lastSampleTime = sampleTime;
+		sequence++;
+		Thread thread = waiter;
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+
+	/**
+	 * @return the number of samples signalled so far
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the System.nanoTime at which the latest sample arrived, 0 if there was none
+	 */
+	public long getLastSampleTime() {
+		return lastSampleTime;
+	}
+
+	/**
+	 * Blocks until a sample after the given one has been signalled, the timeout has elapsed,
+	 * {@link #wakeUp()} was called or the thread was interrupted. The interrupt status is
+	 * left set, for the caller to handle.
+	 * @param seenSequence the value of {@link #getSequence()} that the caller has handled
+	 * @param timeout nanoseconds
+	 * @return the current sequence, the same as seenSequence if nothing new arrived
+	 */
+	public long await(long seenSequence, long timeout) {
+		//publish the waiter before checking the sequence, so a sample that is signalled in
+		//between unparks it
+		waiter = Thread.currentThread();
+		long deadline = System.nanoTime() + timeout;
+		long current;
+		while ((current = sequence) == seenSequence) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0 || Thread.currentThread().isInterrupted())
+				break;
+			LockSupport.parkNanos(remaining);
+			if (waiter == null)
+				break;	//woken up
+		}
+		waiter = null;
+		return current;
+	}
+
+	/**
+	 * Makes {@link #await(long, long)} return, e.g. when the control loop has to stop.
+	 */
+	public void wakeUp() {
+		Thread thread = waiter;
+		waiter = null;
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+}
@@ -0,0 +1,453 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Learns the biases of the gyroscope and the accelerometer while the quadrotor stands still.
+ *
+ * Whether it stands still is decided from the exponential moving averages and variances of the
+ * gyroscope and of the magnitude of the accelerometer (over {@value #DETECTION_TIME_CONSTANT}s):
+ * the gyroscope has to be quiet and slow, the accelerometer has to be quiet, and both for at
+ * least {@value #MIN_STATIONARY_TIME}s. While it stands still:
+ * <ul>
+ * 	<li>
+ * 		the gyroscope bias is the moving average of the gyroscope (with a time constant of
+ * 		{@value #GYRO_BIAS_TIME_CONSTANT}s), since it should read zero.
+ * 	</li>
+ * 	<li>
+ * 		the accelerometer readings are added to a least squares fit of a sphere, which gives the
+ * 		offset of the accelerometer and the magnitude of gravity in its units. Like the
+ * 		{@link MagnetometerCalibrator}, this needs readings in orientations all around (the
+ * 		quadrotor has to be put down on each of its sides once), until then the previous offset
+ * 		is kept.
+ * 	</li>
+ * </ul>
+ * Every sample costs the same constant time and nothing allocates after the constructor.
+ *
+ * The biases can be saved to a file and loaded at the next start, so that the sensors are
+ * corrected from the first sample on without calibrating again.
+ *
+ * The samples have to come from one thread (the bluetooth reader). The getters of the biases,
+ * {@link #save(File)} and {@link #toString()} can be called from any thread.
+ * @author abhin
+ *
+ */
+public class SensorBiasEstimator {
+	public static final int MAGIC = 0x42494153;	//"BIAS"
+	public static final int VERSION = 1;
+	public static final double DETECTION_TIME_CONSTANT = 0.1;	//seconds
+	public static final double MIN_STATIONARY_TIME = 0.5;		//seconds
+	public static final double GYRO_BIAS_TIME_CONSTANT = 1;		//seconds
+	/**
+	 * The standard deviation of the gyroscope (the root of the sum over the axes) below which
+	 * it is quiet.
+	 */
+	public static final double GYRO_NOISE_THRESHOLD = 0.02;	//radians per second
+	/**
+	 * The largest rate of the gyroscope on any axis at which the quadrotor can be standing
+	 * still, which is also the largest bias that can be learnt.
+	 */
+	public static final double MAX_GYRO_RATE = 0.2;	//radians per second
+	/**
+	 * The standard deviation of the magnitude of the accelerometer below which it is quiet,
+	 * relative to the magnitude.
+	 */
+	public static final double ACCEL_NOISE_THRESHOLD = 0.02;
+	public static final int ACCEL_SOLVE_INTERVAL = 250;	//stationary samples
+	public static final int MIN_ACCEL_SAMPLES = 500;
+	/**
+	 * The stationary readings have to span this much of every axis, relative to their
+	 * magnitude (the whole sphere spans 2).
+	 */
+	public static final double MIN_ACCEL_COVERAGE = 1;
+	/**
+	 * The largest offset of the accelerometer relative to gravity, beyond which the fit is
+	 * assumed to be wrong.
+	 */
+	public static final double MAX_ACCEL_OFFSET = 0.2;
+	/**
+	 * Intervals longer than this restart the detection (the QCB has probably been reset).
+	 */
+	private static final long MAX_INTERVAL = 500000000;	//nanoseconds
+	private static final int SPHERE_TERMS = 4;
+
+	//the following are only used by the thread that registers the samples
+	private double[] gyroMean;
+	private double[] gyroVariance;
+	private long gyroTimestamp;
+	private boolean hasGyro;
+	private double accelMean;	//of the magnitude
+	private double accelVariance;
+	private long accelTimestamp;
+	private boolean hasAccel;
+	private long quietSince;
+	private boolean quiet;
+	private boolean stationary;
+	private double[] gyroBias;
+	private double[] accelOffset;
+	private NormalEquations sphereFit;
+	private double[] sphereTerms;
+	private double[] sphereSolution;
+	private double accelScale;	//0 before the first stationary reading
+	private double[] accelMinimum;
+	private double[] accelMaximum;
+	private int stationarySinceSolve;
+
+	//copies of the biases for the other threads, guarded by this
+	private double[] publishedGyroBias;
+	private double[] publishedAccelOffset;
+	private double publishedGravity;
+	private boolean gyroBiasKnown;
+	private boolean accelOffsetKnown;
+	private boolean publishedStationary;
+
+	public SensorBiasEstimator() {
+		gyroMean = new double[3];
+		gyroVariance = new double[3];
+		gyroBias = new double[3];
+		accelOffset = new double[3];
+		sphereFit = new NormalEquations(SPHERE_TERMS);
+		sphereTerms = new double[SPHERE_TERMS];
+		sphereSolution = new double[SPHERE_TERMS];
+		accelMinimum = new double[3];
+		accelMaximum = new double[3];
+		publishedGyroBias = new double[3];
+		publishedAccelOffset = new double[3];
+		reset();
+	}
+
+	/**
+	 * Forgets the samples and the biases.
+	 */
+	public synchronized void reset() {
+		hasGyro = hasAccel = false;
+		quiet = stationary = false;
+		for (int i = 0; i < 3; i++)
+			gyroBias[i] = accelOffset[i] = 0;
+		sphereFit.clear();
+		accelScale = 0;
+		stationarySinceSolve = 0;
+		publishedGravity = 0;
+		gyroBiasKnown = accelOffsetKnown = false;
+		publish();
+	}
+
+	/**
+	 * @param x radians per second
+	 */
+	public void registerGyroValues(float x, float y, float z, long timestamp) {
+		long interval = timestamp - gyroTimestamp;
+		gyroTimestamp = timestamp;
+		if (!hasGyro || interval <= 0 || interval > MAX_INTERVAL) {
+			hasGyro = true;
+			gyroMean[0] = x;
+			gyroMean[1] = y;
+			gyroMean[2] = z;
+			//start as if it was moving, so that it has to be quiet for a while first
+			for (int i = 0; i < 3; i++)
+				gyroVariance[i] = GYRO_NOISE_THRESHOLD * GYRO_NOISE_THRESHOLD;
+			updateStationary(timestamp);
+			return;
+		}
+		double gain = Math.min(1, TimeBase.toSeconds(interval) / DETECTION_TIME_CONSTANT);
+		average(gyroMean, gyroVariance, 0, x, gain);
+		average(gyroMean, gyroVariance, 1, y, gain);
+		average(gyroMean, gyroVariance, 2, z, gain);
+		updateStationary(timestamp);
+		if (stationary) {
+			double biasGain = Math.min(1, TimeBase.toSeconds(interval) / GYRO_BIAS_TIME_CONSTANT);
+			gyroBias[0] += biasGain * (x - gyroBias[0]);
+			gyroBias[1] += biasGain * (y - gyroBias[1]);
+			gyroBias[2] += biasGain * (z - gyroBias[2]);
+			synchronized (this) {
+				gyroBiasKnown = true;
+				publish();
+			}
+		}
+	}
+
+	/**
+	 * Updates an exponential moving average and variance.
+	 */
+	private static void average(double[] mean, double[] variance, int index, double value, double gain) {
+		double difference = value - mean[index];
+		mean[index] += gain * difference;
+		variance[index] = (1 - gain) * (variance[index] + gain * difference * difference);
+	}
+
+	public void registerAccelValues(float x, float y, float z, long timestamp) {
+		double magnitude = Math.sqrt(x * x + y * y + z * z);
+		if (magnitude == 0)
+			return;
+		long interval = timestamp - accelTimestamp;
+		accelTimestamp = timestamp;
+		if (!hasAccel || interval <= 0 || interval > MAX_INTERVAL) {
+			hasAccel = true;
+			accelMean = magnitude;
+			accelVariance = ACCEL_NOISE_THRESHOLD * ACCEL_NOISE_THRESHOLD * magnitude * magnitude;
+			updateStationary(timestamp);
+			return;
+		}
+		double gain = Math.min(1, TimeBase.toSeconds(interval) / DETECTION_TIME_CONSTANT);
+		double difference = magnitude - accelMean;
+		accelMean += gain * difference;
+		accelVariance = (1 - gain) * (accelVariance + gain * difference * difference);
+		updateStationary(timestamp);
+		if (stationary)
+			addStationaryAccel(x, y, z, magnitude);
+	}
+
+	/**
+	 * Decides whether the quadrotor stands still from the latest moving averages.
+	 */
+	private void updateStationary(long timestamp) {
+		boolean nowQuiet = hasGyro && hasAccel
+				&& gyroVariance[0] + gyroVariance[1] + gyroVariance[2] < GYRO_NOISE_THRESHOLD * GYRO_NOISE_THRESHOLD
+				&& Math.abs(gyroMean[0]) < MAX_GYRO_RATE
+				&& Math.abs(gyroMean[1]) < MAX_GYRO_RATE
+				&& Math.abs(gyroMean[2]) < MAX_GYRO_RATE
+				&& accelVariance < ACCEL_NOISE_THRESHOLD * ACCEL_NOISE_THRESHOLD * accelMean * accelMean;
+		if (nowQuiet && !quiet)
+			quietSince = timestamp;
+		quiet = nowQuiet;
+		boolean nowStationary = quiet && TimeBase.toSeconds(timestamp - quietSince) >= MIN_STATIONARY_TIME;
+		if (nowStationary != stationary) {
+			stationary = nowStationary;
+			synchronized (this) {
+				publishedStationary = stationary;
+			}
+			if (!stationary && stationarySinceSolve > 0) {
+				//solve at the end of every stationary interval
+				stationarySinceSolve = 0;
+				solveAccelOffset();
+			}
+		}
+	}
+
+	/**
+	 * Adds a stationary reading to the sphere |a - offset|^2 = gravity^2, which is linear in
+	 * the offset and in gravity^2 - |offset|^2.
+	 */
+	private void addStationaryAccel(float x, float y, float z, double magnitude) {
+		if (accelScale == 0) {
+			accelScale = magnitude;
+			accelMinimum[0] = accelMaximum[0] = x / accelScale;
+			accelMinimum[1] = accelMaximum[1] = y / accelScale;
+			accelMinimum[2] = accelMaximum[2] = z / accelScale;
+		}
+		double u = x / accelScale, v = y / accelScale, w = z / accelScale;
+		sphereTerms[0] = 2 * u;
+		sphereTerms[1] = 2 * v;
+		sphereTerms[2] = 2 * w;
+		sphereTerms[3] = 1;
+		sphereFit.add(sphereTerms, u * u + v * v + w * w);
+		updateRange(0, u);
+		updateRange(1, v);
+		updateRange(2, w);
+		if (++stationarySinceSolve >= ACCEL_SOLVE_INTERVAL) {
+			stationarySinceSolve = 0;
+			solveAccelOffset();
+		}
+	}
+
+	private void updateRange(int axis, double value) {
+		if (value < accelMinimum[axis])
+			accelMinimum[axis] = value;
+		if (value > accelMaximum[axis])
+			accelMaximum[axis] = value;
+	}
+
+	/**
+	 * @return true if the offset of the accelerometer was updated
+	 */
+	private boolean solveAccelOffset() {
+		if (sphereFit.getSamples() < MIN_ACCEL_SAMPLES)
+			return false;
+		for (int axis = 0; axis < 3; axis++) {
+			if (accelMaximum[axis] - accelMinimum[axis] < MIN_ACCEL_COVERAGE)
+				return false;
+		}
+		if (!sphereFit.solve(sphereSolution))
+			return false;
+		double offsetX = sphereSolution[0], offsetY = sphereSolution[1], offsetZ = sphereSolution[2];
+		double offsetSquared = offsetX * offsetX + offsetY * offsetY + offsetZ * offsetZ;
+		double gravitySquared = sphereSolution[3] + offsetSquared;
+		if (!(gravitySquared > 0) || offsetSquared > MAX_ACCEL_OFFSET * MAX_ACCEL_OFFSET * gravitySquared)
+			return false;
+		accelOffset[0] = offsetX * accelScale;
+		accelOffset[1] = offsetY * accelScale;
+		accelOffset[2] = offsetZ * accelScale;
+		synchronized (this) {
+			publishedGravity = Math.sqrt(gravitySquared) * accelScale;
+			accelOffsetKnown = true;
+			publish();
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the biases for the other threads. Has to be called with the lock held.
+	 */
+	private void publish() {
+		System.arraycopy(gyroBias, 0, publishedGyroBias, 0, 3);
+		System.arraycopy(accelOffset, 0, publishedAccelOffset, 0, 3);
+		publishedStationary = stationary;
+	}
+
+	/**
+	 * Subtracts the gyroscope bias. This is meant for the thread that registers the samples.
+	 * @param corrected the x, y and z go into its first three elements
+	 */
+	public void correctGyroValues(float x, float y, float z, float[] corrected) {
+		corrected[0] = (float) (x - gyroBias[0]);
+		corrected[1] = (float) (y - gyroBias[1]);
+		corrected[2] = (float) (z - gyroBias[2]);
+	}
+
+	/**
+	 * Subtracts the accelerometer offset. This is meant for the thread that registers the
+	 * samples.
+	 * @param corrected the x, y and z go into its first three elements
+	 */
+	public void correctAccelValues(float x, float y, float z, float[] corrected) {
+		corrected[0] = (float) (x - accelOffset[0]);
+		corrected[1] = (float) (y - accelOffset[1]);
+		corrected[2] = (float) (z - accelOffset[2]);
+	}
+
+	/**
+	 * @param bias the x, y and z go into its first three elements
+	 */
+	public synchronized void getGyroBias(double[] bias) {
+		System.arraycopy(publishedGyroBias, 0, bias, 0, 3);
+	}
+
+	/**
+	 * @param offset the x, y and z go into its first three elements
+	 */
+	public synchronized void getAccelOffset(double[] offset) {
+		System.arraycopy(publishedAccelOffset, 0, offset, 0, 3);
+	}
+
+	/**
+	 * @return the magnitude of gravity in the units of the accelerometer, 0 if the offset of
+	 * the accelerometer hasn't been fitted
+	 */
+	public synchronized double getGravity() {
+		return publishedGravity;
+	}
+
+	/**
+	 * @return true once the gyroscope bias has been learnt or loaded
+	 */
+	public synchronized boolean isGyroBiasKnown() {
+		return gyroBiasKnown;
+	}
+
+	/**
+	 * @return true once the accelerometer offset has been fitted or loaded
+	 */
+	public synchronized boolean isAccelOffsetKnown() {
+		return accelOffsetKnown;
+	}
+
+	public synchronized boolean isStationary() {
+		return publishedStationary;
+	}
+
+	/**
+	 * Saves the biases. The file is first written under a temporary name and then renamed, so
+	 * a crash while saving never leaves a half written file behind.
+	 * <pre>
+	 * 	int		MAGIC
+	 * 	int		VERSION
+	 * 	boolean		gyroscope bias known
+	 * 	double[3]	gyroscope bias
+	 * 	boolean		accelerometer offset known
+	 * 	double[3]	accelerometer offset
+	 * 	double		gravity
+	 * </pre>
+	 * All values are big-endian.
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+		try {
+			synchronized (this) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeBoolean(gyroBiasKnown);
+				for (int i = 0; i < 3; i++)
+					out.writeDouble(publishedGyroBias[i]);
+				out.writeBoolean(accelOffsetKnown);
+				for (int i = 0; i < 3; i++)
+					out.writeDouble(publishedAccelOffset[i]);
+				out.writeDouble(publishedGravity);
+			}
+		} finally {
+			out.close();
+		}
+		if (!temporaryFile.renameTo(file)) {
+			temporaryFile.delete();
+			throw new IOException("Could not rename " + temporaryFile + " to " + file);
+		}
+	}
+
+	/**
+	 * Loads the biases that were saved by {@link #save(File)}. This has to be called before
+	 * the samples start arriving.
+	 * @throws IOException if the file can't be read or isn't a file of biases
+	 */
+	public void load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a file of sensor biases");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException(String.format("Unsupported sensor bias version %d", version));
+			boolean gyroKnown = in.readBoolean();
+			double[] gyro = new double[3];
+			for (int i = 0; i < 3; i++)
+				gyro[i] = in.readDouble();
+			boolean accelKnown = in.readBoolean();
+			double[] accel = new double[3];
+			for (int i = 0; i < 3; i++)
+				accel[i] = in.readDouble();
+			double gravity = in.readDouble();
+			synchronized (this) {
+				System.arraycopy(gyro, 0, gyroBias, 0, 3);
+				System.arraycopy(accel, 0, accelOffset, 0, 3);
+				gyroBiasKnown = gyroKnown;
+				accelOffsetKnown = accelKnown;
+				publishedGravity = gravity;
+				publish();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The biases for the telemetry.
+	 */
+	@Override
+	public synchronized String toString() {
+		return String.format(
+			"gyro bias (rad/s): %s %.5f %.5f %.5f; accel offset: %s %.4f %.4f %.4f, gravity %.4f; %s",
+			gyroBiasKnown ? "learnt" : "unknown",
+			publishedGyroBias[0], publishedGyroBias[1], publishedGyroBias[2],
+			accelOffsetKnown ? "fitted" : "unknown",
+			publishedAccelOffset[0], publishedAccelOffset[1], publishedAccelOffset[2], publishedGravity,
+			publishedStationary ? "stationary" : "moving"
+		);
+	}
+}
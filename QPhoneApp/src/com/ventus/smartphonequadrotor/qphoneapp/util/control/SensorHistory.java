@@ -0,0 +1,156 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+/**
+ * The latest samples of a few channels that are measured together (like roll, pitch and
+ * yaw), kept in a ring buffer of primitives: one array of timestamps and one array of values
+ * per channel. Adding a sample overwrites the oldest one once the history is full, and
+ * nothing allocates after construction.
+ *
+ * The timestamps are in nanoseconds (see {@link TimeBase}) and must not decrease. Samples
+ * are addressed by their age, 0 being the latest. Values in between the samples can be
+ * queried by linear interpolation with {@link #valueAt(int, long)}.
+ *
+ * This class is not thread safe; a history belongs to one thread.
+ * @author abhin
+ *
+ */
+public class SensorHistory {
+	private long[] timestamps;
+	private double[][] values;	//[channel][slot]
+	private int depth;
+	private int latest;			//the slot of the latest sample
+	private int size;
+
+	/**
+	 * @param channels the number of values per sample
+	 * @param depth the number of samples that are kept
+	 */
+	public SensorHistory(int channels, int depth) {
+		if (channels <= 0)
+			throw new IllegalArgumentException("The history needs at least one channel");
+		if (depth <= 0)
+			throw new IllegalArgumentException("The history needs to keep at least one sample");
+		this.depth = depth;
+		this.timestamps = new long[depth];
+		this.values = new double[channels][depth];
+		clear();
+	}
+
+	public void clear() {
+		latest = depth - 1;
+		size = 0;
+	}
+
+	/**
+	 * Adds a sample with the given timestamp. Its values are 0 until they are set with
+	 * {@link #set(int, double)}.
+	 * @param timestamp nanoseconds, not before the latest sample
+	 */
+	public void add(long timestamp) {
+		if (size != 0 && timestamp < timestamps[latest])
+			throw new IllegalArgumentException("The sample is older than the latest one");
+		latest = (latest + 1 == depth) ? 0 : latest + 1;
+		if (size < depth)
+			size++;
+		timestamps[latest] = timestamp;
+		for (int i = 0; i < values.length; i++)
+			values[i][latest] = 0;
+	}
+
+	/**
+	 * Sets a value of the latest sample.
+	 */
+	public void set(int channel, double value) {
+		if (size == 0)
+			throw new IllegalStateException("There is no sample to set");
+		values[channel][latest] = value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getChannels() {
+		return values.length;
+	}
+
+	/**
+	 * @param age 0 for the latest sample, up to size() - 1 for the oldest
+	 */
+	public long getTimestamp(int age) {
+		return timestamps[slot(age)];
+	}
+
+	/**
+	 * @param age 0 for the latest sample, up to size() - 1 for the oldest
+	 */
+	public double getValue(int channel, int age) {
+		return values[channel][slot(age)];
+	}
+
+	private int slot(int age) {
+		if (age < 0 || age >= size)
+			throw new IndexOutOfBoundsException("There is no sample of age " + age);
+		int slot = latest - age;
+		return (slot < 0) ? slot + depth : slot;
+	}
+
+	/**
+	 * The value of a channel at the given time, interpolated linearly between the samples
+	 * around it. Before the oldest sample the oldest value is returned and after the latest
+	 * sample the latest value; nothing is extrapolated.
+	 * @param time nanoseconds
+	 */
+	public double valueAt(int channel, long time) {
+		if (size == 0)
+			throw new IllegalStateException("The history is empty");
+		if (time >= timestamps[latest])
+			return values[channel][latest];
+		int oldest = size - 1;
+		if (time <= getTimestamp(oldest))
+			return getValue(channel, oldest);
+		//binary search for the youngest sample at or before the time; the one younger than
+		//it is after the time
+		int low = 1;
+		int high = oldest;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (getTimestamp(middle) <= time)
+				high = middle;
+			else
+				low = middle + 1;
+		}
+		int before = slot(low);
+		int after = slot(low - 1);
+		long interval = timestamps[after] - timestamps[before];
+		if (interval == 0)
+			return values[channel][after];
+		double fraction = (double) (time - timestamps[before]) / interval;
+		return values[channel][before] + fraction * (values[channel][after] - values[channel][before]);
+	}
+
+	/**
+	 * The average rate of change of a channel over a window that ends at the latest sample,
+	 * with the value at the start of the window interpolated. If the history covers less
+	 * than the window, the rate is taken over all of it.
+	 * @param window nanoseconds
+	 * @return the rate of change per second, 0 with less than two distinct timestamps
+	 */
+	public double derivative(int channel, long window) {
+		if (size < 2)
+			return 0;
+		long end = timestamps[latest];
+		long start = Math.max(end - window, getTimestamp(size - 1));
+		if (end <= start)
+			return 0;
+		return (values[channel][latest] - valueAt(channel, start)) / TimeBase.toSeconds(end - start);
+	}
+}
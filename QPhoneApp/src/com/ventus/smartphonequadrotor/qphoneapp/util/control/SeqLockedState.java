@@ -0,0 +1,93 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of primitive slots that are written by one thread at a time and read by
+ * any number of threads without locks (a seqlock). A write is bracketed by
+ * {@link #beginWrite()} and {@link #endWrite()}, which bump a sequence number to odd and
+ * back to even. A reader copies all the slots and retries if the sequence number was odd or
+ * changed meanwhile, so it always gets a consistent snapshot and never waits for a writer
+ * other than for the few stores of a write in progress.
+ *
+ * Writers only exclude each other. The slots hold the bits of doubles or longs; they are
+ * volatile (an AtomicLongArray), which is what keeps the reads of a snapshot between the two
+ * reads of the sequence number.
+ * @author abhin
+ *
+ */
+public class SeqLockedState {
+	private AtomicLongArray slots;
+	private volatile int sequence = 0;	//odd while a write is in progress
+	private ReentrantLock writeLock = new ReentrantLock();
+	private volatile long readRetries = 0;	//only approximate with several readers
+
+	public SeqLockedState(int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("The state needs at least one slot");
+		slots = new AtomicLongArray(size);
+	}
+
+	public int size() {
+		return slots.length();
+	}
+
+	/**
+	 * Starts a write. Until the matching {@link #endWrite()}, readers retry.
+	 */
+	public void beginWrite() {
+		writeLock.lock();
+		sequence++;
+	}
+
+	public void endWrite() {
+		sequence++;
+		writeLock.unlock();
+	}
+
+	/**
+	 * Has to be called between {@link #beginWrite()} and {@link #endWrite()}.
+	 */
+	public void putDouble(int index, double value) {
+		slots.set(index, Double.doubleToRawLongBits(value));
+	}
+
+	/**
+	 * Has to be called between {@link #beginWrite()} and {@link #endWrite()}.
+	 */
+	public void putLong(int index, long value) {
+		slots.set(index, value);
+	}
+
+	/**
+	 * Copies a consistent snapshot of all the slots.
+	 * @param snapshot of at least {@link #size()} elements. Use {@link #toDouble(long)} for the
+	 * slots that hold doubles.
+	 */
+	public void read(long[] snapshot) {
+		int size = slots.length();
+		while (true) {
+			int before = sequence;
+			if ((before & 1) == 0) {
+				for (int i = 0; i < size; i++)
+					snapshot[i] = slots.get(i);
+				if (sequence == before)
+					return;
+			}
+			readRetries++;
+			Thread.yield();	//in case the writer was descheduled in the middle of a write
+		}
+	}
+
+	/**
+	 * @return the number of times that readers had to retry because of a concurrent write
+	 */
+	public long getReadRetries() {
+		return readRetries;
+	}
+
+	public static double toDouble(long bits) {
+		return Double.longBitsToDouble(bits);
+	}
+}
@@ -0,0 +1,279 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+/**
+ * A queue of setpoints for a few channels (like height, roll, pitch and yaw) that are
+ * reached one after the other, every one of them held for a given duration. The move from
+ * one setpoint to the next is a quintic polynomial in time that starts with the position,
+ * velocity and acceleration that the trajectory had and ends at rest on the setpoint, so the
+ * setpoints are smooth up to the acceleration. Its duration is chosen so that the jerk of no
+ * channel exceeds the limit of that channel.
+ *
+ * The polynomials are computed when a setpoint is appended, so that {@link #sample(long)}
+ * only has to evaluate one of them and its derivatives. Sampling at times that don't decrease
+ * takes constant time, and nothing allocates after construction.
+ *
+ * A segment of the trajectory starts when the previous one ends and lasts for its duration,
+ * or for as long as its transition takes if that is longer. A segment with a duration of 0 is
+ * held until the next segment is planned. After the last segment, its setpoint is held.
+ *
+ * All times are in nanoseconds (see {@link TimeBase}), the derivatives are per second. This
+ * class is not thread safe.
+ * @author abhin
+ *
+ */
+public class SetpointTrajectory {
+	private static final int COEFFICIENTS = 6;
+	private static final int MAX_JERK_ITERATIONS = 8;
+	private static final double MIN_TRANSITION = 1e-3;	//seconds
+
+	private int channels;
+	private int capacity;
+	private double[] maxJerk;
+	//the segments, from first to count - 1
+	private long[] starts;
+	private long[] transitionEnds;
+	private long[] ends;			//Long.MAX_VALUE if held
+	private double[] coefficients;	//[segment][channel][power]
+	private double[] targets;		//[segment][channel]
+	private int count;
+	private int current;
+	//the time and the state that the plan starts with
+	private long planStart;
+	private double[] planPositions;
+	private double[] planVelocities;
+	private double[] planAccelerations;
+	//the result of the last sample
+	private double[] positions;
+	private double[] velocities;
+	private double[] accelerations;
+	private long lastSampleTime;
+
+	/**
+	 * @param maxJerk the limit of the jerk of every channel, per second cubed
+	 * @param capacity the maximum number of segments that can be planned at once
+	 * @param initial the position that the trajectory holds until the first segment
+	 */
+	public SetpointTrajectory(double[] maxJerk, int capacity, double[] initial) {
+		if (maxJerk.length == 0 || maxJerk.length != initial.length)
+			throw new IllegalArgumentException("The jerk limits and the initial position need a value per channel");
+		if (capacity <= 0)
+			throw new IllegalArgumentException("The trajectory needs at least one segment");
+		for (int i = 0; i < maxJerk.length; i++) {
+			if (!(maxJerk[i] > 0))
+				throw new IllegalArgumentException("The jerk limits have to be positive");
+		}
+		this.channels = maxJerk.length;
+		this.capacity = capacity;
+		this.maxJerk = maxJerk.clone();
+		this.starts = new long[capacity];
+		this.transitionEnds = new long[capacity];
+		this.ends = new long[capacity];
+		this.coefficients = new double[capacity * channels * COEFFICIENTS];
+		this.targets = new double[capacity * channels];
+		this.positions = new double[channels];
+		this.velocities = new double[channels];
+		this.accelerations = new double[channels];
+		this.planPositions = new double[channels];
+		this.planVelocities = new double[channels];
+		this.planAccelerations = new double[channels];
+		//the initial position is a segment that is held from the beginning of time
+		System.arraycopy(initial, 0, planPositions, 0, channels);
+		this.planStart = Long.MIN_VALUE;
+		this.lastSampleTime = Long.MIN_VALUE;
+		append(initial, 0);
+		sample(Long.MIN_VALUE);
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Drops the segments that are planned and starts a new plan at the given time, from
+	 * the position, velocity and acceleration that the trajectory has at that time. At
+	 * least one segment has to be appended before the trajectory is sampled again.
+	 * @param time nanoseconds, not before the last sample
+	 */
+	public void plan(long time) {
+		sample(time);
+		System.arraycopy(positions, 0, planPositions, 0, channels);
+		System.arraycopy(velocities, 0, planVelocities, 0, channels);
+		System.arraycopy(accelerations, 0, planAccelerations, 0, channels);
+		planStart = time;
+		count = 0;
+		current = 0;
+	}
+
+	/**
+	 * Appends a setpoint to the plan.
+	 * @param target the setpoint of every channel
+	 * @param duration nanoseconds from the start of the segment until the next segment, 0 to
+	 * hold the setpoint until the next plan
+	 * @return the time at which the segment ends, Long.MAX_VALUE if it is held
+	 */
+	public long append(double[] target, long duration) {
+		if (count == capacity)
+			throw new IllegalStateException("The trajectory can't hold more than " + capacity + " segments");
+		if (count > 0 && ends[count - 1] == Long.MAX_VALUE)
+			throw new IllegalStateException("The previous segment is held");
+		if (duration < 0)
+			throw new IllegalArgumentException("The duration can't be negative");
+		int segment = count;
+		long start = (segment == 0) ? planStart : ends[segment - 1];
+		double transition = MIN_TRANSITION;
+		for (int i = 0; i < channels; i++) {
+			transition = Math.max(transition, restToRestTransition(
+				target[i] - startPosition(segment, i), startVelocity(segment, i), startAcceleration(segment, i), maxJerk[i]
+			));
+		}
+		//the bound of the transition is only exact from rest; lengthen it until the jerk of
+		//every channel is within its limit
+		for (int iteration = 0; iteration < MAX_JERK_ITERATIONS; iteration++) {
+			double ratio = 0;
+			for (int i = 0; i < channels; i++) {
+				computeCoefficients(segment, i, target[i], transition);
+				ratio = Math.max(ratio, peakJerk(segment, i, transition) / maxJerk[i]);
+			}
+			if (ratio <= 1 + 1e-9)
+				break;
+			transition *= ratio;
+		}
+		for (int i = 0; i < channels; i++)
+			targets[segment * channels + i] = target[i];
+		long transitionNanos = (long) Math.ceil(transition * 1e9);
+		starts[segment] = start;
+		transitionEnds[segment] = start + transitionNanos;
+		ends[segment] = (duration == 0) ? Long.MAX_VALUE : start + Math.max(duration, transitionNanos);
+		count++;
+		return ends[segment];
+	}
+
+	/*
+	 * The state at the start of a segment: the one that the plan started with, or the end of
+	 * the previous segment, where the trajectory is at rest.
+	 */
+	private double startPosition(int segment, int channel) {
+		return (segment == 0) ? planPositions[channel] : targets[(segment - 1) * channels + channel];
+	}
+
+	private double startVelocity(int segment, int channel) {
+		return (segment == 0) ? planVelocities[channel] : 0;
+	}
+
+	private double startAcceleration(int segment, int channel) {
+		return (segment == 0) ? planAccelerations[channel] : 0;
+	}
+
+	/**
+	 * The duration of a quintic from rest to rest over the distance with the peak jerk at
+	 * the limit, or longer if one of the terms that the initial velocity and acceleration add
+	 * to the jerk at the start would exceed the limit on its own.
+	 * @return seconds
+	 */
+	private static double restToRestTransition(double distance, double v0, double a0, double maxJerk) {
+		//the jerk at the start is (60 d - 36 v0 T - 9 a0 T^2) / T^3
+		double transition = Math.cbrt(60 * Math.abs(distance) / maxJerk);
+		transition = Math.max(transition, Math.sqrt(36 * Math.abs(v0) / maxJerk));
+		return Math.max(transition, 9 * Math.abs(a0) / maxJerk);
+	}
+
+	/**
+	 * The quintic from the state at the start of the segment to rest at the target.
+	 */
+	private void computeCoefficients(int segment, int channel, double target, double transition) {
+		double p0 = startPosition(segment, channel);
+		double v0 = startVelocity(segment, channel);
+		double a0 = startAcceleration(segment, channel);
+		double d = target - p0;
+		double t = transition;
+		double t2 = t * t;
+		double t3 = t2 * t;
+		int offset = (segment * channels + channel) * COEFFICIENTS;
+		coefficients[offset] = p0;
+		coefficients[offset + 1] = v0;
+		coefficients[offset + 2] = a0 / 2;
+		coefficients[offset + 3] = (20 * d - 12 * v0 * t - 3 * a0 * t2) / (2 * t3);
+		coefficients[offset + 4] = (-30 * d + 16 * v0 * t + 3 * a0 * t2) / (2 * t3 * t);
+		coefficients[offset + 5] = (12 * d - 6 * v0 * t - a0 * t2) / (2 * t3 * t2);
+	}
+
+	/**
+	 * @return the largest absolute jerk of the transition, which is a quadratic in time
+	 */
+	private double peakJerk(int segment, int channel, double transition) {
+		int offset = (segment * channels + channel) * COEFFICIENTS;
+		double c0 = 6 * coefficients[offset + 3];
+		double c1 = 24 * coefficients[offset + 4];
+		double c2 = 60 * coefficients[offset + 5];
+		double peak = Math.max(Math.abs(c0), Math.abs(c0 + c1 * transition + c2 * transition * transition));
+		if (c2 != 0) {
+			double vertex = -c1 / (2 * c2);
+			if (vertex > 0 && vertex < transition)
+				peak = Math.max(peak, Math.abs(c0 + c1 * vertex + c2 * vertex * vertex));
+		}
+		return peak;
+	}
+
+	/**
+	 * Evaluates the trajectory at the given time. The results can be read with
+	 * {@link #getPosition(int)}, {@link #getVelocity(int)} and {@link #getAcceleration(int)}.
+	 * @param time nanoseconds, not before the last sample
+	 */
+	public void sample(long time) {
+		if (time < lastSampleTime)
+			throw new IllegalArgumentException("The trajectory can't be sampled backwards");
+		lastSampleTime = time;
+		if (count == 0) {
+			throw new IllegalStateException("Nothing has been appended to the plan");
+		}
+		while (current < count - 1 && time >= ends[current])
+			current++;
+		if (time >= transitionEnds[current]) {
+			//the setpoint has been reached
+			for (int i = 0; i < channels; i++) {
+				positions[i] = targets[current * channels + i];
+				velocities[i] = 0;
+				accelerations[i] = 0;
+			}
+			return;
+		}
+		double t = TimeBase.toSeconds(time - starts[current]);
+		for (int i = 0; i < channels; i++) {
+			int offset = (current * channels + i) * COEFFICIENTS;
+			double c1 = coefficients[offset + 1];
+			double c2 = coefficients[offset + 2];
+			double c3 = coefficients[offset + 3];
+			double c4 = coefficients[offset + 4];
+			double c5 = coefficients[offset + 5];
+			positions[i] = coefficients[offset] + t * (c1 + t * (c2 + t * (c3 + t * (c4 + t * c5))));
+			velocities[i] = c1 + t * (2 * c2 + t * (3 * c3 + t * (4 * c4 + t * 5 * c5)));
+			accelerations[i] = 2 * c2 + t * (6 * c3 + t * (12 * c4 + t * 20 * c5));
+		}
+	}
+
+	public double getPosition(int channel) {
+		return positions[channel];
+	}
+
+	public double getVelocity(int channel) {
+		return velocities[channel];
+	}
+
+	public double getAcceleration(int channel) {
+		return accelerations[channel];
+	}
+
+	/**
+	 * @return the number of segments in the plan
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the time at which the last segment of the plan ends, Long.MAX_VALUE if it is held
+	 */
+	public long getEnd() {
+		return (count == 0) ? planStart : ends[count - 1];
+	}
+}
@@ -0,0 +1,79 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.control;
+
+/**
+ * The one clock of the control path. All the times it hands out are in nanoseconds and only
+ * meant to be subtracted from each other; none of them is a wall clock time and nothing here
+ * allocates.
+ *
+ * There are two sources of time:
+ * <ul>
+ * 	<li>
+ * 		The QCB stamps its sensor data with a 32-bit counter of {@value #QCB_TICK_NANOS}ns
+ * 		ticks. {@link #fromQcbTimestamp(long)} unwraps it into a 64-bit time, so the interval
+ * 		between two samples is the interval at which the QCB measured them and not the one at
+ * 		which they happened to arrive over bluetooth.
+ * 	</li>
+ * 	<li>
+ * 		{@link #now()} is the monotonic clock of the phone, for the things that have no sensor
+ * 		timestamp (like the commands from the controller).
+ * 	</li>
+ * </ul>
+ * The two are not related to each other, so an interval must never be taken between a time
+ * of one and a time of the other.
+ * @author abhin
+ *
+ */
+public class TimeBase {
+	public static final long QCB_TICK_NANOS = 1000000;	//the QCB counts milliseconds
+	private static final long NANOS_PER_MILLI = 1000000;
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	//the following are guarded by this
+	private boolean qcbClockStarted = false;
+	private long lastQcbTimestamp;	//the raw 32-bit value
+	private long qcbTicks;			//unwrapped
+
+	/**
+	 * @return the monotonic time of the phone
+	 */
+	public long now() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Converts a timestamp of the QCB to a time on the QCB clock. The counter of the QCB
+	 * wraps around every 2^32 ticks (about 50 days with millisecond ticks, but it starts
+	 * wherever the QCB left off), which is handled as long as the timestamps passed in are
+	 * less than 2^31 ticks apart. Timestamps may be passed in slightly out of order (the
+	 * height and the kinematics are sent separately).
+	 * @param qcbTimestamp the unsigned 32-bit timestamp of a sensor packet
+	 * @return nanoseconds since the first timestamp that was converted
+	 */
+	public synchronized long fromQcbTimestamp(long qcbTimestamp) {
+		qcbTimestamp &= 0xFFFFFFFFL;
+		if (!qcbClockStarted) {
+			qcbClockStarted = true;
+			qcbTicks = 0;
+		} else {
+			//the difference as a signed 32-bit number is correct across a wrap around
+			qcbTicks += (int) (qcbTimestamp - lastQcbTimestamp);
+		}
+		lastQcbTimestamp = qcbTimestamp;
+		return qcbTicks * QCB_TICK_NANOS;
+	}
+
+	/**
+	 * Forgets the QCB clock, e.g. when the QCB has been reset or reconnected.
+	 */
+	public synchronized void resetQcbClock() {
+		qcbClockStarted = false;
+	}
+
+	public static double toSeconds(long nanos) {
+		return nanos / NANOS_PER_SECOND;
+	}
+
+	public static long toMillis(long nanos) {
+		return Math.round((double) nanos / NANOS_PER_MILLI);
+	}
+}
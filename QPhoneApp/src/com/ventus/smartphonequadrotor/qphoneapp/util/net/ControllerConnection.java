@@ -0,0 +1,20 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.net;
+
+/**
+ * A connection to the controller that the {@link NetworkCommunicationManager} can send
+ * messages over without knowing how it was made.
+ * @author abhin
+ *
+ */
+public interface ControllerConnection {
+	/**
+	 * Sends a message to the controller.
+	 * @throws Exception if the message could not be sent
+	 */
+	public void sendMessage(String message) throws Exception;
+
+	/**
+	 * @param onMessageListener receives the messages from the controller
+	 */
+	public void setOnMessageListener(OnMessageListener onMessageListener);
+}
@@ -1,10 +1,7 @@
 package com.ventus.smartphonequadrotor.qphoneapp.util.net;
 
 import com.google.gson.Gson;
-import com.ventus.smartphonequadrotor.qphoneapp.activities.XmppConnectionActivity;
-import com.ventus.smartphonequadrotor.qphoneapp.services.MainService;
-import com.ventus.smartphonequadrotor.qphoneapp.services.MainService.MainServiceHandler;
-import com.ventus.smartphonequadrotor.qphoneapp.services.intents.IntentHandler;
+import com.ventus.smartphonequadrotor.qphoneapp.services.QuadrotorRuntime;
 import com.ventus.smartphonequadrotor.qphoneapp.util.control.ControlLoop;
 import com.ventus.smartphonequadrotor.qphoneapp.util.json.Envelope;
 import com.ventus.smartphonequadrotor.qphoneapp.util.json.HeightSensorResponse;
@@ -12,15 +9,9 @@ import com.ventus.smartphonequadrotor.qphoneapp.util.json.THrpyCommand;
 import com.ventus.smartphonequadrotor.qphoneapp.util.json.Responses;
 import com.ventus.smartphonequadrotor.qphoneapp.util.json.SystemState;
 import com.ventus.smartphonequadrotor.qphoneapp.util.json.TriAxisSensorResponse;
-
-import android.content.Context;
-import android.content.Intent;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
-import android.util.Log;
-import android.widget.Toast;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Log;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.StatusBroadcasts;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.TaskQueue;
 
 /**
  * This class provides a common interface for using the network communication to
@@ -35,14 +26,31 @@ import android.widget.Toast;
 public class NetworkCommunicationManager {
 	public static final String TAG = NetworkCommunicationManager.class
 			.getName();
-	private MainService owner;
+	private QuadrotorRuntime owner;
 
 	private XmppClient xmppClient;
 	private DirectSocketClient directSocketClient;
+	/**
+	 * A connection that was made outside of this class (e.g. to a simulated controller).
+	 * If this is set, it is used instead of the other clients.
+	 */
+	private ControllerConnection controllerConnection;
 
 	private NcmOnMessageListener onMessageListener;
 	private Gson gson;
-	private NetworkCommunicationLooper networkCommunicationLooper;
+	/**
+	 * All the network communication happens on this queue.
+	 */
+	private TaskQueue networkCommunicationQueue;
+
+	/**
+	 * The kinds of the telemetry tasks. Only the latest task of each kind is kept in the queue.
+	 */
+	private static final int KINEMATICS_MESSAGE = 1;
+	private static final int ACCELEROMETER_MESSAGE = 2;
+	private static final int MAGNETOMETER_MESSAGE = 3;
+	private static final int GYROSCOPE_MESSAGE = 4;
+	private static final int HEIGHT_MESSAGE = 5;
 
 	private String xmppOwnJid;
 	private String xmppOwnPassword;
@@ -94,7 +102,7 @@ public class NetworkCommunicationManager {
 	 */
 	public CommunicationMethods preferredCommunicationMethod = CommunicationMethods.DIRECT_SOCKET;
 
-	public NetworkCommunicationManager(MainService owner) {
+	public NetworkCommunicationManager(QuadrotorRuntime owner) {
 		this.owner = owner;
 		onMessageListener = new NcmOnMessageListener();
 		gson = new Gson();
@@ -103,29 +111,26 @@ public class NetworkCommunicationManager {
 		magnetometerCache = new TriAxisSensorResponse[CACHE_SEND_THRESHOLD];
 		gyroscopeCache = new TriAxisSensorResponse[CACHE_SEND_THRESHOLD];
 		heightCache = new HeightSensorResponse[CACHE_SEND_THRESHOLD];
-		networkCommunicationLooper = new NetworkCommunicationLooper();
-		networkCommunicationLooper.start();
+		networkCommunicationQueue = owner.getPlatform().startTaskQueue("NetworkCommunicationLooper");
 	}
 
-	public NetworkCommunicationManager(XmppClient xmppClient, MainService owner) {
+	public NetworkCommunicationManager(XmppClient xmppClient, QuadrotorRuntime owner) {
 		this(owner);
 		this.xmppClient = xmppClient;
 	}
 
 	public NetworkCommunicationManager(DirectSocketClient directSocketClient,
-			MainService owner) {
+			QuadrotorRuntime owner) {
 		this(owner);
 		this.directSocketClient = directSocketClient;
 	}
 
 	/**
-	 * This method should be called by the {@link MainService} when it is
-	 * ending. This method will stop the networkCommunicationHandler;
+	 * This method should be called by the {@link QuadrotorRuntime} when it is
+	 * ending. This method will stop the networkCommunicationQueue;
 	 */
 	public void cleanup() {
-		if (networkCommunicationLooper.handler != null
-				&& networkCommunicationLooper.handler.getLooper() != null)
-			networkCommunicationLooper.handler.getLooper().quit();
+		networkCommunicationQueue.quit();
 	}
 
 	public void setXmppClient(XmppClient xmppClient) {
@@ -136,6 +141,17 @@ public class NetworkCommunicationManager {
 		this.directSocketClient = directSocketClient;
 	}
 
+	/**
+	 * Makes the given connection the one that is used to talk to the controller. The
+	 * messages it receives are handled like the ones received over xmpp.
+	 * @param controllerConnection null to go back to the xmpp and direct socket clients
+	 */
+	public void setControllerConnection(ControllerConnection controllerConnection) {
+		this.controllerConnection = controllerConnection;
+		if (controllerConnection != null)
+			controllerConnection.setOnMessageListener(onMessageListener);
+	}
+
 	public String getXmppOwnJid() {
 		return xmppOwnJid;
 	}
@@ -255,32 +271,26 @@ public class NetworkCommunicationManager {
 	}
 
 	/**
-	 * This method is used by the {@link MainService} when it receives an intent
+	 * This method is used by the IntentHandler of the app when it receives an intent
 	 * from the activity requesting a connection between the smartphone and the
 	 * controller through XMPP.
 	 * 
-	 * @param intent
-	 *            The intent that contains the connection data.
-	 * @throws Exception
+	 * @param host the address of the XMPP server
+	 * @param port the port of the XMPP server
+	 * @param ownJid the Jid of the phone. The service name is taken from it.
+	 * @param ownPassword
+	 * @param ownResource
+	 * @param targetJid the Jid of the controller
 	 */
-	public void setupXmppConnection(Intent intent, Context context) {
-		this.xmppClient = new XmppClient(
-				intent.getStringExtra(IntentHandler.ActionExtras.SERVER_ADDRESS.extra),
-				Integer.parseInt(intent
-						.getStringExtra(IntentHandler.ActionExtras.SERVER_PORT.extra)),
-				intent.getStringExtra(
-						IntentHandler.ActionExtras.XMPP_OWN_JID.extra).split(
-						"@")[1]);
-		this.xmppOwnJid = intent
-				.getStringExtra(IntentHandler.ActionExtras.XMPP_OWN_JID.extra);
-		this.xmppOwnPassword = intent
-				.getStringExtra(IntentHandler.ActionExtras.XMPP_OWN_PASSWORD.extra);
-		this.xmppOwnResource = intent
-				.getStringExtra(IntentHandler.ActionExtras.XMPP_OWN_RESOURCE.extra);
-		this.xmppTargetJid = intent
-				.getStringExtra(IntentHandler.ActionExtras.XMPP_TARGET_JID.extra);
+	public void setupXmppConnection(String host, int port, String ownJid,
+			String ownPassword, String ownResource, String targetJid) {
+		this.xmppClient = new XmppClient(host, port, ownJid.split("@")[1]);
+		this.xmppOwnJid = ownJid;
+		this.xmppOwnPassword = ownPassword;
+		this.xmppOwnResource = ownResource;
+		this.xmppTargetJid = targetJid;
 		this.preferredCommunicationMethod = CommunicationMethods.XMPP;
-		networkCommunicationLooper.handler.post(new Runnable() {
+		networkCommunicationQueue.post(new Runnable() {
 			public void run() {
 				try {
 					connect();
@@ -294,22 +304,17 @@ public class NetworkCommunicationManager {
 	}
 
 	/**
-	 * This method is used by the {@link MainService} when it receives an intent
+	 * This method is used by the IntentHandler of the app when it receives an intent
 	 * from the activity requesting a connection between the smartphone and the
-	 * controller through XMPP.
-	 * 
-	 * @param intent
-	 *            The intent that contains the connection data.
-	 * @throws Exception
+	 * controller through a direct socket.
 	 */
-	public void setupDirectSocketConnection(Intent intent, Context context) {
+	public void setupDirectSocketConnection(String host, int port) {
 		// TODO Auto-generated method stub
 
 	}
 
 	/**
-	 * This method is used by the {@link MainService} when it receives an intent
-	 * (through {@link IntentHandler}). This class is obviously used to send a
+	 * This method is used by the {@link QuadrotorRuntime}. This class is obviously used to send a
 	 * message to the controller once a connection has been established. It uses
 	 * the best connection between the 2 options depending on the value of the
 	 * preferredCommunicationMethod variable.
@@ -320,7 +325,9 @@ public class NetworkCommunicationManager {
 	 *             If neither direct socket nor xmpp connections are setup
 	 */
 	public void sendNetworkMessage(String message) throws Exception {
-		if (xmppClient == null && directSocketClient == null) {
+		if (controllerConnection != null) {
+			controllerConnection.sendMessage(message);
+		} else if (xmppClient == null && directSocketClient == null) {
 			throw new Exception(
 					"Un-initialized communication clients; please initialize one");
 		} else if (xmppClient != null
@@ -332,8 +339,7 @@ public class NetworkCommunicationManager {
 	}
 
 	/**
-	 * This method is used by the {@link MainService} when it receives an intent
-	 * (through {@link IntentHandler}). This class is obviously used to send a
+	 * This method is used by the {@link QuadrotorRuntime}. This class is obviously used to send a
 	 * message to the controller once a connection has been established. It uses
 	 * the best connection between the 2 options depending on the value of the
 	 * preferredCommunicationMethod variable.
@@ -348,19 +354,17 @@ public class NetworkCommunicationManager {
 	}
 
 	private void sendConnectionFailure() {
-		Intent intent = new Intent(
-				XmppConnectionActivity.NETWORK_CONNECTION_STATUS_UPDATE);
-		intent.putExtra(XmppConnectionActivity.NETWORK_CONNECTION_STATUS,
-				XmppConnectionActivity.NETWORK_STATUS_CONNECTION_FAILURE);
-		owner.sendBroadcast(intent);
+		owner.getPlatform().sendStatusBroadcast(
+				StatusBroadcasts.NETWORK_CONNECTION_STATUS_UPDATE,
+				StatusBroadcasts.NETWORK_CONNECTION_STATUS,
+				StatusBroadcasts.NETWORK_STATUS_CONNECTION_FAILURE);
 	}
 
 	private void sendConnectionSuccess() {
-		Intent intent = new Intent(
-				XmppConnectionActivity.NETWORK_CONNECTION_STATUS_UPDATE);
-		intent.putExtra(XmppConnectionActivity.NETWORK_CONNECTION_STATUS,
-				XmppConnectionActivity.NETWORK_STATUS_CONNECTED);
-		owner.sendBroadcast(intent);
+		owner.getPlatform().sendStatusBroadcast(
+				StatusBroadcasts.NETWORK_CONNECTION_STATUS_UPDATE,
+				StatusBroadcasts.NETWORK_CONNECTION_STATUS,
+				StatusBroadcasts.NETWORK_STATUS_CONNECTED);
 	}
 
 	/**
@@ -370,7 +374,7 @@ public class NetworkCommunicationManager {
 	 *            the state of the quadrotor.
 	 */
 	public void sendSystemState(final SystemState state) {
-		networkCommunicationLooper.handler.post(new Runnable() {
+		networkCommunicationQueue.post(new Runnable() {
 			public void run() {
 				Responses responses = new Responses(null, null, null, null,
 						null, null, null, null, state.toString(), null);
@@ -379,29 +383,41 @@ public class NetworkCommunicationManager {
 					sendNetworkMessage(envelope);
 				} catch (Exception e) {
 					String errorStr = "Network failure: could not send system status";
-					Message msg = new Message();
-					msg.what = MainServiceHandler.TOAST_MESSAGE;
-					msg.obj = errorStr;
-					msg.arg1 = Toast.LENGTH_LONG;
-					owner.handler.sendMessage(msg);
+					owner.getPlatform().showUserMessage(errorStr);
 					Log.e(TAG, errorStr, e);
 				}
 			}
 		});
 	}
 
+	/**
+	 * Sends a line of debug data (like the telemetry of the estimators) to the controller over
+	 * the network. Nothing is reported if the network isn't connected.
+	 * 
+	 * @param debug
+	 *            the data.
+	 */
+	public void sendDebugData(final String debug) {
+		networkCommunicationQueue.post(new Runnable() {
+			public void run() {
+				Responses responses = new Responses(null, null, null, null,
+						null, null, null, null, null, debug);
+				Envelope envelope = new Envelope(null, null, responses);
+				try {
+					sendNetworkMessage(envelope);
+				} catch (Exception e) {
+					if (xmppClient != null || directSocketClient != null)
+						Log.e(TAG, "Network failure: could not send debug data", e);
+				}
+			}
+		});
+	}
+
 	public void sendKinematicsData(final long timestamp, final float roll,
 			final float pitch, final float yaw) {
 		// to make sure that the QCB can't overwhelm the phone application with
-		// kinematics data
-		if (networkCommunicationLooper.handler
-				.hasMessages(NetworkCommunicationLooper.KINEMATICS_MESSAGE)) {
-			networkCommunicationLooper.handler
-					.removeMessages(NetworkCommunicationLooper.KINEMATICS_MESSAGE);
-		}
-		Message msg = networkCommunicationLooper.handler
-				.obtainMessage(NetworkCommunicationLooper.KINEMATICS_MESSAGE);
-		msg.obj = new Runnable() {
+		// data, only the latest sample waits in the queue
+		networkCommunicationQueue.postCoalesced(KINEMATICS_MESSAGE, new Runnable() {
 			public void run() {
 				kinematicsSkipCount++;
 				if (kinematicsSkipCount == CACHE_SKIP_COUNT_MAX) {
@@ -427,11 +443,7 @@ public class NetworkCommunicationManager {
 							if (xmppClient != null
 									|| directSocketClient != null) {
 								String errorStr = "Network failure: could not send system status";
-								Message msg = new Message();
-								msg.what = MainServiceHandler.TOAST_MESSAGE;
-								msg.obj = errorStr;
-								msg.arg1 = Toast.LENGTH_LONG;
-								owner.handler.sendMessage(msg);
+								owner.getPlatform().showUserMessage(errorStr);
 								Log.e(TAG, errorStr, e);
 							}
 							// if the kinematicsCache is completely full, then
@@ -443,22 +455,14 @@ public class NetworkCommunicationManager {
 					}
 				}
 			}
-		};
-		networkCommunicationLooper.handler.sendMessage(msg);
+		});
 	}
 
 	public void sendAccelerometerData(final long timestamp, final float x,
 			final float y, final float z) {
 		// to make sure that the QCB can't overwhelm the phone application with
-		// data
-		if (networkCommunicationLooper.handler
-				.hasMessages(NetworkCommunicationLooper.ACCELEROMETER_MESSAGE)) {
-			networkCommunicationLooper.handler
-					.removeMessages(NetworkCommunicationLooper.ACCELEROMETER_MESSAGE);
-		}
-		Message msg = networkCommunicationLooper.handler
-				.obtainMessage(NetworkCommunicationLooper.ACCELEROMETER_MESSAGE);
-		msg.obj = new Runnable() {
+		// data, only the latest sample waits in the queue
+		networkCommunicationQueue.postCoalesced(ACCELEROMETER_MESSAGE, new Runnable() {
 			public void run() {
 				accelerometerSkipCount++;
 				if (accelerometerSkipCount == CACHE_SKIP_COUNT_MAX) {
@@ -484,11 +488,7 @@ public class NetworkCommunicationManager {
 							if (xmppClient != null
 									|| directSocketClient != null) {
 								String errorStr = "Network failure: could not send system status";
-								Message msg = new Message();
-								msg.what = MainServiceHandler.TOAST_MESSAGE;
-								msg.obj = errorStr;
-								msg.arg1 = Toast.LENGTH_LONG;
-								owner.handler.sendMessage(msg);
+								owner.getPlatform().showUserMessage(errorStr);
 								Log.e(TAG, errorStr, e);
 							}
 							// if the cache is completely full, then this is a
@@ -500,22 +500,14 @@ public class NetworkCommunicationManager {
 					}
 				}
 			}
-		};
-		networkCommunicationLooper.handler.sendMessage(msg);
+		});
 	}
 
 	public void sendMagnetometerData(final long timestamp, final float x,
 			final float y, final float z) {
 		// to make sure that the QCB can't overwhelm the phone application with
-		// data
-		if (networkCommunicationLooper.handler
-				.hasMessages(NetworkCommunicationLooper.MAGNETOMETER_MESSAGE)) {
-			networkCommunicationLooper.handler
-					.removeMessages(NetworkCommunicationLooper.MAGNETOMETER_MESSAGE);
-		}
-		Message msg = networkCommunicationLooper.handler
-				.obtainMessage(NetworkCommunicationLooper.MAGNETOMETER_MESSAGE);
-		msg.obj = new Runnable() {
+		// data, only the latest sample waits in the queue
+		networkCommunicationQueue.postCoalesced(MAGNETOMETER_MESSAGE, new Runnable() {
 			public void run() {
 				magnetometerSkipCount++;
 				if (magnetometerSkipCount == CACHE_SKIP_COUNT_MAX) {
@@ -541,11 +533,7 @@ public class NetworkCommunicationManager {
 							if (xmppClient != null
 									|| directSocketClient != null) {
 								String errorStr = "Network failure: could not send system status";
-								Message msg = new Message();
-								msg.what = MainServiceHandler.TOAST_MESSAGE;
-								msg.obj = errorStr;
-								msg.arg1 = Toast.LENGTH_LONG;
-								owner.handler.sendMessage(msg);
+								owner.getPlatform().showUserMessage(errorStr);
 								Log.e(TAG, errorStr, e);
 							}
 							// if the cache is completely full, then this is a
@@ -557,22 +545,14 @@ public class NetworkCommunicationManager {
 					}
 				}
 			}
-		};
-		networkCommunicationLooper.handler.sendMessage(msg);
+		});
 	}
 
 	public void sendGyroscopeData(final long timestamp, final float x,
 			final float y, final float z) {
 		// to make sure that the QCB can't overwhelm the phone application with
-		// data
-		if (networkCommunicationLooper.handler
-				.hasMessages(NetworkCommunicationLooper.GYROSCOPE_MESSAGE)) {
-			networkCommunicationLooper.handler
-					.removeMessages(NetworkCommunicationLooper.GYROSCOPE_MESSAGE);
-		}
-		Message msg = networkCommunicationLooper.handler
-				.obtainMessage(NetworkCommunicationLooper.GYROSCOPE_MESSAGE);
-		msg.obj = new Runnable() {
+		// data, only the latest sample waits in the queue
+		networkCommunicationQueue.postCoalesced(GYROSCOPE_MESSAGE, new Runnable() {
 			public void run() {
 				gyroscopeSkipCount++;
 				if (gyroscopeSkipCount == CACHE_SKIP_COUNT_MAX) {
@@ -598,11 +578,7 @@ public class NetworkCommunicationManager {
 							if (xmppClient != null
 									|| directSocketClient != null) {
 								String errorStr = "Network failure: could not send system status";
-								Message msg = new Message();
-								msg.what = MainServiceHandler.TOAST_MESSAGE;
-								msg.obj = errorStr;
-								msg.arg1 = Toast.LENGTH_LONG;
-								owner.handler.sendMessage(msg);
+								owner.getPlatform().showUserMessage(errorStr);
 								Log.e(TAG, errorStr, e);
 							}
 							// if the cache is completely full, then this is a
@@ -614,21 +590,13 @@ public class NetworkCommunicationManager {
 					}
 				}
 			}
-		};
-		networkCommunicationLooper.handler.sendMessage(msg);
+		});
 	}
 
 	public void sendHeightData(final long timestamp, final int height) {
 		// to make sure that the QCB can't overwhelm the phone application with
-		// data
-		if (networkCommunicationLooper.handler
-				.hasMessages(NetworkCommunicationLooper.HEIGHT_MESSAGE)) {
-			networkCommunicationLooper.handler
-					.removeMessages(NetworkCommunicationLooper.HEIGHT_MESSAGE);
-		}
-		Message msg = networkCommunicationLooper.handler
-				.obtainMessage(NetworkCommunicationLooper.HEIGHT_MESSAGE);
-		msg.obj = new Runnable() {
+		// data, only the latest sample waits in the queue
+		networkCommunicationQueue.postCoalesced(HEIGHT_MESSAGE, new Runnable() {
 			public void run() {
 				heightSkipCount++;
 				if (heightSkipCount == CACHE_SKIP_COUNT_MAX) {
@@ -653,11 +621,7 @@ public class NetworkCommunicationManager {
 							if (xmppClient != null
 									|| directSocketClient != null) {
 								String errorStr = "Network failure: could not send system status";
-								Message msg = new Message();
-								msg.what = MainServiceHandler.TOAST_MESSAGE;
-								msg.obj = errorStr;
-								msg.arg1 = Toast.LENGTH_LONG;
-								owner.handler.sendMessage(msg);
+								owner.getPlatform().showUserMessage(errorStr);
 								Log.e(TAG, errorStr, e);
 							}
 							// if the cache is completely full, then this is a
@@ -669,38 +633,6 @@ public class NetworkCommunicationManager {
 					}
 				}
 			}
-		};
-		networkCommunicationLooper.handler.sendMessage(msg);
-	}
-
-	public class NetworkCommunicationLooper extends Thread {
-		public static final int KINEMATICS_MESSAGE = 1;
-		public static final int ACCELEROMETER_MESSAGE = 2;
-		public static final int MAGNETOMETER_MESSAGE = 3;
-		public static final int GYROSCOPE_MESSAGE = 4;
-		public static final int HEIGHT_MESSAGE = 5;
-
-		public Handler handler;
-
-		public NetworkCommunicationLooper() {
-			super("NetworkCommunicationLooper");
-		}
-
-		public void run() {
-			Looper.prepare();
-			handler = new Handler() {
-				@Override
-				public void handleMessage(Message msg) {
-					if (msg.what == KINEMATICS_MESSAGE
-							|| msg.what == ACCELEROMETER_MESSAGE
-							|| msg.what == MAGNETOMETER_MESSAGE
-							|| msg.what == GYROSCOPE_MESSAGE
-							|| msg.what == HEIGHT_MESSAGE) {
-						((Runnable) msg.obj).run();
-					}
-				}
-			};
-			Looper.loop();
-		}
+		});
 	}
-}
\ No newline at end of file
+}
@@ -12,14 +12,14 @@ import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Presence;
 
-import android.util.Log;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Log;
 
 /**
  * This class takes care of all the over-heads of using XMPP as a means of communication.
  * @author Abhin
  *
  */
-public class XmppClient {
+public class XmppClient implements ControllerConnection {
 	public static final String TAG = XmppClient.class.getName();
 	private Connection connection;
 	private ChatManager chatManager;
@@ -104,6 +104,10 @@ public class XmppClient {
 		chat.sendMessage(message);
 	}
 	
+	public void setOnMessageListener(OnMessageListener onMessageListener) {
+		this.onMessageListener = onMessageListener;
+	}
+	
 	private ConnectionCreationListener connectionCreationListener = new ConnectionCreationListener() {
 		
 		public void connectionCreated(Connection connection) {
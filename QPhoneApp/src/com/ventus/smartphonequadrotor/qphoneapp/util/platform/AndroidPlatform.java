@@ -0,0 +1,96 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.platform;
+
+import java.io.File;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.widget.Toast;
+
+/**
+ * The {@link Platform} of the app on the phone.
+ * @author abhin
+ *
+ */
+public class AndroidPlatform implements Platform {
+	private Context context;
+	private Handler mainHandler;	//toasts can only be shown from the main thread
+
+	public AndroidPlatform(Context context) {
+		this.context = context;
+		this.mainHandler = new Handler(Looper.getMainLooper());
+		Log.setLogger(new AndroidLogger());
+	}
+
+	public TaskQueue startTaskQueue(String name) {
+		HandlerThread thread = new HandlerThread(name);
+		thread.start();
+		return new HandlerTaskQueue(thread.getLooper());
+	}
+
+	public void sendStatusBroadcast(String action, String statusExtra, int status) {
+		Intent intent = new Intent(action);
+		intent.putExtra(statusExtra, status);
+		context.sendBroadcast(intent);
+	}
+
+	public void showUserMessage(final String message) {
+		mainHandler.post(new Runnable() {
+			public void run() {
+				Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+			}
+		});
+	}
+
+	public File getFilesDir() {
+		return context.getFilesDir();
+	}
+
+	public QcbTransport createQcbTransport() {
+		return new BluetoothQcbTransport();
+	}
+
+	/**
+	 * A {@link TaskQueue} that posts to a {@link Handler}. The coalesced tasks are sent as
+	 * messages so that the pending ones can be removed by their {@link Message#what}.
+	 */
+	private static class HandlerTaskQueue implements TaskQueue {
+		private Handler handler;
+
+		public HandlerTaskQueue(Looper looper) {
+			handler = new Handler(looper) {
+				@Override
+				public void handleMessage(Message msg) {
+					((Runnable) msg.obj).run();
+				}
+			};
+		}
+
+		public void post(Runnable task) {
+			handler.post(task);
+		}
+
+		public void postCoalesced(int what, Runnable task) {
+			handler.removeMessages(what);
+			handler.sendMessage(handler.obtainMessage(what, task));
+		}
+
+		public void quit() {
+			handler.getLooper().quit();
+		}
+	}
+
+	/**
+	 * Sends the messages of {@link Log} to logcat.
+	 */
+	public static class AndroidLogger implements Logger {
+		public void log(int priority, String tag, String message, Throwable throwable) {
+			if (throwable != null)
+				message = message + '\n' + android.util.Log.getStackTraceString(throwable);
+			android.util.Log.println(priority, tag, message);
+		}
+	}
+}
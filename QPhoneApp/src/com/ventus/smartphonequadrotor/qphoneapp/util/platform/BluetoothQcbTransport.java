@@ -0,0 +1,50 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.platform;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * Connects to the QCB over bluetooth with the serial port profile.
+ * @author abhin
+ *
+ */
+public class BluetoothQcbTransport implements QcbTransport {
+	private static final UUID bluetoothConnectionUuid = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+	private BluetoothSocket socket;
+
+	/**
+	 * @param address the MAC address of the QCB
+	 */
+	public void connect(String address) throws IOException {
+		BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		if (adapter == null)
+			throw new IOException("Bluetooth is not available");
+		BluetoothDevice device;
+		try {
+			device = adapter.getRemoteDevice(address);
+		} catch (IllegalArgumentException ex) {
+			throw new IOException("Invalid bluetooth address: " + address);
+		}
+		socket = device.createRfcommSocketToServiceRecord(bluetoothConnectionUuid);
+		socket.connect();
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return socket.getOutputStream();
+	}
+
+	public void close() throws IOException {
+		if (socket != null)
+			socket.close();
+	}
+}
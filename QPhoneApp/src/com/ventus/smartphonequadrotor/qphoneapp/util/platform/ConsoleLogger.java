@@ -0,0 +1,39 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.platform;
+
+import java.io.PrintStream;
+
+/**
+ * Prints the messages in the format of logcat ("I/Tag: message").
+ * @author abhin
+ *
+ */
+public class ConsoleLogger implements Logger {
+	private static final char[] PRIORITY_LETTERS = new char[] {'?', '?', 'V', 'D', 'I', 'W', 'E', 'A'};
+
+	private int minimumPriority;
+	private PrintStream out;
+
+	/**
+	 * @param minimumPriority the messages below this priority are dropped
+	 * @param out
+	 */
+	public ConsoleLogger(int minimumPriority, PrintStream out) {
+		this.minimumPriority = minimumPriority;
+		this.out = out;
+	}
+
+	public ConsoleLogger(int minimumPriority) {
+		this(minimumPriority, System.out);
+	}
+
+	public void log(int priority, String tag, String message, Throwable throwable) {
+		if (priority < minimumPriority)
+			return;
+		char letter = (priority >= 0 && priority < PRIORITY_LETTERS.length) ? PRIORITY_LETTERS[priority] : '?';
+		synchronized (out) {
+			out.println(letter + "/" + tag + ": " + message);
+			if (throwable != null)
+				throwable.printStackTrace(out);
+		}
+	}
+}
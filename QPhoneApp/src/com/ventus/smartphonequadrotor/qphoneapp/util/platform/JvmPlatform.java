@@ -0,0 +1,48 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.platform;
+
+import java.io.File;
+
+/**
+ * The {@link Platform} of a headless Java process. There is no user interface, so the
+ * broadcasts and the messages for the user are logged. The QCB is whatever is at the other
+ * end of the given transport, e.g. a simulator feeding recorded packets.
+ * @author abhin
+ *
+ */
+public class JvmPlatform implements Platform {
+	public static final String TAG = JvmPlatform.class.getSimpleName();
+
+	private File filesDir;
+	private QcbTransport qcbTransport;
+
+	/**
+	 * @param filesDir the directory where the files of the app (e.g. the cmac weights) are kept
+	 * @param qcbTransport the transport that {@link #createQcbTransport()} returns
+	 */
+	public JvmPlatform(File filesDir, QcbTransport qcbTransport) {
+		this.filesDir = filesDir;
+		this.qcbTransport = qcbTransport;
+	}
+
+	public TaskQueue startTaskQueue(String name) {
+		ThreadTaskQueue taskQueue = new ThreadTaskQueue(name);
+		taskQueue.start();
+		return taskQueue;
+	}
+
+	public void sendStatusBroadcast(String action, String statusExtra, int status) {
+		Log.i(TAG, String.format("Broadcast %s: %s = %d", action, statusExtra, status));
+	}
+
+	public void showUserMessage(String message) {
+		Log.w(TAG, message);
+	}
+
+	public File getFilesDir() {
+		return filesDir;
+	}
+
+	public QcbTransport createQcbTransport() {
+		return qcbTransport;
+	}
+}
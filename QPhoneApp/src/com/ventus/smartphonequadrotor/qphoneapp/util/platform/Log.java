@@ -0,0 +1,60 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.platform;
+
+/**
+ * A drop-in replacement of {@link android.util.Log} for the classes of the flight stack, so
+ * that they can also run where the android classes aren't available. The messages go to
+ * the console unless another {@link Logger} is set; the {@link AndroidPlatform} sets one
+ * that sends them to logcat, so that this class doesn't depend on the android classes.
+ * @author abhin
+ *
+ */
+public final class Log {
+	//the same values as in android.util.Log
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+
+	private static volatile Logger logger = new ConsoleLogger(INFO);
+
+	private Log() {
+	}
+
+	public static void setLogger(Logger logger) {
+		if (logger == null)
+			throw new IllegalArgumentException("The logger is null");
+		Log.logger = logger;
+	}
+
+	public static Logger getLogger() {
+		return logger;
+	}
+
+	public static void d(String tag, String message) {
+		logger.log(DEBUG, tag, message, null);
+	}
+
+	public static void d(String tag, String message, Throwable throwable) {
+		logger.log(DEBUG, tag, message, throwable);
+	}
+
+	public static void i(String tag, String message) {
+		logger.log(INFO, tag, message, null);
+	}
+
+	public static void w(String tag, String message) {
+		logger.log(WARN, tag, message, null);
+	}
+
+	public static void w(String tag, String message, Throwable throwable) {
+		logger.log(WARN, tag, message, throwable);
+	}
+
+	public static void e(String tag, String message) {
+		logger.log(ERROR, tag, message, null);
+	}
+
+	public static void e(String tag, String message, Throwable throwable) {
+		logger.log(ERROR, tag, message, throwable);
+	}
+}
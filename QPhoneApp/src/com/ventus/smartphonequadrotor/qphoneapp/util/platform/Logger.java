@@ -0,0 +1,16 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.platform;
+
+/**
+ * The destination of the messages logged through {@link Log}.
+ * @author abhin
+ *
+ */
+public interface Logger {
+	/**
+	 * @param priority one of {@link Log#DEBUG}, {@link Log#INFO}, {@link Log#WARN} and {@link Log#ERROR}
+	 * @param tag
+	 * @param message
+	 * @param throwable null if there is none
+	 */
+	public void log(int priority, String tag, String message, Throwable throwable);
+}
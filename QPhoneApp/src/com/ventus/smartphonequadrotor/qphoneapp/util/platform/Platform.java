@@ -0,0 +1,44 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.platform;
+
+import java.io.File;
+
+/**
+ * Everything the flight stack needs from the system it runs on. {@link AndroidPlatform} is
+ * what the app uses; {@link JvmPlatform} runs the same stack in a plain Java process (on a
+ * desktop or a build server) so that it can be load-tested without a phone.
+ * Logging goes through {@link Log} instead because it is needed by classes that don't have
+ * access to the platform.
+ * @author abhin
+ *
+ */
+public interface Platform {
+	/**
+	 * Creates a thread that runs the tasks posted to the returned queue one after the other.
+	 * @param name the name of the thread
+	 */
+	public TaskQueue startTaskQueue(String name);
+
+	/**
+	 * Tells the user interface (if there is one) about a change of status, e.g. the
+	 * connection to the QCB being established.
+	 * @param action the action of the broadcast
+	 * @param statusExtra the name of the extra that holds the status
+	 * @param status
+	 */
+	public void sendStatusBroadcast(String action, String statusExtra, int status);
+
+	/**
+	 * Shows a message to the user (on the phone, as a toast). This can be called from any thread.
+	 */
+	public void showUserMessage(String message);
+
+	/**
+	 * @return the directory where the app can keep its files
+	 */
+	public File getFilesDir();
+
+	/**
+	 * @return a new, unconnected transport to the QCB
+	 */
+	public QcbTransport createQcbTransport();
+}
@@ -0,0 +1,31 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.platform;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The byte stream between the phone and the QCB. On the phone this is a bluetooth socket.
+ * @author abhin
+ *
+ */
+public interface QcbTransport {
+	/**
+	 * Blocks until the connection is established.
+	 * @param address the address of the QCB (the bluetooth MAC address on the phone)
+	 * @throws IOException if the connection could not be established
+	 */
+	public void connect(String address) throws IOException;
+
+	/**
+	 * @return the stream of the data sent by the QCB. This is only valid after {@link #connect(String)}.
+	 */
+	public InputStream getInputStream() throws IOException;
+
+	/**
+	 * @return the stream of the data sent to the QCB. This is only valid after {@link #connect(String)}.
+	 */
+	public OutputStream getOutputStream() throws IOException;
+
+	public void close() throws IOException;
+}
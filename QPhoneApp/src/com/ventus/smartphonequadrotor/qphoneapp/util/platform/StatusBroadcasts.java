@@ -0,0 +1,30 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.platform;
+
+/**
+ * The status broadcasts of the flight stack, sent through
+ * {@link Platform#sendStatusBroadcast(String, String, int)}. They are defined here rather than
+ * in the activities that receive them so that the flight stack doesn't depend on the
+ * android classes; the activities refer to these.
+ * @author abhin
+ *
+ */
+public final class StatusBroadcasts {
+	public static final String BLUETOOTH_CONNECTION_STATUS_UPDATE = "com.ventus."
+			+ "smartphonequadrotor.qphoneapp.activities.BluetoothConnectionActivity."
+			+ "BLUETOOTH_CONNECTION_STATUS_UPDATE";
+	public static final String BLUETOOTH_CONNECTION_STATUS = "BLUETOOTH_CONNECTION_STATUS";
+	public static final int BLUETOOTH_STATUS_CONNECTED = 1;
+	public static final int BLUETOOTH_STATUS_DISCONNECTED = 0;
+	public static final int BLUETOOTH_STATUS_CONNECTION_FAILURE = -1;
+
+	public static final String NETWORK_CONNECTION_STATUS_UPDATE = "com.ventus."
+			+ "smartphonequadrotor.qphoneapp.activities.XmppConnectionActivity."
+			+ "NETWORK_CONNECTION_STATUS_UPDATE";
+	public static final String NETWORK_CONNECTION_STATUS = "NETWORK_CONNECTION_STATUS";
+	public static final int NETWORK_STATUS_CONNECTED = 1;
+	public static final int NETWORK_STATUS_DISCONNECTED = 0;
+	public static final int NETWORK_STATUS_CONNECTION_FAILURE = -1;
+
+	private StatusBroadcasts() {
+	}
+}
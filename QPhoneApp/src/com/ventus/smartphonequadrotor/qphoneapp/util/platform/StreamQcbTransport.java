@@ -0,0 +1,41 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.platform;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link QcbTransport} over streams that are already open, e.g. pipes to a QCB simulator
+ * in the same process. The address given to {@link #connect(String)} is ignored.
+ * @author abhin
+ *
+ */
+public class StreamQcbTransport implements QcbTransport {
+	private InputStream inputStream;
+	private OutputStream outputStream;
+
+	public StreamQcbTransport(InputStream inputStream, OutputStream outputStream) {
+		this.inputStream = inputStream;
+		this.outputStream = outputStream;
+	}
+
+	public void connect(String address) throws IOException {
+		//already connected
+	}
+
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	public void close() throws IOException {
+		try {
+			inputStream.close();
+		} finally {
+			outputStream.close();
+		}
+	}
+}
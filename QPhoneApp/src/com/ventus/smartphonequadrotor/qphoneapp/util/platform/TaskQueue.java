@@ -0,0 +1,27 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.platform;
+
+/**
+ * A thread that runs the tasks posted to it in order. This is what a {@link android.os.Handler}
+ * on its own {@link android.os.Looper} is used for on the phone.
+ * @author abhin
+ *
+ */
+public interface TaskQueue {
+	/**
+	 * Runs the task on the thread of the queue after the tasks posted before it.
+	 */
+	public void post(Runnable task);
+
+	/**
+	 * Like {@link #post(Runnable)} but first drops the tasks of the same kind that haven't
+	 * started yet. This keeps a fast producer from flooding the queue with data that is
+	 * outdated by the time it is processed.
+	 * @param what identifies the kind of the task
+	 */
+	public void postCoalesced(int what, Runnable task);
+
+	/**
+	 * Stops the thread. The tasks that haven't started are dropped.
+	 */
+	public void quit();
+}
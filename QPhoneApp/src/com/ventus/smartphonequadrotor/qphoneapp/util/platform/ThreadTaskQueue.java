@@ -0,0 +1,107 @@
+package com.ventus.smartphonequadrotor.qphoneapp.util.platform;
+
+/**
+ * A {@link TaskQueue} in plain Java: a thread that waits on a list of tasks.
+ *
+ * The tasks are kept in a ring of preallocated arrays rather than in a list, so posting
+ * doesn't allocate unless the ring is full, in which case it doubles.
+ * @author abhin
+ *
+ */
+public class ThreadTaskQueue extends Thread implements TaskQueue {
+	public static final String TAG = ThreadTaskQueue.class.getSimpleName();
+	private static final int NOT_COALESCED = Integer.MIN_VALUE;
+	private static final int INITIAL_CAPACITY = 16;
+
+	//the following are guarded by this
+	private Runnable[] tasks = new Runnable[INITIAL_CAPACITY];
+	private int[] whats = new int[INITIAL_CAPACITY];	//the kind of each task in tasks
+	private int head = 0;	//the index of the next task to run
+	private int count = 0;
+	private boolean shouldRun = true;
+
+	public ThreadTaskQueue(String name) {
+		super(name);
+		setDaemon(true);	//like a looper, this doesn't keep the process alive
+	}
+
+	public synchronized void post(Runnable task) {
+		add(NOT_COALESCED, task);
+	}
+
+	public synchronized void postCoalesced(int what, Runnable task) {
+		//compact the ring over the tasks of the same kind
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			int from = (head + i) % tasks.length;
+			if (whats[from] != what) {
+				int to = (head + kept) % tasks.length;
+				tasks[to] = tasks[from];
+				whats[to] = whats[from];
+				kept++;
+			}
+		}
+		for (int i = kept; i < count; i++)
+			tasks[(head + i) % tasks.length] = null;
+		count = kept;
+		add(what, task);
+	}
+
+	private void add(int what, Runnable task) {
+		if (count == tasks.length)
+			grow();
+		int tail = (head + count) % tasks.length;
+		tasks[tail] = task;
+		whats[tail] = what;
+		count++;
+		notifyAll();
+	}
+
+	private void grow() {
+		Runnable[] newTasks = new Runnable[tasks.length * 2];
+		int[] newWhats = new int[tasks.length * 2];
+		for (int i = 0; i < count; i++) {
+			newTasks[i] = tasks[(head + i) % tasks.length];
+			newWhats[i] = whats[(head + i) % tasks.length];
+		}
+		tasks = newTasks;
+		whats = newWhats;
+		head = 0;
+	}
+
+	public synchronized void quit() {
+		shouldRun = false;
+		for (int i = 0; i < count; i++)
+			tasks[(head + i) % tasks.length] = null;
+		count = 0;
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			Runnable task;
+			synchronized (this) {
+				while (shouldRun && count == 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Log.w(TAG, "Wait interrupted in " + getName());
+					}
+				}
+				if (!shouldRun)
+					return;
+				task = tasks[head];
+				tasks[head] = null;
+				head = (head + 1) % tasks.length;
+				count--;
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				//a looper would die here, which kills the app. Without an app to kill, just carry on.
+				Log.e(TAG, "Task failed in " + getName(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import java.lang.reflect.Method;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Log;
+
+/**
+ * Counts the bytes allocated by the current thread for the {@link MicroBenchmark}s, with
+ * whatever the virtual machine offers: com.sun.management.ThreadMXBean on a HotSpot (or
+ * compatible) JVM and android.os.Debug on the phone. Both are looked up by reflection so
+ * that the benchmarks compile against either class library, and run without android.jar.
+ *
+ * The reflective calls box their results, so the bytes that a bare {@link #start()} and
+ * {@link #stop()} allocate are measured once and subtracted from every count.
+ * @author abhin
+ *
+ */
+public abstract class AllocationCounter {
+	public static final String TAG = AllocationCounter.class.getSimpleName();
+	private static final Object[] NO_ARGUMENTS = new Object[0];
+	/**
+	 * Enough calls for the reflection to settle on its final accessors before anything is
+	 * counted.
+	 */
+	private static final int WARMUP_CALLS = 50;
+
+	private long overhead;
+
+	/**
+	 * @return a counter for the current virtual machine. Its counts are 0 if the virtual
+	 * machine can't count the allocations.
+	 */
+	public static AllocationCounter create() {
+		AllocationCounter counter;
+		try {
+			counter = new ThreadMXBeanCounter();
+		} catch (Exception e) {
+			try {
+				counter = new DebugCounter();
+			} catch (Exception e2) {
+				Log.w(TAG, "The allocations can't be counted on this virtual machine");
+				counter = new NoCounter();
+			}
+		}
+		counter.calibrate();
+		return counter;
+	}
+
+	private void calibrate() {
+		overhead = Long.MAX_VALUE;
+		for (int i = 0; i < WARMUP_CALLS; i++) {
+			begin();
+			overhead = Math.min(overhead, end());
+		}
+	}
+
+	/**
+	 * Starts counting on the current thread.
+	 */
+	public void start() {
+		begin();
+	}
+
+	/**
+	 * @return the bytes allocated by the current thread since {@link #start()}
+	 */
+	public long stop() {
+		return Math.max(0, end() - overhead);
+	}
+
+	protected abstract void begin();
+
+	protected abstract long end();
+
+	private static long invoke(Method method, Object target, Object[] arguments) {
+		try {
+			return ((Number) method.invoke(target, arguments)).longValue();
+		} catch (Exception e) {
+			throw new IllegalStateException("Can't count the allocations", e);
+		}
+	}
+
+	/**
+	 * Reads the total that the JVM keeps for every thread.
+	 */
+	private static class ThreadMXBeanCounter extends AllocationCounter {
+		private Object threadMXBean;
+		private Method getThreadAllocatedBytes;
+		private Object[] threadId;
+		private long startBytes;
+
+		public ThreadMXBeanCounter() throws Exception {
+			threadMXBean = Class.forName("java.lang.management.ManagementFactory")
+				.getMethod("getThreadMXBean").invoke(null, NO_ARGUMENTS);
+			getThreadAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+				.getMethod("getThreadAllocatedBytes", long.class);
+			threadId = new Object[] {Thread.currentThread().getId()};
+			if (invoke(getThreadAllocatedBytes, threadMXBean, threadId) < 0)
+				throw new UnsupportedOperationException("The allocations aren't counted");
+		}
+
+		@Override
+		protected void begin() {
+			threadId = new Object[] {Thread.currentThread().getId()};
+			startBytes = invoke(getThreadAllocatedBytes, threadMXBean, threadId);
+		}
+
+		@Override
+		protected long end() {
+			return invoke(getThreadAllocatedBytes, threadMXBean, threadId) - startBytes;
+		}
+	}
+
+	/**
+	 * Uses the allocation counters of the Dalvik VM, which only count while they are enabled.
+	 */
+	private static class DebugCounter extends AllocationCounter {
+		private Method startAllocCounting;
+		private Method resetThreadAllocSize;
+		private Method getThreadAllocSize;
+		private Method stopAllocCounting;
+
+		public DebugCounter() throws Exception {
+			Class<?> debug = Class.forName("android.os.Debug");
+			startAllocCounting = debug.getMethod("startAllocCounting");
+			resetThreadAllocSize = debug.getMethod("resetThreadAllocSize");
+			getThreadAllocSize = debug.getMethod("getThreadAllocSize");
+			stopAllocCounting = debug.getMethod("stopAllocCounting");
+		}
+
+		@Override
+		protected void begin() {
+			try {
+				startAllocCounting.invoke(null, NO_ARGUMENTS);
+				resetThreadAllocSize.invoke(null, NO_ARGUMENTS);
+			} catch (Exception e) {
+				throw new IllegalStateException("Can't count the allocations", e);
+			}
+		}
+
+		@Override
+		protected long end() {
+			long allocatedBytes = invoke(getThreadAllocSize, null, NO_ARGUMENTS);
+			try {
+				stopAllocCounting.invoke(null, NO_ARGUMENTS);
+			} catch (Exception e) {
+				throw new IllegalStateException("Can't count the allocations", e);
+			}
+			return allocatedBytes;
+		}
+	}
+
+	private static class NoCounter extends AllocationCounter {
+		@Override
+		protected void begin() {
+		}
+
+		@Override
+		protected long end() {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.AsyncDataPacket;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommands;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommunication;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares decoding the kinematics packets of the QCB through an {@link AsyncDataPacket}
+ * view with decoding them by hand with {@link QcfpCommunication#decodeFloat(byte[], int)}
+ * into boxed floats, as the async data callback used to.
+ * @author abhin
+ *
+ */
+public class AsyncDataPacketBenchmark extends TestCase {
+	private static final int PACKETS = 1024;
+	private static final int ITERATIONS = 200000;	//long enough for the JIT to compile the decoders
+
+	private byte[] packets;	//back to back
+	private double sink;	//keeps the JIT from dropping the computations
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		Random random = new Random(19);
+		ByteBuffer buffer = ByteBuffer.allocate(PACKETS * AsyncDataPacket.TriAxis.LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < PACKETS; i++) {
+			buffer.put(QcfpCommands.QCFP_ASYNC_DATA).put((byte) AsyncDataPacket.DATA_SOURCE_KIN).putInt(i * 10);
+			for (int axis = 0; axis < 3; axis++)
+				buffer.putFloat((float) random.nextGaussian());
+		}
+		packets = buffer.array();
+	}
+
+	public void testView() {
+		final ByteBuffer buffer = new AsyncDataPacket.Buffers().wrap(packets);
+		final AsyncDataPacket.Kinematics kinematics = new AsyncDataPacket.Kinematics();
+		MicroBenchmark.Result result = new MicroBenchmark("AsyncDataPacket.Kinematics") {
+			@Override
+			protected void runOnce(int iteration) {
+				int offset = (iteration % PACKETS) * AsyncDataPacket.TriAxis.LENGTH;
+				if (kinematics.wrap(buffer, offset, AsyncDataPacket.TriAxis.LENGTH))
+					sink += kinematics.getTimestamp() + kinematics.getRoll() + kinematics.getPitch() + kinematics.getYaw();
+			}
+		}.measure(ITERATIONS, ITERATIONS);
+		//anything below a byte per packet can't be an allocation made by the packet itself
+		assertTrue("The view allocated memory", result.bytesPerOp < 1);
+		assertFalse(Double.isNaN(sink));
+	}
+
+	public void testDecodeFloat() {
+		new MicroBenchmark("QcfpCommunication.decodeFloat") {
+			@Override
+			protected void runOnce(int iteration) {
+				int offset = (iteration % PACKETS) * AsyncDataPacket.TriAxis.LENGTH;
+				long timestamp =
+						((packets[offset + 2]   <<  0) & 0x00000000FF) |
+						((packets[offset + 3] <<  8) & 0x000000FF00) |
+						((packets[offset + 4] << 16) & 0x0000FF0000) |
+						((packets[offset + 5] << 24) & 0x00FF000000);
+				Float roll = QcfpCommunication.decodeFloat(packets, offset + AsyncDataPacket.TriAxis.X_INDEX);
+				Float pitch = QcfpCommunication.decodeFloat(packets, offset + AsyncDataPacket.TriAxis.Y_INDEX);
+				Float yaw = QcfpCommunication.decodeFloat(packets, offset + AsyncDataPacket.TriAxis.Z_INDEX);
+				sink += timestamp + roll + pitch + yaw;
+			}
+		}.measure(ITERATIONS, ITERATIONS);
+		assertFalse(Double.isNaN(sink));
+	}
+}
@@ -0,0 +1,97 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.AttitudeEstimator;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.KinematicsEstimator;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.MahonyAttitudeEstimator;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the {@link AttitudeEstimator}s on an {@link ImuTrajectory}: the time and the
+ * garbage of one sample (an accelerometer, a magnetometer and a gyroscope packet, as they
+ * arrive from the QCB) and the accuracy against the true attitude, with a gyroscope bias and
+ * noise on the sensors.
+ * @author abhin
+ *
+ */
+public class AttitudeEstimatorBenchmark extends TestCase {
+	private static final String TAG = AttitudeEstimatorBenchmark.class.getSimpleName();
+	private static final int TRAJECTORY_LENGTH = 120000;	//two minutes at 1kHz
+	private static final int SETTLING_SAMPLES = 30000;
+	private static final double GYRO_BIAS = 0.01;	//radians per second
+	private static final double NOISE = 0.01;
+
+	private ImuTrajectory trajectory;
+	private double sink;	//keeps the JIT from dropping the computations
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		trajectory = new ImuTrajectory(TRAJECTORY_LENGTH, GYRO_BIAS, NOISE, 7);
+	}
+
+	private void register(AttitudeEstimator estimator, int i) {
+		float[] accel = trajectory.accel[i];
+		float[] mag = trajectory.mag[i];
+		float[] gyro = trajectory.gyro[i];
+		long timestamp = trajectory.timestamps[i];
+		estimator.registerAccelValues(accel[0], accel[1], accel[2], timestamp);
+		estimator.registerMagValues(mag[0], mag[1], mag[2], timestamp);
+		estimator.registerGyroValues(gyro[0], gyro[1], gyro[2], timestamp);
+	}
+
+	private MicroBenchmark.Result measureUpdate(String name, final AttitudeEstimator estimator) {
+		MicroBenchmark.Result result = new MicroBenchmark(name + " update") {
+			@Override
+			protected void runOnce(int iteration) {
+				register(estimator, iteration % TRAJECTORY_LENGTH);
+				sink += estimator.getRoll();
+			}
+		}.measure(TRAJECTORY_LENGTH / 10, TRAJECTORY_LENGTH / 2);
+		//anything below a byte per sample can't be an allocation made by the sample itself
+		assertTrue(name + " allocated memory", result.bytesPerOp < 1);
+		return result;
+	}
+
+	/**
+	 * @return the root mean square of the errors of the roll, pitch and yaw (in that order)
+	 * once the estimator has settled
+	 */
+	private double[] measureAccuracy(String name, AttitudeEstimator estimator) {
+		estimator.reset();
+		double[] squares = new double[3];
+		for (int i = 0; i < TRAJECTORY_LENGTH; i++) {
+			register(estimator, i);
+			if (i >= SETTLING_SAMPLES) {
+				double roll = ImuTrajectory.angleError(estimator.getRoll(), trajectory.rolls[i]);
+				double pitch = ImuTrajectory.angleError(estimator.getPitch(), trajectory.pitches[i]);
+				double yaw = ImuTrajectory.angleError(estimator.getYaw(), trajectory.yaws[i]);
+				squares[0] += roll * roll;
+				squares[1] += pitch * pitch;
+				squares[2] += yaw * yaw;
+			}
+		}
+		for (int i = 0; i < squares.length; i++)
+			squares[i] = Math.sqrt(squares[i] / (TRAJECTORY_LENGTH - SETTLING_SAMPLES));
+		Log.i(TAG, String.format("%s rms error (rad): roll %.4f, pitch %.4f, yaw %.4f", name, squares[0], squares[1], squares[2]));
+		return squares;
+	}
+
+	public void testKinematicsEstimator() {
+		KinematicsEstimator estimator = new KinematicsEstimator();
+		measureUpdate("KinematicsEstimator", estimator);
+		double[] errors = measureAccuracy("KinematicsEstimator", estimator);
+		for (double error : errors)
+			assertTrue(error < 0.1);
+	}
+
+	public void testMahonyAttitudeEstimator() {
+		MahonyAttitudeEstimator estimator = new MahonyAttitudeEstimator();
+		measureUpdate("MahonyAttitudeEstimator", estimator);
+		double[] errors = measureAccuracy("MahonyAttitudeEstimator", estimator);
+		//the integral feedback removes the gyroscope bias
+		for (double error : errors)
+			assertTrue(error < 0.02);
+		assertFalse(Double.isNaN(sink));
+	}
+}
@@ -0,0 +1,80 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacActivationTable;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacInputParam;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacLayer;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the ways of evaluating the activation function of a {@link CmacLayer} input (the
+ * product of the spline over all the {@value CmacInputParam#count} dimensions): Math.pow as
+ * the layer used to, the factored polynomial and interpolation from tables of a few resolutions.
+ * @author abhin
+ *
+ */
+public class CmacActivationBenchmark extends TestCase {
+	private static final int NUMBER_OF_INPUTS = 1024;
+
+	private double[][] positions;
+	private double sink;	//keeps the JIT from dropping the computations
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		Random random = new Random(13);
+		positions = new double[NUMBER_OF_INPUTS][CmacInputParam.count];
+		for (int i = 0; i < NUMBER_OF_INPUTS; i++) {
+			for (int j = 0; j < CmacInputParam.count; j++) {
+				positions[i][j] = random.nextDouble();
+			}
+		}
+	}
+
+	private MicroBenchmark.Result measureTable(int resolution) {
+		final CmacActivationTable table = new CmacActivationTable(resolution);
+		return new MicroBenchmark("table with resolution " + resolution) {
+			@Override
+			protected void runOnce(int iteration) {
+				double[] x = positions[iteration % NUMBER_OF_INPUTS];
+				double activationFunction = 1;
+				for (int i = 0; i < x.length; i++)
+					activationFunction *= table.lookup(x[i]);
+				sink += activationFunction;
+			}
+		}.measure(10 * MicroBenchmark.DEFAULT_WARMUP_ITERATIONS, 20 * MicroBenchmark.DEFAULT_MEASURED_ITERATIONS);
+	}
+
+	public void testActivationFunction() {
+		MicroBenchmark.Result pow = new MicroBenchmark("Math.pow") {
+			@Override
+			protected void runOnce(int iteration) {
+				double[] x = positions[iteration % NUMBER_OF_INPUTS];
+				double activationFunction = 1;
+				for (int i = 0; i < x.length; i++)
+					activationFunction *= Math.pow(x[i], 2) - 2*Math.pow(x[i], 3) + Math.pow(x[i], 4);
+				sink += activationFunction;
+			}
+		}.measure(10 * MicroBenchmark.DEFAULT_WARMUP_ITERATIONS, 20 * MicroBenchmark.DEFAULT_MEASURED_ITERATIONS);
+
+		MicroBenchmark.Result factored = new MicroBenchmark("(x*(1-x))^2") {
+			@Override
+			protected void runOnce(int iteration) {
+				double[] x = positions[iteration % NUMBER_OF_INPUTS];
+				double activationFunction = 1;
+				for (int i = 0; i < x.length; i++)
+					activationFunction *= CmacActivationTable.evaluate(x[i]);
+				sink += activationFunction;
+			}
+		}.measure(10 * MicroBenchmark.DEFAULT_WARMUP_ITERATIONS, 20 * MicroBenchmark.DEFAULT_MEASURED_ITERATIONS);
+
+		measureTable(64);
+		measureTable(1024);
+		measureTable(65536);
+
+		assertFalse(Double.isNaN(sink));
+		double speedup = MicroBenchmark.reportSpeedup(pow, factored);
+		MicroBenchmark.assertTiming("The factored polynomial is slower than Math.pow", speedup > 1);
+	}
+}
@@ -0,0 +1,88 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacInputParam;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacLayer;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacOutput;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.ControlLoop;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the cost of the weight lookups of one control tick when the update looks the cell up
+ * again ({@link CmacLayer#applyDeltas(double[], double[], double[], int, long)}) and when it reuses
+ * the cell found by the query ({@link CmacLayer#applyDeltasToQueriedCell(double[], double[], int, long)}).
+ * @author abhin
+ *
+ */
+public class CmacLookupBenchmark extends TestCase {
+	private static final int NUMBER_OF_INPUTS = 1024;
+
+	private CmacLayer[] layers;
+	private double[][] inputs;
+	private double[] controlWeights = new double[CmacOutput.NUMBER_OF_WEIGHTS];
+	private double[] alternateWeights = new double[CmacOutput.NUMBER_OF_WEIGHTS];
+	private double[] deltas = new double[CmacOutput.NUMBER_OF_WEIGHTS];
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		SimpleMatrix offsetIncrement = CmacInputParam.getDefaultMaxBound()
+				.minus(CmacInputParam.getDefaultMinBound())
+				.divide(ControlLoop.NUMBER_OF_CMAC_LAYERS * ControlLoop.QUANTIZATION_NUMBER);
+		layers = new CmacLayer[ControlLoop.NUMBER_OF_CMAC_LAYERS];
+		for (int i = 0; i < layers.length; i++) {
+			layers[i] = new CmacLayer(offsetIncrement.mult(i));
+		}
+		for (int i = 0; i < deltas.length; i++) {
+			deltas[i] = 0.001;
+		}
+
+		//a random walk through the state space that stays in a few cells around hover
+		Random random = new Random(42);
+		SimpleMatrix stateInterval = CmacInputParam.getDefaultMaxBound()
+				.minus(CmacInputParam.getDefaultMinBound())
+				.divide(ControlLoop.QUANTIZATION_NUMBER);
+		inputs = new double[NUMBER_OF_INPUTS][CmacInputParam.count];
+		double[] state = new double[CmacInputParam.count];
+		for (int i = 0; i < NUMBER_OF_INPUTS; i++) {
+			for (int j = 0; j < CmacInputParam.count; j++) {
+				double next = state[j] + random.nextGaussian() * stateInterval.get(j) * 0.1;
+				state[j] = Math.max(-2 * stateInterval.get(j), Math.min(2 * stateInterval.get(j), next));
+			}
+			System.arraycopy(state, 0, inputs[i], 0, state.length);
+		}
+	}
+
+	/**
+	 * Measures a query and an update of every layer with both the ways of applying the update.
+	 */
+	public void testLookupsPerControlTick() {
+		MicroBenchmark.Result separate = new MicroBenchmark("query + applyDeltas") {
+			@Override
+			protected void runOnce(int iteration) {
+				double[] input = inputs[iteration % NUMBER_OF_INPUTS];
+				for (int i = 0; i < layers.length; i++) {
+					layers[i].query(input, controlWeights, alternateWeights, 0);
+					layers[i].applyDeltas(input, deltas, deltas, 0, 50);
+				}
+			}
+		}.measure(NUMBER_OF_INPUTS, MicroBenchmark.DEFAULT_MEASURED_ITERATIONS);	//warm up with every input so that no cells get created while measuring
+
+		MicroBenchmark.Result fused = new MicroBenchmark("query + applyDeltasToQueriedCell") {
+			@Override
+			protected void runOnce(int iteration) {
+				double[] input = inputs[iteration % NUMBER_OF_INPUTS];
+				for (int i = 0; i < layers.length; i++) {
+					layers[i].query(input, controlWeights, alternateWeights, 0);
+					layers[i].applyDeltasToQueriedCell(deltas, deltas, 0, 50);
+				}
+			}
+		}.measure(NUMBER_OF_INPUTS, MicroBenchmark.DEFAULT_MEASURED_ITERATIONS);
+
+		assertTrue("The fused update allocated memory", fused.bytesPerOp < 1);
+		double speedup = MicroBenchmark.reportSpeedup(separate, fused);
+		MicroBenchmark.assertTiming("Reusing the queried cell is slower than looking it up again", speedup > 1);
+	}
+}
@@ -0,0 +1,85 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacInputParam;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacLayer;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacQuantizer;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.ControlLoop;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the cost of finding the cell of an input with {@link CmacQuantizer} against the
+ * matrix based rounding that {@link CmacLayer#roundAndOffsetInput(SimpleMatrix)} used to do.
+ * @author abhin
+ *
+ */
+public class CmacQuantizerBenchmark extends TestCase {
+	private static final int NUMBER_OF_INPUTS = 256;
+	/**
+	 * The quantizer has to be at least this many times cheaper than the old rounding.
+	 */
+	private static final double REQUIRED_SPEEDUP = 20;
+	
+	private SimpleMatrix lowerBound;
+	private SimpleMatrix stateInterval;
+	private SimpleMatrix offset;
+	private SimpleMatrix[] inputs;
+	private double[][] primitiveInputs;
+	private int[] cells;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		lowerBound = CmacInputParam.getDefaultMinBound();
+		stateInterval = CmacInputParam.getDefaultMaxBound()
+						.minus(lowerBound)
+						.divide(ControlLoop.QUANTIZATION_NUMBER);
+		offset = stateInterval.divide(ControlLoop.NUMBER_OF_CMAC_LAYERS);
+		cells = new int[CmacInputParam.count];
+		
+		Random random = new Random(7);
+		inputs = new SimpleMatrix[NUMBER_OF_INPUTS];
+		primitiveInputs = new double[NUMBER_OF_INPUTS][CmacInputParam.count];
+		for (int n = 0; n < NUMBER_OF_INPUTS; n++) {
+			inputs[n] = new SimpleMatrix(1, CmacInputParam.count);
+			for (int i = 0; i < CmacInputParam.count; i++) {
+				double value = random.nextGaussian() * 5 * stateInterval.get(i);
+				inputs[n].set(i, value);
+				primitiveInputs[n][i] = value;
+			}
+		}
+	}
+	
+	public void testQuantizerAgainstMatrixRounding() {
+		MicroBenchmark.Result legacy = new MicroBenchmark("matrix rounding") {
+			@Override
+			protected void runOnce(int iteration) {
+				//this is how CmacLayer.roundAndOffsetInput used to find the cell
+				SimpleMatrix input = inputs[iteration % NUMBER_OF_INPUTS];
+				SimpleMatrix roundedOffsettedInput = input.minus(offset).minus(lowerBound);
+				for (int i = 0; i < input.getNumElements(); i++) {
+					roundedOffsettedInput.set(
+						i,
+						(int)(roundedOffsettedInput.get(i) / stateInterval.get(i))
+					);
+				}
+				roundedOffsettedInput = roundedOffsettedInput.elementMult(stateInterval).plus(lowerBound);
+				roundedOffsettedInput.round();
+			}
+		}.measure();
+		
+		final CmacQuantizer quantizer = new CmacQuantizer(lowerBound, stateInterval, offset);
+		MicroBenchmark.Result fast = new MicroBenchmark("CmacQuantizer") {
+			@Override
+			protected void runOnce(int iteration) {
+				quantizer.quantize(primitiveInputs[iteration % NUMBER_OF_INPUTS], cells);
+			}
+		}.measure(MicroBenchmark.DEFAULT_WARMUP_ITERATIONS * 10, MicroBenchmark.DEFAULT_MEASURED_ITERATIONS * 10);
+		
+		assertTrue("The quantizer allocated memory", fast.bytesPerOp < 1);
+		double speedup = MicroBenchmark.reportSpeedup(legacy, fast);
+		MicroBenchmark.assertTiming(String.format("The quantizer is only %.1fx faster", speedup), speedup >= REQUIRED_SPEEDUP);
+	}
+}
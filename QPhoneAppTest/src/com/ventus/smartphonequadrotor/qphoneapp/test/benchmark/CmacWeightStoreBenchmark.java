@@ -0,0 +1,122 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacInputParam;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacLayer;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacOutput;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacWeightStore;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.ControlLoop;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the cost of the weight lookups of one control tick (a query and an update in each of
+ * the {@value ControlLoop#NUMBER_OF_CMAC_LAYERS} layers) between the HashMap&lt;SimpleMatrix, SimpleMatrix&gt;
+ * tables that {@link CmacLayer} used to have and the {@link CmacWeightStore}.
+ * @author abhin
+ *
+ */
+public class CmacWeightStoreBenchmark extends TestCase {
+	private static final int NUMBER_OF_INPUTS = 1024;
+	
+	private CmacLayer[] layers;
+	private SimpleMatrix[] inputs;
+	private List<HashMap<SimpleMatrix, SimpleMatrix>> legacyControlWeights;
+	private List<HashMap<SimpleMatrix, SimpleMatrix>> legacyAlternateWeights;
+	private CmacWeightStore[] stores;
+	private int[] cells;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		SimpleMatrix offsetIncrement = CmacInputParam.getDefaultMaxBound()
+				.minus(CmacInputParam.getDefaultMinBound())
+				.divide(ControlLoop.NUMBER_OF_CMAC_LAYERS * ControlLoop.QUANTIZATION_NUMBER);
+		layers = new CmacLayer[ControlLoop.NUMBER_OF_CMAC_LAYERS];
+		legacyControlWeights = new ArrayList<HashMap<SimpleMatrix, SimpleMatrix>>(ControlLoop.NUMBER_OF_CMAC_LAYERS);
+		legacyAlternateWeights = new ArrayList<HashMap<SimpleMatrix, SimpleMatrix>>(ControlLoop.NUMBER_OF_CMAC_LAYERS);
+		stores = new CmacWeightStore[ControlLoop.NUMBER_OF_CMAC_LAYERS];
+		for (int i = 0; i < layers.length; i++) {
+			layers[i] = new CmacLayer(offsetIncrement.mult(i));
+			legacyControlWeights.add(new HashMap<SimpleMatrix, SimpleMatrix>());
+			legacyAlternateWeights.add(new HashMap<SimpleMatrix, SimpleMatrix>());
+			stores[i] = new CmacWeightStore();
+		}
+		cells = new int[CmacInputParam.count];
+		
+		//a random walk through the state space that stays in a few cells around hover
+		Random random = new Random(42);
+		SimpleMatrix stateInterval = CmacInputParam.getDefaultMaxBound()
+				.minus(CmacInputParam.getDefaultMinBound())
+				.divide(ControlLoop.QUANTIZATION_NUMBER);
+		inputs = new SimpleMatrix[NUMBER_OF_INPUTS];
+		SimpleMatrix state = new SimpleMatrix(1, CmacInputParam.count);
+		for (int i = 0; i < NUMBER_OF_INPUTS; i++) {
+			for (int j = 0; j < CmacInputParam.count; j++) {
+				double next = state.get(j) + random.nextGaussian() * stateInterval.get(j) * 0.1;
+				state.set(j, Math.max(-2 * stateInterval.get(j), Math.min(2 * stateInterval.get(j), next)));
+			}
+			inputs[i] = state.copy();
+		}
+	}
+	
+	/**
+	 * Measures the weight lookups of a control tick for both the implementations.
+	 */
+	public void testLookupsPerControlTick() {
+		MicroBenchmark.Result legacy = new MicroBenchmark("HashMap lookups per tick") {
+			private SimpleMatrix delta = SimpleMatrix.ones(1, CmacOutput.NUMBER_OF_WEIGHTS).mult(0.001);
+			
+			@Override
+			protected void runOnce(int iteration) {
+				SimpleMatrix input = inputs[iteration % NUMBER_OF_INPUTS];
+				for (int i = 0; i < layers.length; i++) {
+					//query
+					SimpleMatrix key = layers[i].roundAndOffsetInput(input);
+					legacyControlWeights.get(i).get(key);
+					legacyAlternateWeights.get(i).get(key);
+					//update
+					key = layers[i].roundAndOffsetInput(input);
+					SimpleMatrix control = legacyControlWeights.get(i).get(key);
+					if (control == null)
+						legacyControlWeights.get(i).put(key, delta.copy());
+					else
+						control.inPlacePlus(delta);
+					SimpleMatrix alternate = legacyAlternateWeights.get(i).get(key);
+					if (alternate == null)
+						legacyAlternateWeights.get(i).put(key, delta.copy());
+					else
+						alternate.inPlacePlus(delta);
+				}
+			}
+		}.measure(NUMBER_OF_INPUTS, MicroBenchmark.DEFAULT_MEASURED_ITERATIONS);
+		
+		MicroBenchmark.Result store = new MicroBenchmark("CmacWeightStore lookups per tick") {
+			@Override
+			protected void runOnce(int iteration) {
+				SimpleMatrix input = inputs[iteration % NUMBER_OF_INPUTS];
+				for (int i = 0; i < layers.length; i++) {
+					//query
+					layers[i].getQuantizer().quantize(input, cells);
+					stores[i].find(CmacWeightStore.packHigh(cells), CmacWeightStore.packLow(cells));
+					//update
+					layers[i].getQuantizer().quantize(input, cells);
+					int slot = stores[i].findOrInsert(CmacWeightStore.packHigh(cells), CmacWeightStore.packLow(cells));
+					double[] weights = stores[i].getWeights();
+					for (int j = 0; j < CmacWeightStore.WEIGHTS_PER_CELL; j++) {
+						weights[slot * CmacWeightStore.WEIGHTS_PER_CELL + j] += 0.001;
+					}
+				}
+			}
+		}.measure(NUMBER_OF_INPUTS, MicroBenchmark.DEFAULT_MEASURED_ITERATIONS);	//warm up with every input so that no cells get created while measuring
+		
+		//anything below a byte per tick can't be an allocation made by the tick itself
+		assertTrue("The weight store allocated memory", store.bytesPerOp < 1);
+		double speedup = MicroBenchmark.reportSpeedup(legacy, store);
+		MicroBenchmark.assertTiming("The weight store is slower than the hash maps", speedup > 1);
+	}
+}
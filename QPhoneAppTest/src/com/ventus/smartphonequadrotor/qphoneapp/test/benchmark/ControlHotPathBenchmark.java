@@ -0,0 +1,174 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacInputParam;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacLayer;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacOutput;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.ControlLoop;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.DataAggregator;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.MotorModel;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures every step that one tick of the {@link ControlLoop} goes through, replaying a
+ * {@link StateTrajectory} so that the inputs (and the cells of the CMAC they touch) are the
+ * ones of a flight. Each test reports the time, the throughput and the garbage produced per
+ * call. These are the numbers to compare before and after a change to the control path.
+ * @author abhin
+ *
+ */
+public class ControlHotPathBenchmark extends TestCase {
+	private static final int TRAJECTORY_LENGTH = 1200;	//one minute of flight
+
+	private StateTrajectory trajectory;
+	private SimpleMatrix[] inputs;
+	private SimpleMatrix[] cmacOutputs;
+	private SimpleMatrix[] motorRps;
+	private SimpleMatrix deltas;
+	private double sink;	//keeps the JIT from dropping the computations
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		trajectory = new StateTrajectory(TRAJECTORY_LENGTH, 17);
+		inputs = new SimpleMatrix[TRAJECTORY_LENGTH];
+		motorRps = new SimpleMatrix[TRAJECTORY_LENGTH];
+		for (int i = 0; i < TRAJECTORY_LENGTH; i++) {
+			inputs[i] = new SimpleMatrix(1, CmacInputParam.count, true, trajectory.cmacInputs[i]);
+			motorRps[i] = new SimpleMatrix(1, MotorModel.NUMBER_OF_MOTORS, true, trajectory.motorRps[i]);
+		}
+		deltas = SimpleMatrix.ones(1, CmacOutput.NUMBER_OF_WEIGHTS).mult(0.001);
+
+		//the outputs of the cmac along the trajectory are the inputs of the motor model
+		ControlLoop controlLoop = new ControlLoop(null);
+		cmacOutputs = new SimpleMatrix[TRAJECTORY_LENGTH];
+		for (int i = 0; i < TRAJECTORY_LENGTH; i++) {
+			cmacOutputs[i] = controlLoop.triggerCmacUpdate(inputs[i]);
+		}
+	}
+
+	private MicroBenchmark.Result measure(MicroBenchmark benchmark) {
+		//warm up with the whole trajectory so that no cells get created while measuring
+		MicroBenchmark.Result result = benchmark.measure(TRAJECTORY_LENGTH, MicroBenchmark.DEFAULT_MEASURED_ITERATIONS);
+		assertFalse(Double.isNaN(result.getThroughput()));
+		return result;
+	}
+
+	/**
+	 * {@link CmacLayer#query(SimpleMatrix)}
+	 */
+	public void testCmacLayerQuery() {
+		final CmacLayer layer = new CmacLayer(new SimpleMatrix(1, CmacInputParam.count));
+		for (int i = 0; i < TRAJECTORY_LENGTH; i++)
+			layer.applyDeltas(inputs[i], deltas, deltas, StateTrajectory.SAMPLE_PERIOD);
+		measure(new MicroBenchmark("CmacLayer.query") {
+			@Override
+			protected void runOnce(int iteration) {
+				sink += layer.query(inputs[iteration % TRAJECTORY_LENGTH]).getActivationFunction();
+			}
+		});
+		assertFalse(Double.isNaN(sink));
+	}
+
+	/**
+	 * {@link CmacLayer#applyDeltas(SimpleMatrix, SimpleMatrix, SimpleMatrix, long)}
+	 */
+	public void testCmacLayerApplyDeltas() {
+		final CmacLayer layer = new CmacLayer(new SimpleMatrix(1, CmacInputParam.count));
+		measure(new MicroBenchmark("CmacLayer.applyDeltas") {
+			@Override
+			protected void runOnce(int iteration) {
+				layer.applyDeltas(inputs[iteration % TRAJECTORY_LENGTH], deltas, deltas, StateTrajectory.SAMPLE_PERIOD);
+			}
+		});
+	}
+
+	/**
+	 * {@link CmacLayer#roundAndOffsetInput(SimpleMatrix)}
+	 */
+	public void testCmacLayerRoundAndOffsetInput() {
+		final CmacLayer layer = new CmacLayer(new SimpleMatrix(1, CmacInputParam.count));
+		measure(new MicroBenchmark("CmacLayer.roundAndOffsetInput") {
+			@Override
+			protected void runOnce(int iteration) {
+				sink += layer.roundAndOffsetInput(inputs[iteration % TRAJECTORY_LENGTH]).get(0);
+			}
+		});
+		assertFalse(Double.isNaN(sink));
+	}
+
+	/**
+	 * {@link ControlLoop#triggerCmacUpdate(double[], long, double[])}, the version that a
+	 * tick uses
+	 */
+	public void testTriggerCmacUpdate() {
+		final ControlLoop controlLoop = new ControlLoop(null);
+		final double[] output = new double[CmacOutput.NUMBER_OF_WEIGHTS];
+		MicroBenchmark.Result result = measure(new MicroBenchmark("ControlLoop.triggerCmacUpdate") {
+			@Override
+			protected void runOnce(int iteration) {
+				controlLoop.triggerCmacUpdate(trajectory.cmacInputs[iteration % TRAJECTORY_LENGTH], System.nanoTime(), output);
+				sink += output[0];
+			}
+		});
+		assertTrue("triggerCmacUpdate allocated memory", result.bytesPerOp < 1);
+	}
+
+	/**
+	 * {@link ControlLoop#cmacOutput2MotorSpeeds(double[], SimpleMatrix)}, the version that a
+	 * tick uses
+	 */
+	public void testCmacOutput2MotorSpeeds() {
+		final ControlLoop controlLoop = new ControlLoop(null);
+		final double[][] outputs = new double[TRAJECTORY_LENGTH][];
+		for (int i = 0; i < TRAJECTORY_LENGTH; i++)
+			outputs[i] = cmacOutputs[i].getMatrix().getData();
+		final SimpleMatrix motorSpeeds = new SimpleMatrix(1, CmacOutput.NUMBER_OF_WEIGHTS);
+		MicroBenchmark.Result result = measure(new MicroBenchmark("ControlLoop.cmacOutput2MotorSpeeds") {
+			@Override
+			protected void runOnce(int iteration) {
+				controlLoop.cmacOutput2MotorSpeeds(outputs[iteration % TRAJECTORY_LENGTH], motorSpeeds);
+				sink += motorSpeeds.get(0);
+			}
+		});
+		assertTrue("cmacOutput2MotorSpeeds allocated memory", result.bytesPerOp < 1);
+	}
+
+	/**
+	 * {@link DataAggregator#calculateErrors(double[])}, the version that a tick uses, together
+	 * with the two readings that arrive before every tick.
+	 */
+	public void testCalculateErrors() {
+		final DataAggregator dataAggregator = new DataAggregator();
+		final double[] errors = new double[CmacInputParam.count];
+		MicroBenchmark.Result result = measure(new MicroBenchmark("DataAggregator.calculateErrors") {
+			@Override
+			protected void runOnce(int iteration) {
+				int sample = iteration % TRAJECTORY_LENGTH;
+				dataAggregator.processNewKinematicsData(
+					trajectory.timestamps[sample], trajectory.rolls[sample], trajectory.pitches[sample], trajectory.yaws[sample]
+				);
+				dataAggregator.processNewHeightData(trajectory.timestamps[sample], trajectory.heights[sample]);
+				dataAggregator.calculateErrors(errors);
+				sink += errors[0];
+			}
+		});
+		assertFalse(Double.isNaN(sink));
+		assertTrue("calculateErrors allocated memory", result.bytesPerOp < 1);
+	}
+
+	/**
+	 * {@link MotorModel#motorRpsToQcfpValues(SimpleMatrix, byte[])}
+	 */
+	public void testMotorRpsToQcfpValues() {
+		final byte[] qcfpValues = new byte[MotorModel.NUMBER_OF_MOTORS];
+		measure(new MicroBenchmark("MotorModel.motorRpsToQcfpValues") {
+			@Override
+			protected void runOnce(int iteration) {
+				MotorModel.motorRpsToQcfpValues(motorRps[iteration % TRAJECTORY_LENGTH], qcfpValues);
+				sink += qcfpValues[0];
+			}
+		});
+		assertFalse(Double.isNaN(sink));
+	}
+}
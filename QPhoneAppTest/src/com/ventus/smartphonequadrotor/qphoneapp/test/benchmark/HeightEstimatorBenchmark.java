@@ -0,0 +1,39 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.HeightEstimator;
+
+import junit.framework.TestCase;
+
+/**
+ * The time and the garbage of the {@link HeightEstimator}: every iteration is an accelerometer
+ * reading, and every 20th a sonar reading as well, like the rates at which they arrive from the
+ * QCB.
+ * @author abhin
+ *
+ */
+public class HeightEstimatorBenchmark extends TestCase {
+	private static final long MS = 1000000;	//nanoseconds
+	private static final int SONAR_PERIOD = 20;
+	private static final int ITERATIONS = 200000;
+
+	private double sink;	//keeps the JIT from dropping the computations
+
+	public void testUpdate() {
+		final HeightEstimator estimator = new HeightEstimator();
+		MicroBenchmark.Result result = new MicroBenchmark("HeightEstimator update") {
+			@Override
+			protected void runOnce(int iteration) {
+				long time = iteration * MS;
+				double height = 100 + 50 * Math.sin(iteration / 1000.0);
+				estimator.registerAccelValues(0.01f, 0.02f, 9.81f, time, 0.01, -0.02);
+				if (iteration % SONAR_PERIOD == 0)
+					estimator.registerSonarHeight(height, time, 0.01, -0.02);
+				sink += estimator.getHeight();
+			}
+		}.measure(ITERATIONS / 10, ITERATIONS);
+		assertTrue("The estimator allocated memory", result.bytesPerOp < 1);
+		//microseconds at the most, even on a phone
+		MicroBenchmark.assertTiming("The estimator takes " + result.nanosPerOp + " ns", result.nanosPerOp < 10000);
+		assertFalse(Double.isNaN(sink));
+	}
+}
@@ -0,0 +1,97 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import java.util.Random;
+
+/**
+ * The raw outputs of the accelerometer, gyroscope and magnetometer of the QCB during a flight
+ * with a known attitude, for the tests and benchmarks of the attitude estimators. The
+ * quadrotor rolls and pitches back and forth and turns slowly; the sensors see that motion
+ * through the conventions of the
+ * {@link com.ventus.smartphonequadrotor.qphoneapp.util.control.AttitudeEstimator} (+1g along
+ * z when level, ZYX euler angles), with a constant gyroscope bias and white noise on top.
+ *
+ * The timestamps are in nanoseconds; every sample has all three sensors.
+ * @author abhin
+ *
+ */
+public class ImuTrajectory {
+	public static final long SAMPLE_PERIOD = 1000000;	//nanoseconds, 1kHz
+	public static final double ROLL_AMPLITUDE = 0.4;	//radians
+	public static final double PITCH_AMPLITUDE = 0.3;
+	public static final double YAW_RATE = 0.2;			//radians per second
+	private static final double INCLINATION = 1.1;		//of the magnetic field, radians
+
+	public final int length;
+	public final long[] timestamps;
+	public final double[] rolls;	//the true attitude
+	public final double[] pitches;
+	public final double[] yaws;
+	public final float[][] accel;	//[sample][axis]
+	public final float[][] gyro;
+	public final float[][] mag;
+
+	/**
+	 * @param length the number of samples
+	 * @param gyroBias added to every axis of the gyroscope, radians per second
+	 * @param noise the standard deviation of the noise, relative to the magnitude of the
+	 * accelerometer and magnetometer readings and in radians per second for the gyroscope
+	 * @param seed the seed of the noise
+	 */
+	public ImuTrajectory(int length, double gyroBias, double noise, long seed) {
+		this.length = length;
+		timestamps = new long[length];
+		rolls = new double[length];
+		pitches = new double[length];
+		yaws = new double[length];
+		accel = new float[length][3];
+		gyro = new float[length][3];
+		mag = new float[length][3];
+		Random random = new Random(seed);
+		for (int i = 0; i < length; i++) {
+			timestamps[i] = i * SAMPLE_PERIOD;
+			double t = i * SAMPLE_PERIOD / 1e9;
+			double roll = ROLL_AMPLITUDE * Math.sin(1.3 * t);
+			double pitch = PITCH_AMPLITUDE * Math.sin(0.7 * t + 0.5);
+			double yaw = wrap(YAW_RATE * t);
+			double rollRate = ROLL_AMPLITUDE * 1.3 * Math.cos(1.3 * t);
+			double pitchRate = PITCH_AMPLITUDE * 0.7 * Math.cos(0.7 * t + 0.5);
+			double yawRate = YAW_RATE;
+			rolls[i] = roll;
+			pitches[i] = pitch;
+			yaws[i] = yaw;
+
+			double sr = Math.sin(roll), cr = Math.cos(roll);
+			double sp = Math.sin(pitch), cp = Math.cos(pitch);
+			double sy = Math.sin(yaw), cy = Math.cos(yaw);
+			//the body rates from the rates of the euler angles
+			gyro[i][0] = (float) (rollRate - yawRate * sp + gyroBias + noise * random.nextGaussian());
+			gyro[i][1] = (float) (pitchRate * cr + yawRate * sr * cp + gyroBias + noise * random.nextGaussian());
+			gyro[i][2] = (float) (-pitchRate * sr + yawRate * cr * cp + gyroBias + noise * random.nextGaussian());
+			//gravity in the body frame
+			accel[i][0] = (float) (-sp + noise * random.nextGaussian());
+			accel[i][1] = (float) (sr * cp + noise * random.nextGaussian());
+			accel[i][2] = (float) (cr * cp + noise * random.nextGaussian());
+			//the field points north and down; the body frame sees it rotated by the transpose
+			//of R = Rz(yaw) Ry(pitch) Rx(roll)
+			double north = Math.cos(INCLINATION);
+			double down = Math.sin(INCLINATION);
+			double mx = cp * cy * north - sp * down;
+			double my = (sr * sp * cy - cr * sy) * north + sr * cp * down;
+			double mz = (cr * sp * cy + sr * sy) * north + cr * cp * down;
+			mag[i][0] = (float) (mx + noise * random.nextGaussian());
+			mag[i][1] = (float) (my + noise * random.nextGaussian());
+			mag[i][2] = (float) (mz + noise * random.nextGaussian());
+		}
+	}
+
+	/**
+	 * @return the difference of two angles in [-pi, pi]
+	 */
+	public static double angleError(double estimate, double truth) {
+		return wrap(estimate - truth);
+	}
+
+	private static double wrap(double angle) {
+		return angle - 2 * Math.PI * Math.floor((angle + Math.PI) / (2 * Math.PI));
+	}
+}
@@ -0,0 +1,124 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Log;
+
+import junit.framework.Assert;
+
+/**
+ * A tiny benchmark harness for the hot paths of the flight stack. A subclass implements
+ * {@link #runOnce(int)} and {@link #measure(int, int)} reports the average time and the
+ * average number of bytes allocated by the current thread per call, along with the
+ * throughput and the allocation rate (the rate at which the code would make the garbage
+ * collector work if it ran back to back) that follow from them.
+ *
+ * The allocation numbers come from an {@link AllocationCounter}, so the benchmarks run both
+ * on the device (or emulator) as part of the test project and on a plain JVM.
+ *
+ * The timings depend on whatever else the host is doing, so the benchmarks only report how
+ * they compare. The asserts on them are skipped unless {@link #ASSERT_TIMINGS_PROPERTY} is
+ * set to true, e.g. on a quiet machine before a release; the allocations are always asserted.
+ * @author abhin
+ *
+ */
+public abstract class MicroBenchmark {
+	public static final String TAG = MicroBenchmark.class.getSimpleName();
+
+	public static final int DEFAULT_WARMUP_ITERATIONS = 1000;
+	public static final int DEFAULT_MEASURED_ITERATIONS = 5000;
+	public static final String ASSERT_TIMINGS_PROPERTY = "qphoneapp.benchmark.assertTimings";
+
+	private String name;
+
+	public MicroBenchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Executes the operation being benchmarked once.
+	 * @param iteration the index of the current iteration. This can be used to pick
+	 * the input for this iteration.
+	 */
+	protected abstract void runOnce(int iteration);
+
+	public Result measure(int warmupIterations, int measuredIterations) {
+		for (int i = 0; i < warmupIterations; i++) {
+			runOnce(i);
+		}
+
+		AllocationCounter allocationCounter = AllocationCounter.create();
+		allocationCounter.start();
+		long startTime = System.nanoTime();
+		for (int i = 0; i < measuredIterations; i++) {
+			runOnce(i);
+		}
+		long elapsedTime = System.nanoTime() - startTime;
+		long allocatedBytes = allocationCounter.stop();
+
+		Result result = new Result(
+			name,
+			(double) elapsedTime / measuredIterations,
+			(double) allocatedBytes / measuredIterations
+		);
+		Log.i(TAG, result.toString());
+		return result;
+	}
+
+	public Result measure() {
+		return measure(DEFAULT_WARMUP_ITERATIONS, DEFAULT_MEASURED_ITERATIONS);
+	}
+
+	/**
+	 * Logs how many times faster the result is than the baseline.
+	 * @return the speedup
+	 */
+	public static double reportSpeedup(Result baseline, Result result) {
+		double speedup = baseline.nanosPerOp / result.nanosPerOp;
+		Log.i(TAG, String.format("%s is %.1fx as fast as %s", result.name, speedup, baseline.name));
+		return speedup;
+	}
+
+	/**
+	 * Asserts a condition on the timings, if {@link #ASSERT_TIMINGS_PROPERTY} is set.
+	 */
+	public static void assertTiming(String message, boolean condition) {
+		if (Boolean.getBoolean(ASSERT_TIMINGS_PROPERTY))
+			Assert.assertTrue(message, condition);
+	}
+
+	/**
+	 * The outcome of a single {@link MicroBenchmark#measure(int, int)} call.
+	 */
+	public static class Result {
+		public final String name;
+		public final double nanosPerOp;
+		public final double bytesPerOp;
+
+		public Result(String name, double nanosPerOp, double bytesPerOp) {
+			this.name = name;
+			this.nanosPerOp = nanosPerOp;
+			this.bytesPerOp = bytesPerOp;
+		}
+
+		/**
+		 * @return the number of operations per second
+		 */
+		public double getThroughput() {
+			return 1e9 / nanosPerOp;
+		}
+
+		/**
+		 * @return the number of bytes allocated per second
+		 */
+		public double getAllocationRate() {
+			return bytesPerOp * getThroughput();
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+				"%s: %.1f ns/op, %.1f B/op, %.0f ops/s, %.2f MB/s allocated",
+				name, nanosPerOp, bytesPerOp, getThroughput(), getAllocationRate() / (1024 * 1024)
+			);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommunication;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpParser;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.MotorModel;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares {@link QcfpCommunication#encodeData(byte[], int)}, which allocates the frame, with
+ * {@link QcfpCommunication#encode(ByteBuffer, ByteBuffer)}, which writes it into a buffer of
+ * the caller, on packets of random lengths and contents, and measures the whole motor speeds
+ * command as it is sent on every tick.
+ * @author abhin
+ *
+ */
+public class QcfpEncoderBenchmark extends TestCase {
+	private static final int PACKETS = 1024;
+	private static final int ITERATIONS = 200000;	//long enough for the JIT to compile the encoders
+
+	private byte[][] packets;
+	private ByteBuffer[] payloads;
+	private long sink;	//keeps the JIT from dropping the computations
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		Random random = new Random(5);
+		packets = new byte[PACKETS][];
+		payloads = new ByteBuffer[PACKETS];
+		for (int i = 0; i < PACKETS; i++) {
+			packets[i] = new byte[1 + random.nextInt(QcfpParser.QCFP_MAX_PACKET_SIZE)];
+			for (int j = 0; j < packets[i].length; j++)
+				packets[i][j] = (random.nextInt(8) == 0) ? 0 : (byte) random.nextInt(256);
+			payloads[i] = ByteBuffer.wrap(packets[i]);
+		}
+	}
+
+	public void testEncodeData() {
+		new MicroBenchmark("QcfpCommunication.encodeData") {
+			@Override
+			protected void runOnce(int iteration) {
+				byte[] packet = packets[iteration % PACKETS];
+				try {
+					sink += QcfpCommunication.encodeData(packet, packet.length).length;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}.measure(ITERATIONS, ITERATIONS);
+		assertTrue(sink > 0);
+	}
+
+	public void testEncode() {
+		final ByteBuffer frame = ByteBuffer.allocate(QcfpParser.QCFP_MAX_PACKET_SIZE + 3);
+		MicroBenchmark.Result result = new MicroBenchmark("QcfpCommunication.encode") {
+			@Override
+			protected void runOnce(int iteration) {
+				ByteBuffer payload = payloads[iteration % PACKETS];
+				payload.clear();
+				frame.clear();
+				QcfpCommunication.encode(payload, frame);
+				sink += frame.position();
+			}
+		}.measure(ITERATIONS, ITERATIONS);
+		//anything below a byte per packet can't be an allocation made by the packet itself
+		assertTrue("encode allocated memory", result.bytesPerOp < 1);
+		assertTrue(sink > 0);
+	}
+
+	/**
+	 * {@link QcfpCommunication#sendRawMotorSpeeds(byte[])}, down to the array that would be
+	 * written to the bluetooth socket.
+	 */
+	public void testSendRawMotorSpeeds() throws Exception {
+		final QcfpCommunication communication = new QcfpCommunication(null) {
+			@Override
+			public void sendBluetoothMessage(byte[] message, int offset, int length) {
+				sink += message[offset + length - 2];
+			}
+		};
+		final byte[] motorSpeeds = new byte[MotorModel.NUMBER_OF_MOTORS];
+		MicroBenchmark.Result result = new MicroBenchmark("QcfpCommunication.sendRawMotorSpeeds") {
+			@Override
+			protected void runOnce(int iteration) {
+				for (int i = 0; i < motorSpeeds.length; i++)
+					motorSpeeds[i] = (byte) ((iteration + i) % 81);
+				try {
+					communication.sendRawMotorSpeeds(motorSpeeds);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}.measure(ITERATIONS, ITERATIONS);
+		assertTrue("sendRawMotorSpeeds allocated memory", result.bytesPerOp < 1);
+	}
+}
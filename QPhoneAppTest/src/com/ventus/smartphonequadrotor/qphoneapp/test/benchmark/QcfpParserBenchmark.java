@@ -0,0 +1,187 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCallback;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommands;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommunication;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpHandlers;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpParser;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures the throughput of the {@link QcfpParser} in MB/s of encoded data, against the
+ * byte at a time state machine it replaced (kept here as {@link ByteStateMachineParser}).
+ * The data is a stream of sensor packets like the ones the QCB sends, in reads of the size
+ * of the buffer of the bluetooth reader.
+ * @author abhin
+ *
+ */
+public class QcfpParserBenchmark extends TestCase {
+	private static final String TAG = QcfpParserBenchmark.class.getSimpleName();
+	private static final int READ_SIZE = 2 * QcfpParser.QCFP_MAX_PACKET_SIZE;
+	private static final int READS = 1024;
+	private static final int ITERATIONS = 200000;	//long enough for the JIT to compile the parsers
+
+	private byte[] stream;
+	private byte[] read;
+	private QcfpHandlers handlers;
+	private long sink;	//keeps the JIT from dropping the computations
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		Random random = new Random(13);
+		stream = new byte[READS * READ_SIZE];
+		ByteBuffer packet = ByteBuffer.allocate(18).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < stream.length; ) {
+			packet.clear();
+			packet.put(QcfpCommands.QCFP_ASYNC_DATA).put((byte) (1 + random.nextInt(3))).putInt(i);
+			for (int axis = 0; axis < 3; axis++)
+				packet.putFloat((float) random.nextGaussian());
+			byte[] frame = QcfpCommunication.encodeData(packet.array(), packet.capacity());
+			int length = Math.min(frame.length, stream.length - i);
+			System.arraycopy(frame, 0, stream, i, length);
+			i += length;
+		}
+		read = new byte[READ_SIZE];
+		handlers = new QcfpHandlers();
+		handlers.registerHandler(QcfpCommands.QCFP_ASYNC_DATA, new QcfpCallback() {
+			@Override
+			public void run(byte[] packet, int length) {
+				run(packet, 0, length);
+			}
+
+			@Override
+			public void run(byte[] packet, int offset, int length) {
+				sink += packet[offset + length - 1] + length;
+			}
+		});
+	}
+
+	/**
+	 * @return the throughput in MB/s of encoded data
+	 */
+	private double measure(String name, final Parser parser) {
+		MicroBenchmark.Result result = new MicroBenchmark(name) {
+			@Override
+			protected void runOnce(int iteration) {
+				//the parser decodes in place, so every read starts from the stream again
+				System.arraycopy(stream, (iteration % READS) * READ_SIZE, read, 0, READ_SIZE);
+				parser.addData(read, READ_SIZE);
+			}
+		}.measure(ITERATIONS, ITERATIONS);
+		double megabytesPerSecond = READ_SIZE / result.nanosPerOp * 1e9 / (1024 * 1024);
+		Log.i(TAG, String.format("%s: %.1f MB/s, %.1f B/op", name, megabytesPerSecond, result.bytesPerOp));
+		return megabytesPerSecond;
+	}
+
+	public void testQcfpParser() {
+		final QcfpParser parser = new QcfpParser(QcfpParser.QCFP_MAX_PACKET_SIZE, handlers);
+		double throughput = measure("QcfpParser", new Parser() {
+			public void addData(byte[] buffer, int length) {
+				parser.addData(buffer, length);
+			}
+		});
+		assertTrue(throughput > 0);
+		assertTrue(sink != 0);
+	}
+
+	public void testByteStateMachineParser() {
+		final ByteStateMachineParser parser = new ByteStateMachineParser(QcfpParser.QCFP_MAX_PACKET_SIZE, handlers);
+		double throughput = measure("ByteStateMachineParser", new Parser() {
+			public void addData(byte[] buffer, int length) {
+				parser.addData(buffer, length);
+			}
+		});
+		assertTrue(throughput > 0);
+		assertTrue(sink != 0);
+	}
+
+	private interface Parser {
+		public void addData(byte[] buffer, int length);
+	}
+
+	/**
+	 * The previous implementation of the {@link QcfpParser}, to compare against.
+	 */
+	private static class ByteStateMachineParser {
+		private enum cobsState {
+			COBS_DECODE,
+			COBS_COPY,
+			COBS_SYNC,
+		}
+
+		private int maxPacketSize;
+		private cobsState decodeState;
+		private byte incomingPacket[];
+		private int packetSize;
+		private int byteCount;
+		private QcfpHandlers packetHandlers;
+
+		public ByteStateMachineParser(int maxPacketSize, QcfpHandlers packetHandlers) {
+			this.maxPacketSize = maxPacketSize;
+			this.byteCount = 0;
+			this.packetSize = 0;
+			this.decodeState = cobsState.COBS_SYNC;
+			this.incomingPacket = new byte[this.maxPacketSize + 2];
+			this.packetHandlers = packetHandlers;
+		}
+
+		public void addData(byte[] buffer, int length) {
+			for (int i = 0; i < length; i++) {
+				if (this.packetSize > this.maxPacketSize) {
+					this.decodeState = cobsState.COBS_SYNC;
+				}
+
+				switch (this.decodeState) {
+				case COBS_DECODE:
+					if (buffer[i] == QcfpParser.COBS_TERM_BYTE) {
+						if ((this.packetSize > 0) && (this.byteCount == 0)) {
+							if (this.incomingPacket[this.packetSize] == QcfpParser.COBS_TERM_BYTE) {
+								this.packetSize--;
+							}
+							this.packetHandlers.dispatch(this.incomingPacket, this.packetSize);
+						}
+						this.packetSize = 0;
+						this.byteCount = 0;
+					} else {
+						this.byteCount = buffer[i];
+						this.decodeState = cobsState.COBS_COPY;
+					}
+					break;
+				case COBS_COPY:
+					if (this.byteCount == 1) {
+						this.incomingPacket[this.packetSize++] = 0;
+						i--;
+						this.byteCount--;
+						this.decodeState = cobsState.COBS_DECODE;
+					} else {
+						if (buffer[i] == QcfpParser.COBS_TERM_BYTE) {
+							this.byteCount = 0;
+							this.packetSize = 0;
+							this.decodeState = cobsState.COBS_DECODE;
+						} else {
+							if (byteCount > 1) {
+								this.incomingPacket[this.packetSize++] = buffer[i];
+								this.byteCount--;
+							}
+						}
+					}
+					break;
+				case COBS_SYNC:
+				default:
+					this.packetSize = 0;
+					this.byteCount = 0;
+					if (buffer[i] == QcfpParser.COBS_TERM_BYTE) {
+						this.decodeState = cobsState.COBS_DECODE;
+					}
+					break;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.Histogram;
+import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.DataAggregator;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.SeqLockedState;
+import com.ventus.smartphonequadrotor.qphoneapp.util.json.MoveCommand;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures how long the control loop takes to get at the state of the {@link DataAggregator}
+ * while the QCB delivers kinematics and height data at 1kHz and the controller sends move
+ * commands at 50Hz, each from its own thread. The {@link SeqLockedState} that the aggregator
+ * uses is compared with a monitor guarding the same arrays, which is what every method of the
+ * aggregator used to synchronize on. Besides the average, the worst cases matter here: they
+ * are the time the control thread spends blocked behind a writer.
+ * @author abhin
+ *
+ */
+public class StateExchangeBenchmark extends TestCase {
+	private static final String TAG = StateExchangeBenchmark.class.getSimpleName();
+	private static final long SENSOR_PERIOD = 1;	//milliseconds
+	private static final long COMMAND_PERIOD = 20;
+	private static final int SIZE = 6;
+	private static final int READS = 200000;
+
+	private StateTrajectory trajectory;
+	private volatile boolean ingesting;
+	private Thread[] writers;
+	private double sink;	//keeps the JIT from dropping the computations
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		trajectory = new StateTrajectory(1200, 23);
+	}
+
+	protected void tearDown() throws Exception {
+		stopWriters();
+		super.tearDown();
+	}
+
+	/**
+	 * Stops the writers, if they run, and waits until they are done.
+	 */
+	private void stopWriters() throws InterruptedException {
+		ingesting = false;
+		if (writers != null) {
+			for (Thread writer : writers)
+				writer.join();
+			writers = null;
+		}
+	}
+
+	private void startWriters(final Runnable sensorWrite, final Runnable commandWrite) {
+		if (writers != null)
+			throw new IllegalStateException("The writers are already running");
+		ingesting = true;
+		writers = new Thread[] {
+			new Thread("Sensor writer") {
+				public void run() {
+					while (ingesting) {
+						sensorWrite.run();
+						try {
+							Thread.sleep(SENSOR_PERIOD);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			},
+			new Thread("Command writer") {
+				public void run() {
+					while (ingesting) {
+						commandWrite.run();
+						try {
+							Thread.sleep(COMMAND_PERIOD);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		};
+		for (Thread writer : writers)
+			writer.start();
+	}
+
+	/**
+	 * Reads back to back and records the time of every read in nanoseconds.
+	 */
+	private Histogram measureReads(String name, Runnable read) {
+		Histogram histogram = new Histogram(100, 10000);
+		for (int i = 0; i < READS / 10; i++)
+			read.run();
+		for (int i = 0; i < READS; i++) {
+			long start = System.nanoTime();
+			read.run();
+			histogram.record(System.nanoTime() - start);
+		}
+		Log.i(TAG, name + " (ns): " + histogram);
+		return histogram;
+	}
+
+	/**
+	 * The state of the aggregator, read through {@link DataAggregator#calculateErrors()} by
+	 * the control loop while the writers are busy.
+	 */
+	public void testCalculateErrorsUnderContention() {
+		final DataAggregator dataAggregator = new DataAggregator();
+		final MoveCommand[] moveCommand = new MoveCommand[] {new MoveCommand(0.1f, 0.2f, 1, 10, 1000)};
+		startWriters(
+			new Runnable() {
+				private int sample = 0;
+				public void run() {
+					int i = sample++ % trajectory.length;
+					dataAggregator.processNewKinematicsData(sample, trajectory.rolls[i], trajectory.pitches[i], trajectory.yaws[i]);
+					dataAggregator.processNewHeightData(sample, trajectory.heights[i]);
+				}
+			},
+			new Runnable() {
+				public void run() {
+					dataAggregator.processMoveCommand(moveCommand);
+				}
+			}
+		);
+		while (dataAggregator.calculateErrors() == null)
+			Thread.yield();
+		measureReads("DataAggregator.calculateErrors at 1kHz", new Runnable() {
+			public void run() {
+				SimpleMatrix errors = dataAggregator.calculateErrors();
+				sink += errors.get(0);
+			}
+		});
+		assertFalse(Double.isNaN(sink));
+	}
+
+	/**
+	 * The bare exchange: a seqlock against a monitor, for a snapshot of the size of the
+	 * acquired state.
+	 */
+	public void testSeqLockAgainstMonitor() throws InterruptedException {
+		final SeqLockedState state = new SeqLockedState(SIZE);
+		final long[] snapshot = new long[SIZE];
+		startWriters(
+			new Runnable() {
+				private long value = 0;
+				public void run() {
+					state.beginWrite();
+					for (int i = 0; i < SIZE; i++)
+						state.putLong(i, value);
+					state.endWrite();
+					value++;
+				}
+			},
+			new Runnable() {
+				public void run() {
+				}
+			}
+		);
+		Histogram seqLock = measureReads("SeqLockedState.read at 1kHz", new Runnable() {
+			public void run() {
+				state.read(snapshot);
+				sink += snapshot[0];
+			}
+		});
+		Log.i(TAG, "Read retries: " + state.getReadRetries());
+		stopWriters();
+
+		final long[] lockedState = new long[SIZE];
+		startWriters(
+			new Runnable() {
+				private long value = 0;
+				public void run() {
+					synchronized (lockedState) {
+						for (int i = 0; i < SIZE; i++)
+							lockedState[i] = value;
+					}
+					value++;
+				}
+			},
+			new Runnable() {
+				public void run() {
+				}
+			}
+		);
+		Histogram monitor = measureReads("synchronized read at 1kHz", new Runnable() {
+			public void run() {
+				synchronized (lockedState) {
+					System.arraycopy(lockedState, 0, snapshot, 0, SIZE);
+				}
+				sink += snapshot[0];
+			}
+		});
+		assertEquals(READS, seqLock.getCount());
+		assertEquals(READS, monitor.getCount());
+	}
+}
@@ -0,0 +1,121 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.benchmark;
+
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacInputParam;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.MotorModel;
+
+/**
+ * A flight that the benchmarks replay so that the hot paths see the inputs they see on the
+ * phone instead of uniformly random ones (which touch far more cells of the CMAC than a real
+ * flight does). The quadrotor takes off to a hover at 1m, climbs another metre, rolls and
+ * pitches through a few manoeuvres and settles again, with the noise of the sonar and of the
+ * kinematics estimate on top. The samples come at the rate of the control loop.
+ *
+ * For every sample there are the raw kinematics and height readings (as the
+ * {@link com.ventus.smartphonequadrotor.qphoneapp.util.control.DataAggregator} receives them),
+ * the 1-by-{@value CmacInputParam#count} input of the CMAC that follows from them and the
+ * speeds of the motors in rps.
+ * @author abhin
+ *
+ */
+public class StateTrajectory {
+	public static final long SAMPLE_PERIOD = 50;	//milliseconds, the period of the control loop
+	public static final double HOVER_RPS = 60;
+
+	private static final double HOVER_HEIGHT = 1;	//metres
+	private static final double CLIMB_HEIGHT = 1;
+	private static final double MANOEUVRE_TILT = 0.2;	//radians
+	private static final double SONAR_NOISE = 0.01;	//metres
+	private static final double ANGLE_NOISE = 0.005;	//radians
+
+	public final int length;
+	public final long[] timestamps;
+	public final int[] heights;	//centimetres, as the sonar reports them
+	public final float[] rolls;
+	public final float[] pitches;
+	public final float[] yaws;
+	public final double[][] cmacInputs;
+	public final double[][] motorRps;
+
+	/**
+	 * @param length the number of samples
+	 * @param seed the seed of the noise
+	 */
+	public StateTrajectory(int length, long seed) {
+		this.length = length;
+		timestamps = new long[length];
+		heights = new int[length];
+		rolls = new float[length];
+		pitches = new float[length];
+		yaws = new float[length];
+		cmacInputs = new double[length][CmacInputParam.count];
+		motorRps = new double[length][MotorModel.NUMBER_OF_MOTORS];
+
+		Random random = new Random(seed);
+		double seconds = SAMPLE_PERIOD / 1000.0;
+		double previousHeightError = 0, previousRollError = 0, previousPitchError = 0, previousYawError = 0;
+		double previousDesiredRoll = 0, previousDesiredPitch = 0, previousDesiredRollDerivative = 0, previousDesiredPitchDerivative = 0;
+		for (int i = 0; i < length; i++) {
+			double t = i * seconds;
+			//the setpoints: take off, climb half way through and manoeuvre in the middle
+			double desiredHeight = HOVER_HEIGHT + ((i > length / 2) ? CLIMB_HEIGHT : 0);
+			double phase = (double) i / length;
+			boolean manoeuvring = phase > 0.25 && phase < 0.75;
+			double desiredRoll = manoeuvring ? MANOEUVRE_TILT * Math.sin(2 * Math.PI * t / 4) : 0;
+			double desiredPitch = manoeuvring ? MANOEUVRE_TILT * Math.cos(2 * Math.PI * t / 6) : 0;
+
+			//the vehicle follows the setpoints with a lag and a slowly decaying overshoot
+			double lag = 1 - Math.exp(-t);
+			double height = desiredHeight * lag + 0.05 * Math.sin(3 * t) * Math.exp(-0.1 * t) + SONAR_NOISE * random.nextGaussian();
+			double roll = 0.9 * desiredRoll + ANGLE_NOISE * random.nextGaussian();
+			double pitch = 0.9 * desiredPitch + ANGLE_NOISE * random.nextGaussian();
+			double yaw = 0.02 * Math.sin(0.5 * t) + ANGLE_NOISE * random.nextGaussian();
+
+			timestamps[i] = 1 + i * SAMPLE_PERIOD;
+			heights[i] = (int) Math.round(height * 100);
+			rolls[i] = (float) roll;
+			pitches[i] = (float) pitch;
+			yaws[i] = (float) yaw;
+
+			double[] input = cmacInputs[i];
+			input[CmacInputParam.HEIGHT_ERROR.index] = height - desiredHeight;
+			input[CmacInputParam.ROLL_ERROR.index] = roll - desiredRoll;
+			input[CmacInputParam.PITCH_ERROR.index] = pitch - desiredPitch;
+			input[CmacInputParam.YAW_ERROR.index] = yaw;
+			input[CmacInputParam.HEIGHT_ERROR_DERIVATIVE.index] = (i == 0) ? 0 : (input[CmacInputParam.HEIGHT_ERROR.index] - previousHeightError) / seconds;
+			input[CmacInputParam.ROLL_ERROR_DERIVATIVE.index] = (i == 0) ? 0 : (input[CmacInputParam.ROLL_ERROR.index] - previousRollError) / seconds;
+			input[CmacInputParam.PITCH_ERROR_DERIVATIVE.index] = (i == 0) ? 0 : (input[CmacInputParam.PITCH_ERROR.index] - previousPitchError) / seconds;
+			input[CmacInputParam.YAW_ERROR_DERIVATIVE.index] = (i == 0) ? 0 : (input[CmacInputParam.YAW_ERROR.index] - previousYawError) / seconds;
+			double desiredRollDerivative = (desiredRoll - previousDesiredRoll) / seconds;
+			double desiredPitchDerivative = (desiredPitch - previousDesiredPitch) / seconds;
+			input[CmacInputParam.DESIRED_ROLL_DERIVATIVE.index] = desiredRollDerivative;
+			input[CmacInputParam.DESIRED_PITCH_DERIVATIVE.index] = desiredPitchDerivative;
+			input[CmacInputParam.DESIRED_ROLL_SECOND_DERIVATIVE.index] = (desiredRollDerivative - previousDesiredRollDerivative) / seconds;
+			input[CmacInputParam.DESIRED_PITCH_SECOND_DERIVATIVE.index] = (desiredPitchDerivative - previousDesiredPitchDerivative) / seconds;
+			for (CmacInputParam param : CmacInputParam.values()) {
+				input[param.index] = Math.max(param.minBound, Math.min(param.maxBound, input[param.index]));
+			}
+
+			//the motors spin up with the height and differ by the corrections of the tilt
+			double thrust = HOVER_RPS * lag * (1 - 0.5 * input[CmacInputParam.HEIGHT_ERROR.index]);
+			double rollCorrection = 10 * input[CmacInputParam.ROLL_ERROR.index];
+			double pitchCorrection = 10 * input[CmacInputParam.PITCH_ERROR.index];
+			double[] rps = motorRps[i];
+			rps[0] = thrust + pitchCorrection;
+			rps[1] = thrust - rollCorrection;
+			rps[2] = thrust - pitchCorrection;
+			rps[3] = thrust + rollCorrection;
+			input[CmacInputParam.NET_PREVIOUS_ROTOR_SPEED.index] = 2 * Math.PI * (-rps[0] + rps[1] - rps[2] + rps[3]);
+
+			previousHeightError = input[CmacInputParam.HEIGHT_ERROR.index];
+			previousRollError = input[CmacInputParam.ROLL_ERROR.index];
+			previousPitchError = input[CmacInputParam.PITCH_ERROR.index];
+			previousYawError = input[CmacInputParam.YAW_ERROR.index];
+			previousDesiredRoll = desiredRoll;
+			previousDesiredPitch = desiredPitch;
+			previousDesiredRollDerivative = desiredRollDerivative;
+			previousDesiredPitchDerivative = desiredPitchDerivative;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ventus.smartphonequadrotor.qphoneapp.services.QuadrotorRuntime;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCallback;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommands;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommunication;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpHandlers;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpParser;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.MotorModel;
+import com.ventus.smartphonequadrotor.qphoneapp.util.net.ControllerConnection;
+import com.ventus.smartphonequadrotor.qphoneapp.util.net.OnMessageListener;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.JvmPlatform;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.StreamQcbTransport;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the whole flight stack on a {@link JvmPlatform} against a simulated QCB (that sends
+ * kinematics and height packets and records the motor speeds it receives) and a simulated
+ * controller (that records the telemetry).
+ * @author abhin
+ *
+ */
+public class QuadrotorRuntimeTest extends TestCase {
+	private static final long TIMEOUT = 5000;	//milliseconds
+	private static final int DATA_SOURCE_KIN = 0x06;
+	private static final int DATA_SOURCE_HEIGHT = 0x07;
+
+	private File filesDir;
+	private PipedOutputStream toPhone;
+	private PipedInputStream fromPhone;
+	private QuadrotorRuntime runtime;
+	private List<String> telemetry = new ArrayList<String>();	//guarded by itself
+	private List<byte[]> motorSpeeds = new ArrayList<byte[]>();	//guarded by itself
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		filesDir = File.createTempFile("qphone", "");
+		filesDir.delete();
+		filesDir.mkdir();
+		PipedInputStream phoneInput = new PipedInputStream();
+		toPhone = new PipedOutputStream(phoneInput);
+		fromPhone = new PipedInputStream();
+		PipedOutputStream phoneOutput = new PipedOutputStream(fromPhone);
+
+		runtime = new QuadrotorRuntime(new JvmPlatform(filesDir, new StreamQcbTransport(phoneInput, phoneOutput)));
+		runtime.getNetworkCommunicationManager().setControllerConnection(new ControllerConnection() {
+			public void sendMessage(String message) {
+				synchronized (telemetry) {
+					telemetry.add(message);
+				}
+			}
+
+			public void setOnMessageListener(OnMessageListener onMessageListener) {
+				//the simulated controller doesn't send anything
+			}
+		});
+	}
+
+	protected void tearDown() throws Exception {
+		runtime.stop();
+		runtime.getControlLoop().join(TIMEOUT);
+		for (File file : filesDir.listFiles())
+			file.delete();
+		filesDir.delete();
+		super.tearDown();
+	}
+
+	private void startQcbReceiver(final InputStream input) {
+		QcfpHandlers handlers = new QcfpHandlers();
+		handlers.registerHandler(QcfpCommands.QCFP_RAW_MOTOR_CONTROL, new QcfpCallback() {
+			@Override
+			public void run(byte[] packet, int length) {
+				byte[] speeds = new byte[MotorModel.NUMBER_OF_MOTORS];
+				System.arraycopy(packet, 1, speeds, 0, speeds.length);
+				synchronized (motorSpeeds) {
+					motorSpeeds.add(speeds);
+				}
+			}
+		});
+		final QcfpParser parser = new QcfpParser(QcfpParser.QCFP_MAX_PACKET_SIZE, handlers);
+		Thread receiver = new Thread("QCB Simulator") {
+			public void run() {
+				byte[] buffer = new byte[QcfpParser.QCFP_MAX_PACKET_SIZE];
+				try {
+					int length;
+					while ((length = input.read(buffer)) > 0)
+						parser.addData(buffer, length);
+				} catch (IOException e) {
+					//the phone went away
+				}
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	private void sendKinematics(long timestamp, float roll, float pitch, float yaw) throws Exception {
+		ByteBuffer packet = ByteBuffer.allocate(18).order(ByteOrder.LITTLE_ENDIAN);
+		packet.put(QcfpCommands.QCFP_ASYNC_DATA).put((byte) DATA_SOURCE_KIN).putInt((int) timestamp);
+		packet.putFloat(roll).putFloat(pitch).putFloat(yaw);
+		toPhone.write(QcfpCommunication.encodeData(packet.array(), packet.capacity()));
+		toPhone.flush();
+	}
+
+	private void sendHeight(long timestamp, int height) throws Exception {
+		ByteBuffer packet = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		packet.put(QcfpCommands.QCFP_ASYNC_DATA).put((byte) DATA_SOURCE_HEIGHT).putInt((int) timestamp);
+		packet.putShort((short) height);
+		toPhone.write(QcfpCommunication.encodeData(packet.array(), packet.capacity()));
+		toPhone.flush();
+	}
+
+	private static int size(List<?> list) {
+		synchronized (list) {
+			return list.size();
+		}
+	}
+
+	private void runPipeline() throws Exception {
+		startQcbReceiver(fromPhone);
+		runtime.getBluetoothManager().connect("simulator");
+		runtime.start();
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		for (int i = 1; System.currentTimeMillis() < deadline; i++) {
+			sendKinematics(i * 10, 0.01f, -0.02f, 0.1f);
+			//a short packet right after a long one, which the parser must not pad with the
+			//bytes the long one left behind
+			sendHeight(i * 10 + 5, 300);
+			if (size(motorSpeeds) > 0 && size(telemetry) > 0)
+				break;
+			Thread.sleep(10);
+		}
+		assertTrue("No motor speeds were sent to the QCB", size(motorSpeeds) > 0);
+		assertTrue("No telemetry was sent to the controller", size(telemetry) > 0);
+		synchronized (telemetry) {
+			assertTrue(telemetry.get(0).contains("0.1"));	//the yaw of the kinematics data
+		}
+		assertTrue(runtime.getControlLoop().getLatencyHistogram().getCount() > 0);
+	}
+
+	/**
+	 * The sensor packets of the QCB must make it through the control loop to motor speeds
+	 * sent back to the QCB, and to telemetry sent to the controller.
+	 */
+	public void testPipeline() throws Exception {
+		runPipeline();
+	}
+
+	/**
+	 * The same with the control loop woken up by the kinematics data.
+	 */
+	public void testDataTriggeredPipeline() throws Exception {
+		runtime.getControlLoop().setDataTriggered(true);
+		runPipeline();
+		assertTrue(runtime.getControlLoop().getScheduler().getTicks() > 0);
+	}
+}
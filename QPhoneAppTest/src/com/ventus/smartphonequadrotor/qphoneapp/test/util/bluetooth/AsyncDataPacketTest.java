@@ -0,0 +1,109 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.AsyncDataPacket;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommands;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommunication;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class AsyncDataPacketTest extends TestCase {
+	private static final int OFFSET = 5;
+
+	/**
+	 * Puts a tri axis packet at {@value #OFFSET} into a little endian buffer.
+	 */
+	private static ByteBuffer triAxisPacket(int dataSource, long timestamp, float x, float y, float z) {
+		ByteBuffer buffer = ByteBuffer.allocate(OFFSET + AsyncDataPacket.TriAxis.LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.position(OFFSET);
+		buffer.put(QcfpCommands.QCFP_ASYNC_DATA).put((byte) dataSource).putInt((int) timestamp);
+		buffer.putFloat(x).putFloat(y).putFloat(z);
+		return buffer;
+	}
+
+	public void testAccel() {
+		ByteBuffer buffer = triAxisPacket(AsyncDataPacket.DATA_SOURCE_ACCEL, 1234, 0.1f, -0.2f, 9.81f);
+		AsyncDataPacket.Accel accel = new AsyncDataPacket.Accel();
+		assertEquals(AsyncDataPacket.DATA_SOURCE_ACCEL, AsyncDataPacket.getDataSource(buffer, OFFSET, AsyncDataPacket.TriAxis.LENGTH));
+		assertTrue(accel.wrap(buffer, OFFSET, AsyncDataPacket.TriAxis.LENGTH));
+		assertEquals(1234, accel.getTimestamp());
+		assertEquals(0.1f, accel.getX());
+		assertEquals(-0.2f, accel.getY());
+		assertEquals(9.81f, accel.getZ());
+		//the same as decoding the bytes by hand
+		assertEquals(QcfpCommunication.decodeFloat(buffer.array(), OFFSET + AsyncDataPacket.TriAxis.Z_INDEX), accel.getZ());
+	}
+
+	/**
+	 * The timestamp is unsigned, and the views read the buffer where it is.
+	 */
+	public void testKinematics() {
+		ByteBuffer buffer = triAxisPacket(AsyncDataPacket.DATA_SOURCE_KIN, 0xFFFFFFF0L, 0.01f, -0.02f, 3.1f);
+		AsyncDataPacket.Kinematics kinematics = new AsyncDataPacket.Kinematics();
+		assertTrue(kinematics.wrap(buffer, OFFSET, AsyncDataPacket.TriAxis.LENGTH));
+		assertEquals(0xFFFFFFF0L, kinematics.getTimestamp());
+		assertEquals(0.01f, kinematics.getRoll());
+		assertEquals(-0.02f, kinematics.getPitch());
+		assertEquals(3.1f, kinematics.getYaw());
+
+		buffer.putFloat(OFFSET + AsyncDataPacket.TriAxis.Z_INDEX, -1.5f);
+		assertEquals(-1.5f, kinematics.getYaw());
+	}
+
+	public void testHeight() {
+		ByteBuffer buffer = ByteBuffer.allocate(AsyncDataPacket.Height.LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(QcfpCommands.QCFP_ASYNC_DATA).put((byte) AsyncDataPacket.DATA_SOURCE_HEIGHT).putInt(10);
+		buffer.putShort((short) 40000);
+		AsyncDataPacket.Height height = new AsyncDataPacket.Height();
+		assertTrue(height.wrap(buffer, 0, AsyncDataPacket.Height.LENGTH));
+		assertEquals(10, height.getTimestamp());
+		assertEquals(40000, height.getHeight());	//unsigned
+	}
+
+	/**
+	 * A view doesn't take a packet of another source or of the wrong length.
+	 */
+	public void testWrongPacket() {
+		ByteBuffer buffer = triAxisPacket(AsyncDataPacket.DATA_SOURCE_GYRO, 1, 1, 2, 3);
+		AsyncDataPacket.Gyro gyro = new AsyncDataPacket.Gyro();
+		assertTrue(gyro.wrap(buffer, OFFSET, AsyncDataPacket.TriAxis.LENGTH));
+		assertFalse(new AsyncDataPacket.Mag().wrap(buffer, OFFSET, AsyncDataPacket.TriAxis.LENGTH));
+		assertFalse(new AsyncDataPacket.Gyro().wrap(buffer, OFFSET, AsyncDataPacket.TriAxis.LENGTH - 1));
+		assertFalse(new AsyncDataPacket.Height().wrap(buffer, OFFSET, AsyncDataPacket.Height.LENGTH));
+		assertEquals(-1, AsyncDataPacket.getDataSource(buffer, OFFSET, 1));
+
+		try {
+			gyro.wrap(ByteBuffer.wrap(buffer.array()), OFFSET, AsyncDataPacket.TriAxis.LENGTH);
+			fail("A big endian buffer was taken");
+		} catch (IllegalArgumentException e) {
+		}
+		//the view still shows the packet it had
+		assertEquals(3f, gyro.getZ());
+	}
+
+	/**
+	 * The buffers of the last two arrays are reused.
+	 */
+	public void testBuffers() {
+		AsyncDataPacket.Buffers buffers = new AsyncDataPacket.Buffers();
+		byte[] read = new byte[64];
+		byte[] frame = new byte[33];
+		ByteBuffer readBuffer = buffers.wrap(read);
+		ByteBuffer frameBuffer = buffers.wrap(frame);
+		assertSame(read, readBuffer.array());
+		assertEquals(ByteOrder.LITTLE_ENDIAN, readBuffer.order());
+		assertSame(readBuffer, buffers.wrap(read));
+		assertSame(frameBuffer, buffers.wrap(frame));
+		assertSame(readBuffer, buffers.wrap(read));
+
+		byte[] other = new byte[8];
+		assertSame(other, buffers.wrap(other).array());
+		assertNotSame(frameBuffer, buffers.wrap(frame));
+	}
+}
@@ -3,7 +3,12 @@
  */
 package com.ventus.smartphonequadrotor.qphoneapp.test.util.bluetooth;
 
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommands;
 import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommunication;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpParser;
 
 import junit.framework.TestCase;
 import org.junit.Assert;
@@ -76,6 +81,101 @@ public class QcfpCommunicationTest extends TestCase {
 		Assert.assertArrayEquals(expected7, result7);
 	}
 	
+	/**
+	 * Encodes the data with {@link QcfpCommunication#encode(ByteBuffer, ByteBuffer)}, after a
+	 * few bytes that are already in the frame.
+	 */
+	private static byte[] encode(byte[] data) {
+		ByteBuffer frame = ByteBuffer.allocate(3 + data.length + 3);
+		frame.put(new byte[] {7, 7, 7});
+		ByteBuffer payload = ByteBuffer.wrap(data);
+		QcfpCommunication.encode(payload, frame);
+		assertEquals(data.length, payload.position());
+		assertEquals(7, frame.get(2));
+		byte[] encoded = new byte[frame.position() - 3];
+		System.arraycopy(frame.array(), 3, encoded, 0, encoded.length);
+		return encoded;
+	}
+	
+	/**
+	 * Test method for {@link QcfpCommunication#encode(ByteBuffer, ByteBuffer)}: it has to give
+	 * the same frames as {@link QcfpCommunication#encodeData(byte[], int)}.
+	 * @throws Exception 
+	 */
+	public void testEncode() throws Exception {
+		byte[][] data = {{0}, {1}, {0, 0}, {0, 0, 0}, {0, 1, 0, 1, 0}, {1, 1, 1, 1, 1}, {0x40, 1}};
+		for (byte[] datum : data)
+			Assert.assertArrayEquals(QcfpCommunication.encodeData(datum, datum.length), encode(datum));
+		
+		Random random = new Random(11);
+		for (int i = 0; i < 1000; i++) {
+			byte[] datum = new byte[1 + random.nextInt(QcfpParser.QCFP_MAX_PACKET_SIZE)];
+			for (int j = 0; j < datum.length; j++)
+				datum[j] = (random.nextInt(4) == 0) ? 0 : (byte) random.nextInt(256);
+			Assert.assertArrayEquals(QcfpCommunication.encodeData(datum, datum.length), encode(datum));
+		}
+	}
+	
+	public void testEncodeIllegalLength() {
+		ByteBuffer frame = ByteBuffer.allocate(64);
+		try {
+			QcfpCommunication.encode(ByteBuffer.allocate(0), frame);
+			fail("An empty payload was encoded");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			QcfpCommunication.encode(ByteBuffer.allocate(QcfpParser.QCFP_MAX_PACKET_SIZE + 1), frame);
+			fail("A payload that is too large was encoded");
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals(0, frame.position());
+	}
+	
+	/**
+	 * The commands that are built in place have to give the same frames as the payloads
+	 * built by hand and encoded by {@link QcfpCommunication#encodeData(byte[], int)}.
+	 * @throws Exception 
+	 */
+	public void testCommands() throws Exception {
+		final ByteBuffer sent = ByteBuffer.allocate(256);
+		QcfpCommunication communication = new QcfpCommunication(null) {
+			@Override
+			public void sendBluetoothMessage(byte[] message, int offset, int length) {
+				sent.put(message, offset, length);
+			}
+		};
+		
+		byte[] motorSpeeds = {1, 20, 0, 80};
+		communication.sendRawMotorSpeeds(motorSpeeds);
+		assertSent(sent, new byte[] {QcfpCommands.QCFP_RAW_MOTOR_CONTROL, 1, 20, 0, 80});
+		
+		communication.sendFlightMode(true);
+		assertSent(sent, new byte[] {QcfpCommands.QCFP_FLIGHT_MODE, QcfpCommands.QCFP_FLIGHT_MODE_ENABLE});
+		
+		communication.setDesiredThrottle(0x1234);
+		assertSent(sent, new byte[] {QcfpCommands.QCFP_SET_THROTTLE, 0x34, 0x12});
+		
+		communication.sendDebugInformation("2a004b");
+		assertSent(sent, new byte[] {0x2a, 0, 0x4b});
+		
+		communication.queryCalibration();
+		assertSent(sent, new byte[] {QcfpCommands.QCFP_CALIBRATE_QUADROTOR});
+		
+		try {
+			communication.sendRawMotorSpeeds(new byte[3]);
+			fail("Three motor speeds were sent");
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals(0, sent.position());
+	}
+	
+	private static void assertSent(ByteBuffer sent, byte[] payload) throws Exception {
+		byte[] frame = new byte[sent.position()];
+		System.arraycopy(sent.array(), 0, frame, 0, frame.length);
+		Assert.assertArrayEquals(QcfpCommunication.encodeData(payload, payload.length), frame);
+		sent.clear();
+	}
+	
 	/**
 	 * Test method for {@link com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommunication#decodeFloat(byte[], int)}.
 	 */
@@ -0,0 +1,121 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCallback;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommands;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpHandlers;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class QcfpHandlersTest extends TestCase {
+	private List<String> calls = new ArrayList<String>();
+
+	private QcfpCallback callback(final String name) {
+		return new QcfpCallback() {
+			@Override
+			public void run(byte[] packet, int length) {
+				calls.add(name + ":" + packet[0] + ":" + length);
+			}
+		};
+	}
+
+	/**
+	 * Test method for {@link QcfpHandlers#dispatch(byte[], int, int)}: every callback of the
+	 * command runs, in the order they were registered, and no other.
+	 */
+	public void testDispatch() {
+		QcfpHandlers handlers = new QcfpHandlers();
+		handlers.registerHandler(QcfpCommands.QCFP_ASYNC_DATA, callback("control"));
+		handlers.registerHandler(QcfpCommands.QCFP_ASYNC_DATA, callback("recorder"));
+		handlers.registerHandler(QcfpCommands.QCFP_FLIGHT_MODE, callback("flight mode"));
+
+		handlers.dispatch(new byte[] {5, 5, QcfpCommands.QCFP_ASYNC_DATA, 1, 2}, 2, 3);
+		assertEquals(2, calls.size());
+		assertEquals("control:16:3", calls.get(0));
+		assertEquals("recorder:16:3", calls.get(1));
+
+		calls.clear();
+		handlers.dispatch(new byte[] {0x33}, 1);
+		assertTrue(calls.isEmpty());
+	}
+
+	/**
+	 * The commands above 0x7F can be registered signed or unsigned.
+	 */
+	public void testUnsignedCommands() {
+		QcfpHandlers handlers = new QcfpHandlers();
+		handlers.registerHandler(QcfpCommands.QCFP_RAW_MOTOR_CONTROL, callback("signed"));
+		handlers.registerHandler(0xF0, callback("unsigned"));
+		assertEquals(2, handlers.getHandlerCount(QcfpCommands.QCFP_RAW_MOTOR_CONTROL));
+
+		handlers.dispatch(new byte[] {(byte) 0xF0, 1}, 2);
+		assertEquals(2, calls.size());
+
+		try {
+			handlers.registerHandler(256, callback("too large"));
+			fail("A command that isn't a byte was registered");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testUnregisterHandler() {
+		QcfpHandlers handlers = new QcfpHandlers();
+		QcfpCallback first = callback("first");
+		QcfpCallback second = callback("second");
+		handlers.registerHandler(1, first);
+		handlers.registerHandler(1, second);
+
+		assertTrue(handlers.unregisterHandler(1, first));
+		assertFalse(handlers.unregisterHandler(1, first));
+		assertFalse(handlers.unregisterHandler(2, second));
+		handlers.dispatch(new byte[] {1}, 1);
+		assertEquals(1, calls.size());
+		assertEquals("second:1:1", calls.get(0));
+
+		assertTrue(handlers.unregisterHandler(1, second));
+		assertEquals(0, handlers.getHandlerCount(1));
+	}
+
+	/**
+	 * A callback that registers another one while it runs doesn't change the dispatch that
+	 * is running.
+	 */
+	public void testRegisterWhileDispatching() {
+		final QcfpHandlers handlers = new QcfpHandlers();
+		handlers.registerHandler(1, new QcfpCallback() {
+			@Override
+			public void run(byte[] packet, int length) {
+				calls.add("registering");
+				handlers.registerHandler(1, callback("late"));
+			}
+		});
+
+		handlers.dispatch(new byte[] {1}, 1);
+		assertEquals(1, calls.size());
+		handlers.dispatch(new byte[] {1}, 1);
+		assertEquals(3, calls.size());
+		assertEquals("late:1:1", calls.get(2));
+	}
+
+	public void testDispatchCounts() {
+		QcfpHandlers handlers = new QcfpHandlers();
+		handlers.registerHandler(QcfpCommands.QCFP_ASYNC_DATA, callback("control"));
+		for (int i = 0; i < 3; i++)
+			handlers.dispatch(new byte[] {QcfpCommands.QCFP_ASYNC_DATA}, 1);
+		handlers.dispatch(new byte[] {(byte) 0xAB}, 1);
+
+		assertEquals(3, handlers.getDispatchCount(QcfpCommands.QCFP_ASYNC_DATA));
+		//packets without a callback are counted too
+		assertEquals(1, handlers.getDispatchCount(0xAB));
+		assertEquals(0, handlers.getDispatchCount(QcfpCommands.QCFP_FLIGHT_MODE));
+
+		handlers.resetDispatchCounts();
+		assertEquals(0, handlers.getDispatchCount(QcfpCommands.QCFP_ASYNC_DATA));
+	}
+}
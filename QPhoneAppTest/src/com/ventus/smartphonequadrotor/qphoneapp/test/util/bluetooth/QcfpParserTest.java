@@ -3,7 +3,12 @@
  */
 package com.ventus.smartphonequadrotor.qphoneapp.test.util.bluetooth;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCallback;
+import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpCommunication;
 import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpHandlers;
 import com.ventus.smartphonequadrotor.qphoneapp.util.bluetooth.QcfpParser;
 
@@ -179,5 +184,131 @@ public class QcfpParserTest extends TestCase {
 		p.addData(buffer12, buffer12.length);
 		assertTrue(handler6Run);
 	}
-
+	
+	/**
+	 * Collects the packets of the commands 0 to 255 it is registered for.
+	 */
+	private static class PacketCollector extends QcfpCallback {
+		List<byte[]> packets = new ArrayList<byte[]>();
+		List<Integer> offsets = new ArrayList<Integer>();
+		
+		@Override
+		public void run(byte[] packet, int length) {
+			run(packet, 0, length);
+		}
+		
+		@Override
+		public void run(byte[] packet, int offset, int length) {
+			byte[] copy = new byte[length];
+			System.arraycopy(packet, offset, copy, 0, length);
+			packets.add(copy);
+			offsets.add(offset);
+		}
+	}
+	
+	private static QcfpParser newParser(PacketCollector collector) {
+		QcfpHandlers handlers = new QcfpHandlers();
+		for (int command = -128; command < 128; command++)
+			handlers.registerHandler(command, collector);
+		return new QcfpParser(QcfpParser.QCFP_MAX_PACKET_SIZE, handlers);
+	}
+	
+	/**
+	 * Random packets, encoded back to back and fed to the parser in reads of random sizes,
+	 * have to come out as they went in.
+	 * @throws Exception 
+	 */
+	public void testRandomPackets() throws Exception {
+		Random random = new Random(3);
+		List<byte[]> sent = new ArrayList<byte[]>();
+		byte[] stream = new byte[64 * 1024];
+		int streamLength = 0;
+		while (streamLength < stream.length - QcfpParser.QCFP_MAX_PACKET_SIZE - 3) {
+			byte[] packet = new byte[1 + random.nextInt(QcfpParser.QCFP_MAX_PACKET_SIZE)];
+			for (int i = 0; i < packet.length; i++)
+				packet[i] = (random.nextInt(4) == 0) ? 0 : (byte) random.nextInt(256);
+			byte[] frame = QcfpCommunication.encodeData(packet, packet.length);
+			System.arraycopy(frame, 0, stream, streamLength, frame.length);
+			streamLength += frame.length;
+			sent.add(packet);
+		}
+		
+		PacketCollector collector = new PacketCollector();
+		QcfpParser parser = newParser(collector);
+		byte[] read = new byte[2 * QcfpParser.QCFP_MAX_PACKET_SIZE];
+		for (int i = 0; i < streamLength; ) {
+			int length = Math.min(1 + random.nextInt(read.length), streamLength - i);
+			System.arraycopy(stream, i, read, 0, length);
+			parser.addData(read, length);
+			i += length;
+		}
+		
+		assertEquals(sent.size(), collector.packets.size());
+		for (int i = 0; i < sent.size(); i++)
+			Assert.assertArrayEquals(sent.get(i), collector.packets.get(i));
+	}
+	
+	/**
+	 * A frame that lies completely inside a read is handed out where it is, right after its
+	 * code byte.
+	 * @throws Exception 
+	 */
+	public void testPacketInPlace() throws Exception {
+		PacketCollector collector = new PacketCollector();
+		QcfpParser parser = newParser(collector);
+		byte[] frame = QcfpCommunication.encodeData(new byte[] {7, 0, 1, 0, 2}, 5);
+		byte[] read = new byte[3 + frame.length];
+		System.arraycopy(frame, 0, read, 3, frame.length);
+		parser.addData(read, read.length);
+		
+		assertEquals(1, collector.packets.size());
+		Assert.assertArrayEquals(new byte[] {7, 0, 1, 0, 2}, collector.packets.get(0));
+		assertEquals(Integer.valueOf(3 + 2), collector.offsets.get(0));
+	}
+	
+	/**
+	 * A packet after a longer one must not pick up the bytes the longer one left behind.
+	 * @throws Exception 
+	 */
+	public void testShorterPacketAfterLongerOne() throws Exception {
+		PacketCollector collector = new PacketCollector();
+		QcfpParser parser = newParser(collector);
+		byte[] longer = {5, 1, 2, 3, 4, 5, 6};
+		byte[] shorter = {5, 9};
+		for (byte[] packet : new byte[][] {longer, shorter}) {
+			byte[] frame = QcfpCommunication.encodeData(packet, packet.length);
+			//split every frame, so that it goes through the copy
+			parser.addData(frame, 3);
+			byte[] rest = new byte[frame.length - 3];
+			System.arraycopy(frame, 3, rest, 0, rest.length);
+			parser.addData(rest, rest.length);
+		}
+		
+		assertEquals(2, collector.packets.size());
+		Assert.assertArrayEquals(longer, collector.packets.get(0));
+		Assert.assertArrayEquals(shorter, collector.packets.get(1));
+	}
+	
+	/**
+	 * A packet of the maximum size has to make it through, one that is larger must not.
+	 * @throws Exception 
+	 */
+	public void testMaximumPacketSize() throws Exception {
+		PacketCollector collector = new PacketCollector();
+		QcfpParser parser = newParser(collector);
+		byte[] largest = new byte[QcfpParser.QCFP_MAX_PACKET_SIZE];
+		largest[0] = 1;
+		byte[] frame = QcfpCommunication.encodeData(largest, largest.length);
+		//the parser decodes the frame in place, so this is copied first
+		byte[] tooLarge = new byte[frame.length + 1];
+		System.arraycopy(frame, 0, tooLarge, 0, frame.length - 1);
+		tooLarge[frame.length - 1] = 1;	//a zero more, as an empty chunk
+		
+		parser.addData(frame, frame.length);
+		assertEquals(1, collector.packets.size());
+		Assert.assertArrayEquals(largest, collector.packets.get(0));
+		
+		parser.addData(tooLarge, tooLarge.length);
+		assertEquals(1, collector.packets.size());
+	}
 }
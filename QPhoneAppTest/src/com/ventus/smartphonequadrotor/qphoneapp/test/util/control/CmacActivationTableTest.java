@@ -0,0 +1,105 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacActivationTable;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacInputParam;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacLayer;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class CmacActivationTableTest extends TestCase {
+	private static final int SAMPLES = 100000;
+
+	private static double exactSpline(double x) {
+		return Math.pow(x, 2) - 2*Math.pow(x, 3) + Math.pow(x, 4);
+	}
+
+	/**
+	 * Test method for {@link CmacActivationTable#evaluate(double)}.
+	 */
+	public void testEvaluate() {
+		assertEquals(0, CmacActivationTable.evaluate(0), 0);
+		assertEquals(0, CmacActivationTable.evaluate(1), 0);
+		assertEquals(0.0625, CmacActivationTable.evaluate(0.5), 0);
+		for (int i = 0; i <= SAMPLES; i++) {
+			double x = (double) i / SAMPLES;
+			double expected = exactSpline(x);
+			//the factored form only differs from Math.pow by rounding
+			assertEquals(expected, CmacActivationTable.evaluate(x), 1e-15 + 1e-12 * expected);
+		}
+	}
+
+	/**
+	 * Test method for {@link CmacActivationTable#lookup(double)} and {@link CmacActivationTable#getMaxError()}.
+	 */
+	public void testLookupErrorBound() {
+		Random random = new Random(11);
+		int[] resolutions = new int[] {1, 16, 100, 1024, 4096};
+		for (int resolution : resolutions) {
+			CmacActivationTable table = new CmacActivationTable(resolution);
+			double maxError = 0;
+			for (int i = 0; i < SAMPLES; i++) {
+				double x = random.nextDouble();
+				maxError = Math.max(maxError, Math.abs(table.lookup(x) - exactSpline(x)));
+			}
+			assertTrue(
+				String.format("Resolution %d: error %g is above the bound %g", resolution, maxError, table.getMaxError()),
+				maxError <= table.getMaxError() + 1e-15
+			);
+			//the bound isn't overly pessimistic: near 0 the spline is almost x^2, where the
+			//interpolation is off by almost the whole bound
+			assertTrue(maxError >= table.getMaxError() / 8);
+			//the table is exact at its samples
+			assertEquals(exactSpline(0.5), table.lookup(0.5), (resolution % 2 == 0) ? 1e-15 : table.getMaxError());
+		}
+	}
+
+	/**
+	 * Inputs outside [0, 1] (which only happen through rounding errors) are clamped.
+	 */
+	public void testLookupClamping() {
+		CmacActivationTable table = new CmacActivationTable(64);
+		assertEquals(0, table.lookup(-1e-17), 0);
+		assertEquals(0, table.lookup(1 + 1e-15), 0);
+		assertEquals(0, table.lookup(1), 0);
+		try {
+			new CmacActivationTable(0);
+			fail("A table without intervals was created");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	/**
+	 * The layer's activation function with a table must be within the error bound of the
+	 * table (propagated through the product over the dimensions).
+	 */
+	public void testLayerWithTable() {
+		CmacLayer layer = new CmacLayer(new SimpleMatrix(1, CmacInputParam.count));
+		CmacActivationTable table = new CmacActivationTable(1024);
+		Random random = new Random(5);
+		SimpleMatrix min = CmacInputParam.getDefaultMinBound();
+		SimpleMatrix range = CmacInputParam.getDefaultMaxBound().minus(min);
+		double[] input = new double[CmacInputParam.count];
+		int[] cells = new int[CmacInputParam.count];
+		for (int i = 0; i < 1000; i++) {
+			for (int j = 0; j < input.length; j++)
+				input[j] = min.get(j) + random.nextDouble() * range.get(j);
+			layer.getQuantizer().quantize(input, cells);
+			layer.setActivationTable(null);
+			double exact = layer.calculateActivationFunction(input, cells);
+			layer.setActivationTable(table);
+			double interpolated = layer.calculateActivationFunction(input, cells);
+			//every factor is at most 1/16 and off by at most the bound, so the product is off by
+			//at most (1/16 + bound)^13 - (1/16)^13
+			double bound = Math.pow(0.0625 + table.getMaxError(), input.length) - Math.pow(0.0625, input.length);
+			assertEquals(exact, interpolated, bound);
+		}
+	}
+}
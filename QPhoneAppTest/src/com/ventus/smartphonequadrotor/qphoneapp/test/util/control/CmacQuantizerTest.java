@@ -0,0 +1,185 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacInputParam;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacLayer;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacQuantizer;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacWeightStore;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.ControlLoop;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link CmacQuantizer} picks exactly the same cells as the matrix based
+ * rounding that {@link CmacLayer} used to do.
+ * @author abhin
+ *
+ */
+public class CmacQuantizerTest extends TestCase {
+	private static final int RANDOM_INPUTS = 20000;
+	
+	private SimpleMatrix lowerBound;
+	private SimpleMatrix stateInterval;
+	private SimpleMatrix[] offsets;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		lowerBound = CmacInputParam.getDefaultMinBound();
+		stateInterval = CmacInputParam.getDefaultMaxBound()
+						.minus(lowerBound)
+						.divide(ControlLoop.QUANTIZATION_NUMBER);
+		//the same offsets that the control loop uses
+		SimpleMatrix offsetIncrement = stateInterval.divide(ControlLoop.NUMBER_OF_CMAC_LAYERS);
+		offsets = new SimpleMatrix[ControlLoop.NUMBER_OF_CMAC_LAYERS];
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = offsetIncrement.mult(i);
+		}
+	}
+	
+	/**
+	 * This is how the cells used to be computed by CmacLayer.roundAndOffsetInput.
+	 */
+	private int[] referenceCells(SimpleMatrix input, SimpleMatrix offset) {
+		SimpleMatrix offsetted = input.minus(offset).minus(lowerBound);
+		int[] cells = new int[input.getNumElements()];
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = (int)(offsetted.get(i) / stateInterval.get(i));
+		}
+		return cells;
+	}
+	
+	private void assertSameCells(SimpleMatrix input, SimpleMatrix offset, CmacQuantizer quantizer, int[] cells) {
+		int[] expected = referenceCells(input, offset);
+		quantizer.quantize(input, cells);
+		for (int i = 0; i < cells.length; i++) {
+			if (expected[i] != cells[i]) {
+				fail(String.format("Dimension %d of %s: expected cell %d but got %d", i, input, expected[i], cells[i]));
+			}
+		}
+	}
+
+	/**
+	 * Random inputs spread over (and a little beyond) the whole state space.
+	 */
+	public void testRandomInputs() {
+		Random random = new Random(1234);
+		int[] cells = new int[CmacInputParam.count];
+		SimpleMatrix input = new SimpleMatrix(1, CmacInputParam.count);
+		for (SimpleMatrix offset : offsets) {
+			CmacQuantizer quantizer = new CmacQuantizer(lowerBound, stateInterval, offset);
+			for (int n = 0; n < RANDOM_INPUTS; n++) {
+				for (int i = 0; i < CmacInputParam.count; i++) {
+					double range = CmacInputParam.values()[i].maxBound - CmacInputParam.values()[i].minBound;
+					input.set(i, lowerBound.get(i) + (1.2 * random.nextDouble() - 0.1) * range);
+				}
+				assertSameCells(input, offset, quantizer, cells);
+			}
+		}
+	}
+	
+	/**
+	 * Inputs that are on (or one ulp away from) the cell boundaries, where the rounding of
+	 * the intermediate results matters.
+	 */
+	public void testCellBoundaries() {
+		Random random = new Random(4321);
+		int[] cells = new int[CmacInputParam.count];
+		SimpleMatrix input = new SimpleMatrix(1, CmacInputParam.count);
+		for (SimpleMatrix offset : offsets) {
+			CmacQuantizer quantizer = new CmacQuantizer(lowerBound, stateInterval, offset);
+			for (int n = 0; n < RANDOM_INPUTS; n++) {
+				for (int i = 0; i < CmacInputParam.count; i++) {
+					int cell = random.nextInt(ControlLoop.QUANTIZATION_NUMBER + 20) - 10;
+					double boundary = lowerBound.get(i) + offset.get(i) + cell * stateInterval.get(i);
+					switch (random.nextInt(3)) {
+					case 0:
+						boundary -= Math.ulp(boundary);
+						break;
+					case 1:
+						boundary += Math.ulp(boundary);
+						break;
+					default:
+						break;
+					}
+					input.set(i, boundary);
+				}
+				assertSameCells(input, offset, quantizer, cells);
+			}
+		}
+	}
+	
+	/**
+	 * Inputs beyond the cells that {@link CmacWeightStore} can key saturate: they get the key
+	 * and the activation of the outer edge of the outermost cell, instead of sharing a key
+	 * with that cell while being activated as if they were somewhere else.
+	 */
+	public void testSaturation() {
+		CmacLayer layer = new CmacLayer(ControlLoop.QUANTIZATION_NUMBER, lowerBound, CmacInputParam.getDefaultMaxBound(), offsets[1]);
+		CmacQuantizer quantizer = layer.getQuantizer();
+		double[] input = new double[CmacInputParam.count];
+		double[] edge = new double[CmacInputParam.count];
+		int[] cells = new int[CmacInputParam.count];
+		int[] edgeCells = new int[CmacInputParam.count];
+		for (int i = 0; i < CmacInputParam.count; i++) {
+			double range = CmacInputParam.values()[i].maxBound - CmacInputParam.values()[i].minBound;
+			double beyond = (i % 2 == 0) ? 1e3 * range : -1e3 * range;
+			input[i] = lowerBound.get(i) + beyond;
+			edge[i] = quantizer.saturate(i, input[i]);
+			assertTrue(edge[i] != input[i]);
+		}
+		quantizer.quantize(input, cells);
+		quantizer.quantize(edge, edgeCells);
+		for (int i = 0; i < CmacInputParam.count; i++) {
+			int expected = (i % 2 == 0) ? CmacWeightStore.MAX_CELL_COORDINATE : CmacWeightStore.MIN_CELL_COORDINATE;
+			assertEquals(expected, cells[i]);
+			assertEquals(expected, edgeCells[i]);
+			assertEquals((i % 2 == 0) ? 1 : -1, quantizer.getPositionInCell(i, cells[i], input[i]), 1e-9);
+			assertEquals(
+				quantizer.getPositionInCell(i, edgeCells[i], edge[i]),
+				quantizer.getPositionInCell(i, cells[i], input[i]),
+				1e-9
+			);
+		}
+		assertEquals(CmacWeightStore.packHigh(edgeCells), CmacWeightStore.packHigh(cells));
+		assertEquals(CmacWeightStore.packLow(edgeCells), CmacWeightStore.packLow(cells));
+		assertEquals(
+			layer.calculateActivationFunction(edge, edgeCells),
+			layer.calculateActivationFunction(input, cells),
+			1e-12
+		);
+		SimpleMatrix inputMatrix = new SimpleMatrix(1, CmacInputParam.count, true, input);
+		SimpleMatrix edgeMatrix = new SimpleMatrix(1, CmacInputParam.count, true, edge);
+		assertEquals(
+			layer.calculateActivationFunction(edgeMatrix, null),
+			layer.calculateActivationFunction(inputMatrix, null),
+			1e-12
+		);
+	}
+	
+	/**
+	 * Test method for {@link CmacLayer#roundAndOffsetInput(SimpleMatrix)} against the
+	 * old implementation.
+	 */
+	public void testRoundAndOffsetInput() {
+		Random random = new Random(99);
+		SimpleMatrix input = new SimpleMatrix(1, CmacInputParam.count);
+		for (SimpleMatrix offset : offsets) {
+			CmacLayer layer = new CmacLayer(ControlLoop.QUANTIZATION_NUMBER, lowerBound, CmacInputParam.getDefaultMaxBound(), offset);
+			for (int n = 0; n < 200; n++) {
+				for (int i = 0; i < CmacInputParam.count; i++) {
+					double range = CmacInputParam.values()[i].maxBound - CmacInputParam.values()[i].minBound;
+					input.set(i, lowerBound.get(i) + random.nextDouble() * range);
+				}
+				int[] cells = referenceCells(input, offset);
+				SimpleMatrix expected = new SimpleMatrix(1, CmacInputParam.count);
+				for (int i = 0; i < cells.length; i++) {
+					expected.set(i, cells[i]);
+				}
+				expected = expected.elementMult(stateInterval).plus(lowerBound).round();
+				assertEquals(expected, layer.roundAndOffsetInput(input));
+			}
+		}
+	}
+}
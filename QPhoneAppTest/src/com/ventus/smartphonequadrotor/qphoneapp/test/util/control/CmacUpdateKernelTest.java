@@ -0,0 +1,227 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.test.benchmark.MicroBenchmark;
+import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacInputParam;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacLayer;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacOutput;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacUpdateKernel;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.ControlLoop;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link CmacUpdateKernel} learns the same weights as the SimpleMatrix based
+ * implementation that {@link ControlLoop#triggerCmacUpdate(SimpleMatrix)} used to have
+ * and that it doesn't allocate memory.
+ * @author abhin
+ *
+ */
+public class CmacUpdateKernelTest extends TestCase {
+	private static final int NUMBER_OF_INPUTS = 500;
+	/**
+	 * The learning gains amplify any difference between the two implementations, so they
+	 * are only compared over the first part of the trajectory.
+	 */
+	private static final int EQUIVALENCE_STEPS = 100;
+	private static final long TIME_INTERVAL = 50;
+	/**
+	 * The old implementation rounded the cell corners to 6 decimal places before computing
+	 * the activation functions. For the angular dimensions that is a sizeable fraction of a
+	 * cell, so the activations (and the weights learnt with them) differ slightly.
+	 */
+	private static final double TOLERANCE = 1e-2;
+
+	private SimpleMatrix[] inputs;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		//a random walk through the state space around hover. It is clamped halfway between
+		//cell boundaries because on a boundary the activation function of the old implementation
+		//is just the rounding error of the cell corner.
+		Random random = new Random(7);
+		SimpleMatrix stateInterval = CmacInputParam.getDefaultMaxBound()
+				.minus(CmacInputParam.getDefaultMinBound())
+				.divide(ControlLoop.QUANTIZATION_NUMBER);
+		inputs = new SimpleMatrix[NUMBER_OF_INPUTS];
+		SimpleMatrix state = new SimpleMatrix(1, CmacInputParam.count);
+		for (int i = 0; i < NUMBER_OF_INPUTS; i++) {
+			for (int j = 0; j < CmacInputParam.count; j++) {
+				double next = state.get(j) + random.nextGaussian() * stateInterval.get(j) * 0.3;
+				state.set(j, Math.max(-5.5 * stateInterval.get(j), Math.min(5.5 * stateInterval.get(j), next)));
+			}
+			inputs[i] = state.copy();
+		}
+	}
+
+	private static CmacLayer[] createLayers() {
+		SimpleMatrix offsetIncrement = CmacInputParam.getDefaultMaxBound()
+				.minus(CmacInputParam.getDefaultMinBound())
+				.divide(ControlLoop.NUMBER_OF_CMAC_LAYERS * ControlLoop.QUANTIZATION_NUMBER);
+		CmacLayer[] layers = new CmacLayer[ControlLoop.NUMBER_OF_CMAC_LAYERS];
+		for (int i = 0; i < layers.length; i++) {
+			layers[i] = new CmacLayer(offsetIncrement.mult(i));
+		}
+		return layers;
+	}
+
+	private static double[] toArray(SimpleMatrix input) {
+		double[] array = new double[input.getNumElements()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = input.get(i);
+		return array;
+	}
+
+	/**
+	 * This is the body of ControlLoop.triggerCmacUpdate before it was moved to {@link CmacUpdateKernel}.
+	 */
+	private static SimpleMatrix referenceUpdate(CmacLayer[] cmacLayers, SimpleMatrix input, long timeInterval) {
+		final int NUMBER_OF_CMAC_LAYERS = cmacLayers.length;
+		SimpleMatrix controlWeights = new SimpleMatrix(NUMBER_OF_CMAC_LAYERS, CmacOutput.NUMBER_OF_WEIGHTS);
+		SimpleMatrix alternateWeights = new SimpleMatrix(NUMBER_OF_CMAC_LAYERS, CmacOutput.NUMBER_OF_WEIGHTS);
+		SimpleMatrix activationFunctions = new SimpleMatrix(1, NUMBER_OF_CMAC_LAYERS);
+		CmacOutput output;
+		for (int i = 0; i < NUMBER_OF_CMAC_LAYERS; i++) {
+			output = cmacLayers[i].query(input);
+			controlWeights.insertIntoThis(i, 0, output.getControlWeights());
+			alternateWeights.insertIntoThis(i, 0, output.getAlternateWeights());
+			activationFunctions.set(i, output.getActivationFunction());
+		}
+		double activationFunctionSum = activationFunctions.elementSum();
+		SimpleMatrix normalizedActivationFunctions;
+		if (activationFunctionSum != 0)
+			normalizedActivationFunctions = activationFunctions.divide(activationFunctions.elementSum());
+		else
+			normalizedActivationFunctions = activationFunctions;
+
+		SimpleMatrix aggregatedControlWeights = normalizedActivationFunctions.mult(controlWeights);
+		SimpleMatrix aggregatedAlternateWeights = normalizedActivationFunctions.mult(alternateWeights);
+		SimpleMatrix weightDiff = aggregatedControlWeights.minus(aggregatedAlternateWeights);
+
+		SimpleMatrix meanAlternateWeights = SimpleMatrix.ones(1, NUMBER_OF_CMAC_LAYERS)
+														.mult(alternateWeights)
+														.divide(NUMBER_OF_CMAC_LAYERS);
+
+		double weightDiffNorm = weightDiff.normF();
+		SimpleMatrix deltaControlWeights, deltaAlternateWeights;
+		deltaAlternateWeights = meanAlternateWeights
+								.repmat(NUMBER_OF_CMAC_LAYERS, 1)
+								.minus(alternateWeights)
+								.mult(ControlLoop.ALTERNATE_WEIGHT_DEVIATION_GAIN);
+		deltaAlternateWeights = deltaAlternateWeights.minus(
+									alternateWeights.mult(ControlLoop.LEAKAGE_TERM_GAIN)
+								);
+		deltaControlWeights = 	normalizedActivationFunctions.transpose().mult(
+									CmacInputParam.getStateErrors(input, ControlLoop.CURRENT_STATE_ERROR_GAIN)
+								).mult(-1.0);
+		SimpleMatrix lyapunovBoundednessTerm = 	normalizedActivationFunctions
+												.transpose()
+												.mult(weightDiff)
+												.mult(ControlLoop.LEARNING_ERROR_GAIN);
+		if (weightDiffNorm > ControlLoop.DEADZONE) {
+			deltaAlternateWeights = deltaAlternateWeights.plus(lyapunovBoundednessTerm);
+			deltaControlWeights = 	deltaControlWeights.minus(lyapunovBoundednessTerm);
+			deltaControlWeights = 	deltaControlWeights.plus(
+										alternateWeights.minus(controlWeights).mult(ControlLoop.GUIDE_WEIGHTS_GAIN)
+									);
+		} else {
+			deltaControlWeights =	deltaControlWeights.plus(
+										alternateWeights.minus(controlWeights).mult(ControlLoop.GUIDE_WEIGHTS_GAIN_DEADZONE)
+									);
+		}
+		deltaAlternateWeights = deltaAlternateWeights.mult(ControlLoop.ALTERNATE_WEIGHTS_LEARNING_GAIN);
+		deltaControlWeights = deltaControlWeights.mult(ControlLoop.CONTROL_WEIGHTS_LEARNING_GAIN);
+
+		for (int i = 0; i < NUMBER_OF_CMAC_LAYERS; i++) {
+			cmacLayers[i].applyDeltas(
+				input,
+				deltaControlWeights.extractMatrix(i, i+1, 0, deltaControlWeights.numCols()),
+				deltaAlternateWeights.extractMatrix(i, i+1, 0, deltaAlternateWeights.numCols()),
+				timeInterval
+			);
+		}
+
+		return aggregatedControlWeights;
+	}
+
+	private static void assertClose(String message, double expected, double actual) {
+		assertEquals(message, expected, actual, TOLERANCE * Math.max(1, Math.abs(expected)));
+	}
+
+	/**
+	 * Runs both the implementations on the same trajectory and compares the outputs and the
+	 * learnt weights after every step.
+	 */
+	public void testSameAsMatrixImplementation() {
+		CmacLayer[] referenceLayers = createLayers();
+		CmacLayer[] kernelLayers = createLayers();
+		CmacUpdateKernel kernel = new CmacUpdateKernel(kernelLayers);
+		double[] output = new double[CmacOutput.NUMBER_OF_WEIGHTS];
+
+		for (int step = 0; step < EQUIVALENCE_STEPS; step++) {
+			SimpleMatrix expected = referenceUpdate(referenceLayers, inputs[step], TIME_INTERVAL);
+			kernel.update(toArray(inputs[step]), TIME_INTERVAL, output);
+			for (int i = 0; i < output.length; i++) {
+				assertClose(String.format("Output %d of step %d", i, step), expected.get(i), output[i]);
+			}
+		}
+
+		//all the cells that were visited must have the same weights
+		for (int layer = 0; layer < referenceLayers.length; layer++) {
+			for (int step = 0; step < EQUIVALENCE_STEPS; step++) {
+				SimpleMatrix input = inputs[step];
+				CmacOutput expected = referenceLayers[layer].query(input);
+				CmacOutput actual = kernelLayers[layer].query(input);
+				for (int i = 0; i < CmacOutput.NUMBER_OF_WEIGHTS; i++) {
+					assertClose("Control weight", expected.getControlWeights().get(i), actual.getControlWeights().get(i));
+					assertClose("Alternate weight", expected.getAlternateWeights().get(i), actual.getAlternateWeights().get(i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compares the activation function with that of the SimpleMatrix implementation, given
+	 * the same (not rounded) cell corner.
+	 */
+	public void testActivationFunction() {
+		CmacLayer[] layers = createLayers();
+		int[] cells = new int[CmacInputParam.count];
+		SimpleMatrix cellCorner = new SimpleMatrix(1, CmacInputParam.count);
+		for (CmacLayer layer : layers) {
+			for (SimpleMatrix input : inputs) {
+				layer.getQuantizer().quantize(input, cells);
+				for (int i = 0; i < cells.length; i++)
+					cellCorner.set(i, layer.getQuantizer().getCellLowerEdge(i, cells[i]));
+				double expected = layer.calculateActivationFunction(input, cellCorner);
+				double actual = layer.calculateActivationFunction(toArray(input), cells);
+				//close to the center of a cell (normalized position 1) the sum of powers in the matrix
+				//implementation cancels out to its rounding error, about 1e-15 for that dimension
+				assertEquals(expected, actual, 1e-6 * expected + 1e-15 * Math.pow(0.0625, CmacInputParam.count - 1));
+			}
+		}
+	}
+
+	/**
+	 * Once all the cells of the trajectory exist, an update must not allocate anything.
+	 */
+	public void testNoAllocationPerTick() {
+		final CmacUpdateKernel kernel = new CmacUpdateKernel(createLayers());
+		final double[][] arrayInputs = new double[NUMBER_OF_INPUTS][];
+		for (int i = 0; i < NUMBER_OF_INPUTS; i++)
+			arrayInputs[i] = toArray(inputs[i]);
+		final double[] output = new double[CmacOutput.NUMBER_OF_WEIGHTS];
+
+		MicroBenchmark.Result result = new MicroBenchmark("CmacUpdateKernel.update") {
+			@Override
+			protected void runOnce(int iteration) {
+				kernel.update(arrayInputs[iteration % NUMBER_OF_INPUTS], TIME_INTERVAL, output);
+			}
+		}.measure(NUMBER_OF_INPUTS, MicroBenchmark.DEFAULT_MEASURED_ITERATIONS);	//warm up with every input so that no cells get created while measuring
+
+		//anything below a byte per tick can't be an allocation made by the tick itself
+		assertTrue("The kernel allocated " + result.bytesPerOp + " bytes per tick", result.bytesPerOp < 1);
+	}
+}
@@ -0,0 +1,312 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.test.benchmark.AllocationCounter;
+import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacInputParam;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacLayer;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacOutput;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacSnapshotWriter;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacWeightSnapshot;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacWeightStore;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.ControlLoop;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class CmacWeightSnapshotTest extends TestCase {
+	private static final int NUMBER_OF_INPUTS = 2000;	//enough cells to make the tables grow
+
+	private File file;
+	private SimpleMatrix[] inputs;
+	private double[] deltas = new double[CmacOutput.NUMBER_OF_WEIGHTS];
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("cmac", ".bin");
+		Random random = new Random(3);
+		SimpleMatrix min = CmacInputParam.getDefaultMinBound();
+		SimpleMatrix range = CmacInputParam.getDefaultMaxBound().minus(min);
+		inputs = new SimpleMatrix[NUMBER_OF_INPUTS];
+		for (int i = 0; i < NUMBER_OF_INPUTS; i++) {
+			inputs[i] = new SimpleMatrix(1, CmacInputParam.count);
+			for (int j = 0; j < CmacInputParam.count; j++) {
+				inputs[i].set(j, min.get(j) + random.nextDouble() * range.get(j));
+			}
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		file.delete();
+		super.tearDown();
+	}
+
+	private static CmacLayer[] createLayers(int quantizationNumber) {
+		return createLayers(quantizationNumber, 0);
+	}
+	
+	/**
+	 * @param hashedCapacity 0 for the layers to store every cell
+	 */
+	private static CmacLayer[] createLayers(int quantizationNumber, int hashedCapacity) {
+		SimpleMatrix offsetIncrement = CmacInputParam.getDefaultMaxBound()
+				.minus(CmacInputParam.getDefaultMinBound())
+				.divide(ControlLoop.NUMBER_OF_CMAC_LAYERS * quantizationNumber);
+		CmacLayer[] layers = new CmacLayer[ControlLoop.NUMBER_OF_CMAC_LAYERS];
+		for (int i = 0; i < layers.length; i++) {
+			layers[i] = new CmacLayer(
+				quantizationNumber,
+				CmacInputParam.getDefaultMinBound(),
+				CmacInputParam.getDefaultMaxBound(),
+				offsetIncrement.mult(i),
+				(hashedCapacity == 0) ? new CmacWeightStore() : CmacWeightStore.createHashed(hashedCapacity)
+			);
+		}
+		return layers;
+	}
+
+	private void train(CmacLayer[] layers) {
+		for (int i = 0; i < NUMBER_OF_INPUTS; i++) {
+			double[] input = toArray(inputs[i]);
+			for (int j = 0; j < deltas.length; j++)
+				deltas[j] = i + j;
+			for (int layer = 0; layer < layers.length; layer++)
+				layers[layer].applyDeltas(input, deltas, deltas, 0, 1000);
+		}
+	}
+
+	private static double[] toArray(SimpleMatrix input) {
+		double[] array = new double[input.getNumElements()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = input.get(i);
+		return array;
+	}
+
+	private static CmacWeightStore[] getStores(CmacLayer[] layers) {
+		CmacWeightStore[] stores = new CmacWeightStore[layers.length];
+		for (int i = 0; i < layers.length; i++)
+			stores[i] = layers[i].getWeightStore();
+		return stores;
+	}
+
+	private void assertSameWeights(CmacLayer[] expected, CmacLayer[] actual) {
+		for (int layer = 0; layer < expected.length; layer++) {
+			for (SimpleMatrix input : inputs) {
+				CmacOutput expectedOutput = expected[layer].query(input);
+				CmacOutput actualOutput = actual[layer].query(input);
+				assertTrue(expectedOutput.getControlWeights().isIdentical(actualOutput.getControlWeights(), 0));
+				assertTrue(expectedOutput.getAlternateWeights().isIdentical(actualOutput.getAlternateWeights(), 0));
+			}
+		}
+	}
+
+	/**
+	 * Test method for {@link CmacWeightSnapshot#write(File, CmacLayer[], CmacWeightStore[])} and
+	 * {@link CmacWeightSnapshot#load(File, CmacLayer[])}.
+	 */
+	public void testWriteAndLoad() throws IOException {
+		CmacLayer[] trained = createLayers(ControlLoop.QUANTIZATION_NUMBER);
+		train(trained);
+		CmacWeightSnapshot.write(file, trained, getStores(trained));
+
+		CmacLayer[] loaded = createLayers(ControlLoop.QUANTIZATION_NUMBER);
+		CmacWeightSnapshot.load(file, loaded);
+		//the cells are only copied when they are touched
+		assertEquals(0, loaded[0].getWeightStore().size());
+		assertEquals(trained[0].getWeightStore().size(), loaded[0].getWeightStore().getSnapshot().size());
+		loaded[0].query(inputs[0]);
+		assertEquals(1, loaded[0].getWeightStore().size());
+
+		assertSameWeights(trained, loaded);
+		assertEquals(trained[0].getWeightStore().size(), loaded[0].getWeightStore().size());
+	}
+
+	/**
+	 * Cells that haven't been touched since the snapshot was loaded must make it into the next one.
+	 */
+	public void testPageInSnapshot() throws IOException {
+		CmacLayer[] trained = createLayers(ControlLoop.QUANTIZATION_NUMBER);
+		train(trained);
+		CmacWeightSnapshot.write(file, trained, getStores(trained));
+
+		CmacLayer[] loaded = createLayers(ControlLoop.QUANTIZATION_NUMBER);
+		CmacWeightSnapshot.load(file, loaded);
+		loaded[1].applyDeltas(toArray(inputs[5]), deltas, deltas, 0, 1000);
+		trained[1].applyDeltas(toArray(inputs[5]), deltas, deltas, 0, 1000);
+		for (CmacLayer layer : loaded)
+			layer.getWeightStore().pageInSnapshot();
+		CmacWeightSnapshot.write(file, loaded, getStores(loaded));
+
+		CmacLayer[] reloaded = createLayers(ControlLoop.QUANTIZATION_NUMBER);
+		CmacWeightSnapshot.load(file, reloaded);
+		assertSameWeights(trained, reloaded);
+	}
+
+	/**
+	 * A snapshot of layers with another configuration must not be loaded.
+	 */
+	public void testConfigurationMismatch() throws IOException {
+		CmacLayer[] trained = createLayers(ControlLoop.QUANTIZATION_NUMBER);
+		train(trained);
+		CmacWeightSnapshot.write(file, trained, getStores(trained));
+
+		CmacLayer[] otherQuantization = createLayers(ControlLoop.QUANTIZATION_NUMBER / 2);
+		try {
+			CmacWeightSnapshot.load(file, otherQuantization);
+			fail("A snapshot with another quantization number was loaded");
+		} catch (IOException e) {
+			//expected
+		}
+		assertNull(otherQuantization[0].getWeightStore().getSnapshot());
+
+		SimpleMatrix lowerBound = CmacInputParam.getDefaultMinBound();
+		lowerBound.set(0, lowerBound.get(0) - 1);
+		CmacLayer[] otherBounds = new CmacLayer[] {
+			new CmacLayer(ControlLoop.QUANTIZATION_NUMBER, lowerBound, CmacInputParam.getDefaultMaxBound(), trained[0].getOffset()),
+			trained[1],
+			trained[2]
+		};
+		try {
+			CmacWeightSnapshot.load(file, otherBounds);
+			fail("A snapshot with other bounds was loaded");
+		} catch (IOException e) {
+			//expected
+		}
+
+		CmacLayer[] tooFewLayers = new CmacLayer[] {trained[0], trained[1]};
+		try {
+			CmacWeightSnapshot.load(file, tooFewLayers);
+			fail("A snapshot with another number of layers was loaded");
+		} catch (IOException e) {
+			//expected
+		}
+	}
+
+	/**
+	 * Files that aren't complete snapshots must not be loaded.
+	 */
+	public void testCorruptFile() throws IOException {
+		CmacLayer[] trained = createLayers(ControlLoop.QUANTIZATION_NUMBER);
+		train(trained);
+		CmacWeightSnapshot.write(file, trained, getStores(trained));
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(randomAccessFile.length() - 1);
+		randomAccessFile.close();
+		try {
+			CmacWeightSnapshot.load(file, createLayers(ControlLoop.QUANTIZATION_NUMBER));
+			fail("A truncated snapshot was loaded");
+		} catch (IOException e) {
+			//expected
+		}
+
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.writeInt(0);
+		randomAccessFile.close();
+		try {
+			CmacWeightSnapshot.load(file, createLayers(ControlLoop.QUANTIZATION_NUMBER));
+			fail("A file without the magic number was loaded");
+		} catch (IOException e) {
+			//expected
+		}
+	}
+
+	/**
+	 * Test method for {@link CmacSnapshotWriter}.
+	 */
+	public void testSnapshotWriter() throws Exception {
+		CmacLayer[] trained = createLayers(ControlLoop.QUANTIZATION_NUMBER);
+		CmacSnapshotWriter writer = new CmacSnapshotWriter(file, trained, 1);
+		writer.start();
+		train(trained);
+		writer.onControlTick(System.nanoTime() + 1000000);
+		writer.flush();
+		writer.stopWriter();
+		writer.join();
+
+		CmacLayer[] loaded = createLayers(ControlLoop.QUANTIZATION_NUMBER);
+		CmacWeightSnapshot.load(file, loaded);
+		assertSameWeights(trained, loaded);
+	}
+
+	/**
+	 * After a warm start the tables of the control loop only hold the cells they touched, the
+	 * rest is paged in by the writer. The copies taken on the control loop thread must not
+	 * grow with that, or every copy would reallocate them.
+	 */
+	public void testSnapshotWriterAfterWarmStart() throws Exception {
+		CmacLayer[] trained = createLayers(ControlLoop.QUANTIZATION_NUMBER);
+		train(trained);
+		CmacWeightSnapshot.write(file, trained, getStores(trained));
+		CmacLayer[] loaded = createLayers(ControlLoop.QUANTIZATION_NUMBER);
+		CmacWeightSnapshot.load(file, loaded);
+		for (CmacLayer layer : loaded)
+			layer.query(inputs[0]);
+		assertTrue(trained[0].getWeightStore().capacity() > loaded[0].getWeightStore().capacity());
+
+		File saved = File.createTempFile("cmac", ".bin");
+		CmacSnapshotWriter writer = new CmacSnapshotWriter(saved, loaded, 1);
+		writer.start();
+		AllocationCounter allocationCounter = AllocationCounter.create();
+		try {
+			for (int i = 0; i < 3; i++) {
+				long written = writer.getWrittenSnapshots();
+				Thread.sleep(2);	//past the save period
+				allocationCounter.start();
+				writer.onControlTick(System.nanoTime());
+				long allocatedBytes = allocationCounter.stop();
+				assertEquals("Snapshot " + i + " allocated on the control loop", 0, allocatedBytes);
+				long deadline = System.currentTimeMillis() + 5000;
+				while (writer.getWrittenSnapshots() == written) {
+					assertTrue("The snapshot wasn't written", System.currentTimeMillis() < deadline);
+					Thread.sleep(1);
+				}
+			}
+			writer.stopWriter();
+			writer.join();
+
+			//every cell was saved, not just the touched ones
+			CmacLayer[] reloaded = createLayers(ControlLoop.QUANTIZATION_NUMBER);
+			CmacWeightSnapshot.load(saved, reloaded);
+			assertEquals(trained[0].getWeightStore().size(), reloaded[0].getWeightStore().getSnapshot().size());
+			assertSameWeights(trained, reloaded);
+		} finally {
+			saved.delete();
+		}
+	}
+
+	/**
+	 * Snapshots of hashed tables can only be loaded into hashed tables of the same capacity.
+	 */
+	public void testHashedSnapshot() throws IOException {
+		CmacLayer[] trained = createLayers(ControlLoop.QUANTIZATION_NUMBER, 1024);
+		train(trained);
+		assertEquals(1024, trained[0].getWeightStore().capacity());
+		CmacWeightSnapshot.write(file, trained, getStores(trained));
+
+		CmacLayer[] loaded = createLayers(ControlLoop.QUANTIZATION_NUMBER, 1024);
+		CmacWeightSnapshot.load(file, loaded);
+		assertEquals(0, loaded[0].getWeightStore().size());
+		assertSameWeights(trained, loaded);
+
+		try {
+			CmacWeightSnapshot.load(file, createLayers(ControlLoop.QUANTIZATION_NUMBER, 2048));
+			fail("A hashed snapshot was loaded into tables with another capacity");
+		} catch (IOException e) {
+			//expected
+		}
+		try {
+			CmacWeightSnapshot.load(file, createLayers(ControlLoop.QUANTIZATION_NUMBER));
+			fail("A hashed snapshot was loaded into exact tables");
+		} catch (IOException e) {
+			//expected
+		}
+	}
+}
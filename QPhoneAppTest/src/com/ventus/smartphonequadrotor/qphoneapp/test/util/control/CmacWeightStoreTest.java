@@ -0,0 +1,127 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacInputParam;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacWeightStore;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the key packing and the open-addressing table of {@link CmacWeightStore}.
+ * @author abhin
+ *
+ */
+public class CmacWeightStoreTest extends TestCase {
+
+	/**
+	 * Test method for {@link CmacWeightStore#packHigh(int[])}, {@link CmacWeightStore#packLow(int[])}
+	 * and {@link CmacWeightStore#unpack(long, long, int[])}.
+	 */
+	public void testPackUnpack() {
+		int[] cells = new int[CmacInputParam.count];
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = (i % 2 == 0) ? i * 19 : -i * 7;
+		}
+		int[] unpacked = new int[cells.length];
+		CmacWeightStore.unpack(CmacWeightStore.packHigh(cells), CmacWeightStore.packLow(cells), unpacked);
+		for (int i = 0; i < cells.length; i++) {
+			assertEquals(cells[i], unpacked[i]);
+		}
+		
+		//the extremes of the representable range
+		cells[0] = CmacWeightStore.MAX_CELL_COORDINATE;
+		cells[1] = CmacWeightStore.MIN_CELL_COORDINATE;
+		CmacWeightStore.unpack(CmacWeightStore.packHigh(cells), CmacWeightStore.packLow(cells), unpacked);
+		assertEquals(CmacWeightStore.MAX_CELL_COORDINATE, unpacked[0]);
+		assertEquals(CmacWeightStore.MIN_CELL_COORDINATE, unpacked[1]);
+		
+		//coordinates outside of it would share a key with other cells
+		cells[0] = CmacWeightStore.MAX_CELL_COORDINATE + 1;
+		try {
+			CmacWeightStore.packHigh(cells);
+			fail("A coordinate above the range was packed");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		cells[0] = 0;
+		cells[CmacWeightStore.DIMENSIONS_PER_WORD] = CmacWeightStore.MIN_CELL_COORDINATE - 1;
+		try {
+			CmacWeightStore.packLow(cells);
+			fail("A coordinate below the range was packed");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	/**
+	 * Test method for {@link CmacWeightStore#find(long, long)} and {@link CmacWeightStore#findOrInsert(long, long)}.
+	 */
+	public void testFindOrInsert() {
+		CmacWeightStore store = new CmacWeightStore(4);
+		assertEquals(-1, store.find(1, 2));
+		
+		int slot = store.findOrInsert(1, 2);
+		assertEquals(slot, store.find(1, 2));
+		assertEquals(slot, store.findOrInsert(1, 2));
+		assertEquals(1, store.size());
+		assertEquals(-1, store.find(2, 1));
+		
+		store.getWeights()[slot * CmacWeightStore.WEIGHTS_PER_CELL + CmacWeightStore.ALTERNATE_WEIGHTS_OFFSET] = 3.5;
+		
+		//force the table to grow a few times and make sure nothing gets lost
+		for (int i = 0; i < 100; i++) {
+			int s = store.findOrInsert(i + 10, -i);
+			store.getWeights()[s * CmacWeightStore.WEIGHTS_PER_CELL] = i;
+		}
+		assertEquals(101, store.size());
+		assertTrue(store.capacity() >= 2 * store.size());
+		slot = store.find(1, 2);
+		assertEquals(3.5, store.getWeights()[slot * CmacWeightStore.WEIGHTS_PER_CELL + CmacWeightStore.ALTERNATE_WEIGHTS_OFFSET], 0);
+		for (int i = 0; i < 100; i++) {
+			int s = store.find(i + 10, -i);
+			assertEquals((double) i, store.getWeights()[s * CmacWeightStore.WEIGHTS_PER_CELL], 0);
+		}
+		
+		store.clear();
+		assertEquals(0, store.size());
+		assertEquals(-1, store.find(1, 2));
+	}
+	
+	/**
+	 * Test method for {@link CmacWeightStore#createHashed(int)}.
+	 */
+	public void testHashedMode() {
+		try {
+			CmacWeightStore.createHashed(1000);
+			fail("A hashed table with a capacity that isn't a power of two was created");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		
+		CmacWeightStore store = CmacWeightStore.createHashed(64);
+		assertTrue(store.isHashed());
+		double[] weights = store.getWeights();
+		//a cell that was never written reads as zeros
+		int slot = store.find(1, 2);
+		assertEquals(0, weights[slot * CmacWeightStore.WEIGHTS_PER_CELL], 0);
+		assertEquals(0, store.size());
+		
+		//many more cells than slots: the table never grows and the cells share slots
+		for (int i = 0; i < 1000; i++) {
+			int s = store.findOrInsert(i, -i);
+			assertEquals(s, store.find(i, -i));
+		}
+		assertEquals(64, store.capacity());
+		assertSame(weights, store.getWeights());
+		assertTrue(store.size() <= store.capacity());
+		assertTrue(store.getOccupancy() > 0.9 && store.getOccupancy() <= 1);
+		assertTrue(store.getCollisionCount() > 0);
+		assertTrue(store.getCollisionRate() > 0 && store.getCollisionRate() < 1);
+		
+		store.resetStatistics();
+		assertEquals(0, store.getLookupCount());
+		assertEquals(0, store.getCollisionRate(), 0);
+		//the last cell that wrote to a slot doesn't collide with itself
+		store.findOrInsert(999, -999);
+		assertEquals(0, store.getCollisionCount());
+	}
+}
@@ -1,11 +1,10 @@
 package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
 
-import android.util.Log;
-
 import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
 import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacInputParam;
 import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacOutput;
 import com.ventus.smartphonequadrotor.qphoneapp.util.control.ControlLoop;
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.Log;
 
 import junit.framework.TestCase;
 
@@ -0,0 +1,113 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.Histogram;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.ControlScheduler;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class ControlSchedulerTest extends TestCase {
+	private static final double RATE = 100;	//Hz
+	/**
+	 * The overruns are counted exactly, so the thread gets half a period of slack to be
+	 * scheduled in, which has to be enough even on a loaded build machine.
+	 */
+	private static final double OVERRUN_RATE = 20;	//Hz
+	private static final int TICKS = 50;
+
+	private static void busyWait(long nanos) {
+		long end = System.nanoTime() + nanos;
+		while (System.nanoTime() < end) {
+			//spin, like the cmac update does
+		}
+	}
+
+	/**
+	 * The time the iterations take must not be added to the period.
+	 */
+	public void testNoDrift() throws InterruptedException {
+		ControlScheduler scheduler = new ControlScheduler(RATE);
+		long first = scheduler.awaitNextTick();
+		long last = first;
+		for (int i = 1; i < TICKS; i++) {
+			busyWait(scheduler.getPeriodNanos() / 2);
+			last = scheduler.awaitNextTick();
+		}
+		//sleeping for a period after every iteration would take one and a half times as long.
+		//The deadlines are exact unless the thread wasn't scheduled in time.
+		long elapsed = last - first;
+		assertTrue(elapsed >= (TICKS - 1) * scheduler.getPeriodNanos());
+		assertTrue("The rate drifted by " + elapsed, elapsed < 1.2 * (TICKS - 1) * scheduler.getPeriodNanos());
+		if (scheduler.getOverruns() == 0)
+			assertEquals((TICKS - 1) * scheduler.getPeriodNanos(), elapsed);
+		assertEquals(TICKS, scheduler.getTicks());
+		assertEquals(TICKS, scheduler.getJitterHistogram().getCount());
+	}
+
+	/**
+	 * Iterations that take longer than a period are counted, and the ticks that they miss
+	 * are skipped instead of being run back to back.
+	 */
+	public void testOverrun() throws InterruptedException {
+		ControlScheduler scheduler = new ControlScheduler(OVERRUN_RATE);
+		long period = scheduler.getPeriodNanos();
+		long previous = scheduler.awaitNextTick();
+		//one and a half periods: the next tick is late but due
+		busyWait(period + period / 2);
+		long tick = scheduler.awaitNextTick();
+		assertEquals(previous + period, tick);
+		assertEquals(1, scheduler.getOverruns());
+		assertEquals(0, scheduler.getSkippedTicks());
+		//the tick after it is on time again
+		tick = scheduler.awaitNextTick();
+		assertEquals(previous + 2 * period, tick);
+		//three and a half periods: two ticks are skipped
+		busyWait(3 * period + period / 2);
+		long lateTick = scheduler.awaitNextTick();
+		assertTrue(lateTick >= tick + 3 * period);
+		assertEquals(2, scheduler.getOverruns());
+		assertEquals(2, scheduler.getSkippedTicks());
+		assertEquals(2, scheduler.getOverrunHistogram().getCount());
+		assertTrue(scheduler.getOverrunHistogram().getMax() >= 2 * period / 1000);
+		//the deadlines are counted from the late tick
+		assertEquals(lateTick + period, scheduler.awaitNextTick());
+	}
+
+	public void testSetRate() {
+		ControlScheduler scheduler = new ControlScheduler(20);
+		assertEquals(50000000, scheduler.getPeriodNanos());
+		scheduler.setRate(250);
+		assertEquals(4000000, scheduler.getPeriodNanos());
+		assertEquals(250, scheduler.getRate(), 1e-9);
+		try {
+			scheduler.setRate(0);
+			fail("A rate of 0 was accepted");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	/**
+	 * Test method for {@link Histogram#record(long)} and {@link Histogram#getPercentile(double)}.
+	 */
+	public void testHistogram() {
+		Histogram histogram = new Histogram(10, 5);
+		assertEquals(0, histogram.getPercentile(50));
+		for (int i = 0; i < 100; i++)
+			histogram.record(i % 40);
+		histogram.record(-3);
+		histogram.record(1000);
+		assertEquals(102, histogram.getCount());
+		assertEquals(31, histogram.getCount(0));	//0-9 and the negative value
+		assertEquals(1, histogram.getCount(4));		//everything from 40 on
+		assertEquals(1000, histogram.getMax());
+		assertEquals(20, histogram.getPercentile(50));
+		assertEquals(1000, histogram.getPercentile(100));
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getCount(0));
+	}
+}
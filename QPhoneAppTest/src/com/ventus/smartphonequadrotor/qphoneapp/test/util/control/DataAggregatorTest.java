@@ -0,0 +1,165 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.SimpleMatrix;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.CmacInputParam;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.DataAggregator;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.SensorHistory;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.TimeBase;
+import com.ventus.smartphonequadrotor.qphoneapp.util.json.MoveCommand;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class DataAggregatorTest extends TestCase {
+	private DataAggregator dataAggregator;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		dataAggregator = new DataAggregator();
+	}
+
+	public void testNoErrorsWithoutData() {
+		assertNull(dataAggregator.calculateErrors());
+		dataAggregator.processNewHeightData(0, 100);
+		assertNull(dataAggregator.calculateErrors());
+		//a timestamp of 0 is as good as any other
+		dataAggregator.processNewKinematicsData(0, 0, 0, 0);
+		assertNotNull(dataAggregator.calculateErrors());
+	}
+
+	/**
+	 * The derivatives are per second, over the interval between the timestamps of the QCB.
+	 */
+	public void testErrorDerivatives() {
+		dataAggregator.processNewHeightData(1000, 100);
+		dataAggregator.processNewKinematicsData(1000, 0.1f, 0, 0);
+		SimpleMatrix errors = dataAggregator.calculateErrors();
+		assertEquals(0, errors.get(CmacInputParam.HEIGHT_ERROR_DERIVATIVE.index), 0);
+		assertEquals(0, errors.get(CmacInputParam.ROLL_ERROR_DERIVATIVE.index), 0);
+
+		//the height 20ms later, the roll 10ms later
+		dataAggregator.processNewHeightData(1020, 110);
+		dataAggregator.processNewKinematicsData(1010, 0.2f, 0, 0);
+		errors = dataAggregator.calculateErrors();
+		assertEquals(10 / 0.02, errors.get(CmacInputParam.HEIGHT_ERROR_DERIVATIVE.index), 1e-9);
+		assertEquals(0.1 / 0.01, errors.get(CmacInputParam.ROLL_ERROR_DERIVATIVE.index), 1e-5);
+		//nanoseconds since the first timestamp
+		assertEquals(10000000, dataAggregator.getErrorTimestamp());
+
+		//no new data: the derivatives stay as they were
+		errors = dataAggregator.calculateErrors();
+		assertEquals(10 / 0.02, errors.get(CmacInputParam.HEIGHT_ERROR_DERIVATIVE.index), 1e-9);
+		assertEquals(0.1 / 0.01, errors.get(CmacInputParam.ROLL_ERROR_DERIVATIVE.index), 1e-5);
+	}
+
+	/**
+	 * Every new sample that the control loop reads goes into the histories, once.
+	 */
+	public void testHistories() {
+		dataAggregator.processNewHeightData(1000, 100);
+		dataAggregator.processNewKinematicsData(1000, 0.1f, 0.2f, 0.3f);
+		dataAggregator.calculateErrors();
+		dataAggregator.calculateErrors();
+		dataAggregator.processNewKinematicsData(1010, 0.3f, 0.2f, 0.3f);
+		dataAggregator.calculateErrors();
+		SensorHistory heights = dataAggregator.getHeightHistory();
+		SensorHistory rpy = dataAggregator.getRpyHistory();
+		assertEquals(1, heights.size());
+		assertEquals(100, heights.getValue(DataAggregator.HEIGHT_CHANNEL, 0), 0);
+		assertEquals(2, rpy.size());
+		assertEquals(10000000, rpy.getTimestamp(0));
+		assertEquals(0.2, rpy.valueAt(DataAggregator.ROLL_CHANNEL, 5000000), 1e-6);
+		assertEquals(0.3, rpy.getValue(DataAggregator.YAW_CHANNEL, 1), 1e-6);
+	}
+
+	/**
+	 * The estimated height is propagated with every accelerometer reading, and its velocity
+	 * is the derivative of the height error. Until the sonar gives a reliable reading, the
+	 * raw readings are used.
+	 */
+	public void testEstimatedHeight() {
+		dataAggregator.setHeightEstimated(true);
+		dataAggregator.processNewKinematicsData(1000, 0, 0, 0);
+		dataAggregator.processNewAccelData(1000, 0, 0, 1);
+		dataAggregator.processNewHeightData(1000, 10);
+		SimpleMatrix errors = dataAggregator.calculateErrors();
+		assertEquals(10, errors.get(CmacInputParam.HEIGHT_ERROR.index), 1e-3);
+		assertFalse(dataAggregator.getHeightEstimator().isInitialized());
+
+		dataAggregator.processNewHeightData(1010, 100);
+		for (long timestamp = 1011; timestamp <= 1030; timestamp++)
+			dataAggregator.processNewAccelData(timestamp, 0, 0, 1);
+		errors = dataAggregator.calculateErrors();
+		assertTrue(dataAggregator.getHeightEstimator().isInitialized());
+		assertEquals(100, errors.get(CmacInputParam.HEIGHT_ERROR.index), 1e-3);
+		assertEquals(0, errors.get(CmacInputParam.HEIGHT_ERROR_DERIVATIVE.index), 1e-3);
+		//the time of the last accelerometer reading
+		assertEquals(30000000, dataAggregator.getHeightHistory().getTimestamp(0));
+	}
+
+	/**
+	 * A move command is executed for its duration and the desired values move to it and
+	 * back smoothly, with their derivatives.
+	 */
+	public void testDesiredTrajectory() {
+		final long[] now = new long[] {1000000000L};
+		dataAggregator = new DataAggregator(new TimeBase() {
+			public long now() {
+				return now[0];
+			}
+		});
+		dataAggregator.processNewHeightData(0, 0);
+		dataAggregator.processNewKinematicsData(0, 0, 0, 0);
+		dataAggregator.processMoveCommand(new MoveCommand[] {new MoveCommand(0, 1, 0, 100, 2000)});
+		double previousRoll = 0;
+		double maxRoll = 0;
+		for (int i = 0; i <= 500; i++) {
+			SimpleMatrix errors = dataAggregator.calculateErrors();
+			double roll = -errors.get(CmacInputParam.ROLL_ERROR.index);
+			double rollDerivative = errors.get(CmacInputParam.DESIRED_ROLL_DERIVATIVE.index);
+			if (i > 0 && Math.abs(rollDerivative) < 0.5) {
+				//within the rounding of the matrix
+				assertEquals((roll - previousRoll) / 0.01, rollDerivative, 0.3);
+			}
+			previousRoll = roll;
+			maxRoll = Math.max(maxRoll, roll);
+			now[0] += 10000000;
+		}
+		assertEquals(Math.PI / 4, maxRoll, 1e-5);
+		//after the duration it levels out
+		assertEquals(0, previousRoll, 1e-6);
+		assertEquals(0, dataAggregator.calculateErrors().get(CmacInputParam.DESIRED_ROLL_SECOND_DERIVATIVE.index), 0);
+	}
+
+	/**
+	 * A held command ends its batch: the commands after it are dropped, and the ones up to it
+	 * are still executed.
+	 */
+	public void testHeldCommandInBatch() {
+		final long[] now = new long[] {1000000000L};
+		dataAggregator = new DataAggregator(new TimeBase() {
+			public long now() {
+				return now[0];
+			}
+		});
+		dataAggregator.processNewHeightData(0, 0);
+		dataAggregator.processNewKinematicsData(0, 0, 0, 0);
+		dataAggregator.processMoveCommand(new MoveCommand[] {
+			new MoveCommand(0, 1, 0, 50, 0), new MoveCommand(1, 0, 0, 50, 1000)
+		});
+		double roll = 0;
+		for (int i = 0; i <= 500; i++) {
+			SimpleMatrix errors = dataAggregator.calculateErrors();
+			assertNotNull("No errors at tick " + i, errors);
+			roll = -errors.get(CmacInputParam.ROLL_ERROR.index);
+			assertEquals(0, errors.get(CmacInputParam.PITCH_ERROR.index), 0);
+			now[0] += 10000000;
+		}
+		//the first command is held
+		assertTrue(roll > 0);
+		assertEquals(roll, -dataAggregator.calculateErrors().get(CmacInputParam.ROLL_ERROR.index), 1e-9);
+	}
+}
@@ -0,0 +1,74 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.DerivativeFilterBank;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class DerivativeFilterBankTest extends TestCase {
+	private static final long MS = 1000000;	//nanoseconds
+
+	public void testTooFewSamples() {
+		DerivativeFilterBank filter = new DerivativeFilterBank(1, 5);
+		assertEquals(0, filter.getDerivative(0), 0);
+		filter.add(10 * MS);
+		filter.set(0, 3);
+		assertEquals(0, filter.getDerivative(0), 0);
+		//two samples: the slope between them
+		filter.add(30 * MS);
+		filter.set(0, 4);
+		assertEquals(50, filter.getDerivative(0), 1e-9);
+		assertEquals(0, filter.getSecondDerivative(0), 0);
+	}
+
+	/**
+	 * A quadratic is fitted exactly, whatever the spacing of the samples, also after the
+	 * window has slid over many samples and after a gap.
+	 */
+	public void testQuadratic() {
+		DerivativeFilterBank filter = new DerivativeFilterBank(2, 7);
+		Random random = new Random(5);
+		long timestamp = 1000 * MS;
+		for (int i = 0; i < 500; i++) {
+			timestamp += (i == 300) ? 5000 * MS : (5 + random.nextInt(20)) * MS;
+			double t = timestamp / 1e9;
+			filter.add(timestamp);
+			filter.set(0, 3 - 2 * t + 0.5 * t * t);
+			filter.set(1, 7 * t);
+			if (i >= 2 && i != 300 && i != 301) {
+				assertEquals(-2 + t, filter.getDerivative(0), 1e-6 * Math.max(1, t));
+				assertEquals(1, filter.getSecondDerivative(0), 1e-4);
+				assertEquals(7, filter.getDerivative(1), 1e-6);
+				assertEquals(0, filter.getSecondDerivative(1), 1e-4);
+			}
+		}
+		assertEquals(7, filter.size());
+	}
+
+	/**
+	 * The fit smoothes the noise that a difference of two samples amplifies.
+	 */
+	public void testNoise() {
+		DerivativeFilterBank filter = new DerivativeFilterBank(1, 9);
+		Random random = new Random(11);
+		double previous = 0;
+		double filteredError = 0;
+		double differenceError = 0;
+		for (int i = 0; i < 1000; i++) {
+			double y = 2 * i * 0.01 + 0.01 * random.nextGaussian();
+			filter.add(i * 10 * MS);
+			filter.set(0, y);
+			if (i >= 9) {
+				filteredError += Math.abs(filter.getDerivative(0) - 2);
+				differenceError += Math.abs((y - previous) / 0.01 - 2);
+			}
+			previous = y;
+		}
+		assertTrue(filteredError < differenceError / 2);
+	}
+}
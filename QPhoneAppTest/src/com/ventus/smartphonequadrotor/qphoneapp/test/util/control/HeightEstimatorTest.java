@@ -0,0 +1,158 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.HeightEstimator;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class HeightEstimatorTest extends TestCase {
+	private static final long MS = 1000000;	//nanoseconds
+	private static final float ONE_G = 256;	//the accelerometer is not in m/s^2
+	private static final int SONAR_PERIOD = 50;	//milliseconds
+	private static final double ROLL = 0.2;
+	private static final double PITCH = -0.1;
+
+	private HeightEstimator estimator;
+	private Random random;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		estimator = new HeightEstimator();
+		random = new Random(3);
+	}
+
+	/**
+	 * A climb from 50cm to 150cm and back, as a cosine with a period of 8 seconds.
+	 */
+	private static double height(long millis) {
+		return 100 - 50 * Math.cos(2 * Math.PI * millis / 8000.0);
+	}
+
+	private static double velocity(long millis) {
+		return 50 * 2 * Math.PI / 8 * Math.sin(2 * Math.PI * millis / 8000.0);
+	}
+
+	private static double acceleration(long millis) {
+		double omega = 2 * Math.PI / 8;
+		return 50 * omega * omega * Math.cos(2 * Math.PI * millis / 8000.0);
+	}
+
+	/**
+	 * Registers an accelerometer reading at a constant tilt, with noise and a bias.
+	 */
+	private void registerAccel(long millis, double bias) {
+		double specificForce = ONE_G * (1 + (acceleration(millis) + bias) / 981) + random.nextGaussian() * 2;
+		double cosPitch = Math.cos(PITCH);
+		estimator.registerAccelValues(
+			(float) (-specificForce * Math.sin(PITCH)), 
+			(float) (specificForce * Math.sin(ROLL) * cosPitch), 
+			(float) (specificForce * Math.cos(ROLL) * cosPitch), 
+			millis * MS, ROLL, PITCH
+		);
+	}
+
+	/**
+	 * Registers the sonar distance along the tilted body axis, with noise.
+	 */
+	private boolean registerSonar(long millis, double offset) {
+		double distance = (height(millis) + offset) / (Math.cos(ROLL) * Math.cos(PITCH));
+		return estimator.registerSonarHeight(Math.round(distance + random.nextGaussian() * 2), millis * MS, ROLL, PITCH);
+	}
+
+	/**
+	 * @return the largest height error from the given time on
+	 */
+	private double run(long duration, long from, double bias, int outlierPeriod) {
+		double max = 0;
+		int sonarSamples = 0;
+		for (long millis = 0; millis < duration; millis++) {
+			registerAccel(millis, bias);
+			if (millis % SONAR_PERIOD == 0) {
+				sonarSamples++;
+				boolean outlier = outlierPeriod != 0 && sonarSamples % outlierPeriod == 0;
+				boolean accepted = registerSonar(millis, outlier ? 150 : 0);
+				if (outlier && millis >= from)
+					assertFalse("An outlier was accepted at " + millis, accepted);
+			}
+			if (millis >= from && estimator.isInitialized())
+				max = Math.max(max, Math.abs(estimator.getHeight() - height(millis)));
+		}
+		return max;
+	}
+
+	public void testTracking() {
+		double error = run(30000, 5000, 0, 0);
+		assertTrue("The height is off by " + error, error < 4);
+		assertEquals(velocity(29999), estimator.getVelocity(), 5);
+		//a 3 sigma gate drops a few good readings too
+		assertTrue(estimator.getRejectedSamples() < 30000 / SONAR_PERIOD / 100);
+	}
+
+	/**
+	 * A bias of the vertical acceleration doesn't make the height drift. It goes into the
+	 * magnitude of gravity or into the bias of the filter, they can't be told apart.
+	 */
+	public void testAccelBias() {
+		double error = run(30000, 10000, 20, 0);
+		assertTrue("The height is off by " + error, error < 4);
+	}
+
+	public void testOutliers() {
+		double error = run(30000, 5000, 0, 7);
+		assertTrue("The height is off by " + error, error < 4);
+		assertTrue(estimator.getRejectedSamples() >= 30000 / SONAR_PERIOD / 7);
+	}
+
+	/**
+	 * The accelerometer carries the estimate while the sonar is silent.
+	 */
+	public void testPropagation() {
+		run(10000, 0, 0, 0);
+		double max = 0;
+		for (long millis = 10000; millis < 11000; millis++) {
+			registerAccel(millis, 0);
+			max = Math.max(max, Math.abs(estimator.getHeight() - height(millis)));
+		}
+		assertTrue("The height is off by " + max, max < 5);
+		assertEquals(10999 * MS, estimator.getTimestamp());
+	}
+
+	/**
+	 * The readings below the minimum height are dropped.
+	 */
+	public void testLowReadings() {
+		estimator.registerAccelValues(0, 0, ONE_G, 0, 0, 0);
+		assertFalse(estimator.registerSonarHeight(12, MS, 0, 0));
+		assertFalse(estimator.isInitialized());
+		assertTrue(estimator.registerSonarHeight(25, 2 * MS, 0, 0));
+		assertTrue(estimator.isInitialized());
+		assertEquals(25, estimator.getHeight(), 1e-9);
+		assertFalse(estimator.registerSonarHeight(5, 3 * MS, 0, 0));
+		assertEquals(2, estimator.getRejectedSamples());
+		assertEquals(25, estimator.getHeight(), 1);
+	}
+
+	/**
+	 * A lasting jump of the sonar (the quadrotor flew over a table) is taken after a few
+	 * readings, instead of being rejected forever.
+	 */
+	public void testRecovery() {
+		estimator.registerAccelValues(0, 0, ONE_G, 0, 0, 0);
+		long millis = 0;
+		for (int i = 0; i < 20; i++, millis += SONAR_PERIOD) {
+			estimator.registerAccelValues(0, 0, ONE_G, millis * MS, 0, 0);
+			estimator.registerSonarHeight(100, millis * MS, 0, 0);
+		}
+		assertEquals(100, estimator.getHeight(), 0.5);
+		for (int i = 0; i < HeightEstimator.MAX_CONSECUTIVE_OUTLIERS; i++, millis += SONAR_PERIOD) {
+			estimator.registerAccelValues(0, 0, ONE_G, millis * MS, 0, 0);
+			estimator.registerSonarHeight(40, millis * MS, 0, 0);
+		}
+		assertEquals(40, estimator.getHeight(), 0.5);
+	}
+}
@@ -0,0 +1,101 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import com.ventus.smartphonequadrotor.qphoneapp.test.benchmark.ImuTrajectory;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.DataAggregator;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.KinematicsEstimator;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class KinematicsEstimatorTest extends TestCase {
+	private KinematicsEstimator estimator;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		estimator = new KinematicsEstimator();
+	}
+
+	private double maxError(ImuTrajectory trajectory, int from, int axis) {
+		double max = 0;
+		for (int i = 0; i < trajectory.length; i++) {
+			estimator.registerAccelValues(trajectory.accel[i][0], trajectory.accel[i][1], trajectory.accel[i][2], trajectory.timestamps[i]);
+			estimator.registerMagValues(trajectory.mag[i][0], trajectory.mag[i][1], trajectory.mag[i][2], trajectory.timestamps[i]);
+			estimator.registerGyroValues(trajectory.gyro[i][0], trajectory.gyro[i][1], trajectory.gyro[i][2], trajectory.timestamps[i]);
+			if (i >= from) {
+				double error;
+				if (axis == 0)
+					error = ImuTrajectory.angleError(estimator.getRoll(), trajectory.rolls[i]);
+				else if (axis == 1)
+					error = ImuTrajectory.angleError(estimator.getPitch(), trajectory.pitches[i]);
+				else
+					error = ImuTrajectory.angleError(estimator.getYaw(), trajectory.yaws[i]);
+				max = Math.max(max, Math.abs(error));
+			}
+		}
+		return max;
+	}
+
+	public void testLevel() {
+		assertFalse(estimator.isInitialized());
+		for (int i = 0; i < 100; i++) {
+			long timestamp = i * 10000000L;
+			estimator.registerAccelValues(0, 0, 9.81f, timestamp);
+			estimator.registerMagValues(0.3f, 0, 0.5f, timestamp);
+			estimator.registerGyroValues(0, 0, 0, timestamp);
+		}
+		assertTrue(estimator.isInitialized());
+		assertEquals(0, estimator.getRoll(), 1e-9);
+		assertEquals(0, estimator.getPitch(), 1e-9);
+		assertEquals(0, estimator.getYaw(), 1e-9);
+	}
+
+	/**
+	 * Without noise or bias, the estimate follows the motion closely.
+	 */
+	public void testTracking() {
+		ImuTrajectory trajectory = new ImuTrajectory(20000, 0, 0, 1);
+		assertTrue(maxError(trajectory, 0, 0) < 0.01);
+		estimator.reset();
+		assertTrue(maxError(trajectory, 0, 1) < 0.01);
+		estimator.reset();
+		assertTrue(maxError(trajectory, 0, 2) < 0.01);
+	}
+
+	/**
+	 * The drift of the gyroscope bias is corrected: the error settles at about the bias
+	 * divided by the drift correction gain, while the bias alone would add up to 0.6rad.
+	 */
+	public void testDriftCorrection() {
+		ImuTrajectory trajectory = new ImuTrajectory(60000, 0.01, 0.01, 2);
+		double rollError = maxError(trajectory, 20000, 0);
+		assertTrue("The roll is off by " + rollError, rollError < 0.04);
+		estimator.reset();
+		//the errors of the tilt add to that of the tilt compensated heading
+		double yawError = maxError(trajectory, 20000, 2);
+		assertTrue("The yaw is off by " + yawError, yawError < 0.1);
+	}
+
+	/**
+	 * The data aggregator uses the estimate instead of the kinematics of the QCB if the
+	 * attitude is estimated.
+	 */
+	public void testDataAggregator() {
+		DataAggregator dataAggregator = new DataAggregator();
+		dataAggregator.setAttitudeEstimated(true);
+		dataAggregator.processNewHeightData(0, 100);
+		dataAggregator.processNewKinematicsData(0, 1, 1, 1);
+		assertNull(dataAggregator.calculateErrors());
+		float g = 9.81f;
+		for (int i = 0; i < 3; i++) {
+			dataAggregator.processNewAccelData(i, 0, (float) (g * Math.sin(0.2)), (float) (g * Math.cos(0.2)));
+			dataAggregator.processNewGyroData(i, 0, 0, 0);
+		}
+		assertNotNull(dataAggregator.calculateErrors());
+		assertEquals(0.2, dataAggregator.getRpyHistory().getValue(DataAggregator.ROLL_CHANNEL, 0), 1e-6);
+		//every gyroscope sample, including the first one that isn't integrated
+		assertEquals(3, dataAggregator.getKinematicsSignal().getSequence());
+	}
+}
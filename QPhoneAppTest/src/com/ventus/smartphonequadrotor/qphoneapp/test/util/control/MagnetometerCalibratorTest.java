@@ -0,0 +1,145 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.MagnetometerCalibrator;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class MagnetometerCalibratorTest extends TestCase {
+	private static final double[] FIELD = {20, 0, -40};	//in the earth frame
+	private static final double[] OFFSET = {30, -15, 8};
+	private static final double[] SOFT_IRON = {
+		1.2, 0.1, 0, 
+		0.1, 0.9, 0.05, 
+		0, 0.05, 1.0
+	};
+	private static final double NOISE = 0.2;
+
+	private MagnetometerCalibrator calibrator;
+	private Random random;
+	//the field in the body frame of the last reading
+	private double[] body = new double[3];
+	private float[] reading = new float[3];
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		calibrator = new MagnetometerCalibrator();
+		random = new Random(5);
+	}
+
+	/**
+	 * Makes a reading in the given orientation (a unit quaternion from the body frame to the
+	 * earth frame) through the soft and hard iron.
+	 */
+	private float[] read(double w, double x, double y, double z, double[] softIron, double[] offset) {
+		//the transpose of the rotation matrix of the quaternion
+		body[0] = (1 - 2 * (y * y + z * z)) * FIELD[0] + 2 * (x * y + w * z) * FIELD[1] + 2 * (x * z - w * y) * FIELD[2];
+		body[1] = 2 * (x * y - w * z) * FIELD[0] + (1 - 2 * (x * x + z * z)) * FIELD[1] + 2 * (y * z + w * x) * FIELD[2];
+		body[2] = 2 * (x * z + w * y) * FIELD[0] + 2 * (y * z - w * x) * FIELD[1] + (1 - 2 * (x * x + y * y)) * FIELD[2];
+		for (int i = 0; i < 3; i++) {
+			double value = offset[i] + random.nextGaussian() * NOISE;
+			for (int j = 0; j < 3; j++)
+				value += softIron[i * 3 + j] * body[j];
+			reading[i] = (float) value;
+		}
+		return reading;
+	}
+
+	/**
+	 * A reading in a uniformly random orientation.
+	 */
+	private float[] readRandom(double[] softIron, double[] offset) {
+		double w = random.nextGaussian(), x = random.nextGaussian(), y = random.nextGaussian(), z = random.nextGaussian();
+		double norm = Math.sqrt(w * w + x * x + y * y + z * z);
+		return read(w / norm, x / norm, y / norm, z / norm, softIron, offset);
+	}
+
+	private static double angle(float[] a, double[] b) {
+		double dot = a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+		double normA = Math.sqrt(a[0] * a[0] + a[1] * a[1] + a[2] * a[2]);
+		double normB = Math.sqrt(b[0] * b[0] + b[1] * b[1] + b[2] * b[2]);
+		return Math.acos(Math.min(1, dot / (normA * normB)));
+	}
+
+	/**
+	 * After the readings of a turn around every axis, the corrected readings point along the
+	 * true field in the body frame.
+	 */
+	public void testSoftAndHardIron() {
+		for (int i = 0; i < 2000; i++) {
+			float[] raw = readRandom(SOFT_IRON, OFFSET);
+			calibrator.add(raw[0], raw[1], raw[2]);
+		}
+		assertTrue(calibrator.isCalibrated());
+		double[] offset = new double[3];
+		calibrator.getOffset(offset);
+		for (int i = 0; i < 3; i++)
+			assertEquals(OFFSET[i], offset[i], 0.2);
+
+		float[] corrected = new float[3];
+		double maxAngle = 0;
+		double rawMaxAngle = 0;
+		for (int i = 0; i < 100; i++) {
+			float[] raw = readRandom(SOFT_IRON, OFFSET);
+			rawMaxAngle = Math.max(rawMaxAngle, angle(raw, body));
+			calibrator.correct(raw[0], raw[1], raw[2], corrected);
+			maxAngle = Math.max(maxAngle, angle(corrected, body));
+		}
+		assertTrue("The corrected field is off by " + maxAngle, maxAngle < 0.02);
+		assertTrue(rawMaxAngle > 0.5);
+	}
+
+	/**
+	 * Without soft iron, the calibration is just the offset and keeps the magnitude.
+	 */
+	public void testHardIron() {
+		double[] identity = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+		for (int i = 0; i < 1000; i++) {
+			float[] raw = readRandom(identity, OFFSET);
+			calibrator.add(raw[0], raw[1], raw[2]);
+		}
+		assertTrue(calibrator.isCalibrated());
+		double[] matrix = new double[9];
+		calibrator.getSoftIron(matrix);
+		for (int i = 0; i < 9; i++)
+			assertEquals(identity[i], matrix[i], 0.02);
+		float[] corrected = new float[3];
+		calibrator.correct((float) (OFFSET[0] + 44.72), (float) OFFSET[1], (float) OFFSET[2], corrected);
+		assertEquals(44.72, corrected[0], 1);
+	}
+
+	/**
+	 * Readings that only turn around the yaw axis don't show the ellipsoid, so there is no
+	 * calibration and the readings pass through unchanged.
+	 */
+	public void testNotEnoughCoverage() {
+		for (int i = 0; i < 2000; i++) {
+			double yaw = random.nextDouble() * 2 * Math.PI;
+			float[] raw = read(Math.cos(yaw / 2), 0, 0, Math.sin(yaw / 2), SOFT_IRON, OFFSET);
+			calibrator.add(raw[0], raw[1], raw[2]);
+		}
+		assertFalse(calibrator.isCalibrated());
+		assertFalse(calibrator.solve());
+		float[] corrected = new float[3];
+		calibrator.correct(1, 2, 3, corrected);
+		assertEquals(1, corrected[0], 0);
+		assertEquals(2, corrected[1], 0);
+		assertEquals(3, corrected[2], 0);
+	}
+
+	public void testReset() {
+		for (int i = 0; i < 1000; i++) {
+			float[] raw = readRandom(SOFT_IRON, OFFSET);
+			calibrator.add(raw[0], raw[1], raw[2]);
+		}
+		assertTrue(calibrator.isCalibrated());
+		calibrator.reset();
+		assertFalse(calibrator.isCalibrated());
+		assertEquals(0, calibrator.getSamples());
+	}
+}
@@ -0,0 +1,86 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import com.ventus.smartphonequadrotor.qphoneapp.test.benchmark.ImuTrajectory;
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.MahonyAttitudeEstimator;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class MahonyAttitudeEstimatorTest extends TestCase {
+	private static final long MS = 1000000;	//nanoseconds
+
+	private MahonyAttitudeEstimator estimator;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		estimator = new MahonyAttitudeEstimator();
+	}
+
+	/**
+	 * @return the largest error of roll, pitch and yaw from the given sample on
+	 */
+	private double maxError(ImuTrajectory trajectory, int from) {
+		double max = 0;
+		for (int i = 0; i < trajectory.length; i++) {
+			estimator.registerAccelValues(trajectory.accel[i][0], trajectory.accel[i][1], trajectory.accel[i][2], trajectory.timestamps[i]);
+			estimator.registerMagValues(trajectory.mag[i][0], trajectory.mag[i][1], trajectory.mag[i][2], trajectory.timestamps[i]);
+			estimator.registerGyroValues(trajectory.gyro[i][0], trajectory.gyro[i][1], trajectory.gyro[i][2], trajectory.timestamps[i]);
+			if (i >= from) {
+				max = Math.max(max, Math.abs(ImuTrajectory.angleError(estimator.getRoll(), trajectory.rolls[i])));
+				max = Math.max(max, Math.abs(ImuTrajectory.angleError(estimator.getPitch(), trajectory.pitches[i])));
+				max = Math.max(max, Math.abs(ImuTrajectory.angleError(estimator.getYaw(), trajectory.yaws[i])));
+			}
+		}
+		return max;
+	}
+
+	public void testInitialAttitude() {
+		estimator.registerMagValues(0, -1, 0.5f, 0);
+		estimator.registerAccelValues((float) -Math.sin(0.3), 0, (float) Math.cos(0.3), 0);
+		assertTrue(estimator.isInitialized());
+		assertEquals(0, estimator.getRoll(), 1e-6);
+		assertEquals(0.3, estimator.getPitch(), 1e-6);
+		double[] quaternion = new double[4];
+		estimator.getQuaternion(quaternion);
+		assertEquals(1, quaternion[0] * quaternion[0] + quaternion[1] * quaternion[1]
+				+ quaternion[2] * quaternion[2] + quaternion[3] * quaternion[3], 1e-9);
+	}
+
+	public void testTracking() {
+		ImuTrajectory trajectory = new ImuTrajectory(20000, 0, 0, 1);
+		double error = maxError(trajectory, 0);
+		assertTrue("The attitude is off by " + error, error < 0.01);
+	}
+
+	/**
+	 * The integral feedback learns the gyroscope bias, so the error doesn't settle at an
+	 * offset like that of a proportional correction.
+	 */
+	public void testBias() {
+		ImuTrajectory trajectory = new ImuTrajectory(120000, 0.02, 0.01, 2);
+		double error = maxError(trajectory, 90000);
+		assertTrue("The attitude is off by " + error, error < 0.02);
+	}
+
+	/**
+	 * Pitching up through the vertical doesn't break the estimate, which euler angles
+	 * integrated from the gyroscope can't handle.
+	 */
+	public void testVertical() {
+		estimator.registerAccelValues(0, 0, 1, 0);
+		estimator.registerGyroValues(0, 0, 0, 0);
+		//pitch at 1 rad/s for 2 seconds, through pi/2, without any correction
+		float g = 1;
+		for (long time = MS; time <= 2000 * MS; time += MS) {
+			double pitch = time / 1e9;
+			estimator.registerAccelValues((float) (-g * Math.sin(pitch)), 0, (float) (g * Math.cos(pitch)), time);
+			estimator.registerGyroValues(0, 1, 0, time);
+		}
+		//pitched over by 2 rad, which the euler angles represent as rolled and yawed by pi
+		assertEquals(Math.PI - 2, estimator.getPitch(), 1e-3);
+		assertEquals(Math.PI, Math.abs(estimator.getRoll()), 1e-3);
+	}
+}
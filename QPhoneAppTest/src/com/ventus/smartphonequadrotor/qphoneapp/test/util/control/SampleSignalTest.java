@@ -0,0 +1,106 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.SampleSignal;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class SampleSignalTest extends TestCase {
+	private static final long TIMEOUT = 5000000000L;	//nanoseconds
+	private static final int SAMPLES = 1000;
+
+	public void testTimeout() {
+		SampleSignal signal = new SampleSignal();
+		long start = System.nanoTime();
+		assertEquals(0, signal.await(0, 20000000));
+		assertTrue(System.nanoTime() - start >= 20000000);
+		signal.signal(42);
+		//a sample that was signalled before the wait returns right away
+		assertEquals(1, signal.await(0, TIMEOUT));
+		assertEquals(42, signal.getLastSampleTime());
+	}
+
+	/**
+	 * The waiter must see every change of the sequence (though not necessarily every sample)
+	 * and must not miss the last one.
+	 */
+	public void testProducer() throws InterruptedException {
+		final SampleSignal signal = new SampleSignal();
+		Thread producer = new Thread() {
+			public void run() {
+				for (int i = 1; i <= SAMPLES; i++) {
+					signal.signal(System.nanoTime());
+					if (i % 10 == 0)
+						Thread.yield();
+				}
+			}
+		};
+		producer.start();
+		long seen = 0;
+		int wakeUps = 0;
+		long start = System.nanoTime();
+		while (seen < SAMPLES && System.nanoTime() - start < TIMEOUT) {
+			long sequence = signal.await(seen, TIMEOUT);
+			assertTrue(sequence >= seen);
+			seen = sequence;
+			wakeUps++;
+		}
+		producer.join();
+		assertEquals(SAMPLES, seen);
+		assertTrue(wakeUps <= SAMPLES);
+	}
+
+	public void testWakeUp() throws InterruptedException {
+		final SampleSignal signal = new SampleSignal();
+		final long[] result = new long[] {-1};
+		Thread waiter = new Thread() {
+			public void run() {
+				result[0] = signal.await(0, TIMEOUT);
+			}
+		};
+		long start = System.nanoTime();
+		waiter.start();
+		Thread.sleep(50);
+		signal.wakeUp();
+		waiter.join();
+		assertEquals(0, result[0]);
+		assertTrue(System.nanoTime() - start < TIMEOUT);
+	}
+
+	/**
+	 * An interrupt ends the wait and stays visible to the caller.
+	 */
+	public void testInterrupt() throws InterruptedException {
+		final SampleSignal signal = new SampleSignal();
+		final long[] result = new long[] {-1};
+		final boolean[] interrupted = new boolean[1];
+		Thread waiter = new Thread() {
+			public void run() {
+				result[0] = signal.await(0, TIMEOUT);
+				interrupted[0] = isInterrupted();
+			}
+		};
+		long start = System.nanoTime();
+		waiter.start();
+		Thread.sleep(50);
+		waiter.interrupt();
+		waiter.join();
+		assertEquals(0, result[0]);
+		assertTrue(interrupted[0]);
+		assertTrue(System.nanoTime() - start < TIMEOUT);
+
+		//a thread that is already interrupted doesn't wait at all
+		Thread.currentThread().interrupt();
+		try {
+			start = System.nanoTime();
+			assertEquals(0, signal.await(0, TIMEOUT));
+			assertTrue(System.nanoTime() - start < TIMEOUT);
+			assertTrue(Thread.currentThread().isInterrupted());
+		} finally {
+			Thread.interrupted();
+		}
+	}
+}
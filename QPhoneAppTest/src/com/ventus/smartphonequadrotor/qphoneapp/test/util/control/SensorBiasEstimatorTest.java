@@ -0,0 +1,154 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.SensorBiasEstimator;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class SensorBiasEstimatorTest extends TestCase {
+	private static final long MS = 1000000;	//nanoseconds
+	private static final double[] GYRO_BIAS = {0.03, -0.02, 0.01};
+	private static final double[] ACCEL_OFFSET = {0.03, -0.02, 0.05};
+	private static final double GYRO_NOISE = 0.003;
+	private static final double ACCEL_NOISE = 0.002;
+
+	private SensorBiasEstimator estimator;
+	private Random random;
+	private long millis;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		estimator = new SensorBiasEstimator();
+		random = new Random(11);
+		millis = 0;
+	}
+
+	/**
+	 * Registers a millisecond of samples with the given rotation rate about z and gravity
+	 * along the given direction.
+	 */
+	private void register(double rate, double gravityX, double gravityY, double gravityZ) {
+		estimator.registerGyroValues(
+			(float) (GYRO_BIAS[0] + random.nextGaussian() * GYRO_NOISE), 
+			(float) (GYRO_BIAS[1] + random.nextGaussian() * GYRO_NOISE), 
+			(float) (rate + GYRO_BIAS[2] + random.nextGaussian() * GYRO_NOISE), 
+			millis * MS
+		);
+		estimator.registerAccelValues(
+			(float) (gravityX + ACCEL_OFFSET[0] + random.nextGaussian() * ACCEL_NOISE), 
+			(float) (gravityY + ACCEL_OFFSET[1] + random.nextGaussian() * ACCEL_NOISE), 
+			(float) (gravityZ + ACCEL_OFFSET[2] + random.nextGaussian() * ACCEL_NOISE), 
+			millis * MS
+		);
+		millis++;
+	}
+
+	private void standStill(int duration, double gravityX, double gravityY, double gravityZ) {
+		for (int i = 0; i < duration; i++)
+			register(0, gravityX, gravityY, gravityZ);
+	}
+
+	/**
+	 * Turns at 2 rad/s with vibrations, which is anything but standing still.
+	 */
+	private void move(int duration) {
+		for (int i = 0; i < duration; i++)
+			register(2, 0.3 * Math.sin(i * 0.3), 0, 1 + 0.3 * Math.cos(i * 0.5));
+	}
+
+	public void testGyroBias() {
+		standStill(200, 0, 0, 1);
+		assertFalse(estimator.isStationary());
+		standStill(5000, 0, 0, 1);
+		assertTrue(estimator.isStationary());
+		assertTrue(estimator.isGyroBiasKnown());
+		double[] bias = new double[3];
+		estimator.getGyroBias(bias);
+		for (int i = 0; i < 3; i++)
+			assertEquals(GYRO_BIAS[i], bias[i], 0.001);
+		float[] corrected = new float[3];
+		estimator.correctGyroValues(0.5f, 0.5f, 0.5f, corrected);
+		assertEquals(0.5 - bias[0], corrected[0], 1e-6);
+		//the accelerometer can't be fitted in a single orientation
+		assertFalse(estimator.isAccelOffsetKnown());
+	}
+
+	public void testMoving() {
+		move(5000);
+		assertFalse(estimator.isStationary());
+		assertFalse(estimator.isGyroBiasKnown());
+		standStill(2000, 0, 0, 1);
+		assertTrue(estimator.isStationary());
+		move(100);
+		assertFalse(estimator.isStationary());
+	}
+
+	/**
+	 * Putting the quadrotor down on each of its six sides fits the offset of the
+	 * accelerometer and gravity.
+	 */
+	public void testAccelOffset() {
+		double[][] sides = {{0, 0, 1}, {0, 0, -1}, {1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}};
+		for (double[] side : sides) {
+			standStill(1500, side[0], side[1], side[2]);
+			move(300);
+		}
+		assertTrue(estimator.isAccelOffsetKnown());
+		double[] offset = new double[3];
+		estimator.getAccelOffset(offset);
+		for (int i = 0; i < 3; i++)
+			assertEquals(ACCEL_OFFSET[i], offset[i], 0.002);
+		assertEquals(1, estimator.getGravity(), 0.002);
+	}
+
+	public void testSaveAndLoad() throws IOException {
+		standStill(6000, 0, 0, 1);
+		File file = File.createTempFile("biases", ".bin");
+		try {
+			estimator.save(file);
+			SensorBiasEstimator loaded = new SensorBiasEstimator();
+			loaded.load(file);
+			assertTrue(loaded.isGyroBiasKnown());
+			assertFalse(loaded.isAccelOffsetKnown());
+			double[] expected = new double[3];
+			double[] actual = new double[3];
+			estimator.getGyroBias(expected);
+			loaded.getGyroBias(actual);
+			for (int i = 0; i < 3; i++)
+				assertEquals(expected[i], actual[i], 0);
+			//the loaded bias corrects the samples right away
+			float[] corrected = new float[3];
+			loaded.correctGyroValues((float) GYRO_BIAS[0], (float) GYRO_BIAS[1], (float) GYRO_BIAS[2], corrected);
+			assertEquals(0, corrected[0], 0.001);
+			assertEquals(estimator.toString(), loaded.toString().replace("moving", "stationary"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testLoadGarbage() throws IOException {
+		File file = File.createTempFile("biases", ".bin");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+			out.close();
+			try {
+				estimator.load(file);
+				fail("A file that isn't a file of biases was loaded");
+			} catch (IOException e) {
+				//expected
+			}
+			assertFalse(estimator.isGyroBiasKnown());
+		} finally {
+			file.delete();
+		}
+	}
+}
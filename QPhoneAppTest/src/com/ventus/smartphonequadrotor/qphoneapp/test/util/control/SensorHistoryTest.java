@@ -0,0 +1,72 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.SensorHistory;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class SensorHistoryTest extends TestCase {
+	private static final long MS = 1000000;	//nanoseconds
+
+	private static void add(SensorHistory history, long timestamp, double a, double b) {
+		history.add(timestamp);
+		history.set(0, a);
+		history.set(1, b);
+	}
+
+	public void testWrapAround() {
+		SensorHistory history = new SensorHistory(2, 3);
+		assertTrue(history.isEmpty());
+		for (int i = 0; i < 5; i++)
+			add(history, i * MS, i, -i);
+		assertEquals(3, history.size());
+		assertEquals(4 * MS, history.getTimestamp(0));
+		assertEquals(2 * MS, history.getTimestamp(2));
+		assertEquals(4, history.getValue(0, 0), 0);
+		assertEquals(-3, history.getValue(1, 1), 0);
+		try {
+			history.getValue(0, 3);
+			fail("A sample that has been overwritten was returned");
+		} catch (IndexOutOfBoundsException e) {
+			//expected
+		}
+		try {
+			history.add(3 * MS);
+			fail("An older sample was accepted");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		history.clear();
+		assertEquals(0, history.size());
+	}
+
+	public void testValueAt() {
+		SensorHistory history = new SensorHistory(2, 8);
+		for (int i = 0; i < 12; i++)
+			add(history, i * 10 * MS, i * i, 1);
+		//between the samples
+		assertEquals((25 + 36) / 2.0, history.valueAt(0, 55 * MS), 1e-9);
+		assertEquals(100 + 0.3 * 21, history.valueAt(0, 103 * MS), 1e-9);
+		//on a sample
+		assertEquals(49, history.valueAt(0, 70 * MS), 1e-9);
+		//outside the history the values are held
+		assertEquals(121, history.valueAt(0, 200 * MS), 0);
+		assertEquals(16, history.valueAt(0, 0), 0);
+		assertEquals(1, history.valueAt(1, 65 * MS), 0);
+	}
+
+	public void testDerivative() {
+		SensorHistory history = new SensorHistory(2, 16);
+		assertEquals(0, history.derivative(0, 10 * MS), 0);
+		for (int i = 0; i < 20; i++)
+			add(history, i * 10 * MS, 2 * i, 0);
+		//2 per 10ms, over any window
+		assertEquals(200, history.derivative(0, 10 * MS), 1e-9);
+		assertEquals(200, history.derivative(0, 35 * MS), 1e-9);
+		assertEquals(200, history.derivative(0, 1000 * MS), 1e-9);
+		assertEquals(0, history.derivative(1, 50 * MS), 0);
+	}
+}
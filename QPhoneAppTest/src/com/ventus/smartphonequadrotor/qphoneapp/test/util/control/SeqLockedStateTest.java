@@ -0,0 +1,65 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.SeqLockedState;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class SeqLockedStateTest extends TestCase {
+	private static final int SIZE = 15;
+	private static final int WRITES = 200000;
+
+	public void testReadWrite() {
+		SeqLockedState state = new SeqLockedState(3);
+		state.beginWrite();
+		state.putDouble(0, 1.5);
+		state.putLong(1, Long.MIN_VALUE);
+		state.putDouble(2, Double.NaN);
+		state.endWrite();
+		long[] snapshot = new long[3];
+		state.read(snapshot);
+		assertEquals(1.5, SeqLockedState.toDouble(snapshot[0]), 0);
+		assertEquals(Long.MIN_VALUE, snapshot[1]);
+		assertTrue(Double.isNaN(SeqLockedState.toDouble(snapshot[2])));
+		assertEquals(0, state.getReadRetries());
+	}
+
+	/**
+	 * Two writers store the same number in all the slots; a reader must never see slots from
+	 * different writes.
+	 */
+	public void testConsistentSnapshots() throws InterruptedException {
+		final SeqLockedState state = new SeqLockedState(SIZE);
+		Thread[] writers = new Thread[2];
+		for (int w = 0; w < writers.length; w++) {
+			final int writer = w;
+			writers[w] = new Thread() {
+				public void run() {
+					for (int i = 1; i <= WRITES; i++) {
+						state.beginWrite();
+						for (int j = 0; j < SIZE; j++)
+							state.putLong(j, 2 * i + writer);
+						state.endWrite();
+					}
+				}
+			};
+			writers[w].start();
+		}
+		long[] snapshot = new long[SIZE];
+		int reads = 0;
+		while (writers[0].isAlive() || writers[1].isAlive()) {
+			state.read(snapshot);
+			for (int j = 1; j < SIZE; j++)
+				assertEquals("Torn snapshot", snapshot[0], snapshot[j]);
+			reads++;
+		}
+		for (Thread writer : writers)
+			writer.join();
+		state.read(snapshot);
+		assertTrue(snapshot[0] == 2 * WRITES || snapshot[0] == 2 * WRITES + 1);
+		assertTrue(reads > 0);
+	}
+}
@@ -0,0 +1,119 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.SetpointTrajectory;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class SetpointTrajectoryTest extends TestCase {
+	private static final long MS = 1000000;	//nanoseconds
+	private static final double[] MAX_JERK = new double[] {50, 20};
+
+	private SetpointTrajectory trajectory;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		trajectory = new SetpointTrajectory(MAX_JERK, 4, new double[] {1, 0});
+	}
+
+	public void testInitialPosition() {
+		trajectory.sample(0);
+		assertEquals(1, trajectory.getPosition(0), 0);
+		assertEquals(0, trajectory.getVelocity(1), 0);
+	}
+
+	/**
+	 * The setpoints are reached one after the other, each held for its duration, and the
+	 * jerk stays within the limits.
+	 */
+	public void testSequence() {
+		trajectory.plan(0);
+		long end = trajectory.append(new double[] {3, 0.5}, 2000 * MS);
+		assertEquals(2000 * MS, end);
+		assertEquals(Long.MAX_VALUE, trajectory.append(new double[] {3, -0.5}, 0));
+		assertEquals(2, trajectory.size());
+
+		double previousAcceleration = 0;
+		double maxJerk = 0;
+		for (long time = 0; time <= 4000 * MS; time += MS) {
+			trajectory.sample(time);
+			if (time > 0)
+				maxJerk = Math.max(maxJerk, Math.abs(trajectory.getAcceleration(1) - previousAcceleration) / 1e-3);
+			previousAcceleration = trajectory.getAcceleration(1);
+			if (time == 1900 * MS) {
+				assertEquals(3, trajectory.getPosition(0), 1e-9);
+				assertEquals(0.5, trajectory.getPosition(1), 1e-9);
+				assertEquals(0, trajectory.getVelocity(1), 0);
+			}
+		}
+		assertTrue("The jerk was " + maxJerk, maxJerk <= MAX_JERK[1] * 1.01);
+		//held after the last transition
+		assertEquals(-0.5, trajectory.getPosition(1), 1e-9);
+		assertEquals(0, trajectory.getAcceleration(1), 0);
+	}
+
+	/**
+	 * The velocities and accelerations are the derivatives of the positions.
+	 */
+	public void testDerivatives() {
+		trajectory.plan(0);
+		trajectory.append(new double[] {2, 0.3}, 0);
+		long step = MS / 100;
+		for (long time = 10 * MS; time < 500 * MS; time += 50 * MS) {
+			trajectory.sample(time - step);
+			double before = trajectory.getPosition(1);
+			double velocityBefore = trajectory.getVelocity(1);
+			trajectory.sample(time + step);
+			double after = trajectory.getPosition(1);
+			double velocityAfter = trajectory.getVelocity(1);
+			trajectory.sample(time + step);
+			double velocity = (after - before) / (2 * step / 1e9);
+			assertEquals(velocity, (velocityBefore + velocityAfter) / 2, 1e-6);
+			assertEquals((velocityAfter - velocityBefore) / (2 * step / 1e9), trajectory.getAcceleration(1), 1e-3);
+		}
+	}
+
+	/**
+	 * A new plan in the middle of a transition continues from its position, velocity and
+	 * acceleration.
+	 */
+	public void testReplan() {
+		trajectory.plan(0);
+		trajectory.append(new double[] {1, 0.8}, 0);
+		trajectory.sample(300 * MS);
+		double position = trajectory.getPosition(1);
+		double velocity = trajectory.getVelocity(1);
+		double acceleration = trajectory.getAcceleration(1);
+		assertTrue(velocity > 0);
+		trajectory.plan(300 * MS);
+		trajectory.append(new double[] {1, -0.8}, 0);
+		trajectory.sample(300 * MS);
+		assertEquals(position, trajectory.getPosition(1), 1e-12);
+		assertEquals(velocity, trajectory.getVelocity(1), 1e-12);
+		assertEquals(acceleration, trajectory.getAcceleration(1), 1e-12);
+		for (long time = 300 * MS; time < 10000 * MS; time += 100 * MS)
+			trajectory.sample(time);
+		assertEquals(-0.8, trajectory.getPosition(1), 1e-9);
+	}
+
+	public void testCapacity() {
+		trajectory.plan(0);
+		for (int i = 0; i < 4; i++)
+			trajectory.append(new double[] {i, 0}, 100 * MS);
+		try {
+			trajectory.append(new double[] {0, 0}, 100 * MS);
+			fail("More segments than the capacity were accepted");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+		try {
+			trajectory.sample(-1);
+			fail("The trajectory was sampled backwards");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+}
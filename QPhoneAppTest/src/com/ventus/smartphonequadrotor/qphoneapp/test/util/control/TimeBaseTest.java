@@ -0,0 +1,45 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.control;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.control.TimeBase;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class TimeBaseTest extends TestCase {
+
+	/**
+	 * Test method for {@link TimeBase#fromQcbTimestamp(long)}.
+	 */
+	public void testFromQcbTimestamp() {
+		TimeBase timeBase = new TimeBase();
+		assertEquals(0, timeBase.fromQcbTimestamp(1000));
+		assertEquals(20 * TimeBase.QCB_TICK_NANOS, timeBase.fromQcbTimestamp(1020));
+		//the height and the kinematics may come slightly out of order
+		assertEquals(15 * TimeBase.QCB_TICK_NANOS, timeBase.fromQcbTimestamp(1015));
+		assertEquals(40 * TimeBase.QCB_TICK_NANOS, timeBase.fromQcbTimestamp(1040));
+	}
+
+	/**
+	 * The 32-bit counter of the QCB wraps around.
+	 */
+	public void testWrapAround() {
+		TimeBase timeBase = new TimeBase();
+		timeBase.fromQcbTimestamp(0xFFFFFFF0L);
+		assertEquals(0x20 * TimeBase.QCB_TICK_NANOS, timeBase.fromQcbTimestamp(0x10));
+		assertEquals(0x18 * TimeBase.QCB_TICK_NANOS, timeBase.fromQcbTimestamp(0x08));
+		assertEquals(0x0F * TimeBase.QCB_TICK_NANOS, timeBase.fromQcbTimestamp(0xFFFFFFFFL));
+		//only the low 32 bits count
+		assertEquals(0x30 * TimeBase.QCB_TICK_NANOS, timeBase.fromQcbTimestamp(0x100000020L));
+		timeBase.resetQcbClock();
+		assertEquals(0, timeBase.fromQcbTimestamp(5));
+	}
+
+	public void testConversions() {
+		assertEquals(0.02, TimeBase.toSeconds(20000000), 1e-15);
+		assertEquals(5, TimeBase.toMillis(4999999));
+		assertEquals(-3, TimeBase.toMillis(-3000000));
+	}
+}
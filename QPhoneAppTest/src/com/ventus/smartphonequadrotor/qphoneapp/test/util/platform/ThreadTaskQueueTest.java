@@ -0,0 +1,112 @@
+package com.ventus.smartphonequadrotor.qphoneapp.test.util.platform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.ventus.smartphonequadrotor.qphoneapp.util.platform.ThreadTaskQueue;
+
+import junit.framework.TestCase;
+
+/**
+ * @author abhin
+ *
+ */
+public class ThreadTaskQueueTest extends TestCase {
+	private static final long TIMEOUT = 5000;
+
+	private List<String> ran = new ArrayList<String>();
+	private ThreadTaskQueue queue;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		queue = new ThreadTaskQueue("test queue");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		queue.quit();
+		queue.join(TIMEOUT);
+		super.tearDown();
+	}
+
+	private Runnable task(final String name) {
+		return new Runnable() {
+			public void run() {
+				synchronized (ran) {
+					ran.add(name);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Starts the queue and waits until it ran everything posted so far.
+	 */
+	private void runQueue() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		queue.post(new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		});
+		if (!queue.isAlive())
+			queue.start();
+		assertTrue("The queue didn't run its tasks", done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Test method for {@link ThreadTaskQueue#postCoalesced(int, Runnable)}: only the last task
+	 * of a kind runs, after the tasks posted before it, and the other tasks keep their order.
+	 */
+	public void testPostCoalesced() throws InterruptedException {
+		queue.post(task("a"));
+		queue.postCoalesced(1, task("speeds 1"));
+		queue.post(task("b"));
+		queue.postCoalesced(2, task("height 1"));
+		queue.postCoalesced(1, task("speeds 2"));
+		queue.post(task("c"));
+		queue.postCoalesced(1, task("speeds 3"));
+		runQueue();
+
+		String[] expected = {"a", "b", "height 1", "c", "speeds 3"};
+		assertEquals(expected.length, ran.size());
+		for (int i = 0; i < expected.length; i++)
+			assertEquals(expected[i], ran.get(i));
+	}
+
+	/**
+	 * The ring grows, without losing the order, both from its start and once it has wrapped.
+	 */
+	public void testGrowth() throws InterruptedException {
+		for (int i = 0; i < 40; i++)
+			queue.post(task("first " + i));
+		runQueue();
+		//the head is now in the middle of the ring. Hold the queue while it fills up again.
+		final CountDownLatch gate = new CountDownLatch(1);
+		queue.post(new Runnable() {
+			public void run() {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		for (int i = 0; i < 100; i++) {
+			queue.post(task("second " + i));
+			queue.postCoalesced(1, task("coalesced " + i));
+		}
+		gate.countDown();
+		runQueue();
+
+		assertEquals(40 + 100 + 1, ran.size());
+		for (int i = 0; i < 40; i++)
+			assertEquals("first " + i, ran.get(i));
+		for (int i = 0; i < 100; i++)
+			assertEquals("second " + i, ran.get(40 + i));
+		assertEquals("coalesced 99", ran.get(140));
+	}
+}